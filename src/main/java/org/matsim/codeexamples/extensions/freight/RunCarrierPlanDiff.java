@@ -0,0 +1,58 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2019 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.codeexamples.extensions.freight;
+
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.freight.carriers.CarrierPlanXmlReader;
+import org.matsim.freight.carriers.CarrierVehicleTypeReader;
+import org.matsim.freight.carriers.CarrierVehicleTypes;
+import org.matsim.freight.carriers.Carriers;
+import org.matsim.freight.carriers.analysis.CarrierPlanDiff;
+
+import java.io.IOException;
+
+
+/**
+ * Compares the carrier plans of two runs, see {@link CarrierPlanDiff}.
+ * <p>
+ * Arguments: base carriers file, variant carriers file, carrier vehicle types file, output directory and optionally
+ * the network file (for the distances of the routes).
+ *
+ * @see org.matsim.freight.carriers
+ */
+public class RunCarrierPlanDiff {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			throw new IllegalArgumentException("Usage: <base carriers file> <variant carriers file> <carrier vehicle types file> <output directory> [<network file>]");
+		}
+		CarrierVehicleTypes carrierVehicleTypes = new CarrierVehicleTypes();
+		new CarrierVehicleTypeReader(carrierVehicleTypes).readFile(args[2]);
+
+		Carriers base = new Carriers();
+		new CarrierPlanXmlReader(base, carrierVehicleTypes).readFile(args[0]);
+		Carriers variant = new Carriers();
+		new CarrierPlanXmlReader(variant, carrierVehicleTypes).readFile(args[1]);
+
+		Network network = args.length > 4 ? NetworkUtils.readNetwork(args[4]) : null;
+		new CarrierPlanDiff(network).writeDiff(base, variant, args[3]);
+	}
+
+}
@@ -19,6 +19,7 @@
 package org.matsim.codeexamples.extensions.freight;
 
 import org.matsim.application.MATSimAppCommand;
+import org.matsim.freight.carriers.analysis.FleetWhatIfAnalysis;
 import org.matsim.freight.carriers.analysis.RunFreightAnalysisEventBased;
 import org.matsim.freight.carriers.controler.CarrierScoringFunctionFactory;
 import org.apache.logging.log4j.LogManager;
@@ -29,17 +30,20 @@ import org.matsim.api.core.v01.population.Leg;
 import org.matsim.core.controler.AbstractModule;
 import org.matsim.freight.carriers.*;
 import org.matsim.freight.carriers.controler.CarrierModule;
+import org.matsim.project.NextEventTimeSteppingModule;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.controler.Controler;
-import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.core.controler.OutputDirectoryHierarchy;
+import org.matsim.core.controler.OutputDirectoryLogging;
 import org.matsim.core.config.groups.PlansConfigGroup;
 import org.matsim.core.scoring.ScoringFunction;
 import org.matsim.core.config.groups.VspExperimentalConfigGroup;
 import picocli.CommandLine;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 
@@ -69,40 +73,106 @@ public class RunFreightExample implements MATSimAppCommand {
 	@CommandLine.Option(names = "--networkCRS", description = "CRS of the input network (e.g.\"EPSG:31468\")")
 	private static String networkCRS;
 
+	@CommandLine.Option(names = "--freightOnly", description = "Simulate only the carrier tours, without QSim (see FreightFastForwardSimulation).")
+	private static boolean freightOnly;
+
+	@CommandLine.Option(names = "--nextEventStepping", description = "Let the QSim skip the time steps in which nothing moves (see NextEventTimeSteppingModule).")
+	private static boolean nextEventStepping;
+
+	@CommandLine.Option(names = "--travelTimesFile", description = "Link travel times per time slice of an earlier run (see LinkTravelTimeTable), used by the freight-only simulation and by --jspritBudget.")
+	private static String travelTimesFile;
+
+	@CommandLine.Option(names = "--writeTravelTimes", description = "Write the link travel times per time slice of this run to output_linkTravelTimes.bin.")
+	private static boolean writeTravelTimes;
+
+	@CommandLine.Option(names = "--whatIfFile", description = "Variants of the vehicle types to evaluate on the analysis output (see FleetWhatIfAnalysis).")
+	private static String whatIfFile;
+
+	@CommandLine.Option(names = "--timeWindowPrecheck", description = "Check the time windows of the jobs before jsprit (see TimeWindowPrecheck): ${COMPLETION-CANDIDATES}.", defaultValue = "off")
+	private static TimeWindowPrecheckMode timeWindowPrecheck;
+
+	enum TimeWindowPrecheckMode {off, flag, reject}
+
+	@CommandLine.Option(names = "--jspritBudget", description = "Wall clock budget in seconds for solving all carriers; the iterations per carrier then follow from its size and convergence, up to --jspritIterations (see AdaptiveJspritRunner).")
+	private static Double jspritBudget;
+
 	public static void main(String[] args) {
 		System.exit(new CommandLine(new RunFreightExample()).execute(args));
 	}
 
-	public Integer call() throws ExecutionException, InterruptedException {
+	public Integer call() throws ExecutionException, InterruptedException, IOException {
 
 		// ### config stuff: ###
 		Config config = prepareConfig() ;
 		log.info("Config prepared");
 
-		// load scenario (this is not loading the freight material):
-		Scenario scenario = ScenarioUtils.loadScenario(config);
-		CarriersUtils.loadCarriersAccordingToFreightConfig(scenario);
+		// load scenario including the freight material; the input files are parsed concurrently
+		Scenario scenario = ParallelFreightScenarioLoader.loadScenario(config);
 
-		//Reset nuOfJspritIterations for all carriers
-		for (Carrier carrier : CarriersUtils.getCarriers(scenario).getCarriers().values()) {
-			log.warn("Overwriting the number of jsprit iterations for carrier: {}, new value is: {}.", carrier.getId() , jspritIterations);
-			CarriersUtils.setJspritIterations(carrier, jspritIterations);
+		List<TimeWindowPrecheck.InfeasibleJob> infeasibleJobs = List.of();
+		if (timeWindowPrecheck != TimeWindowPrecheckMode.off) {
+			infeasibleJobs = new TimeWindowPrecheck(scenario.getNetwork(), config.global().getNumberOfThreads()).run(CarriersUtils.getCarriers(scenario));
+			for (TimeWindowPrecheck.InfeasibleJob infeasibleJob : infeasibleJobs) {
+				log.warn("Infeasible {} {} of carrier {}: {}.", infeasibleJob.jobType(), infeasibleJob.jobId(), infeasibleJob.carrierId(), infeasibleJob.reason());
+			}
+			if (timeWindowPrecheck == TimeWindowPrecheckMode.reject) {
+				// jsprit would only leave them unassigned after all iterations
+				TimeWindowPrecheck.removeJobs(CarriersUtils.getCarriers(scenario), infeasibleJobs);
+			}
 		}
 
 		// Solving the VRP (generate carrier's tour plans)
-		CarriersUtils.runJsprit(scenario);
-
+		if (jspritBudget != null) {
+			AdaptiveJspritRunner jspritRunner = new AdaptiveJspritRunner(scenario, jspritBudget);
+			jspritRunner.setMaxIterations(jspritIterations);
+			if (travelTimesFile != null) {
+				jspritRunner.setTravelTime(LinkTravelTimeTable.read(scenario.getNetwork(), travelTimesFile));
+			}
+			jspritRunner.run();
+		} else {
+			//Reset nuOfJspritIterations for all carriers
+			for (Carrier carrier : CarriersUtils.getCarriers(scenario).getCarriers().values()) {
+				log.warn("Overwriting the number of jsprit iterations for carrier: {}, new value is: {}.", carrier.getId() , jspritIterations);
+				CarriersUtils.setJspritIterations(carrier, jspritIterations);
+			}
+			CarriersUtils.runJsprit(scenario);
+		}
 
-		//prepare controller
-		Controler controler = prepareControler( scenario ) ;
 
-		// ## Start of the MATSim-Run: ##
-		//Frachtsimulation: Nach Absprache mit KMT auf ignore gesetzt.
-		controler.getConfig().vspExperimental().setVspDefaultsCheckingLevel(VspExperimentalConfigGroup.VspDefaultsCheckingLevel.ignore);
-		controler.run();
+		if (freightOnly) {
+			// There are no MATSim iterations and the scoring keeps the jsprit score, so the tours only need to be driven once.
+			new File(config.controller().getOutputDirectory()).mkdirs();
+			OutputDirectoryLogging.initLoggingWithOutputDirectory(config.controller().getOutputDirectory());
+			FreightFastForwardSimulation simulation = new FreightFastForwardSimulation(scenario);
+			if (travelTimesFile != null) {
+				simulation.setTravelTime(LinkTravelTimeTable.read(scenario.getNetwork(), travelTimesFile));
+			}
+			simulation.runAndWriteOutput(config.controller().getOutputDirectory());
+			OutputDirectoryLogging.closeOutputDirLogging();
+		} else {
+			//prepare controller
+			Controler controler = prepareControler( scenario ) ;
+
+			// ## Start of the MATSim-Run: ##
+			//Frachtsimulation: Nach Absprache mit KMT auf ignore gesetzt.
+			controler.getConfig().vspExperimental().setVspDefaultsCheckingLevel(VspExperimentalConfigGroup.VspDefaultsCheckingLevel.ignore);
+			controler.run();
+		}
 
 		log.info(" Done.");
 
+		if (timeWindowPrecheck != TimeWindowPrecheckMode.off) {
+			// (the output directory is only created by the run)
+			TimeWindowPrecheck.writeInfeasibleJobs(infeasibleJobs, config.controller().getOutputDirectory() + "/output_infeasibleJobs.csv");
+		}
+
+		if (writeTravelTimes) {
+			// (the same slices as for the routing of the carriers)
+			final double sliceWidth = ConfigUtils.addOrGetModule(config, FreightCarriersConfigGroup.class).getTravelTimeSliceWidth();
+			LinkTravelTimeTable.fromEvents(scenario.getNetwork(), config.controller().getOutputDirectory() + "/output_events.xml.gz", sliceWidth, 30 * 3600.)
+					.write(scenario.getNetwork(), config.controller().getOutputDirectory() + "/output_linkTravelTimes.bin");
+		}
+
 		//start analysis
 		log.info("Start of analysis...");
 		var analysis = new RunFreightAnalysisEventBased(
@@ -116,6 +186,12 @@ public class RunFreightExample implements MATSimAppCommand {
 			throw new RuntimeException(e);
 		}
 
+		if (whatIfFile != null) {
+			final String analysisOutputDirectory = config.controller().getOutputDirectory() + "/analysis/";
+			FleetWhatIfAnalysis.readAnalysisOutput(analysisOutputDirectory)
+					.writeWhatIfAnalysis(analysisOutputDirectory, FleetWhatIfAnalysis.readVariants(whatIfFile));
+		}
+
 
 
 		return 0;
@@ -152,6 +228,11 @@ public class RunFreightExample implements MATSimAppCommand {
 
 		controller.addOverridingModule(new CarrierModule());
 
+		if (nextEventStepping) {
+			// the delivery vans are parked at their services most of the day
+			controller.addOverridingModule(new NextEventTimeSteppingModule());
+		}
+
 		controller.addOverridingModule(new AbstractModule() {
 			@Override
 			public void install() {
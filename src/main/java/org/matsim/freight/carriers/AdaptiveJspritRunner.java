@@ -0,0 +1,244 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers;
+
+import com.graphhopper.jsprit.core.algorithm.SearchStrategy;
+import com.graphhopper.jsprit.core.algorithm.VehicleRoutingAlgorithm;
+import com.graphhopper.jsprit.core.algorithm.termination.PrematureAlgorithmTermination;
+import com.graphhopper.jsprit.core.problem.VehicleRoutingProblem;
+import com.graphhopper.jsprit.core.problem.solution.VehicleRoutingProblemSolution;
+import com.graphhopper.jsprit.core.util.Solutions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.freight.carriers.jsprit.MatsimJspritFactory;
+import org.matsim.freight.carriers.jsprit.NetworkBasedTransportCosts;
+import org.matsim.freight.carriers.jsprit.NetworkRouter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Solves the vehicle routing problems of all carriers with jsprit, like {@link CarriersUtils#runJsprit(Scenario)},
+ * but with an iteration and time budget per carrier instead of one number of iterations for all carriers.
+ * <p>
+ * The number of iterations of a carrier grows with its number of jobs (services and shipments), between a minimum
+ * and a maximum (the maximum wins). The time of a jsprit iteration grows with the number of jobs as well, so the work of a carrier is
+ * estimated as the square of its number of jobs, and the threads' share of the wall clock budget is distributed
+ * among the carriers according to their work. A carrier stops early, if its best solution has not improved by more
+ * than {@link #setMinImprovement(double)} during the last tenth of its iterations (at least
+ * {@link #setMinIterations(int)}). The carriers are solved in parallel, the largest first, and none of them runs
+ * beyond the end of the global budget; so the solve phase ends within the budget (plus one jsprit iteration and the
+ * routing of the plans). A carrier which starts after the end of the global budget gets only the initial solution of
+ * jsprit, without any iterations.
+ * <p>
+ * The budget, the number of iterations, the reason of the stop and the score of every carrier are logged.
+ */
+public final class AdaptiveJspritRunner {
+
+	private static final Logger log = LogManager.getLogger(AdaptiveJspritRunner.class);
+
+	private final Scenario scenario;
+	private final double budgetSeconds;
+	private int minIterations = 100;
+	private int maxIterations = 10000;
+	private double iterationsPerJob = 20.;
+	private double minImprovement = 0.001;
+	private TravelTime travelTime = null;
+
+	private record Budget(Carrier carrier, int nuOfJobs, int iterations, double seconds) {
+	}
+
+	/**
+	 * @param budgetSeconds wall clock time for solving all carriers
+	 */
+	public AdaptiveJspritRunner(Scenario scenario, double budgetSeconds) {
+		this.scenario = scenario;
+		this.budgetSeconds = budgetSeconds;
+	}
+
+	public void setMinIterations(int minIterations) {
+		this.minIterations = minIterations;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	public void setIterationsPerJob(double iterationsPerJob) {
+		this.iterationsPerJob = iterationsPerJob;
+	}
+
+	/**
+	 * @param minImprovement relative improvement of the best solution which keeps the search of a carrier going
+	 */
+	public void setMinImprovement(double minImprovement) {
+		this.minImprovement = minImprovement;
+	}
+
+	/**
+	 * Travel times for the routing of the carriers, e.g. a {@link LinkTravelTimeTable} of an earlier run; the free
+	 * speed travel times by default.
+	 */
+	public void setTravelTime(TravelTime travelTime) {
+		this.travelTime = travelTime;
+	}
+
+	public void run() throws InterruptedException, ExecutionException {
+		final long start = System.nanoTime();
+		final long deadline = start + (long) (budgetSeconds * 1e9);
+		final int nuOfThreads = Math.max(1, scenario.getConfig().global().getNumberOfThreads());
+		final FreightCarriersConfigGroup freightCarriersConfigGroup = ConfigUtils.addOrGetModule(scenario.getConfig(), FreightCarriersConfigGroup.class);
+
+		NetworkBasedTransportCosts.Builder costsBuilder = NetworkBasedTransportCosts.Builder.newInstance(scenario.getNetwork(),
+				CarriersUtils.getCarrierVehicleTypes(scenario).getVehicleTypes().values());
+		costsBuilder.setTimeSliceWidth(freightCarriersConfigGroup.getTravelTimeSliceWidth());
+		if (travelTime != null) {
+			costsBuilder.setTravelTime(travelTime);
+		}
+		final NetworkBasedTransportCosts netBasedCosts = costsBuilder.build();
+
+		final List<Budget> budgets = getBudgets(CarriersUtils.getCarriers(scenario), nuOfThreads);
+
+		ExecutorService executor = Executors.newFixedThreadPool(nuOfThreads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Budget budget : budgets) {
+				futures.add(executor.submit(() -> solve(budget, deadline, netBasedCosts, freightCarriersConfigGroup)));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		log.info("Solved {} carriers in {} s (budget: {} s).", budgets.size(), Math.round((System.nanoTime() - start) / 1e9), budgetSeconds);
+	}
+
+	/**
+	 * @return the budgets of the carriers with jobs, the largest first
+	 */
+	private List<Budget> getBudgets(Carriers carriers, int nuOfThreads) {
+		double sumOfWork = 0.;
+		for (Carrier carrier : carriers.getCarriers().values()) {
+			sumOfWork += getWork(getNuOfJobs(carrier));
+		}
+		List<Budget> budgets = new ArrayList<>();
+		for (Carrier carrier : carriers.getCarriers().values()) {
+			final int nuOfJobs = getNuOfJobs(carrier);
+			if (nuOfJobs == 0) {
+				log.info("Carrier {} has no jobs and is not solved.", carrier.getId());
+				continue;
+			}
+			final int iterations = (int) Math.min(maxIterations, Math.max(minIterations, Math.round(iterationsPerJob * nuOfJobs)));
+			// a single carrier can not use more than one thread
+			final double seconds = Math.min(budgetSeconds, budgetSeconds * nuOfThreads * getWork(nuOfJobs) / sumOfWork);
+			budgets.add(new Budget(carrier, nuOfJobs, iterations, seconds));
+		}
+		budgets.sort(Comparator.comparingDouble(Budget::seconds).reversed());
+		return budgets;
+	}
+
+	private static int getNuOfJobs(Carrier carrier) {
+		return carrier.getServices().size() + carrier.getShipments().size();
+	}
+
+	private static double getWork(int nuOfJobs) {
+		return (double) nuOfJobs * nuOfJobs;
+	}
+
+	private void solve(Budget budget, long deadline, NetworkBasedTransportCosts netBasedCosts, FreightCarriersConfigGroup freightCarriersConfigGroup) {
+		final Carrier carrier = budget.carrier();
+		final long start = System.nanoTime();
+		// the carriers which started late get what is left of the budget
+		final long end = Math.min(deadline, start + (long) (budget.seconds() * 1e9));
+		CarriersUtils.setJspritIterations(carrier, budget.iterations());
+
+		VehicleRoutingProblem problem = MatsimJspritFactory.createRoutingProblemBuilder(carrier, scenario.getNetwork())
+				.setRoutingCost(netBasedCosts).build();
+		VehicleRoutingAlgorithm algorithm = MatsimJspritFactory.loadOrCreateVehicleRoutingAlgorithm(scenario, freightCarriersConfigGroup, netBasedCosts, problem);
+		final Termination termination = new Termination(end, Math.min(budget.iterations(), Math.max(minIterations, budget.iterations() / 10)));
+		if (start >= deadline) {
+			// nothing left of the budget: only the construction heuristic, so the overrun does not grow
+			log.warn("Carrier {} started after the end of the budget; only the initial solution is computed.", carrier.getId());
+			algorithm.setMaxIterations(0);
+			termination.reason = "budget exhausted before start";
+		} else {
+			algorithm.setMaxIterations(budget.iterations());
+		}
+		algorithm.setPrematureAlgorithmTermination(termination);
+
+		VehicleRoutingProblemSolution solution = Solutions.bestOf(algorithm.searchSolutions());
+		CarrierPlan plan = MatsimJspritFactory.createPlan(carrier, solution);
+		NetworkRouter.routePlan(plan, netBasedCosts);
+		plan.setJspritScore(-solution.getCost());
+		carrier.setSelectedPlan(plan);
+
+		log.info("Carrier {}: {} jobs, budget {} iterations / {} s; stopped after {} iterations / {} s ({}), score: {}, unassigned jobs: {}.",
+				carrier.getId(), budget.nuOfJobs(), budget.iterations(), Math.round(budget.seconds()), termination.iterations,
+				Math.round((System.nanoTime() - start) / 1e9), termination.reason, plan.getJspritScore(), solution.getUnassignedJobs().size());
+	}
+
+	/**
+	 * Stops the search at the end of the time budget, or if the best solution did not improve enough in the last
+	 * iterations. The maximum number of iterations is left to the algorithm.
+	 */
+	private final class Termination implements PrematureAlgorithmTermination {
+		private final long end;
+		private final int iterationsWithoutImprovement;
+		private int iterations = 0;
+		private int lastImprovement = 0;
+		private double bestCost = Double.POSITIVE_INFINITY;
+		private String reason = "max iterations";
+
+		private Termination(long end, int iterationsWithoutImprovement) {
+			this.end = end;
+			this.iterationsWithoutImprovement = iterationsWithoutImprovement;
+		}
+
+		@Override
+		public boolean isPrematureBreak(SearchStrategy.DiscoveredSolution discoveredSolution) {
+			iterations++;
+			final double cost = discoveredSolution.getSolution().getCost();
+			if (cost < bestCost * (1. - minImprovement)) {
+				lastImprovement = iterations;
+			}
+			bestCost = Math.min(bestCost, cost);
+			if (System.nanoTime() >= end) {
+				reason = "time";
+				return true;
+			}
+			if (iterations - lastImprovement >= iterationsWithoutImprovement) {
+				reason = "converged";
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a gzip file as a series of independent members of at most 64 KiB each, with the compressed size of every
+ * member in its header (as the extra field <code>BC</code> of the BGZF format). This is a valid (multi-member) gzip
+ * file for every gzip reader, but since the members can be found without inflating, they can be inflated in parallel
+ * when the file is read, see {@link org.matsim.freight.carriers.analysis.RunFreightAnalysisEventBased}.
+ * <p>
+ * The file is slightly larger than with one member (about 0.5 %), because the compression starts anew in every member.
+ */
+public final class BlockGzipOutputStream extends OutputStream {
+
+	// as in BGZF: so that even incompressible data fits into a member of 64 KiB
+	static final int MAX_INPUT_SIZE = 0xff00;
+	private static final int MAX_BLOCK_SIZE = 1 << 16;
+	private static final int HEADER_SIZE = 18;
+	private static final int TRAILER_SIZE = 8;
+
+	private final OutputStream out;
+	private final Deflater deflater;
+	private final CRC32 crc = new CRC32();
+	private final byte[] input = new byte[MAX_INPUT_SIZE];
+	private final byte[] block = new byte[MAX_BLOCK_SIZE];
+	private int inputSize = 0;
+	private boolean closed = false;
+
+	public BlockGzipOutputStream(OutputStream out) {
+		this(out, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public BlockGzipOutputStream(OutputStream out, int compressionLevel) {
+		this.out = out;
+		this.deflater = new Deflater(compressionLevel, true);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (inputSize == MAX_INPUT_SIZE) {
+			writeBlock();
+		}
+		input[inputSize++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (inputSize == MAX_INPUT_SIZE) {
+				writeBlock();
+			}
+			final int n = Math.min(len, MAX_INPUT_SIZE - inputSize);
+			System.arraycopy(b, off, input, inputSize, n);
+			inputSize += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Ends the current member, so that everything written so far can be read.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (inputSize > 0) {
+			writeBlock();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes the last member and an empty member, which marks the regular end of the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (inputSize > 0) {
+				writeBlock();
+			}
+			writeBlock();
+		} finally {
+			deflater.end();
+			out.close();
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		deflater.reset();
+		deflater.setInput(input, 0, inputSize);
+		deflater.finish();
+		int compressedSize = 0;
+		while (!deflater.finished()) {
+			final int maxCompressedSize = MAX_BLOCK_SIZE - HEADER_SIZE - TRAILER_SIZE;
+			if (compressedSize == maxCompressedSize) {
+				throw new IOException("Block does not fit into " + MAX_BLOCK_SIZE + " bytes.");
+			}
+			compressedSize += deflater.deflate(block, HEADER_SIZE + compressedSize, maxCompressedSize - compressedSize);
+		}
+		crc.reset();
+		crc.update(input, 0, inputSize);
+
+		final int blockSize = HEADER_SIZE + compressedSize + TRAILER_SIZE;
+		// gzip header with the FEXTRA flag; mtime, xfl are 0, os is unknown
+		block[0] = 31;
+		block[1] = (byte) 139;
+		block[2] = 8;
+		block[3] = 4;
+		block[4] = block[5] = block[6] = block[7] = block[8] = 0;
+		block[9] = (byte) 255;
+		// extra field: 6 bytes, subfield "BC" with 2 bytes: the block size - 1
+		putShort(block, 10, 6);
+		block[12] = 'B';
+		block[13] = 'C';
+		putShort(block, 14, 2);
+		putShort(block, 16, blockSize - 1);
+		putInt(block, HEADER_SIZE + compressedSize, (int) crc.getValue());
+		putInt(block, HEADER_SIZE + compressedSize + 4, inputSize);
+		out.write(block, 0, blockSize);
+		inputSize = 0;
+	}
+
+	private static void putShort(byte[] b, int i, int value) {
+		b[i] = (byte) value;
+		b[i + 1] = (byte) (value >>> 8);
+	}
+
+	private static void putInt(byte[] b, int i, int value) {
+		putShort(b, i, value);
+		putShort(b, i + 2, value >>> 16);
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+import org.matsim.freight.carriers.events.CarrierServiceEndEvent;
+import org.matsim.freight.carriers.events.CarrierServiceStartEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentDeliveryEndEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentDeliveryStartEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentPickupEndEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentPickupStartEvent;
+import org.matsim.freight.carriers.events.CarrierTourEndEvent;
+import org.matsim.freight.carriers.events.CarrierTourStartEvent;
+import org.matsim.vehicles.MatsimVehicleWriter;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Freight-only simulation, which executes the scheduled tours of the selected carrier plans without a QSim.
+ * <p>
+ * Each vehicle drives its tour on its network routes with the given (time-dependent) link travel times; there is no
+ * interaction between the vehicles, i.e. no queues and no capacity restrictions. The simulation is event driven: a
+ * tour is walked through from one activity to the next, instead of advancing all vehicles in time steps. Every tour
+ * creates its events on demand, one leg or activity at a time, and the tours are merged in time order with a priority
+ * queue (ties in the order of the carrier ids and then of the tours). So only the events of the current leg or
+ * activity of every tour are held in memory, not the events of the whole simulation.
+ * <p>
+ * The same carrier events as in the QSim are produced (tour start and end, service, pickup and delivery start and
+ * end), together with the vehicle and link events, so the results can be analysed with
+ * {@link org.matsim.freight.carriers.analysis.RunFreightAnalysisEventBased}. As in the QSim, an activity starts on
+ * arrival; with {@link FreightCarriersConfigGroup.TimeWindowHandling#enforceBeginnings} the vehicle waits for the
+ * beginning of the time window before the activity duration starts. Unlike the QSim, the times are not rounded to
+ * whole time steps.
+ * <p>
+ * This is meant for freight-only studies, where the carriers plans are fixed (e.g. zero MATSim iterations after
+ * jsprit). If the freight traffic has to interact with other traffic, use the QSim.
+ */
+public final class FreightFastForwardSimulation {
+
+	private static final Logger log = LogManager.getLogger(FreightFastForwardSimulation.class);
+
+	private final Scenario scenario;
+	private final boolean enforceTimeWindowBeginnings;
+	private TravelTime travelTime = new FreeSpeedTravelTime();
+
+	public FreightFastForwardSimulation(Scenario scenario) {
+		this.scenario = scenario;
+		this.enforceTimeWindowBeginnings = ConfigUtils.addOrGetModule(scenario.getConfig(), FreightCarriersConfigGroup.class)
+				.getTimeWindowHandling() == FreightCarriersConfigGroup.TimeWindowHandling.enforceBeginnings;
+	}
+
+	/**
+	 * The link travel times, e.g. of an earlier run with background traffic. Default are the free speed travel times
+	 * of the network (which are time dependent for a time variant network). In any case, a vehicle is not faster than
+	 * the maximum velocity of its type.
+	 */
+	public void setTravelTime(TravelTime travelTime) {
+		this.travelTime = travelTime;
+	}
+
+	/**
+	 * Simulates the selected plans of all carriers and passes the events in time order to the events manager. The
+	 * processing of the events manager is neither initialised nor finished here.
+	 */
+	public void run(EventsManager eventsManager) {
+		final List<Carrier> carriers = new ArrayList<>(new TreeMap<>(CarriersUtils.getCarriers(scenario).getCarriers()).values());
+		log.info("Simulating the tours of {} carriers ...", carriers.size());
+
+		// the events of every tour are sorted by time already
+		PriorityQueue<TourDriver> queue = new PriorityQueue<>(Comparator.comparingDouble(TourDriver::getNextEventTime).thenComparingInt(driver -> driver.order));
+		int order = 0;
+		for (Carrier carrier : carriers) {
+			int driverNumber = 0;
+			for (ScheduledTour scheduledTour : carrier.getSelectedPlan().getScheduledTours()) {
+				// same driver ids as in the QSim
+				final Id<Person> driverId = Id.createPersonId("freight_" + carrier.getId() + "_veh_" + scheduledTour.getVehicle().getId() + "_" + driverNumber++);
+				TourDriver driver = new TourDriver(carrier.getId(), scheduledTour, driverId, order++);
+				if (driver.hasNext()) {
+					queue.add(driver);
+				}
+			}
+		}
+		long nuOfEvents = 0;
+		while (!queue.isEmpty()) {
+			TourDriver driver = queue.poll();
+			eventsManager.processEvent(driver.next());
+			nuOfEvents++;
+			if (driver.hasNext()) {
+				queue.add(driver);
+			}
+		}
+		log.info("Simulation done: {} events.", nuOfEvents);
+	}
+
+	/**
+	 * Simulates the carriers and writes the output files which are read by the freight analysis: events, network,
+	 * vehicles, carriers and carrier vehicle types.
+	 */
+	public void runAndWriteOutput(String outputDirectory) throws IOException {
+		if (!outputDirectory.endsWith("/")) {
+			outputDirectory = outputDirectory + "/";
+		}
+		new File(outputDirectory).mkdirs();
+
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		// written in independent blocks, so that the analysis can inflate the events file in parallel
+		EventWriterXML eventWriter = new EventWriterXML(new BlockGzipOutputStream(new FileOutputStream(outputDirectory + "output_events.xml.gz")));
+		eventsManager.addHandler(eventWriter);
+		eventsManager.initProcessing();
+		try {
+			run(eventsManager);
+			eventsManager.finishProcessing();
+		} finally {
+			eventWriter.closeFile();
+		}
+
+		// the carrier vehicles are added to the vehicles, as in the QSim, so that they can be found by the analysis
+		final Vehicles vehicles = scenario.getVehicles();
+		for (Carrier carrier : CarriersUtils.getCarriers(scenario).getCarriers().values()) {
+			for (ScheduledTour scheduledTour : carrier.getSelectedPlan().getScheduledTours()) {
+				final CarrierVehicle carrierVehicle = scheduledTour.getVehicle();
+				if (!vehicles.getVehicleTypes().containsKey(carrierVehicle.getType().getId())) {
+					vehicles.addVehicleType(carrierVehicle.getType());
+				}
+				if (!vehicles.getVehicles().containsKey(carrierVehicle.getId())) {
+					vehicles.addVehicle(VehicleUtils.createVehicle(carrierVehicle.getId(), carrierVehicle.getType()));
+				}
+			}
+		}
+
+		NetworkUtils.writeNetwork(scenario.getNetwork(), outputDirectory + "output_network.xml.gz");
+		new MatsimVehicleWriter(vehicles).writeFile(outputDirectory + "output_allVehicles.xml.gz");
+		new CarrierPlanWriter(CarriersUtils.getCarriers(scenario)).write(outputDirectory + "output_carriers.xml.gz");
+		new CarrierVehicleTypeWriter(CarriersUtils.getCarrierVehicleTypes(scenario)).write(outputDirectory + "output_carriersVehicleTypes.xml.gz");
+		log.info("Output written to {}", outputDirectory);
+	}
+
+	/**
+	 * Walks through one scheduled tour and creates its events, one tour element at a time.
+	 */
+	private final class TourDriver {
+		private final Id<Carrier> carrierId;
+		private final ScheduledTour scheduledTour;
+		private final Id<Person> driverId;
+		private final Id<Vehicle> vehicleId;
+		private final VehicleType vehicleType;
+		private final String networkMode;
+		private final Network network;
+		// position in the merge, for the ties
+		private final int order;
+
+		// the events of the current tour element which are not passed on yet
+		private final ArrayDeque<Event> events = new ArrayDeque<>();
+		private final Iterator<Tour.TourElement> tourElements;
+		private boolean ended = false;
+
+		private double time;
+		private Id<Link> currentLinkId;
+
+		private TourDriver(Id<Carrier> carrierId, ScheduledTour scheduledTour, Id<Person> driverId, int order) {
+			this.carrierId = carrierId;
+			this.scheduledTour = scheduledTour;
+			this.driverId = driverId;
+			this.vehicleId = scheduledTour.getVehicle().getId();
+			this.vehicleType = scheduledTour.getVehicle().getType();
+			this.networkMode = vehicleType.getNetworkMode();
+			this.network = scenario.getNetwork();
+			this.order = order;
+
+			final Tour tour = scheduledTour.getTour();
+			this.tourElements = tour.getTourElements().iterator();
+			time = scheduledTour.getDeparture();
+			currentLinkId = tour.getStartLinkId();
+			events.add(new CarrierTourStartEvent(time, carrierId, currentLinkId, vehicleId, tour.getId()));
+		}
+
+		private boolean hasNext() {
+			while (events.isEmpty() && !ended) {
+				advance();
+			}
+			return !events.isEmpty();
+		}
+
+		/**
+		 * Call only if {@link #hasNext()}.
+		 */
+		private Event next() {
+			return events.poll();
+		}
+
+		/**
+		 * Call only if {@link #hasNext()}.
+		 */
+		private double getNextEventTime() {
+			return events.peek().getTime();
+		}
+
+		/**
+		 * Creates the events of the next tour element, or the end of the tour. A leg which is not routed on the network
+		 * creates no events.
+		 */
+		private void advance() {
+			if (tourElements.hasNext()) {
+				final Tour.TourElement tourElement = tourElements.next();
+				if (tourElement instanceof Tour.Leg leg) {
+					drive(leg);
+				} else if (tourElement instanceof Tour.TourActivity activity) {
+					perform(activity);
+				}
+				return;
+			}
+			final Tour tour = scheduledTour.getTour();
+			if (!currentLinkId.equals(tour.getEndLinkId())) {
+				log.warn("Tour {} of carrier {} does not end at its end link {}, but at {}.", tour.getId(), carrierId, tour.getEndLinkId(), currentLinkId);
+			}
+			events.add(new CarrierTourEndEvent(time, carrierId, currentLinkId, vehicleId, tour.getId()));
+			ended = true;
+		}
+
+		private void drive(Tour.Leg leg) {
+			if (!(leg.getRoute() instanceof NetworkRoute route)) {
+				// not routed on the network: takes the expected transport time
+				time += leg.getExpectedTransportTime();
+				return;
+			}
+			// the vehicle enters the traffic at the end of the start link, and leaves it at the end of the end link
+			events.add(new VehicleEntersTrafficEvent(time, driverId, route.getStartLinkId(), vehicleId, networkMode, 1.0));
+			if (!route.getStartLinkId().equals(route.getEndLinkId()) || !route.getLinkIds().isEmpty()) {
+				Id<Link> previousLinkId = route.getStartLinkId();
+				for (Id<Link> linkId : route.getLinkIds()) {
+					traverse(previousLinkId, linkId);
+					previousLinkId = linkId;
+				}
+				traverse(previousLinkId, route.getEndLinkId());
+			}
+			events.add(new VehicleLeavesTrafficEvent(time, driverId, route.getEndLinkId(), vehicleId, networkMode, 1.0));
+			currentLinkId = route.getEndLinkId();
+		}
+
+		private void traverse(Id<Link> previousLinkId, Id<Link> linkId) {
+			events.add(new LinkLeaveEvent(time, vehicleId, previousLinkId));
+			events.add(new LinkEnterEvent(time, vehicleId, linkId));
+			final Link link = network.getLinks().get(linkId);
+			final double linkTravelTime = travelTime.getLinkTravelTime(link, time, null, null);
+			time += Math.max(linkTravelTime, link.getLength() / vehicleType.getMaximumVelocity());
+		}
+
+		private void perform(Tour.TourActivity activity) {
+			if (!activity.getLocation().equals(currentLinkId)) {
+				log.warn("Vehicle {} of carrier {} is on link {}, but its next activity is on link {}.", vehicleId, carrierId, currentLinkId, activity.getLocation());
+				currentLinkId = activity.getLocation();
+			}
+			final double startTime = time;
+			if (enforceTimeWindowBeginnings) {
+				time = Math.max(time, activity.getTimeWindow().getStart());
+			}
+			time += activity.getDuration();
+
+			if (activity instanceof Tour.ServiceActivity serviceActivity) {
+				events.add(new CarrierServiceStartEvent(startTime, carrierId, serviceActivity.getService(), vehicleId));
+				events.add(new CarrierServiceEndEvent(time, carrierId, serviceActivity.getService(), vehicleId));
+			} else if (activity instanceof Tour.Pickup pickup) {
+				events.add(new CarrierShipmentPickupStartEvent(startTime, carrierId, pickup.getShipment(), vehicleId));
+				events.add(new CarrierShipmentPickupEndEvent(time, carrierId, pickup.getShipment(), vehicleId));
+			} else if (activity instanceof Tour.Delivery delivery) {
+				events.add(new CarrierShipmentDeliveryStartEvent(startTime, carrierId, delivery.getShipment(), vehicleId));
+				events.add(new CarrierShipmentDeliveryEndEvent(time, carrierId, delivery.getShipment(), vehicleId));
+			}
+		}
+	}
+}
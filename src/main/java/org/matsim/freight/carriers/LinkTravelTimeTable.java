@@ -0,0 +1,247 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.events.handler.LinkEnterEventHandler;
+import org.matsim.api.core.v01.events.handler.LinkLeaveEventHandler;
+import org.matsim.api.core.v01.events.handler.VehicleLeavesTrafficEventHandler;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.MatsimEventsReader;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Link travel times per time slice in one <code>float</code> array (links &times; slices), for the routing of the
+ * carriers.
+ * <p>
+ * The table is built once, either from the events of an earlier run ({@link #fromEvents}) or by sampling any
+ * {@link TravelTime} ({@link #fromTravelTime}), and is not changed afterwards. So it can be shared by all jsprit and
+ * routing threads without synchronisation. A lookup is an index computation and one array access, without any
+ * allocation. Times before the first slice take the first, times after the last slice take the last slice.
+ * <p>
+ * The table can be written to and read from a file ({@link #write}, {@link #read}), so that the travel times of one run
+ * can be used by the next one. The file stores the link ids, since the link indices are only valid within one run.
+ */
+public final class LinkTravelTimeTable implements TravelTime {
+
+	private static final Logger log = LogManager.getLogger(LinkTravelTimeTable.class);
+
+	private static final int MAGIC = 0x4C545454; // "LTTT"
+	private static final int VERSION = 1;
+
+	private final double sliceWidth;
+	private final int nuOfSlices;
+	// [link index * nuOfSlices + slice]
+	private final float[] travelTimes;
+
+	private LinkTravelTimeTable(double sliceWidth, int nuOfSlices, int nuOfLinkIndices) {
+		this.sliceWidth = sliceWidth;
+		this.nuOfSlices = nuOfSlices;
+		this.travelTimes = new float[nuOfLinkIndices * nuOfSlices];
+	}
+
+	/**
+	 * Samples the travel time at the beginning of each slice.
+	 */
+	public static LinkTravelTimeTable fromTravelTime(Network network, TravelTime travelTime, double sliceWidth, double maxTime) {
+		LinkTravelTimeTable table = new LinkTravelTimeTable(sliceWidth, getNuOfSlices(sliceWidth, maxTime), getNuOfLinkIndices(network));
+		for (Link link : network.getLinks().values()) {
+			final int offset = link.getId().index() * table.nuOfSlices;
+			for (int slice = 0; slice < table.nuOfSlices; slice++) {
+				table.travelTimes[offset + slice] = (float) travelTime.getLinkTravelTime(link, slice * sliceWidth, null, null);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Mean travel times of the vehicles which entered a link in the slice (from link enter to link leave, as in the
+	 * {@link org.matsim.core.trafficmonitoring.TravelTimeCalculator}). Slices without any vehicle take the free speed
+	 * travel time, or the travel time of the slice before minus the slice width if this is larger, so that a vehicle
+	 * which enters later does not leave earlier.
+	 */
+	public static LinkTravelTimeTable fromEvents(Network network, String eventsFile, double sliceWidth, double maxTime) {
+		final int nuOfSlices = getNuOfSlices(sliceWidth, maxTime);
+		final int nuOfLinkIndices = getNuOfLinkIndices(network);
+		final double[] sums = new double[nuOfLinkIndices * nuOfSlices];
+		final int[] counts = new int[nuOfLinkIndices * nuOfSlices];
+
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		eventsManager.addHandler(new TraversalCollector(sliceWidth, nuOfSlices, sums, counts));
+		eventsManager.initProcessing();
+		new MatsimEventsReader(eventsManager).readFile(eventsFile);
+		eventsManager.finishProcessing();
+
+		LinkTravelTimeTable table = new LinkTravelTimeTable(sliceWidth, nuOfSlices, nuOfLinkIndices);
+		for (Link link : network.getLinks().values()) {
+			final int offset = link.getId().index() * nuOfSlices;
+			final double freeSpeedTravelTime = link.getLength() / link.getFreespeed();
+			double previous = freeSpeedTravelTime;
+			for (int slice = 0; slice < nuOfSlices; slice++) {
+				final int cell = offset + slice;
+				final double travelTime = counts[cell] > 0 ? sums[cell] / counts[cell] : Math.max(freeSpeedTravelTime, previous - sliceWidth);
+				table.travelTimes[cell] = (float) travelTime;
+				previous = travelTime;
+			}
+		}
+		log.info("Travel times of {} links in {} slices of {} s read from {}", network.getLinks().size(), nuOfSlices, sliceWidth, eventsFile);
+		return table;
+	}
+
+	private static int getNuOfSlices(double sliceWidth, double maxTime) {
+		return Math.max(1, (int) Math.ceil(maxTime / sliceWidth));
+	}
+
+	private static int getNuOfLinkIndices(Network network) {
+		int maxIndex = -1;
+		for (Id<Link> linkId : network.getLinks().keySet()) {
+			maxIndex = Math.max(maxIndex, linkId.index());
+		}
+		return maxIndex + 1;
+	}
+
+	@Override
+	public double getLinkTravelTime(Link link, double time, Person person, Vehicle vehicle) {
+		final int slice = Math.min(nuOfSlices - 1, Math.max(0, (int) (time / sliceWidth)));
+		return travelTimes[link.getId().index() * nuOfSlices + slice];
+	}
+
+	public double getSliceWidth() {
+		return sliceWidth;
+	}
+
+	public int getNuOfSlices() {
+		return nuOfSlices;
+	}
+
+	public void write(Network network, String fileName) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(Path.of(fileName)), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeDouble(sliceWidth);
+			out.writeInt(nuOfSlices);
+			out.writeInt(network.getLinks().size());
+			for (Link link : network.getLinks().values()) {
+				out.writeUTF(link.getId().toString());
+				final int offset = link.getId().index() * nuOfSlices;
+				for (int slice = 0; slice < nuOfSlices; slice++) {
+					out.writeFloat(travelTimes[offset + slice]);
+				}
+			}
+		}
+		log.info("Output written to {}", fileName);
+	}
+
+	/**
+	 * Reads a table written by {@link #write}. Links of the network which are not in the file take the free speed
+	 * travel time; links in the file which are not in the network are ignored.
+	 */
+	public static LinkTravelTimeTable read(Network network, String fileName) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Path.of(fileName)), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a link travel time table of this version: " + fileName);
+			}
+			final double sliceWidth = in.readDouble();
+			final int nuOfSlices = in.readInt();
+			LinkTravelTimeTable table = new LinkTravelTimeTable(sliceWidth, nuOfSlices, getNuOfLinkIndices(network));
+			for (Link link : network.getLinks().values()) {
+				final float freeSpeedTravelTime = (float) (link.getLength() / link.getFreespeed());
+				final int offset = link.getId().index() * nuOfSlices;
+				for (int slice = 0; slice < nuOfSlices; slice++) {
+					table.travelTimes[offset + slice] = freeSpeedTravelTime;
+				}
+			}
+			final int nuOfLinks = in.readInt();
+			for (int i = 0; i < nuOfLinks; i++) {
+				final Link link = network.getLinks().get(Id.createLinkId(in.readUTF()));
+				for (int slice = 0; slice < nuOfSlices; slice++) {
+					final float travelTime = in.readFloat();
+					if (link != null) {
+						table.travelTimes[link.getId().index() * nuOfSlices + slice] = travelTime;
+					}
+				}
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * Sums up the link traversal times per link and slice of the link enter time.
+	 */
+	private static final class TraversalCollector implements LinkEnterEventHandler, LinkLeaveEventHandler, VehicleLeavesTrafficEventHandler {
+		private final double sliceWidth;
+		private final int nuOfSlices;
+		private final double[] sums;
+		private final int[] counts;
+		private final Map<Id<Vehicle>, LinkEnterEvent> vehicle2LinkEnter = new HashMap<>();
+
+		private TraversalCollector(double sliceWidth, int nuOfSlices, double[] sums, int[] counts) {
+			this.sliceWidth = sliceWidth;
+			this.nuOfSlices = nuOfSlices;
+			this.sums = sums;
+			this.counts = counts;
+		}
+
+		@Override
+		public void handleEvent(LinkEnterEvent event) {
+			vehicle2LinkEnter.put(event.getVehicleId(), event);
+		}
+
+		@Override
+		public void handleEvent(LinkLeaveEvent event) {
+			final LinkEnterEvent enter = vehicle2LinkEnter.remove(event.getVehicleId());
+			if (enter == null || !enter.getLinkId().equals(event.getLinkId()) || enter.getLinkId().index() * nuOfSlices >= sums.length) {
+				return;
+			}
+			final int slice = Math.min(nuOfSlices - 1, (int) (enter.getTime() / sliceWidth));
+			final int cell = enter.getLinkId().index() * nuOfSlices + slice;
+			sums[cell] += event.getTime() - enter.getTime();
+			counts[cell]++;
+		}
+
+		@Override
+		public void handleEvent(VehicleLeavesTrafficEvent event) {
+			// the last link is not traversed completely
+			vehicle2LinkEnter.remove(event.getVehicleId());
+		}
+	}
+}
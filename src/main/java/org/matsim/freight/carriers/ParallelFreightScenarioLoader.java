@@ -0,0 +1,141 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.io.MatsimNetworkReader;
+import org.matsim.core.population.io.PopulationReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.vehicles.MatsimVehicleReader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a freight scenario (network, vehicles, plans, carrier vehicle types and carriers) with the independent
+ * files being parsed concurrently.
+ * <p>
+ * The files end up in different containers, so the readers do not interfere with each other. Only two orderings
+ * are kept: the population is read after the network (same as in {@link ScenarioUtils#loadScenario(Config)}) and
+ * the carriers are read after the carrier vehicle types, because the carrier reader resolves the types by id.
+ * <p>
+ * Only the elements used by the freight runs and the freight analysis are supported. If the config asks for
+ * anything else (transit, facilities, lanes, households, time variant network), the sequential
+ * {@link ScenarioUtils#loadScenario(Config)} followed by {@link CarriersUtils#loadCarriersAccordingToFreightConfig(Scenario)}
+ * is used instead.
+ */
+public final class ParallelFreightScenarioLoader {
+
+	private static final Logger log = LogManager.getLogger(ParallelFreightScenarioLoader.class);
+
+	private ParallelFreightScenarioLoader() {
+	}
+
+	/**
+	 * Loads the scenario and the carriers according to the {@link FreightCarriersConfigGroup} of the config.
+	 */
+	public static Scenario loadScenario(Config config) throws ExecutionException, InterruptedException {
+		if (!isSupported(config)) {
+			log.warn("Config contains elements which are not supported by the parallel loader. Falling back to sequential loading.");
+			Scenario scenario = ScenarioUtils.loadScenario(config);
+			CarriersUtils.loadCarriersAccordingToFreightConfig(scenario);
+			return scenario;
+		}
+
+		final Scenario scenario = ScenarioUtils.createScenario(config);
+		final String targetCRS = config.global().getCoordinateSystem();
+		final FreightCarriersConfigGroup freightConfigGroup = ConfigUtils.addOrGetModule(config, FreightCarriersConfigGroup.class);
+
+		List<Runnable> tasks = new ArrayList<>();
+
+		if (config.network().getInputFile() != null) {
+			tasks.add(() -> {
+				log.info("Reading network ...");
+				new MatsimNetworkReader(config.network().getInputCRS(), targetCRS, scenario.getNetwork())
+						.readURL(config.network().getInputFileURL(config.getContext()));
+				if (config.plans().getInputFile() != null) {
+					log.info("Reading population ...");
+					new PopulationReader(config.plans().getInputCRS(), targetCRS, scenario)
+							.readURL(config.plans().getInputFileURL(config.getContext()));
+				}
+			});
+		}
+
+		if (config.vehicles().getVehiclesFile() != null) {
+			tasks.add(() -> {
+				log.info("Reading vehicles ...");
+				new MatsimVehicleReader(scenario.getVehicles()).readURL(
+						ConfigGroup.getInputFileURL(config.getContext(), config.vehicles().getVehiclesFile()));
+			});
+		}
+
+		// Created here, before the tasks start, so that the scenario element is not added concurrently.
+		final CarrierVehicleTypes carrierVehicleTypes = CarriersUtils.getCarrierVehicleTypes(scenario);
+		final Carriers carriers = CarriersUtils.addOrGetCarriers(scenario);
+		if (freightConfigGroup.getCarriersVehicleTypesFile() != null) {
+			tasks.add(() -> {
+				log.info("Reading carrier vehicle types ...");
+				new CarrierVehicleTypeReader(carrierVehicleTypes).readURL(
+						ConfigGroup.getInputFileURL(config.getContext(), freightConfigGroup.getCarriersVehicleTypesFile()));
+				if (freightConfigGroup.getCarriersFile() != null) {
+					log.info("Reading carriers ...");
+					new CarrierPlanXmlReader(carriers, carrierVehicleTypes).readURL(
+							ConfigGroup.getInputFileURL(config.getContext(), freightConfigGroup.getCarriersFile()));
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, tasks.size()));
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Runnable task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		log.info("Scenario loaded: {} links, {} vehicles, {} carriers.", scenario.getNetwork().getLinks().size(),
+				scenario.getVehicles().getVehicles().size(), carriers.getCarriers().size());
+		return scenario;
+	}
+
+	private static boolean isSupported(Config config) {
+		return !config.transit().isUseTransit()
+				&& config.facilities().getInputFile() == null
+				&& config.households().getInputFile() == null
+				&& config.network().getLaneDefinitionsFile() == null
+				&& !config.network().isTimeVariantNetwork();
+	}
+}
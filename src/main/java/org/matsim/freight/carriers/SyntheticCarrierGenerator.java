@@ -0,0 +1,305 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.application.MATSimAppCommand;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+import picocli.CommandLine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Generates synthetic carriers with shipments and services on any network, e.g. for load tests of jsprit and of the
+ * freight analysis at many times the size of the real scenarios.
+ * <p>
+ * The carriers are written directly to the carriers file (<code>carriersDefinitions_v2.1</code>) while they are
+ * generated, one element after the other. So the {@link Carriers} are never built in memory, and the size of the
+ * output is only limited by the disk. The vehicle types of the fleet mix are written to a separate file.
+ * <p>
+ * The demand locations are drawn uniformly from the car links of the network. The time windows of the deliveries and
+ * services are either the whole operating day, or have a fixed width and a start drawn from a uniform or normal
+ * distribution within the operating day. The same seed gives the same carriers.
+ * <p>
+ * Example:
+ * <pre>
+ * generate-carriers --network=network.xml.gz --output=carriers.xml.gz --vehicle-types-output=vehicleTypes.xml \
+ *     --carriers=100 --shipments=2000 --services=0 --fleet-mix=light8t:8:0.7,medium18t:18:0.3
+ * </pre>
+ */
+@CommandLine.Command(name = "generate-carriers", description = "Generates synthetic carriers with shipments and services for load tests.")
+public class SyntheticCarrierGenerator implements MATSimAppCommand {
+
+	private static final Logger log = LogManager.getLogger(SyntheticCarrierGenerator.class);
+
+	enum TimeWindowDistribution {none, uniform, normal}
+
+	@CommandLine.Option(names = "--network", description = "Network file.", required = true)
+	private String networkFile;
+
+	@CommandLine.Option(names = "--output", description = "Carriers file to write (.xml or .xml.gz).", required = true)
+	private String outputFile;
+
+	@CommandLine.Option(names = "--vehicle-types-output", description = "Vehicle types file to write for the fleet mix (optional).")
+	private String vehicleTypesOutputFile;
+
+	@CommandLine.Option(names = "--carriers", description = "Number of carriers.", defaultValue = "10")
+	private int nuOfCarriers;
+
+	@CommandLine.Option(names = "--depots", description = "Number of depots per carrier.", defaultValue = "1")
+	private int nuOfDepots;
+
+	@CommandLine.Option(names = "--vehicles-per-depot", description = "Number of vehicles per depot and vehicle type (with fleet size FINITE).", defaultValue = "10")
+	private int nuOfVehiclesPerDepot;
+
+	@CommandLine.Option(names = "--fleet-size", description = "FINITE or INFINITE.", defaultValue = "INFINITE")
+	private CarrierCapabilities.FleetSize fleetSize;
+
+	@CommandLine.Option(names = "--fleet-mix", description = "Vehicle types as id:capacity:share, separated by commas. Each depot gets the types with a probability of their share (at least one type).",
+			defaultValue = "light8t:8:1.0", split = ",")
+	private List<String> fleetMix;
+
+	@CommandLine.Option(names = "--shipments", description = "Number of shipments per carrier (picked up at a depot).", defaultValue = "100")
+	private int nuOfShipments;
+
+	@CommandLine.Option(names = "--services", description = "Number of services per carrier.", defaultValue = "0")
+	private int nuOfServices;
+
+	@CommandLine.Option(names = "--max-demand", description = "The capacity demand is drawn uniformly from 1 to this value.", defaultValue = "1")
+	private int maxDemand;
+
+	@CommandLine.Option(names = "--service-duration", description = "Duration of a service or delivery in seconds.", defaultValue = "180")
+	private double serviceDuration;
+
+	@CommandLine.Option(names = "--day-start", description = "Start of the operating day.", defaultValue = "06:00:00")
+	private String dayStart;
+
+	@CommandLine.Option(names = "--day-end", description = "End of the operating day.", defaultValue = "20:00:00")
+	private String dayEnd;
+
+	@CommandLine.Option(names = "--time-window-distribution", description = "none (whole day), uniform or normal (around the middle of the day).", defaultValue = "none")
+	private TimeWindowDistribution timeWindowDistribution;
+
+	@CommandLine.Option(names = "--time-window-width", description = "Width of the time windows in seconds.", defaultValue = "7200")
+	private double timeWindowWidth;
+
+	@CommandLine.Option(names = "--jsprit-iterations", description = "Value of the jspritIterations attribute of the carriers.", defaultValue = "1")
+	private int jspritIterations;
+
+	@CommandLine.Option(names = "--seed", description = "Random seed.", defaultValue = "4711")
+	private long seed;
+
+	private record FleetType(String id, double capacity, double share) {
+	}
+
+	public static void main(String[] args) {
+		System.exit(new CommandLine(new SyntheticCarrierGenerator()).execute(args));
+	}
+
+	@Override
+	public Integer call() throws IOException {
+		final List<FleetType> fleetTypes = parseFleetMix(fleetMix);
+		final double start = Time.parseTime(dayStart);
+		final double end = Time.parseTime(dayEnd);
+		if (end <= start) {
+			throw new IllegalArgumentException("The operating day must end after it starts: " + dayStart + " - " + dayEnd);
+		}
+
+		Network network = NetworkUtils.readNetwork(networkFile);
+		final List<Id<Link>> links = new ArrayList<>();
+		for (Link link : network.getLinks().values()) {
+			if (link.getAllowedModes().contains(TransportMode.car)) {
+				links.add(link.getId());
+			}
+		}
+		if (links.isEmpty()) {
+			throw new IllegalArgumentException("The network has no car links: " + networkFile);
+		}
+		log.info("Generating {} carriers with {} shipments and {} services each on {} links ...", nuOfCarriers, nuOfShipments, nuOfServices, links.size());
+
+		final SplittableRandom random = new SplittableRandom(seed);
+		try (BufferedWriter writer = IOUtils.getBufferedWriter(outputFile)) {
+			writer.write("""
+					<?xml version="1.0" encoding="UTF-8"?>
+
+					<carriers xmlns="http://www.matsim.org/files/dtd" xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance" \
+					xsi:schemaLocation="http://www.matsim.org/files/dtd http://www.matsim.org/files/dtd/carriersDefinitions_v2.1.xsd">
+					""");
+			for (int carrier = 0; carrier < nuOfCarriers; carrier++) {
+				writeCarrier(writer, "carrier_" + carrier, links, fleetTypes, start, end, random);
+				if ((carrier + 1) % 100 == 0) {
+					log.info("{} carriers written.", carrier + 1);
+				}
+			}
+			writer.write("</carriers>");
+			writer.newLine();
+		}
+		log.info("Carriers written to {}", outputFile);
+
+		if (vehicleTypesOutputFile != null) {
+			writeVehicleTypes(fleetTypes);
+		}
+		return 0;
+	}
+
+	private void writeCarrier(BufferedWriter writer, String carrierId, List<Id<Link>> links, List<FleetType> fleetTypes,
+							  double start, double end, SplittableRandom random) throws IOException {
+		final Id<Link>[] depots = drawDepots(links, random);
+
+		writer.write("\t<carrier id=\"" + carrierId + "\">\n");
+		writer.write("\t\t<attributes>\n");
+		writer.write("\t\t\t<attribute name=\"jspritIterations\" class=\"java.lang.Integer\">" + jspritIterations + "</attribute>\n");
+		writer.write("\t\t</attributes>\n");
+		writer.write("\t\t<capabilities fleetSize=\"" + fleetSize + "\">\n");
+		writer.write("\t\t\t<vehicles>\n");
+		for (int depot = 0; depot < depots.length; depot++) {
+			final int nuOfVehicles = fleetSize == CarrierCapabilities.FleetSize.INFINITE ? 1 : nuOfVehiclesPerDepot;
+			for (FleetType fleetType : drawFleetTypes(fleetTypes, random)) {
+				for (int vehicle = 0; vehicle < nuOfVehicles; vehicle++) {
+					writer.write("\t\t\t\t<vehicle id=\"" + carrierId + "_depot" + depot + "_" + escape(fleetType.id()) + "_" + vehicle
+							+ "\" depotLinkId=\"" + escape(depots[depot].toString()) + "\" typeId=\"" + escape(fleetType.id())
+							+ "\" earliestStart=\"" + Time.writeTime(start) + "\" latestEnd=\"" + Time.writeTime(end) + "\"/>\n");
+				}
+			}
+		}
+		writer.write("\t\t\t</vehicles>\n");
+		writer.write("\t\t</capabilities>\n");
+
+		if (nuOfShipments > 0) {
+			writer.write("\t\t<shipments>\n");
+			for (int shipment = 0; shipment < nuOfShipments; shipment++) {
+				final Id<Link> from = depots[random.nextInt(depots.length)];
+				final Id<Link> to = links.get(random.nextInt(links.size()));
+				final TimeWindow deliveryTimeWindow = drawTimeWindow(start, end, random);
+				writer.write("\t\t\t<shipment id=\"" + carrierId + "_shipment" + shipment
+						+ "\" from=\"" + escape(from.toString()) + "\" to=\"" + escape(to.toString())
+						+ "\" size=\"" + (1 + random.nextInt(maxDemand))
+						+ "\" startPickup=\"" + Time.writeTime(start) + "\" endPickup=\"" + Time.writeTime(deliveryTimeWindow.getEnd())
+						+ "\" startDelivery=\"" + Time.writeTime(deliveryTimeWindow.getStart()) + "\" endDelivery=\"" + Time.writeTime(deliveryTimeWindow.getEnd())
+						+ "\" pickupServiceTime=\"00:00:00\" deliveryServiceTime=\"" + Time.writeTime(serviceDuration) + "\"/>\n");
+			}
+			writer.write("\t\t</shipments>\n");
+		}
+
+		if (nuOfServices > 0) {
+			writer.write("\t\t<services>\n");
+			for (int service = 0; service < nuOfServices; service++) {
+				final Id<Link> to = links.get(random.nextInt(links.size()));
+				final TimeWindow timeWindow = drawTimeWindow(start, end, random);
+				writer.write("\t\t\t<service id=\"" + carrierId + "_service" + service
+						+ "\" to=\"" + escape(to.toString())
+						+ "\" capacityDemand=\"" + (1 + random.nextInt(maxDemand))
+						+ "\" earliestStart=\"" + Time.writeTime(timeWindow.getStart()) + "\" latestEnd=\"" + Time.writeTime(timeWindow.getEnd())
+						+ "\" serviceDuration=\"" + Time.writeTime(serviceDuration) + "\"/>\n");
+			}
+			writer.write("\t\t</services>\n");
+		}
+		writer.write("\t</carrier>\n");
+	}
+
+	@SuppressWarnings("unchecked")
+	private Id<Link>[] drawDepots(List<Id<Link>> links, SplittableRandom random) {
+		Id<Link>[] depots = new Id[nuOfDepots];
+		for (int depot = 0; depot < nuOfDepots; depot++) {
+			depots[depot] = links.get(random.nextInt(links.size()));
+		}
+		return depots;
+	}
+
+	private static List<FleetType> drawFleetTypes(List<FleetType> fleetTypes, SplittableRandom random) {
+		List<FleetType> drawn = new ArrayList<>();
+		for (FleetType fleetType : fleetTypes) {
+			if (random.nextDouble() < fleetType.share()) {
+				drawn.add(fleetType);
+			}
+		}
+		if (drawn.isEmpty()) {
+			drawn.add(fleetTypes.get(random.nextInt(fleetTypes.size())));
+		}
+		return drawn;
+	}
+
+	private TimeWindow drawTimeWindow(double start, double end, SplittableRandom random) {
+		if (timeWindowDistribution == TimeWindowDistribution.none) {
+			return TimeWindow.newInstance(start, end);
+		}
+		final double width = Math.min(timeWindowWidth, end - start);
+		final double latestStart = end - width;
+		final double windowStart = switch (timeWindowDistribution) {
+			case none, uniform -> start + random.nextDouble() * (latestStart - start);
+			case normal -> {
+				// Box-Muller; about 95% of the windows start within the middle half of the possible starts
+				final double gaussian = Math.sqrt(-2. * Math.log(1. - random.nextDouble())) * Math.cos(2. * Math.PI * random.nextDouble());
+				final double mean = (start + latestStart) / 2.;
+				yield Math.max(start, Math.min(latestStart, mean + gaussian * (latestStart - start) / 8.));
+			}
+		};
+		// whole seconds, as in the written file
+		return TimeWindow.newInstance(Math.floor(windowStart), Math.floor(windowStart) + width);
+	}
+
+	private static List<FleetType> parseFleetMix(List<String> fleetMix) {
+		List<FleetType> fleetTypes = new ArrayList<>();
+		for (String entry : fleetMix) {
+			String[] parts = entry.split(":");
+			if (parts.length != 3) {
+				throw new IllegalArgumentException("Fleet mix entries must be id:capacity:share, but got " + entry);
+			}
+			fleetTypes.add(new FleetType(parts[0], Double.parseDouble(parts[1]), Double.parseDouble(parts[2])));
+		}
+		return fleetTypes;
+	}
+
+	private void writeVehicleTypes(List<FleetType> fleetTypes) {
+		CarrierVehicleTypes vehicleTypes = new CarrierVehicleTypes();
+		for (FleetType fleetType : fleetTypes) {
+			VehicleType vehicleType = VehicleUtils.createVehicleType(Id.create(fleetType.id(), VehicleType.class));
+			vehicleType.getCapacity().setOther(fleetType.capacity());
+			vehicleType.setNetworkMode(TransportMode.car);
+			// rough cost rates, growing with the capacity; adjust in the file if needed
+			vehicleType.getCostInformation()
+					.setFixedCost(80. + 5. * fleetType.capacity())
+					.setCostsPerMeter(0.0003 + 0.00002 * fleetType.capacity())
+					.setCostsPerSecond(0.008);
+			vehicleTypes.getVehicleTypes().put(vehicleType.getId(), vehicleType);
+		}
+		new CarrierVehicleTypeWriter(vehicleTypes).write(vehicleTypesOutputFile);
+		log.info("Vehicle types written to {}", vehicleTypesOutputFile);
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+}
@@ -0,0 +1,460 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the services and shipments which can not be served within their time windows by any vehicle of their
+ * carrier, before the carriers' tours are planned with jsprit.
+ * <p>
+ * A shipment is infeasible, if no depot of the carrier allows the way depot &rarr; pickup &rarr; delivery &rarr; depot
+ * within the operating time of its vehicles and the pickup and delivery time windows; a service likewise for the way
+ * depot &rarr; service &rarr; depot. Jobs whose demand exceeds the capacity of all vehicles are infeasible as well.
+ * The travel times are the free speed travel times of the links, ignoring the maximum velocity of the vehicles, i.e.
+ * lower bounds of the travel times of jsprit. So only jobs which are infeasible in any case are found; jobs which are
+ * only infeasible with congestion or slow vehicles are still found by jsprit.
+ * <p>
+ * From every depot, the travel times to and from all nodes are computed once with a one-to-many Dijkstra search
+ * forwards and backwards, on a compact array representation of the network; the depots are searched in parallel. The
+ * way from the pickup to the delivery of a shipment is a one-to-one search per shipment, which stops when the
+ * delivery is reached or the time window can no longer be met. The carriers are checked in parallel.
+ */
+public final class TimeWindowPrecheck {
+
+	private static final Logger log = LogManager.getLogger(TimeWindowPrecheck.class);
+
+	/**
+	 * A job which can not be served; the job type is <code>service</code> or <code>shipment</code>.
+	 */
+	public record InfeasibleJob(Id<Carrier> carrierId, Id<?> jobId, String jobType, String reason) {
+	}
+
+	/**
+	 * Operating time and capacity of the vehicles of one carrier at one depot; the earliest start and the latest end
+	 * over all these vehicles.
+	 */
+	private record Depot(Id<Link> linkId, double earliestStart, double latestEnd) {
+	}
+
+	/**
+	 * Travel times from the depot to all nodes and from all nodes to the depot.
+	 */
+	private record DepotTree(double[] fromDepot, double[] toDepot) {
+	}
+
+	private final Network network;
+	private final int numberOfThreads;
+
+	// The network in compressed sparse row format, forwards and backwards; the nodes are numbered densely.
+	private final Map<Id<Node>, Integer> nodeIndices = new HashMap<>();
+	private final int[] outStart;
+	private final int[] outNode;
+	private final double[] outTime;
+	private final int[] inStart;
+	private final int[] inNode;
+	private final double[] inTime;
+
+	private final ThreadLocal<Dijkstra> dijkstras = ThreadLocal.withInitial(Dijkstra::new);
+
+	public TimeWindowPrecheck(Network network, int numberOfThreads) {
+		this.network = network;
+		this.numberOfThreads = Math.max(1, numberOfThreads);
+		for (Node node : network.getNodes().values()) {
+			nodeIndices.put(node.getId(), nodeIndices.size());
+		}
+		final int nuOfNodes = nodeIndices.size();
+		final int nuOfLinks = network.getLinks().size();
+		this.outStart = new int[nuOfNodes + 1];
+		this.inStart = new int[nuOfNodes + 1];
+		for (Link link : network.getLinks().values()) {
+			outStart[nodeIndices.get(link.getFromNode().getId()) + 1]++;
+			inStart[nodeIndices.get(link.getToNode().getId()) + 1]++;
+		}
+		for (int i = 0; i < nuOfNodes; i++) {
+			outStart[i + 1] += outStart[i];
+			inStart[i + 1] += inStart[i];
+		}
+		this.outNode = new int[nuOfLinks];
+		this.outTime = new double[nuOfLinks];
+		this.inNode = new int[nuOfLinks];
+		this.inTime = new double[nuOfLinks];
+		final int[] outPosition = Arrays.copyOf(outStart, nuOfNodes);
+		final int[] inPosition = Arrays.copyOf(inStart, nuOfNodes);
+		for (Link link : network.getLinks().values()) {
+			final int from = nodeIndices.get(link.getFromNode().getId());
+			final int to = nodeIndices.get(link.getToNode().getId());
+			final double time = getFreeSpeedTravelTime(link);
+			outNode[outPosition[from]] = to;
+			outTime[outPosition[from]++] = time;
+			inNode[inPosition[to]] = from;
+			inTime[inPosition[to]++] = time;
+		}
+	}
+
+	/**
+	 * @return the infeasible jobs of all carriers, sorted by carrier
+	 */
+	public List<InfeasibleJob> run(Carriers carriers) throws InterruptedException, ExecutionException {
+		final long start = System.nanoTime();
+		final Map<Id<Carrier>, List<Depot>> carrierId2Depots = new TreeMap<>();
+		for (Carrier carrier : carriers.getCarriers().values()) {
+			carrierId2Depots.put(carrier.getId(), getDepots(carrier));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		try {
+			//1. One-to-many searches from and to every depot
+			final Map<Id<Link>, DepotTree> depotTrees = new ConcurrentHashMap<>();
+			final Map<Id<Link>, Double> depot2MaxOperatingTime = new HashMap<>();
+			for (List<Depot> depots : carrierId2Depots.values()) {
+				for (Depot depot : depots) {
+					depot2MaxOperatingTime.merge(depot.linkId(), depot.latestEnd() - depot.earliestStart(), Math::max);
+				}
+			}
+			List<Future<?>> futures = new ArrayList<>();
+			depot2MaxOperatingTime.forEach((linkId, maxTime) -> futures.add(executor.submit(() -> {
+				final Link link = network.getLinks().get(linkId);
+				final Dijkstra dijkstra = dijkstras.get();
+				final double[] fromDepot = dijkstra.run(nodeIndices.get(link.getToNode().getId()), false, -1, maxTime).clone();
+				final double[] toDepot = dijkstra.run(nodeIndices.get(link.getFromNode().getId()), true, -1, maxTime).clone();
+				depotTrees.put(linkId, new DepotTree(fromDepot, toDepot));
+			})));
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			log.info("Searched the travel times from and to {} depots.", depotTrees.size());
+
+			//2. The jobs of every carrier
+			List<Future<List<InfeasibleJob>>> carrierFutures = new ArrayList<>();
+			for (Id<Carrier> carrierId : carrierId2Depots.keySet()) {
+				final Carrier carrier = carriers.getCarriers().get(carrierId);
+				final List<Depot> depots = carrierId2Depots.get(carrierId);
+				carrierFutures.add(executor.submit(() -> checkCarrier(carrier, depots, depotTrees)));
+			}
+			List<InfeasibleJob> infeasibleJobs = new ArrayList<>();
+			for (Future<List<InfeasibleJob>> future : carrierFutures) {
+				infeasibleJobs.addAll(future.get());
+			}
+			log.info("Time window precheck: {} infeasible jobs in {} ms.", infeasibleJobs.size(), Math.round((System.nanoTime() - start) / 1e6));
+			return infeasibleJobs;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Removes the infeasible jobs from their carriers, so that jsprit only plans the feasible ones.
+	 */
+	public static void removeJobs(Carriers carriers, Collection<InfeasibleJob> infeasibleJobs) {
+		for (InfeasibleJob infeasibleJob : infeasibleJobs) {
+			final Carrier carrier = carriers.getCarriers().get(infeasibleJob.carrierId());
+			carrier.getServices().remove(infeasibleJob.jobId());
+			carrier.getShipments().remove(infeasibleJob.jobId());
+		}
+	}
+
+	public static void writeInfeasibleJobs(Collection<InfeasibleJob> infeasibleJobs, String fileName) throws IOException {
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
+			writer.write("carrierId;jobId;jobType;reason");
+			writer.newLine();
+			for (InfeasibleJob infeasibleJob : infeasibleJobs) {
+				writer.write(infeasibleJob.carrierId() + ";" + infeasibleJob.jobId() + ";" + infeasibleJob.jobType() + ";" + infeasibleJob.reason());
+				writer.newLine();
+			}
+		}
+		log.info("Output written to " + fileName);
+	}
+
+	private static List<Depot> getDepots(Carrier carrier) {
+		final Map<Id<Link>, Depot> depots = new TreeMap<>();
+		for (CarrierVehicle vehicle : carrier.getCarrierCapabilities().getCarrierVehicles().values()) {
+			depots.merge(vehicle.getLinkId(), new Depot(vehicle.getLinkId(), vehicle.getEarliestStartTime(), vehicle.getLatestEndTime()),
+					(a, b) -> new Depot(a.linkId(), Math.min(a.earliestStart(), b.earliestStart()), Math.max(a.latestEnd(), b.latestEnd())));
+		}
+		return new ArrayList<>(depots.values());
+	}
+
+	private List<InfeasibleJob> checkCarrier(Carrier carrier, List<Depot> depots, Map<Id<Link>, DepotTree> depotTrees) {
+		double maxCapacity = 0.;
+		for (CarrierVehicle vehicle : carrier.getCarrierCapabilities().getCarrierVehicles().values()) {
+			final Double capacity = vehicle.getType().getCapacity().getOther();
+			maxCapacity = Math.max(maxCapacity, capacity == null ? Double.POSITIVE_INFINITY : capacity);
+		}
+
+		final List<InfeasibleJob> infeasibleJobs = new ArrayList<>();
+		for (CarrierService service : new TreeMap<>(carrier.getServices()).values()) {
+			final String reason = checkService(service, maxCapacity, depots, depotTrees);
+			if (reason != null) {
+				infeasibleJobs.add(new InfeasibleJob(carrier.getId(), service.getId(), "service", reason));
+			}
+		}
+		for (CarrierShipment shipment : new TreeMap<>(carrier.getShipments()).values()) {
+			final String reason = checkShipment(shipment, maxCapacity, depots, depotTrees);
+			if (reason != null) {
+				infeasibleJobs.add(new InfeasibleJob(carrier.getId(), shipment.getId(), "shipment", reason));
+			}
+		}
+		return infeasibleJobs;
+	}
+
+	/**
+	 * @return why the service is infeasible, or null
+	 */
+	private String checkService(CarrierService service, double maxCapacity, List<Depot> depots, Map<Id<Link>, DepotTree> depotTrees) {
+		if (service.getCapacityDemand() > maxCapacity) {
+			return "demand exceeds the capacity of all vehicles";
+		}
+		if (depots.isEmpty()) {
+			return "no vehicles";
+		}
+		final Link link = network.getLinks().get(service.getLocationLinkId());
+		final TimeWindow timeWindow = service.getServiceStartTimeWindow();
+		String reason = null;
+		for (Depot depot : depots) {
+			final DepotTree tree = depotTrees.get(depot.linkId());
+			final double arrival = depot.earliestStart() + getTravelTimeFromDepot(tree, depot.linkId(), link);
+			if (arrival == Double.POSITIVE_INFINITY) {
+				reason = "not reachable from the depots in their operating time";
+				continue;
+			}
+			if (arrival > timeWindow.getEnd()) {
+				reason = "time window can not be reached from the depots";
+				continue;
+			}
+			final double end = Math.max(arrival, timeWindow.getStart()) + service.getServiceDuration();
+			if (end + getTravelTimeToDepot(tree, depot.linkId(), link) > depot.latestEnd()) {
+				reason = "no return to the depots within their operating time";
+				continue;
+			}
+			return null;
+		}
+		return reason;
+	}
+
+	/**
+	 * @return why the shipment is infeasible, or null
+	 */
+	private String checkShipment(CarrierShipment shipment, double maxCapacity, List<Depot> depots, Map<Id<Link>, DepotTree> depotTrees) {
+		if (shipment.getSize() > maxCapacity) {
+			return "demand exceeds the capacity of all vehicles";
+		}
+		if (depots.isEmpty()) {
+			return "no vehicles";
+		}
+		final Link from = network.getLinks().get(shipment.getFrom());
+		final Link to = network.getLinks().get(shipment.getTo());
+		final TimeWindow pickupTimeWindow = shipment.getPickupTimeWindow();
+		final TimeWindow deliveryTimeWindow = shipment.getDeliveryTimeWindow();
+
+		//The earliest pickup over all depots; the way from the pickup to the delivery does not depend on the depot.
+		double earliestPickupEnd = Double.POSITIVE_INFINITY;
+		for (Depot depot : depots) {
+			final double arrival = depot.earliestStart() + getTravelTimeFromDepot(depotTrees.get(depot.linkId()), depot.linkId(), from);
+			if (arrival <= pickupTimeWindow.getEnd()) {
+				earliestPickupEnd = Math.min(earliestPickupEnd, Math.max(arrival, pickupTimeWindow.getStart()) + shipment.getPickupServiceTime());
+			}
+		}
+		if (earliestPickupEnd == Double.POSITIVE_INFINITY) {
+			return "pickup time window can not be reached from the depots";
+		}
+
+		final double maxTravelTime = deliveryTimeWindow.getEnd() - earliestPickupEnd;
+		final double pickupToDelivery = getTravelTime(from, to, maxTravelTime);
+		if (earliestPickupEnd + pickupToDelivery > deliveryTimeWindow.getEnd()) {
+			return "delivery time window can not be reached from the pickup";
+		}
+
+		for (Depot depot : depots) {
+			final DepotTree tree = depotTrees.get(depot.linkId());
+			final double arrival = depot.earliestStart() + getTravelTimeFromDepot(tree, depot.linkId(), from);
+			if (arrival > pickupTimeWindow.getEnd()) {
+				continue;
+			}
+			final double pickupEnd = Math.max(arrival, pickupTimeWindow.getStart()) + shipment.getPickupServiceTime();
+			final double deliveryArrival = pickupEnd + pickupToDelivery;
+			if (deliveryArrival > deliveryTimeWindow.getEnd()) {
+				continue;
+			}
+			final double deliveryEnd = Math.max(deliveryArrival, deliveryTimeWindow.getStart()) + shipment.getDeliveryServiceTime();
+			if (deliveryEnd + getTravelTimeToDepot(tree, depot.linkId(), to) <= depot.latestEnd()) {
+				return null;
+			}
+		}
+		return "no return to the depots within their operating time";
+	}
+
+	private double getTravelTimeFromDepot(DepotTree tree, Id<Link> depotLinkId, Link link) {
+		if (link.getId().equals(depotLinkId)) {
+			return 0.;
+		}
+		return tree.fromDepot()[nodeIndices.get(link.getFromNode().getId())] + getFreeSpeedTravelTime(link);
+	}
+
+	private double getTravelTimeToDepot(DepotTree tree, Id<Link> depotLinkId, Link link) {
+		if (link.getId().equals(depotLinkId)) {
+			return 0.;
+		}
+		return tree.toDepot()[nodeIndices.get(link.getToNode().getId())] + getFreeSpeedTravelTime(network.getLinks().get(depotLinkId));
+	}
+
+	/**
+	 * Travel time from the end of one link to the end of the other, as in the routing; infinite if more than maxTime.
+	 */
+	private double getTravelTime(Link from, Link to, double maxTime) {
+		if (from.getId().equals(to.getId())) {
+			return 0.;
+		}
+		final int target = nodeIndices.get(to.getFromNode().getId());
+		final double[] times = dijkstras.get().run(nodeIndices.get(from.getToNode().getId()), false, target, maxTime);
+		return times[target] + getFreeSpeedTravelTime(to);
+	}
+
+	private static double getFreeSpeedTravelTime(Link link) {
+		return link.getLength() / link.getFreespeed();
+	}
+
+	/**
+	 * Dijkstra search on the arrays of the network, with a binary heap and arrays which are reused between the
+	 * searches; one per thread.
+	 */
+	private final class Dijkstra {
+		private final double[] times = new double[nodeIndices.size()];
+		private final int[] heap = new int[nodeIndices.size()];
+		// position of a node in the heap, -1 if not in the heap
+		private final int[] heapPositions = new int[nodeIndices.size()];
+		private final int[] visited = new int[nodeIndices.size()];
+		private int nuOfVisited = 0;
+		private int heapSize = 0;
+
+		private Dijkstra() {
+			Arrays.fill(times, Double.POSITIVE_INFINITY);
+			Arrays.fill(heapPositions, -1);
+		}
+
+		/**
+		 * @param target  the search stops when this node is settled; -1 for all nodes
+		 * @param maxTime nodes which are further away are not searched
+		 * @return the travel times to (or, if backwards, from) all nodes; only valid until the next search
+		 */
+		private double[] run(int source, boolean backwards, int target, double maxTime) {
+			for (int i = 0; i < nuOfVisited; i++) {
+				times[visited[i]] = Double.POSITIVE_INFINITY;
+				heapPositions[visited[i]] = -1;
+			}
+			nuOfVisited = 0;
+			heapSize = 0;
+
+			final int[] start = backwards ? inStart : outStart;
+			final int[] nodes = backwards ? inNode : outNode;
+			final double[] linkTimes = backwards ? inTime : outTime;
+			update(source, 0.);
+			while (heapSize > 0) {
+				final int node = poll();
+				if (node == target) {
+					break;
+				}
+				final double time = times[node];
+				for (int i = start[node]; i < start[node + 1]; i++) {
+					final double newTime = time + linkTimes[i];
+					if (newTime < times[nodes[i]] && newTime <= maxTime) {
+						update(nodes[i], newTime);
+					}
+				}
+			}
+			return times;
+		}
+
+		private void update(int node, double time) {
+			if (times[node] == Double.POSITIVE_INFINITY) {
+				visited[nuOfVisited++] = node;
+			}
+			times[node] = time;
+			int position = heapPositions[node];
+			if (position < 0) {
+				position = heapSize++;
+			}
+			// sift up
+			while (position > 0) {
+				final int parent = (position - 1) >>> 1;
+				if (times[heap[parent]] <= time) {
+					break;
+				}
+				heap[position] = heap[parent];
+				heapPositions[heap[position]] = position;
+				position = parent;
+			}
+			heap[position] = node;
+			heapPositions[node] = position;
+		}
+
+		private int poll() {
+			final int first = heap[0];
+			heapPositions[first] = -2;
+			final int last = heap[--heapSize];
+			if (heapSize > 0) {
+				// sift down
+				final double time = times[last];
+				int position = 0;
+				while (true) {
+					int child = 2 * position + 1;
+					if (child >= heapSize) {
+						break;
+					}
+					if (child + 1 < heapSize && times[heap[child + 1]] < times[heap[child]]) {
+						child++;
+					}
+					if (times[heap[child]] >= time) {
+						break;
+					}
+					heap[position] = heap[child];
+					heapPositions[heap[position]] = position;
+					position = child;
+				}
+				heap[position] = last;
+				heapPositions[last] = position;
+			}
+			return first;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Manifest of an analysis output directory, so that a repeated analysis only recomputes the steps whose inputs changed.
+ * <p>
+ * For every input file, the size, the modification time and a content hash (CRC32C) are stored. If size and
+ * modification time are unchanged, the stored hash is taken, so archived outputs are not read again. For every
+ * analysis step, a fingerprint over the analysis version, the step options and the hashes of its inputs is stored.
+ * A step is up to date, if its fingerprint is unchanged and all its output files exist.
+ * <p>
+ * The manifest is written to <code>analysis_manifest.csv</code> in the analysis output directory.
+ */
+final class AnalysisManifest {
+
+	private static final Logger log = LogManager.getLogger(AnalysisManifest.class);
+
+	static final String FILE_NAME = "analysis_manifest" + RunFreightAnalysisEventBased.fileExtension;
+	private static final String INPUT = "input";
+	private static final String STEP = "step";
+
+	private final String analysisOutputDirectory;
+	private final Map<String, InputFileInfo> inputFiles = new TreeMap<>();
+	private final Map<String, String> stepFingerprints = new TreeMap<>();
+
+	private record InputFileInfo(long size, long lastModified, String hash) {
+	}
+
+	AnalysisManifest(String analysisOutputDirectory) throws IOException {
+		this.analysisOutputDirectory = analysisOutputDirectory;
+		File file = new File(analysisOutputDirectory + FILE_NAME);
+		if (!file.exists()) {
+			return;
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split(RunFreightAnalysisEventBased.delimiter);
+				if (parts[0].equals(INPUT) && parts.length == 5) {
+					inputFiles.put(parts[1], new InputFileInfo(Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]));
+				} else if (parts[0].equals(STEP) && parts.length == 3) {
+					stepFingerprints.put(parts[1], parts[2]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param options everything else that changes the result of the step, e.g. the analysis version
+	 */
+	String fingerprint(String options, List<String> inputFileNames) throws IOException {
+		CRC32C crc = new CRC32C();
+		crc.update(options.getBytes());
+		StringBuilder fingerprint = new StringBuilder();
+		for (String inputFileName : inputFileNames) {
+			fingerprint.append(getHash(inputFileName)).append('-');
+		}
+		crc.update(fingerprint.toString().getBytes());
+		return Long.toHexString(crc.getValue());
+	}
+
+	boolean isUpToDate(String step, String fingerprint, List<String> outputFileNames) {
+		if (!fingerprint.equals(stepFingerprints.get(step))) {
+			return false;
+		}
+		for (String outputFileName : outputFileNames) {
+			if (!new File(analysisOutputDirectory + outputFileName).exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the step as done and writes the manifest.
+	 */
+	void markDone(String step, String fingerprint) throws IOException {
+		stepFingerprints.put(step, fingerprint);
+		write();
+	}
+
+	private String getHash(String fileName) throws IOException {
+		File file = new File(fileName);
+		if (!file.exists()) {
+			return "missing";
+		}
+		final long size = file.length();
+		final long lastModified = file.lastModified();
+		InputFileInfo info = inputFiles.get(fileName);
+		if (info != null && info.size() == size && info.lastModified() == lastModified) {
+			return info.hash();
+		}
+
+		log.info("Hashing {} ...", fileName);
+		CRC32C crc = new CRC32C();
+		byte[] buffer = new byte[1 << 16];
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, read);
+			}
+		}
+		String hash = Long.toHexString(crc.getValue()) + "_" + size;
+		inputFiles.put(fileName, new InputFileInfo(size, lastModified, hash));
+		return hash;
+	}
+
+	private void write() throws IOException {
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(analysisOutputDirectory + FILE_NAME))) {
+			for (Map.Entry<String, InputFileInfo> entry : inputFiles.entrySet()) {
+				bw.write(INPUT + RunFreightAnalysisEventBased.delimiter + entry.getKey()
+						+ RunFreightAnalysisEventBased.delimiter + entry.getValue().size()
+						+ RunFreightAnalysisEventBased.delimiter + entry.getValue().lastModified()
+						+ RunFreightAnalysisEventBased.delimiter + entry.getValue().hash());
+				bw.newLine();
+			}
+			for (Map.Entry<String, String> entry : stepFingerprints.entrySet()) {
+				bw.write(STEP + RunFreightAnalysisEventBased.delimiter + entry.getKey() + RunFreightAnalysisEventBased.delimiter + entry.getValue());
+				bw.newLine();
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+/**
+ * Receives the progress of the {@link RunFreightAnalysisEventBased}, e.g. for a progress bar. The methods are called
+ * from the thread which runs the analysis.
+ */
+public interface AnalysisProgressListener {
+
+	/**
+	 * The analysis starts a new step, e.g. loading the scenario or writing the output.
+	 */
+	void step(String step);
+
+	/**
+	 * Called about twice a second while the events are read, and once at the end.
+	 *
+	 * @param nuOfEvents      events read so far
+	 * @param eventsPerSecond events read per (wall clock) second since the last call
+	 * @param time            simulation time of the last event
+	 */
+	void events(long nuOfEvents, double eventsPerSecond, double time);
+}
@@ -36,8 +36,11 @@ import org.matsim.vehicles.VehicleType;
 import org.matsim.vehicles.VehicleUtils;
 
 import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 
 import static org.matsim.freight.carriers.events.CarrierEventAttributes.ATTRIBUTE_CAPACITYDEMAND;
@@ -51,33 +54,53 @@ public class CarrierLoadAnalysis implements BasicEventHandler {
 
 	Carriers carriers;
 
-	private final Map<Id<Vehicle>, LinkedList<Integer>> vehicle2Load = new LinkedHashMap<>();
+	//Load after every pickup and delivery per vehicle. Can be spilled to disk, see setMaxVehiclesInMemory.
+	private SpillingVehicleMap<LoadRecord> vehicle2Load = new SpillingVehicleMap<>(LoadRecord::new, LoadRecord.CODEC, Integer.MAX_VALUE, null);
+
+	//Current load of the vehicles which are loaded; a vehicle is removed when it is empty again.
+	private final Map<Id<Vehicle>, Integer> vehicle2CurrentLoad = new HashMap<>();
+
+	//Used if this is added as a handler by itself; see registerEventHandlers
+	private final EventTypeDispatcher dispatcher = new EventTypeDispatcher();
 
 	public CarrierLoadAnalysis(Carriers carriers) {
 		this.carriers = carriers;
+		registerEventHandlers(dispatcher);
+	}
+
+	/**
+	 * Bounds the memory for the analysis of very large fleets: if more than <code>maxVehiclesInMemory</code> vehicles
+	 * are held in memory, their loads are written to disk and merged at the end, see {@link SpillingVehicleMap}.
+	 * Must be called before the events are handled.
+	 */
+	void setMaxVehiclesInMemory(int maxVehiclesInMemory, Path spillDirectory) {
+		this.vehicle2Load = new SpillingVehicleMap<>(LoadRecord::new, LoadRecord.CODEC, maxVehiclesInMemory, spillDirectory);
+	}
+
+	/**
+	 * Deletes the files which were spilled to disk. Call after all output is written.
+	 */
+	void deleteSpillFiles() throws IOException {
+		vehicle2Load.close();
+	}
+
+	/**
+	 * Registers the handlers of this analysis, so that the events are dispatched by type directly to them.
+	 */
+	void registerEventHandlers(EventTypeDispatcher dispatcher) {
+		dispatcher.addHandler(CarrierShipmentPickupStartEvent.class, this::handlePickup);
+		dispatcher.addHandler(CarrierShipmentDeliveryStartEvent.class, this::handleDelivery);
 	}
 
 	@Override public void handleEvent(Event event) {
-		if (event.getEventType().equals(CarrierShipmentPickupStartEvent.EVENT_TYPE)) {
-			handlePickup( event);
-		} if (event.getEventType().equals(CarrierShipmentDeliveryStartEvent.EVENT_TYPE)) {
-			handleDelivery(event);
-		}
+		dispatcher.handleEvent(event);
 	}
 
 	private void handlePickup(Event event) {
 		Id<Vehicle> vehicleId = Id.createVehicleId(event.getAttributes().get("vehicle"));
 		Integer demand = Integer.valueOf(event.getAttributes().get(ATTRIBUTE_CAPACITYDEMAND));
 
-		LinkedList<Integer> list;
-		if (! vehicle2Load.containsKey(vehicleId)){
-			list = new LinkedList<>();
-			list.add(demand);
-		} else {
-			list = vehicle2Load.get(vehicleId);
-			list.add(list.getLast() + demand);
-		}
-		vehicle2Load.put(vehicleId, list);
+		vehicle2Load.get(vehicleId).add(updateCurrentLoad(vehicleId, demand));
 	}
 
 
@@ -85,9 +108,17 @@ public class CarrierLoadAnalysis implements BasicEventHandler {
 		Id<Vehicle> vehicleId = Id.createVehicleId(event.getAttributes().get("vehicle"));
 		Integer demand = Integer.valueOf(event.getAttributes().get(ATTRIBUTE_CAPACITYDEMAND));
 
-		var list = vehicle2Load.get(vehicleId);
-		list.add(list.getLast() - demand);
-		vehicle2Load.put(vehicleId, list);
+		vehicle2Load.get(vehicleId).add(updateCurrentLoad(vehicleId, -demand));
+	}
+
+	private int updateCurrentLoad(Id<Vehicle> vehicleId, int change) {
+		final int load = vehicle2CurrentLoad.getOrDefault(vehicleId, 0) + change;
+		if (load == 0) {
+			vehicle2CurrentLoad.remove(vehicleId);
+		} else {
+			vehicle2CurrentLoad.put(vehicleId, load);
+		}
+		return load;
 	}
 
 	void writeLoadAnalysis(String analysisOutputDirectory, Scenario scenario) throws IOException {
@@ -95,52 +126,54 @@ public class CarrierLoadAnalysis implements BasicEventHandler {
 		//Load per vehicle
 		String fileName = analysisOutputDirectory + "Load_perVehicle"+RunFreightAnalysisEventBased.fileExtension;
 
-		BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName));
-
-		//Write headline:
-		bw1.write("vehicleId"+RunFreightAnalysisEventBased.delimiter+
-				"vehicleTypeId" + RunFreightAnalysisEventBased.delimiter +
-				"capacity"+RunFreightAnalysisEventBased.delimiter+
-				"maxLoad"+RunFreightAnalysisEventBased.delimiter+
-				"usedCapacity[%]" + RunFreightAnalysisEventBased.delimiter +
-				"load state during tour");
-		bw1.newLine();
-
 		// for calculation
-		List<Double> perc = new ArrayList();
+		final double[] sumOfUsedCapacity = new double[1];
+		final int[] nuOfVehicles = new int[1];
 		List<String> types = new ArrayList();
+		Map<Id<VehicleType>, VehicleType> vehicleTypesInEvents = new HashMap<>();
 
 		// for capacity display
 		List<String> capPerType = new ArrayList<>();
 
 
-		for (Id<Vehicle> vehicleId : vehicle2Load.keySet()) {
-
-			final LinkedList<Integer> load = vehicle2Load.get(vehicleId);
-			final Integer maxLoad = load.stream().max(Comparator.naturalOrder()).get();
+		try (BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName))) {
 
-			final VehicleType vehicleType = VehicleUtils.findVehicle(vehicleId, scenario).getType();
-			final Double capacity = vehicleType.getCapacity().getOther();
-
-			perc.add(maxLoad/capacity);
-			String cap = vehicleType.getId().toString() + RunFreightAnalysisEventBased.delimiter + capacity;
-			if (!capPerType.contains(cap)) {
-				capPerType.add(cap);
-			}
-			if (!types.contains(vehicleType.getId().toString())) {
-				types.add(vehicleType.getId().toString());
-			}
-
-			bw1.write(vehicleId.toString());
-			bw1.write(RunFreightAnalysisEventBased.delimiter + vehicleType.getId().toString());
-			bw1.write(RunFreightAnalysisEventBased.delimiter + capacity);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + maxLoad);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + Math.round(100*100*maxLoad/capacity)/100);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + load);
+			//Write headline:
+			bw1.write("vehicleId"+RunFreightAnalysisEventBased.delimiter+
+					"vehicleTypeId" + RunFreightAnalysisEventBased.delimiter +
+					"capacity"+RunFreightAnalysisEventBased.delimiter+
+					"maxLoad"+RunFreightAnalysisEventBased.delimiter+
+					"usedCapacity[%]" + RunFreightAnalysisEventBased.delimiter +
+					"load state during tour");
 			bw1.newLine();
-		}
 
-		bw1.close();
+			vehicle2Load.forEach((vehicleId, load) -> {
+
+				final int maxLoad = load.getMax();
+
+				final VehicleType vehicleType = VehicleUtils.findVehicle(vehicleId, scenario).getType();
+				final Double capacity = vehicleType.getCapacity().getOther();
+				vehicleTypesInEvents.putIfAbsent(vehicleType.getId(), vehicleType);
+
+				sumOfUsedCapacity[0] += maxLoad/capacity;
+				nuOfVehicles[0]++;
+				String cap = vehicleType.getId().toString() + RunFreightAnalysisEventBased.delimiter + capacity;
+				if (!capPerType.contains(cap)) {
+					capPerType.add(cap);
+				}
+				if (!types.contains(vehicleType.getId().toString())) {
+					types.add(vehicleType.getId().toString());
+				}
+
+				bw1.write(vehicleId.toString());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + vehicleType.getId().toString());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + capacity);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + maxLoad);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + Math.round(100*100*maxLoad/capacity)/100);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + load);
+				bw1.newLine();
+			});
+		}
 		log.info("Output written to " + fileName);
 
 		//Tiles with used vehicleTypes & average load and capacity per vehicle type
@@ -149,45 +182,106 @@ public class CarrierLoadAnalysis implements BasicEventHandler {
 
 		//Write file for tiles
 		String fileName1 = analysisOutputDirectory + "Load_summary.csv";
-		BufferedWriter bw2 = new BufferedWriter(new FileWriter(fileName1));
 
 		//For calculation of average usage (%)
-		double use = Math.round(perc.stream().mapToDouble(Double::doubleValue).sum()/ perc.size()*100);
+		double use = Math.round(sumOfUsedCapacity[0] / nuOfVehicles[0] * 100);
 
 		// Determination of all VehicleTypes in CarriervehicleTypes container. Used so that even unused vehTypes appear in the output
 		TreeMap<Id<VehicleType>, VehicleType> vehicleTypesMap = new TreeMap<>(CarriersUtils.getCarrierVehicleTypes(scenario).getVehicleTypes());
 		//For the case that there are additional vehicle types found in the events.
-		for (Id<Vehicle> vehicleId  : vehicle2Load.keySet()) {
-			VehicleType vehicleType  = VehicleUtils.findVehicle(vehicleId, scenario).getType();
+		for (VehicleType vehicleType : vehicleTypesInEvents.values()) {
 			vehicleTypesMap.putIfAbsent(vehicleType.getId(),vehicleType);
 		}
 
-		bw2.write("Used vehicle types"+ RunFreightAnalysisEventBased.delimiter
-				+ types.size() +"/"+vehicleTypesMap.size()+ RunFreightAnalysisEventBased.delimiter +
-				"truck");
-		bw2.newLine();
-		bw2.write("Average use of capacity"+ RunFreightAnalysisEventBased.delimiter
-				+ use + "%" + RunFreightAnalysisEventBased.delimiter
-				+"chart-pie");
-		bw2.close();
+		try (BufferedWriter bw2 = new BufferedWriter(new FileWriter(fileName1))) {
+			bw2.write("Used vehicle types"+ RunFreightAnalysisEventBased.delimiter
+					+ types.size() +"/"+vehicleTypesMap.size()+ RunFreightAnalysisEventBased.delimiter +
+					"truck");
+			bw2.newLine();
+			bw2.write("Average use of capacity"+ RunFreightAnalysisEventBased.delimiter
+					+ use + "%" + RunFreightAnalysisEventBased.delimiter
+					+"chart-pie");
+		}
 		log.info("Output written to " + fileName1);
 
 		//Capacity per vehicle type
 		String fileName2 = analysisOutputDirectory + "Capacity_summary.csv";
-		BufferedWriter bw3 = new BufferedWriter(new FileWriter(fileName2));
+		try (BufferedWriter bw3 = new BufferedWriter(new FileWriter(fileName2))) {
+			//Write file
+			bw3.write("vehicleTypeId"+ RunFreightAnalysisEventBased.delimiter
+					+ "maxCapacity");
+			bw3.newLine();
 
-		//Write file
-		bw3.write("vehicleTypeId"+ RunFreightAnalysisEventBased.delimiter
-				+ "maxCapacity");
-		bw3.newLine();
+			for (String cap : capPerType) {
+				bw3.write(cap);
+				bw3.newLine();
+			}
+		}
+		log.info("Output written to " + fileName2);
 
-		for (String cap : capPerType) {
-			bw3.write(cap);
-			bw3.newLine();
+	}
+
+	/**
+	 * Load of a vehicle after every pickup and delivery, in time order.
+	 */
+	private static final class LoadRecord {
+		private int[] loads = new int[8];
+		private int size = 0;
+
+		private void add(int load) {
+			if (size == loads.length) {
+				loads = Arrays.copyOf(loads, 2 * size);
+			}
+			loads[size++] = load;
 		}
 
-		bw3.close();
-		log.info("Output written to " + fileName2);
+		private int getMax() {
+			int max = Integer.MIN_VALUE;
+			for (int i = 0; i < size; i++) {
+				max = Math.max(max, loads[i]);
+			}
+			return max;
+		}
+
+		// as a list: [1, 2, 1, 0]
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("[");
+			for (int i = 0; i < size; i++) {
+				if (i > 0) {
+					sb.append(", ");
+				}
+				sb.append(loads[i]);
+			}
+			return sb.append(']').toString();
+		}
 
+		private static final SpillingVehicleMap.Codec<LoadRecord> CODEC = new SpillingVehicleMap.Codec<>() {
+			@Override
+			public void write(DataOutput out, LoadRecord value) throws IOException {
+				out.writeInt(value.size);
+				for (int i = 0; i < value.size; i++) {
+					out.writeInt(value.loads[i]);
+				}
+			}
+
+			@Override
+			public LoadRecord read(DataInput in) throws IOException {
+				LoadRecord value = new LoadRecord();
+				final int size = in.readInt();
+				for (int i = 0; i < size; i++) {
+					value.add(in.readInt());
+				}
+				return value;
+			}
+
+			@Override
+			public LoadRecord merge(LoadRecord earlier, LoadRecord later) {
+				for (int i = 0; i < later.size; i++) {
+					earlier.add(later.loads[i]);
+				}
+				return earlier;
+			}
+		};
 	}
 }
@@ -0,0 +1,442 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.freight.carriers.Carrier;
+import org.matsim.freight.carriers.Carriers;
+import org.matsim.freight.carriers.ScheduledTour;
+import org.matsim.freight.carriers.Tour;
+import org.matsim.vehicles.CostInformation;
+import org.matsim.vehicles.VehicleType;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compares the selected plans of two sets of carriers, e.g. of two scenario variants: which tours are unchanged,
+ * which only serve their jobs in another order, which have changed, and how the costs, distances, number of tours and
+ * load factors differ.
+ * <p>
+ * The tours of a carrier are matched in three passes, each with a hash index instead of comparing all pairs of tours:
+ * first tours with the same vehicle type and the same sequence of jobs (unchanged), then tours with the same vehicle
+ * type and the same set of jobs (reordered), and then every remaining tour of the variant with the remaining tour of
+ * the base which shares most jobs with it (changed). Tours without a counterpart are added or removed. A job is moved,
+ * if it is served in both plans, but not by a matched pair of tours; the pickup and the delivery of a shipment are
+ * separate jobs. So the comparison is linear in the number of jobs.
+ * <p>
+ * The KPIs are computed from the plans as in the analysis of the simulation: the costs of a tour are the fixed costs of
+ * its vehicle plus the costs per meter and per second of the planned distance and tour duration; the load factor is
+ * the maximum load of a tour divided by the capacity of its vehicle. The distances are the lengths of the links of the
+ * network routes, if a network is given, otherwise the distances stored in the routes.
+ */
+public final class CarrierPlanDiff {
+
+	private static final Logger log = LogManager.getLogger(CarrierPlanDiff.class);
+
+	private static final String MISSING = "null";
+
+	private enum TourStatus {unchanged, reordered, changed, added, removed}
+
+	private final Network network;
+
+	/**
+	 * @param network for the distances of the routes; may be null
+	 */
+	public CarrierPlanDiff(Network network) {
+		this.network = network;
+	}
+
+	/**
+	 * The planned KPIs and the jobs of one tour, in the order in which they are served.
+	 */
+	private record TourInfo(String tourId, String vehicleTypeId, List<String> jobs, double distance, double costs, double loadFactor) {
+		String sequenceKey() {
+			return vehicleTypeId + "|" + String.join(",", jobs);
+		}
+
+		String setKey() {
+			return vehicleTypeId + "|" + String.join(",", new TreeSet<>(jobs));
+		}
+	}
+
+	/**
+	 * The matching of the tours of one carrier.
+	 */
+	private static final class CarrierDiff {
+		private final List<TourInfo> baseTours;
+		private final List<TourInfo> variantTours;
+		// index of the matched tour of the other side, or -1
+		private final int[] base2Variant;
+		private final int[] variant2Base;
+		private final TourStatus[] variantStatus;
+		private final int[] sharedJobs;
+		private int movedJobs = 0;
+		private int nuOfBaseJobs = 0;
+		private int nuOfVariantJobs = 0;
+
+		private CarrierDiff(List<TourInfo> baseTours, List<TourInfo> variantTours) {
+			this.baseTours = baseTours;
+			this.variantTours = variantTours;
+			this.base2Variant = new int[baseTours.size()];
+			this.variant2Base = new int[variantTours.size()];
+			this.variantStatus = new TourStatus[variantTours.size()];
+			this.sharedJobs = new int[variantTours.size()];
+			Arrays.fill(base2Variant, -1);
+			Arrays.fill(variant2Base, -1);
+		}
+
+		private void match(int b, int v, TourStatus status, int shared) {
+			base2Variant[b] = v;
+			variant2Base[v] = b;
+			variantStatus[v] = status;
+			sharedJobs[v] = shared;
+		}
+
+		private int count(TourStatus status) {
+			int count = 0;
+			for (TourStatus s : variantStatus) {
+				if (s == status) {
+					count++;
+				}
+			}
+			return count;
+		}
+
+		private int countRemoved() {
+			int count = 0;
+			for (int v : base2Variant) {
+				if (v < 0) {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Compares the selected plans and writes <code>PlanDiff_perCarrier</code> and <code>PlanDiff_perTour</code>.
+	 */
+	public void writeDiff(Carriers base, Carriers variant, String outputDirectory) throws IOException {
+		if (!outputDirectory.endsWith("/")) {
+			outputDirectory = outputDirectory + "/";
+		}
+		final long start = System.nanoTime();
+		final Set<Id<Carrier>> carrierIds = new TreeSet<>(base.getCarriers().keySet());
+		carrierIds.addAll(variant.getCarriers().keySet());
+		final Map<Id<Carrier>, CarrierDiff> carrierId2Diff = new HashMap<>();
+		int nuOfTours = 0;
+		for (Id<Carrier> carrierId : carrierIds) {
+			CarrierDiff diff = diff(getTours(base.getCarriers().get(carrierId)), getTours(variant.getCarriers().get(carrierId)));
+			carrierId2Diff.put(carrierId, diff);
+			nuOfTours += diff.baseTours.size() + diff.variantTours.size();
+		}
+		log.info("Compared {} tours of {} carriers in {} ms.", nuOfTours, carrierIds.size(), Math.round((System.nanoTime() - start) / 1e6));
+
+		String fileName = outputDirectory + "PlanDiff_perCarrier" + RunFreightAnalysisEventBased.fileExtension;
+		try (BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName))) {
+			bw1.write("carrierId" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfTours(base)" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfTours(variant)" + RunFreightAnalysisEventBased.delimiter
+					+ "unchangedTours" + RunFreightAnalysisEventBased.delimiter
+					+ "reorderedTours" + RunFreightAnalysisEventBased.delimiter
+					+ "changedTours" + RunFreightAnalysisEventBased.delimiter
+					+ "addedTours" + RunFreightAnalysisEventBased.delimiter
+					+ "removedTours" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfJobs(base)" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfJobs(variant)" + RunFreightAnalysisEventBased.delimiter
+					+ "movedJobs" + RunFreightAnalysisEventBased.delimiter
+					+ "costs(base)[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "costs(variant)[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "deltaCosts[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "distance(base)[km]" + RunFreightAnalysisEventBased.delimiter
+					+ "distance(variant)[km]" + RunFreightAnalysisEventBased.delimiter
+					+ "deltaDistance[km]" + RunFreightAnalysisEventBased.delimiter
+					+ "loadFactor(base)[%]" + RunFreightAnalysisEventBased.delimiter
+					+ "loadFactor(variant)[%]" + RunFreightAnalysisEventBased.delimiter
+					+ "deltaLoadFactor[%]");
+			bw1.newLine();
+			for (Id<Carrier> carrierId : carrierIds) {
+				final CarrierDiff diff = carrierId2Diff.get(carrierId);
+				final double baseCosts = diff.baseTours.stream().mapToDouble(TourInfo::costs).sum();
+				final double variantCosts = diff.variantTours.stream().mapToDouble(TourInfo::costs).sum();
+				final double baseDistance = diff.baseTours.stream().mapToDouble(TourInfo::distance).sum() / 1000;
+				final double variantDistance = diff.variantTours.stream().mapToDouble(TourInfo::distance).sum() / 1000;
+				final double baseLoadFactor = getAverageLoadFactor(diff.baseTours);
+				final double variantLoadFactor = getAverageLoadFactor(diff.variantTours);
+
+				bw1.write(carrierId.toString());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + diff.baseTours.size());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + diff.variantTours.size());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + diff.count(TourStatus.unchanged));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + diff.count(TourStatus.reordered));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + diff.count(TourStatus.changed));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + diff.count(TourStatus.added));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + diff.countRemoved());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + diff.nuOfBaseJobs);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + diff.nuOfVariantJobs);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + diff.movedJobs);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + baseCosts);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + variantCosts);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + (variantCosts - baseCosts));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + baseDistance);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + variantDistance);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + (variantDistance - baseDistance));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + format(baseLoadFactor));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + format(variantLoadFactor));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + format(variantLoadFactor - baseLoadFactor));
+				bw1.newLine();
+			}
+		}
+		log.info("Output written to " + fileName);
+
+		fileName = outputDirectory + "PlanDiff_perTour" + RunFreightAnalysisEventBased.fileExtension;
+		try (BufferedWriter bw2 = new BufferedWriter(new FileWriter(fileName))) {
+			bw2.write("carrierId" + RunFreightAnalysisEventBased.delimiter
+					+ "status" + RunFreightAnalysisEventBased.delimiter
+					+ "tourId(base)" + RunFreightAnalysisEventBased.delimiter
+					+ "tourId(variant)" + RunFreightAnalysisEventBased.delimiter
+					+ "vehicleTypeId(base)" + RunFreightAnalysisEventBased.delimiter
+					+ "vehicleTypeId(variant)" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfJobs(base)" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfJobs(variant)" + RunFreightAnalysisEventBased.delimiter
+					+ "sharedJobs" + RunFreightAnalysisEventBased.delimiter
+					+ "costs(base)[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "costs(variant)[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "distance(base)[km]" + RunFreightAnalysisEventBased.delimiter
+					+ "distance(variant)[km]");
+			bw2.newLine();
+			for (Id<Carrier> carrierId : carrierIds) {
+				final CarrierDiff diff = carrierId2Diff.get(carrierId);
+				for (int v = 0; v < diff.variantTours.size(); v++) {
+					final int b = diff.variant2Base[v];
+					writeTourLine(bw2, carrierId, diff.variantStatus[v], b < 0 ? null : diff.baseTours.get(b), diff.variantTours.get(v), diff.sharedJobs[v]);
+				}
+				for (int b = 0; b < diff.baseTours.size(); b++) {
+					if (diff.base2Variant[b] < 0) {
+						writeTourLine(bw2, carrierId, TourStatus.removed, diff.baseTours.get(b), null, 0);
+					}
+				}
+			}
+		}
+		log.info("Output written to " + fileName);
+	}
+
+	private static CarrierDiff diff(List<TourInfo> baseTours, List<TourInfo> variantTours) {
+		final CarrierDiff diff = new CarrierDiff(baseTours, variantTours);
+
+		//1. Same vehicle type and same sequence of jobs
+		final Map<String, ArrayDeque<Integer>> sequence2BaseTours = new HashMap<>();
+		for (int b = 0; b < baseTours.size(); b++) {
+			sequence2BaseTours.computeIfAbsent(baseTours.get(b).sequenceKey(), k -> new ArrayDeque<>()).add(b);
+		}
+		for (int v = 0; v < variantTours.size(); v++) {
+			final ArrayDeque<Integer> candidates = sequence2BaseTours.get(variantTours.get(v).sequenceKey());
+			if (candidates != null && !candidates.isEmpty()) {
+				diff.match(candidates.poll(), v, TourStatus.unchanged, variantTours.get(v).jobs().size());
+			}
+		}
+
+		//2. Same vehicle type and same set of jobs
+		final Map<String, ArrayDeque<Integer>> set2BaseTours = new HashMap<>();
+		for (int b = 0; b < baseTours.size(); b++) {
+			if (diff.base2Variant[b] < 0) {
+				set2BaseTours.computeIfAbsent(baseTours.get(b).setKey(), k -> new ArrayDeque<>()).add(b);
+			}
+		}
+		for (int v = 0; v < variantTours.size(); v++) {
+			if (diff.variant2Base[v] >= 0) {
+				continue;
+			}
+			final ArrayDeque<Integer> candidates = set2BaseTours.get(variantTours.get(v).setKey());
+			if (candidates != null && !candidates.isEmpty()) {
+				diff.match(candidates.poll(), v, TourStatus.reordered, variantTours.get(v).jobs().size());
+			}
+		}
+
+		//3. The remaining base tour with most jobs in common
+		final Map<String, Integer> job2BaseTour = new HashMap<>();
+		for (int b = 0; b < baseTours.size(); b++) {
+			for (String job : baseTours.get(b).jobs()) {
+				job2BaseTour.put(job, b);
+			}
+		}
+		for (int v = 0; v < variantTours.size(); v++) {
+			if (diff.variant2Base[v] >= 0) {
+				continue;
+			}
+			final Map<Integer, Integer> baseTour2SharedJobs = new HashMap<>();
+			for (String job : variantTours.get(v).jobs()) {
+				final Integer b = job2BaseTour.get(job);
+				if (b != null && diff.base2Variant[b] < 0) {
+					baseTour2SharedJobs.merge(b, 1, Integer::sum);
+				}
+			}
+			int best = -1;
+			int bestShared = 0;
+			for (Map.Entry<Integer, Integer> entry : baseTour2SharedJobs.entrySet()) {
+				if (entry.getValue() > bestShared || (entry.getValue() == bestShared && entry.getKey() < best)) {
+					best = entry.getKey();
+					bestShared = entry.getValue();
+				}
+			}
+			if (best >= 0) {
+				diff.match(best, v, TourStatus.changed, bestShared);
+			} else {
+				diff.variantStatus[v] = TourStatus.added;
+			}
+		}
+
+		//Jobs which are served in both plans, but not by a matched pair of tours
+		for (int v = 0; v < variantTours.size(); v++) {
+			for (String job : variantTours.get(v).jobs()) {
+				final Integer b = job2BaseTour.get(job);
+				if (b != null && diff.base2Variant[b] != v) {
+					diff.movedJobs++;
+				}
+			}
+			diff.nuOfVariantJobs += variantTours.get(v).jobs().size();
+		}
+		diff.nuOfBaseJobs = job2BaseTour.size();
+		return diff;
+	}
+
+	private List<TourInfo> getTours(Carrier carrier) {
+		final List<TourInfo> tours = new ArrayList<>();
+		if (carrier == null || carrier.getSelectedPlan() == null) {
+			return tours;
+		}
+		for (ScheduledTour scheduledTour : carrier.getSelectedPlan().getScheduledTours()) {
+			tours.add(getTourInfo(scheduledTour));
+		}
+		return tours;
+	}
+
+	private TourInfo getTourInfo(ScheduledTour scheduledTour) {
+		final Tour tour = scheduledTour.getTour();
+		final List<String> jobs = new ArrayList<>();
+		double distance = 0.;
+		double endTime = scheduledTour.getDeparture();
+		//The demand of the services is loaded at the depot; shipments are loaded at their pickup
+		int load = 0;
+		for (Tour.TourElement tourElement : tour.getTourElements()) {
+			if (tourElement instanceof Tour.ServiceActivity serviceActivity) {
+				load += serviceActivity.getService().getCapacityDemand();
+			}
+		}
+		int maxLoad = load;
+		for (Tour.TourElement tourElement : tour.getTourElements()) {
+			if (tourElement instanceof Tour.Leg leg) {
+				distance += getDistance(leg.getRoute());
+				endTime = leg.getExpectedDepartureTime() + leg.getExpectedTransportTime();
+			} else if (tourElement instanceof Tour.ServiceActivity serviceActivity) {
+				jobs.add("service:" + serviceActivity.getService().getId());
+				load -= serviceActivity.getService().getCapacityDemand();
+			} else if (tourElement instanceof Tour.Pickup pickup) {
+				jobs.add("pickup:" + pickup.getShipment().getId());
+				load += pickup.getShipment().getSize();
+				maxLoad = Math.max(maxLoad, load);
+			} else if (tourElement instanceof Tour.Delivery delivery) {
+				jobs.add("delivery:" + delivery.getShipment().getId());
+				load -= delivery.getShipment().getSize();
+			}
+		}
+
+		final VehicleType vehicleType = scheduledTour.getVehicle().getType();
+		final CostInformation costInformation = vehicleType.getCostInformation();
+		final double duration = Math.max(0., endTime - scheduledTour.getDeparture());
+		final double costs = costInformation.getFixedCosts() + distance * costInformation.getCostsPerMeter() + duration * costInformation.getCostsPerSecond();
+		final Double capacity = vehicleType.getCapacity().getOther();
+		final double loadFactor = capacity == null || capacity <= 0. ? Double.NaN : maxLoad / capacity;
+		return new TourInfo(tour.getId() == null ? scheduledTour.getVehicle().getId().toString() : tour.getId().toString(),
+				vehicleType.getId().toString(), jobs, distance, costs, loadFactor);
+	}
+
+	private double getDistance(Route route) {
+		if (route == null) {
+			return 0.;
+		}
+		if (network != null && route instanceof NetworkRoute networkRoute) {
+			//As in the analysis of the events: the lengths of all links which are entered
+			double distance = 0.;
+			for (Id<Link> linkId : networkRoute.getLinkIds()) {
+				distance += network.getLinks().get(linkId).getLength();
+			}
+			if (!networkRoute.getLinkIds().isEmpty() || !networkRoute.getStartLinkId().equals(networkRoute.getEndLinkId())) {
+				distance += network.getLinks().get(networkRoute.getEndLinkId()).getLength();
+			}
+			return distance;
+		}
+		return Double.isNaN(route.getDistance()) ? 0. : route.getDistance();
+	}
+
+	/**
+	 * @return in percent
+	 */
+	private static double getAverageLoadFactor(List<TourInfo> tours) {
+		double sum = 0.;
+		int count = 0;
+		for (TourInfo tour : tours) {
+			if (!Double.isNaN(tour.loadFactor())) {
+				sum += tour.loadFactor();
+				count++;
+			}
+		}
+		return count == 0 ? Double.NaN : 100. * sum / count;
+	}
+
+	private static String format(double value) {
+		return Double.isNaN(value) ? MISSING : String.valueOf(Math.round(100. * value) / 100.);
+	}
+
+	private static void writeTourLine(BufferedWriter bw, Id<Carrier> carrierId, TourStatus status, TourInfo baseTour, TourInfo variantTour, int sharedJobs) throws IOException {
+		bw.write(carrierId.toString());
+		bw.write(RunFreightAnalysisEventBased.delimiter + status);
+		bw.write(RunFreightAnalysisEventBased.delimiter + (baseTour == null ? MISSING : baseTour.tourId()));
+		bw.write(RunFreightAnalysisEventBased.delimiter + (variantTour == null ? MISSING : variantTour.tourId()));
+		bw.write(RunFreightAnalysisEventBased.delimiter + (baseTour == null ? MISSING : baseTour.vehicleTypeId()));
+		bw.write(RunFreightAnalysisEventBased.delimiter + (variantTour == null ? MISSING : variantTour.vehicleTypeId()));
+		bw.write(RunFreightAnalysisEventBased.delimiter + (baseTour == null ? 0 : baseTour.jobs().size()));
+		bw.write(RunFreightAnalysisEventBased.delimiter + (variantTour == null ? 0 : variantTour.jobs().size()));
+		bw.write(RunFreightAnalysisEventBased.delimiter + sharedJobs);
+		bw.write(RunFreightAnalysisEventBased.delimiter + (baseTour == null ? MISSING : String.valueOf(baseTour.costs())));
+		bw.write(RunFreightAnalysisEventBased.delimiter + (variantTour == null ? MISSING : String.valueOf(variantTour.costs())));
+		bw.write(RunFreightAnalysisEventBased.delimiter + (baseTour == null ? MISSING : String.valueOf(baseTour.distance() / 1000)));
+		bw.write(RunFreightAnalysisEventBased.delimiter + (variantTour == null ? MISSING : String.valueOf(variantTour.distance() / 1000)));
+		bw.newLine();
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.freight.carriers.Carrier;
+import org.matsim.freight.carriers.CarrierShipment;
+import org.matsim.freight.carriers.Carriers;
+import org.matsim.freight.carriers.TimeWindow;
+import org.matsim.freight.carriers.events.CarrierShipmentDeliveryEndEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentDeliveryStartEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentPickupEndEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentPickupStartEvent;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Service quality of the shipments: joins the pickup and delivery events of each shipment with its {@link TimeWindow}s.
+ * <p>
+ * Per shipment, the wait time (arrival of the vehicle until start of the pickup/delivery), earliness (arrival before
+ * the time window opens), lateness (start after the time window closed) and the in-vehicle time (end of pickup until
+ * start of delivery) are calculated. The pickup and delivery start events are thrown when the activity starts, i.e.
+ * at the arrival; the vehicle waits for the time window inside the activity. So the actual start of the pickup or
+ * delivery is its end minus the service time (or, without end event, the arrival or the opening of the time window,
+ * whichever is later).
+ * <p>
+ * Per carrier, the distributions of the wait time, of the pickup and delivery lateness and earliness, and of the
+ * in-vehicle time are written.
+ * <p>
+ * Only the shipments which are currently on their way are kept in memory. Finished shipments are written directly to
+ * the per shipment file and only go into the per carrier {@link LogHistogram}s, so the memory stays bounded also
+ * for millions of shipments.
+ */
+public class CarrierShipmentAnalysis implements BasicEventHandler {
+
+	private static final Logger log = LogManager.getLogger(CarrierShipmentAnalysis.class);
+
+	private final Carriers carriers;
+	private final String analysisOutputDirectory;
+
+	private final Map<Id<Vehicle>, Double> vehicleId2ArrivalTime = new HashMap<>();
+	private final Map<Id<Carrier>, Map<Id<CarrierShipment>, ShipmentRecord>> openShipments = new HashMap<>();
+	private final Map<Id<Carrier>, CarrierStats> carrierId2Stats = new TreeMap<>();
+
+	private BufferedWriter perShipmentWriter = null;
+
+	//Used if this is added as a handler by itself; see registerEventHandlers
+	private final EventTypeDispatcher dispatcher = new EventTypeDispatcher();
+
+	/**
+	 * @param analysisOutputDirectory The per shipment file is written there while the events are processed.
+	 */
+	public CarrierShipmentAnalysis(Carriers carriers, String analysisOutputDirectory) {
+		this.carriers = carriers;
+		this.analysisOutputDirectory = analysisOutputDirectory;
+		registerEventHandlers(dispatcher);
+	}
+
+	/**
+	 * Registers the handlers of this analysis, so that the events are dispatched by type directly to them.
+	 */
+	void registerEventHandlers(EventTypeDispatcher dispatcher) {
+		dispatcher.addHandler(VehicleLeavesTrafficEvent.class, this::handleEvent);
+		dispatcher.addHandler(CarrierShipmentPickupStartEvent.class, this::handleEvent);
+		dispatcher.addHandler(CarrierShipmentPickupEndEvent.class, this::handleEvent);
+		dispatcher.addHandler(CarrierShipmentDeliveryStartEvent.class, this::handleEvent);
+		dispatcher.addHandler(CarrierShipmentDeliveryEndEvent.class, this::handleEvent);
+	}
+
+	@Override public void handleEvent(Event event) {
+		dispatcher.handleEvent(event);
+	}
+
+	private void handleEvent(VehicleLeavesTrafficEvent event) {
+		vehicleId2ArrivalTime.put(event.getVehicleId(), event.getTime());
+	}
+
+	private void handleEvent(CarrierShipmentPickupEndEvent event) {
+		ShipmentRecord shipment = getOpenShipment(event.getCarrierId(), event.getShipmentId());
+		if (shipment != null) {
+			shipment.pickupEnd = event.getTime();
+		}
+	}
+
+	private void handleEvent(CarrierShipmentDeliveryStartEvent event) {
+		ShipmentRecord shipment = getOpenShipment(event.getCarrierId(), event.getShipmentId());
+		if (shipment != null) {
+			shipment.deliveryArrival = vehicleId2ArrivalTime.getOrDefault(event.getVehicleId(), event.getTime());
+		}
+	}
+
+	private void handleEvent(CarrierShipmentDeliveryEndEvent event) {
+		Map<Id<CarrierShipment>, ShipmentRecord> shipmentsOfCarrier = openShipments.get(event.getCarrierId());
+		if (shipmentsOfCarrier != null) {
+			ShipmentRecord shipment = shipmentsOfCarrier.remove(event.getShipmentId());
+			if (shipment != null) {
+				shipment.deliveryEnd = event.getTime();
+				finish(shipment);
+			}
+		}
+	}
+
+	private void handleEvent(CarrierShipmentPickupStartEvent event) {
+		ShipmentRecord shipment = new ShipmentRecord(event.getCarrierId(), event.getShipmentId(), event.getVehicleId());
+		shipment.pickupArrival = vehicleId2ArrivalTime.getOrDefault(event.getVehicleId(), event.getTime());
+		openShipments.computeIfAbsent(event.getCarrierId(), k -> new HashMap<>()).put(event.getShipmentId(), shipment);
+	}
+
+	private ShipmentRecord getOpenShipment(Id<Carrier> carrierId, Id<CarrierShipment> shipmentId) {
+		Map<Id<CarrierShipment>, ShipmentRecord> shipmentsOfCarrier = openShipments.get(carrierId);
+		return shipmentsOfCarrier == null ? null : shipmentsOfCarrier.get(shipmentId);
+	}
+
+	private void finish(ShipmentRecord shipment) {
+		Carrier carrier = carriers.getCarriers().get(shipment.carrierId);
+		CarrierShipment carrierShipment = carrier == null ? null : carrier.getShipments().get(shipment.shipmentId);
+		TimeWindow pickupTimeWindow = carrierShipment == null ? null : carrierShipment.getPickupTimeWindow();
+		TimeWindow deliveryTimeWindow = carrierShipment == null ? null : carrierShipment.getDeliveryTimeWindow();
+
+		final double pickupStart = getServiceStart(shipment.pickupArrival, shipment.pickupEnd,
+				carrierShipment == null ? Double.NaN : carrierShipment.getPickupServiceTime(), pickupTimeWindow);
+		final double deliveryStart = getServiceStart(shipment.deliveryArrival, shipment.deliveryEnd,
+				carrierShipment == null ? Double.NaN : carrierShipment.getDeliveryServiceTime(), deliveryTimeWindow);
+		final double pickupWait = pickupStart - shipment.pickupArrival;
+		final double pickupEarliness = earliness(shipment.pickupArrival, pickupTimeWindow);
+		final double pickupLateness = lateness(pickupStart, pickupTimeWindow);
+		final double deliveryWait = deliveryStart - shipment.deliveryArrival;
+		final double deliveryEarliness = earliness(shipment.deliveryArrival, deliveryTimeWindow);
+		final double deliveryLateness = lateness(deliveryStart, deliveryTimeWindow);
+		final double pickupEnd = Double.isNaN(shipment.pickupEnd) ? pickupStart : shipment.pickupEnd;
+		final double inVehicleTime = deliveryStart - pickupEnd;
+		final boolean onTime = pickupLateness <= 0. && deliveryLateness <= 0.;
+
+		CarrierStats stats = carrierId2Stats.computeIfAbsent(shipment.carrierId, k -> new CarrierStats());
+		stats.nuOfShipments++;
+		if (onTime) {
+			stats.nuOfShipmentsOnTime++;
+		}
+		stats.waitTime.record(pickupWait + deliveryWait);
+		stats.pickupLateness.record(pickupLateness);
+		stats.pickupEarliness.record(pickupEarliness);
+		stats.deliveryLateness.record(deliveryLateness);
+		stats.deliveryEarliness.record(deliveryEarliness);
+		stats.inVehicleTime.record(inVehicleTime);
+
+		try {
+			BufferedWriter bw = getPerShipmentWriter();
+			bw.write(shipment.carrierId.toString());
+			bw.write(RunFreightAnalysisEventBased.delimiter + shipment.shipmentId);
+			bw.write(RunFreightAnalysisEventBased.delimiter + shipment.vehicleId);
+			bw.write(RunFreightAnalysisEventBased.delimiter + pickupStart);
+			bw.write(RunFreightAnalysisEventBased.delimiter + deliveryStart);
+			bw.write(RunFreightAnalysisEventBased.delimiter + pickupWait);
+			bw.write(RunFreightAnalysisEventBased.delimiter + pickupEarliness);
+			bw.write(RunFreightAnalysisEventBased.delimiter + pickupLateness);
+			bw.write(RunFreightAnalysisEventBased.delimiter + deliveryWait);
+			bw.write(RunFreightAnalysisEventBased.delimiter + deliveryEarliness);
+			bw.write(RunFreightAnalysisEventBased.delimiter + deliveryLateness);
+			bw.write(RunFreightAnalysisEventBased.delimiter + inVehicleTime);
+			bw.write(RunFreightAnalysisEventBased.delimiter + onTime);
+			bw.newLine();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param end         time of the end event; NaN if there was none
+	 * @param serviceTime NaN if unknown
+	 */
+	static double getServiceStart(double arrival, double end, double serviceTime, TimeWindow timeWindow) {
+		if (!Double.isNaN(end) && !Double.isNaN(serviceTime)) {
+			return Math.max(arrival, end - serviceTime);
+		}
+		return timeWindow == null ? arrival : Math.max(arrival, timeWindow.getStart());
+	}
+
+	private static double earliness(double arrivalTime, TimeWindow timeWindow) {
+		return timeWindow == null ? 0. : Math.max(0., timeWindow.getStart() - arrivalTime);
+	}
+
+	private static double lateness(double startTime, TimeWindow timeWindow) {
+		return timeWindow == null ? 0. : Math.max(0., startTime - timeWindow.getEnd());
+	}
+
+	private BufferedWriter getPerShipmentWriter() throws IOException {
+		if (perShipmentWriter == null) {
+			perShipmentWriter = new BufferedWriter(new FileWriter(analysisOutputDirectory + "Shipment_perShipment" + RunFreightAnalysisEventBased.fileExtension));
+			perShipmentWriter.write("carrierId" + RunFreightAnalysisEventBased.delimiter
+					+ "shipmentId" + RunFreightAnalysisEventBased.delimiter
+					+ "vehicleId" + RunFreightAnalysisEventBased.delimiter
+					+ "pickupStart[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "deliveryStart[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "pickupWait[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "pickupEarliness[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "pickupLateness[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "deliveryWait[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "deliveryEarliness[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "deliveryLateness[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "inVehicleTime[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "onTime");
+			perShipmentWriter.newLine();
+		}
+		return perShipmentWriter;
+	}
+
+	/**
+	 * Closes the per shipment file, if it is open. Called at the end of the analysis, also if it failed.
+	 */
+	void closePerShipmentWriter() throws IOException {
+		if (perShipmentWriter != null) {
+			perShipmentWriter.close();
+		}
+	}
+
+	void writeShipmentAnalysis(String analysisOutputDirectory) throws IOException {
+		log.info("Writing out shipment analysis ...");
+		// makes sure that the per shipment file also exists if there were no shipments at all
+		getPerShipmentWriter().close();
+		log.info("Output written to " + this.analysisOutputDirectory + "Shipment_perShipment" + RunFreightAnalysisEventBased.fileExtension);
+
+		int nuOfUnfinishedShipments = openShipments.values().stream().mapToInt(Map::size).sum();
+		if (nuOfUnfinishedShipments > 0) {
+			log.warn("{} shipments were picked up but not delivered until the end of the simulation.", nuOfUnfinishedShipments);
+		}
+
+		String fileName = analysisOutputDirectory + "Shipment_perCarrier" + RunFreightAnalysisEventBased.fileExtension;
+		try (BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName))) {
+			bw1.write("carrierId" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfShipments(delivered)" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfShipments(onTime)" + RunFreightAnalysisEventBased.delimiter
+					+ "onTime[%]" + RunFreightAnalysisEventBased.delimiter
+					+ writeQuantileHeader("waitTime") + RunFreightAnalysisEventBased.delimiter
+					+ writeQuantileHeader("pickupLateness") + RunFreightAnalysisEventBased.delimiter
+					+ writeQuantileHeader("pickupEarliness") + RunFreightAnalysisEventBased.delimiter
+					+ writeQuantileHeader("deliveryLateness") + RunFreightAnalysisEventBased.delimiter
+					+ writeQuantileHeader("deliveryEarliness") + RunFreightAnalysisEventBased.delimiter
+					+ writeQuantileHeader("inVehicleTime"));
+			bw1.newLine();
+
+			for (Map.Entry<Id<Carrier>, CarrierStats> entry : carrierId2Stats.entrySet()) {
+				CarrierStats stats = entry.getValue();
+				bw1.write(entry.getKey().toString());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + stats.nuOfShipments);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + stats.nuOfShipmentsOnTime);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + Math.round(10000. * stats.nuOfShipmentsOnTime / stats.nuOfShipments) / 100.);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + writeQuantiles(stats.waitTime));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + writeQuantiles(stats.pickupLateness));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + writeQuantiles(stats.pickupEarliness));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + writeQuantiles(stats.deliveryLateness));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + writeQuantiles(stats.deliveryEarliness));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + writeQuantiles(stats.inVehicleTime));
+				bw1.newLine();
+			}
+		}
+		log.info("Output written to " + fileName);
+	}
+
+	private static String writeQuantileHeader(String name) {
+		return name + "_mean[s]" + RunFreightAnalysisEventBased.delimiter
+				+ name + "_p50[s]" + RunFreightAnalysisEventBased.delimiter
+				+ name + "_p90[s]" + RunFreightAnalysisEventBased.delimiter
+				+ name + "_p95[s]" + RunFreightAnalysisEventBased.delimiter
+				+ name + "_max[s]";
+	}
+
+	private static String writeQuantiles(LogHistogram histogram) {
+		return histogram.getMean() + RunFreightAnalysisEventBased.delimiter
+				+ histogram.getQuantile(0.5) + RunFreightAnalysisEventBased.delimiter
+				+ histogram.getQuantile(0.9) + RunFreightAnalysisEventBased.delimiter
+				+ histogram.getQuantile(0.95) + RunFreightAnalysisEventBased.delimiter
+				+ histogram.getMax();
+	}
+
+	private static final class ShipmentRecord {
+		private final Id<Carrier> carrierId;
+		private final Id<CarrierShipment> shipmentId;
+		private final Id<Vehicle> vehicleId;
+		private double pickupArrival = Double.NaN;
+		private double pickupEnd = Double.NaN;
+		private double deliveryArrival = Double.NaN;
+		private double deliveryEnd = Double.NaN;
+
+		private ShipmentRecord(Id<Carrier> carrierId, Id<CarrierShipment> shipmentId, Id<Vehicle> vehicleId) {
+			this.carrierId = carrierId;
+			this.shipmentId = shipmentId;
+			this.vehicleId = vehicleId;
+		}
+	}
+
+	private static final class CarrierStats {
+		private long nuOfShipments = 0;
+		private long nuOfShipmentsOnTime = 0;
+		private final LogHistogram waitTime = new LogHistogram();
+		private final LogHistogram pickupLateness = new LogHistogram();
+		private final LogHistogram pickupEarliness = new LogHistogram();
+		private final LogHistogram deliveryLateness = new LogHistogram();
+		private final LogHistogram deliveryEarliness = new LogHistogram();
+		private final LogHistogram inVehicleTime = new LogHistogram();
+	}
+}
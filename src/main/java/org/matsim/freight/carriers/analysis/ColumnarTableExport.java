@@ -0,0 +1,291 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Exports the csv tables of the analysis into a typed, columnar format for the Python and R tooling.
+ * <p>
+ * The format is the numpy <code>.npz</code> archive: a zip file with one <code>.npy</code> array per column, in the
+ * order of the csv columns. A column is stored as 64 bit integers (<code>&lt;i8</code>) if all its values are
+ * integers, as 64 bit floats (<code>&lt;f8</code>) if all its values are numbers (missing values become NaN), and
+ * otherwise as fixed width unicode strings (<code>&lt;U</code>). All numbers are little endian binary, so there is no
+ * number formatting or locale involved; the csv values are exact, since Java writes doubles with round-trip precision.
+ * <p>
+ * Loading a column is one read into an array, without parsing:
+ * <code>pandas.DataFrame(dict(numpy.load("TimeDistance_perVehicle.npz")))</code>. Without compression, the columns
+ * are stored as they are; with compression, they are deflated (as by <code>numpy.savez_compressed</code>). See
+ * <code>src/main/python</code> and <code>src/main/R</code> for readers.
+ * <p>
+ * Key-value summaries (the tiles for simwrapper) are no tables and are not exported, see
+ * {@link FreightAnalysisModule#getTables(FreightAnalysisModule.Context)}.
+ */
+final class ColumnarTableExport {
+
+	private static final Logger log = LogManager.getLogger(ColumnarTableExport.class);
+
+	static final String FILE_EXTENSION = ".npz";
+	private static final String MISSING = "null";
+
+	private enum ColumnType {int64, float64, string}
+
+	private ColumnarTableExport() {
+	}
+
+	static String getColumnarFileName(String csvFileName) {
+		return csvFileName.substring(0, csvFileName.length() - RunFreightAnalysisEventBased.fileExtension.length()) + FILE_EXTENSION;
+	}
+
+	/**
+	 * Writes the csv table <code>csvFileName</code> to the npz file with the same name.
+	 * <p>
+	 * The table is streamed twice, so the memory does not depend on the number of rows: the first pass determines
+	 * the types (and string widths) of the columns, the second pass writes every column into a temporary npy file next
+	 * to the csv file. These are then copied into the archive.
+	 */
+	static void export(String csvFileName, boolean compress) throws IOException {
+		//1st pass: names and types of the columns
+		final List<String> columnNames = new ArrayList<>();
+		final List<ColumnStats> columns = new ArrayList<>();
+		long nuOfRows = 0;
+		try (BufferedReader reader = new BufferedReader(new FileReader(csvFileName))) {
+			String line = reader.readLine();
+			if (line == null) {
+				log.warn("{} is empty. Nothing to export.", csvFileName);
+				return;
+			}
+			for (String name : line.split(RunFreightAnalysisEventBased.delimiter, -1)) {
+				columnNames.add(name.trim());
+			}
+			// some headers end with a delimiter
+			while (!columnNames.isEmpty() && columnNames.get(columnNames.size() - 1).isEmpty()) {
+				columnNames.remove(columnNames.size() - 1);
+			}
+			for (int column = 0; column < columnNames.size(); column++) {
+				columns.add(new ColumnStats());
+			}
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					final String[] fields = line.split(RunFreightAnalysisEventBased.delimiter, -1);
+					for (int column = 0; column < columns.size(); column++) {
+						columns.get(column).add(column < fields.length ? fields[column] : MISSING);
+					}
+					nuOfRows++;
+				}
+			}
+		}
+
+		//2nd pass: the columns into temporary npy files
+		final Path directory = Path.of(csvFileName).toAbsolutePath().getParent();
+		final List<NpyColumnFile> columnFiles = new ArrayList<>();
+		try {
+			for (ColumnStats column : columns) {
+				columnFiles.add(new NpyColumnFile(Files.createTempFile(directory, "column", ".npy.tmp"), column, nuOfRows));
+			}
+			try (BufferedReader reader = new BufferedReader(new FileReader(csvFileName))) {
+				String line = reader.readLine();
+				while ((line = reader.readLine()) != null) {
+					if (!line.isEmpty()) {
+						final String[] fields = line.split(RunFreightAnalysisEventBased.delimiter, -1);
+						for (int column = 0; column < columnFiles.size(); column++) {
+							columnFiles.get(column).write(column < fields.length ? fields[column] : MISSING);
+						}
+					}
+				}
+			}
+			for (NpyColumnFile columnFile : columnFiles) {
+				columnFile.close();
+			}
+
+			final String fileName = getColumnarFileName(csvFileName);
+			try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+				for (int column = 0; column < columnNames.size(); column++) {
+					final String name = columnNames.get(column).isEmpty() ? "column" + column : columnNames.get(column).replace('/', '_');
+					writeEntry(zip, name + ".npy", columnFiles.get(column), compress);
+				}
+			}
+			log.info("Output written to " + fileName);
+		} finally {
+			for (NpyColumnFile columnFile : columnFiles) {
+				columnFile.close();
+				Files.deleteIfExists(columnFile.path);
+			}
+		}
+	}
+
+	private static boolean isMissing(String value) {
+		return value.isEmpty() || value.equals(MISSING);
+	}
+
+	/**
+	 * Type of a column, determined value by value: integers, if all values are integers; numbers, if all values are
+	 * numbers or missing; otherwise strings.
+	 */
+	private static final class ColumnStats {
+		private ColumnType type = ColumnType.int64;
+		private boolean allMissing = true;
+		private int width = 1;
+
+		private void add(String value) {
+			width = Math.max(width, value.codePointCount(0, value.length()));
+			if (type == ColumnType.string) {
+				return;
+			}
+			if (isMissing(value)) {
+				// there is no missing value for integers
+				type = type == ColumnType.int64 ? ColumnType.float64 : type;
+				return;
+			}
+			allMissing = false;
+			if (type == ColumnType.int64) {
+				try {
+					Long.parseLong(value);
+					return;
+				} catch (NumberFormatException e) {
+					type = ColumnType.float64;
+				}
+			}
+			try {
+				Double.parseDouble(value);
+			} catch (NumberFormatException e) {
+				type = ColumnType.string;
+			}
+		}
+
+		private ColumnType getType() {
+			return allMissing ? ColumnType.string : type;
+		}
+	}
+
+	/**
+	 * One dimensional array in the npy format, version 1.0, written value by value into a file. The size and the
+	 * checksum are counted along, as the stored zip entries need them in advance.
+	 */
+	private static final class NpyColumnFile {
+		private final Path path;
+		private final ColumnType type;
+		private final int width;
+		private final OutputStream out;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		private final CRC32 crc = new CRC32();
+		private long size = 0;
+		private boolean closed = false;
+
+		private NpyColumnFile(Path path, ColumnStats column, long nuOfRows) throws IOException {
+			this.path = path;
+			this.type = column.getType();
+			this.width = column.width;
+			this.out = Files.newOutputStream(path);
+
+			final String descr = switch (type) {
+				case int64 -> "<i8";
+				case float64 -> "<f8";
+				default -> "<U" + width;
+			};
+			String header = "{'descr': '" + descr + "', 'fortran_order': False, 'shape': (" + nuOfRows + ",), }";
+			// magic (6) + version (2) + header length (2) + header, padded with spaces and ending with a newline, is
+			// divisible by 64, so that the data is aligned
+			final int headerLength = (10 + header.length() + 1 + 63) / 64 * 64 - 10;
+			header = header + " ".repeat(headerLength - header.length() - 1) + "\n";
+			buffer.put((byte) 0x93).put("NUMPY".getBytes(StandardCharsets.US_ASCII));
+			buffer.put((byte) 1).put((byte) 0);
+			buffer.putShort((short) headerLength);
+			buffer.put(header.getBytes(StandardCharsets.US_ASCII));
+		}
+
+		private void write(String value) throws IOException {
+			switch (type) {
+				case int64 -> {
+					ensureRemaining(8);
+					buffer.putLong(Long.parseLong(value));
+				}
+				case float64 -> {
+					ensureRemaining(8);
+					buffer.putDouble(isMissing(value) ? Double.NaN : Double.parseDouble(value));
+				}
+				default -> {
+					final int[] codePoints = value.codePoints().toArray();
+					for (int i = 0; i < width; i++) {
+						ensureRemaining(4);
+						buffer.putInt(i < codePoints.length ? codePoints[i] : 0);
+					}
+				}
+			}
+		}
+
+		private void ensureRemaining(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			out.write(buffer.array(), 0, buffer.position());
+			crc.update(buffer.array(), 0, buffer.position());
+			size += buffer.position();
+			buffer.clear();
+		}
+
+		private void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try (out) {
+					flush();
+				}
+			}
+		}
+	}
+
+	private static void writeEntry(ZipOutputStream zip, String name, NpyColumnFile content, boolean compress) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		if (compress) {
+			entry.setMethod(ZipEntry.DEFLATED);
+		} else {
+			// stored entries need size and checksum in advance
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(content.size);
+			entry.setCompressedSize(content.size);
+			entry.setCrc(content.crc.getValue());
+		}
+		zip.putNextEntry(entry);
+		Files.copy(content.path, zip);
+		zip.closeEntry();
+	}
+}
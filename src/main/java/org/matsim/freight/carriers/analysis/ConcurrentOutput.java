@@ -0,0 +1,99 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes several output files concurrently. The writers only read the analysed data, so they can run side by side;
+ * the time for the output is then that of the largest file instead of the sum over all files.
+ * <p>
+ * All tasks are run to their end, also if one of them fails, so that every writer closes its file. The first failure is
+ * rethrown, the others are added to it as suppressed exceptions.
+ */
+final class ConcurrentOutput {
+
+	/**
+	 * Writes one or more output files.
+	 */
+	interface Task {
+		void write() throws IOException;
+	}
+
+	private ConcurrentOutput() {
+	}
+
+	static void run(List<Task> tasks) throws IOException {
+		if (tasks.size() == 1) {
+			tasks.get(0).write();
+			return;
+		}
+		final int numberOfThreads = Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads, runnable -> {
+			Thread thread = new Thread(runnable, "analysis output");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Task task : tasks) {
+				futures.add(executor.submit(() -> {
+					task.write();
+					return null;
+				}));
+			}
+			Throwable failure = null;
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					} else {
+						failure.addSuppressed(e.getCause());
+					}
+				}
+			}
+			if (failure instanceof IOException e) {
+				throw e;
+			} else if (failure instanceof RuntimeException e) {
+				throw e;
+			} else if (failure instanceof Error e) {
+				throw e;
+			} else if (failure != null) {
+				throw new IOException(failure);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing the output.");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
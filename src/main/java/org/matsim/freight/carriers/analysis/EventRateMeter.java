@@ -0,0 +1,69 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.events.handler.BasicEventHandler;
+
+/**
+ * Counts the events and reports the reading rate to an {@link AnalysisProgressListener}. The clock is only read every
+ * few thousand events, so the counting does not slow the reading down.
+ */
+final class EventRateMeter implements BasicEventHandler {
+
+	private static final long CHECK_EVERY = 1 << 12;
+	private static final long REPORT_INTERVAL_NANOS = 500_000_000L;
+
+	private final AnalysisProgressListener listener;
+	private long nuOfEvents = 0;
+	private double time = 0.;
+	private long lastReportNanos = System.nanoTime();
+	private long lastReportEvents = 0;
+
+	EventRateMeter(AnalysisProgressListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+		nuOfEvents++;
+		time = event.getTime();
+		if ((nuOfEvents & (CHECK_EVERY - 1)) == 0 && System.nanoTime() - lastReportNanos >= REPORT_INTERVAL_NANOS) {
+			report();
+		}
+	}
+
+	/**
+	 * Reports the final count.
+	 */
+	void finish() {
+		report();
+	}
+
+	private void report() {
+		final long now = System.nanoTime();
+		final double seconds = Math.max(1e-9, (now - lastReportNanos) / 1e9);
+		listener.events(nuOfEvents, (nuOfEvents - lastReportEvents) / seconds, time);
+		lastReportNanos = now;
+		lastReportEvents = nuOfEvents;
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.freight.carriers.Carrier;
+import org.matsim.freight.carriers.events.AbstractCarrierEvent;
+import org.matsim.freight.carriers.events.CarrierTourStartEvent;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A deterministic sample of the freight traffic for an approximate analysis of large events files.
+ * <p>
+ * Either vehicles or carriers (with all their vehicles) are sampled. Whether a vehicle or carrier is in the sample
+ * only depends on its id and the seed, so the same sample is drawn in every run and in every events file of the
+ * same scenario. The events of vehicles which are not in the sample are dropped before they are dispatched to the
+ * analyses (see {@link #createFilter(BasicEventHandler)}); the decision is cached per vehicle, so this costs one
+ * array lookup per event. Events without a vehicle are passed through.
+ * <p>
+ * The filter sits behind the events reader: all events are still parsed and created, so the sample does not save the
+ * reading time. It only saves the time and memory of the analyses themselves, i.e. of the handlers and of the data
+ * which they keep per vehicle.
+ * <p>
+ * The totals are estimated with the Horvitz-Thompson estimator: the sum over the sample divided by the sampling
+ * fraction. Since the vehicles (or carriers) are drawn independently, the variance of this estimate is
+ * (1-p)/p^2 times the sum of the squared values of the sampled units; the 95% confidence interval is +/- 1.96 standard
+ * deviations.
+ */
+public final class EventSample {
+
+	public enum Unit {vehicle, carrier}
+
+	/**
+	 * Estimate of a total, with the half width of its 95% confidence interval.
+	 */
+	record Estimate(double total, double halfWidth95) {
+	}
+
+	private static final byte UNKNOWN = 0;
+	private static final byte IN_SAMPLE = 1;
+	private static final byte NOT_IN_SAMPLE = 2;
+
+	private final Unit unit;
+	private final double fraction;
+	private final long seed;
+
+	// sample decision per vehicle id index
+	private byte[] vehicleDecisions = new byte[1024];
+	private final Map<Id<Vehicle>, Id<Carrier>> vehicle2Carrier = new HashMap<>();
+
+	/**
+	 * @param fraction share of the vehicles or carriers in the sample, in (0, 1]
+	 */
+	public EventSample(Unit unit, double fraction, long seed) {
+		if (!(fraction > 0. && fraction <= 1.)) {
+			throw new IllegalArgumentException("The sampling fraction must be in (0, 1], but is " + fraction);
+		}
+		this.unit = unit;
+		this.fraction = fraction;
+		this.seed = seed;
+	}
+
+	public Unit getUnit() {
+		return unit;
+	}
+
+	public double getFraction() {
+		return fraction;
+	}
+
+	@Override
+	public String toString() {
+		return unit + "=" + fraction + "_seed=" + seed;
+	}
+
+	/**
+	 * @return a handler which passes only the events of the sampled vehicles (and all events without vehicle) to the
+	 * delegate
+	 */
+	BasicEventHandler createFilter(BasicEventHandler delegate) {
+		return event -> {
+			if (isInSample(event)) {
+				delegate.handleEvent(event);
+			}
+		};
+	}
+
+	private boolean isInSample(Event event) {
+		// the most frequent events first
+		if (event instanceof LinkEnterEvent linkEnterEvent) {
+			return isInSample(linkEnterEvent.getVehicleId());
+		} else if (event instanceof LinkLeaveEvent linkLeaveEvent) {
+			return isInSample(linkLeaveEvent.getVehicleId());
+		} else if (event instanceof VehicleEntersTrafficEvent vehicleEntersTrafficEvent) {
+			return isInSample(vehicleEntersTrafficEvent.getVehicleId());
+		} else if (event instanceof VehicleLeavesTrafficEvent vehicleLeavesTrafficEvent) {
+			return isInSample(vehicleLeavesTrafficEvent.getVehicleId());
+		} else if (event instanceof AbstractCarrierEvent carrierEvent) {
+			if (unit == Unit.carrier && carrierEvent instanceof CarrierTourStartEvent) {
+				// the tour start comes before the vehicle is on the network; from now on, the vehicle belongs to the carrier
+				vehicle2Carrier.put(carrierEvent.getVehicleId(), carrierEvent.getCarrierId());
+				setDecision(carrierEvent.getVehicleId(), isInSample(carrierEvent.getCarrierId().toString()));
+			}
+			return isInSample(carrierEvent.getVehicleId());
+		}
+		return true;
+	}
+
+	private boolean isInSample(Id<Vehicle> vehicleId) {
+		final int index = vehicleId.index();
+		byte decision = index < vehicleDecisions.length ? vehicleDecisions[index] : UNKNOWN;
+		if (decision == UNKNOWN) {
+			// vehicles which are not (yet) known to belong to a carrier are sampled by their own id
+			return setDecision(vehicleId, isInSample(vehicleId.toString()));
+		}
+		return decision == IN_SAMPLE;
+	}
+
+	private boolean setDecision(Id<Vehicle> vehicleId, boolean inSample) {
+		final int index = vehicleId.index();
+		if (index >= vehicleDecisions.length) {
+			vehicleDecisions = Arrays.copyOf(vehicleDecisions, Math.max(index + 1, 2 * vehicleDecisions.length));
+		}
+		vehicleDecisions[index] = inSample ? IN_SAMPLE : NOT_IN_SAMPLE;
+		return inSample;
+	}
+
+	/**
+	 * String.hashCode is specified, so the sample does not depend on the JVM. It is mixed with the seed (SplitMix64
+	 * finalizer) and mapped to [0, 1).
+	 */
+	private boolean isInSample(String id) {
+		long z = seed + 0x9E3779B97F4A7C15L * (id.hashCode() + 1L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z = z ^ (z >>> 31);
+		return (z >>> 11) * 0x1.0p-53 < fraction;
+	}
+
+	/**
+	 * @return an estimator of a total over all vehicles (including the ones not in the sample)
+	 */
+	TotalEstimator createTotalEstimator() {
+		return new TotalEstimator();
+	}
+
+	/**
+	 * Gets the value of every sampled vehicle once, e.g. while iterating over the vehicles.
+	 */
+	final class TotalEstimator {
+		// with carriers as sampling unit, the values of the vehicles of a carrier are not independent
+		private final Map<Id<Carrier>, Double> valuePerCarrier = new HashMap<>();
+		private double sum = 0.;
+		private double sumOfSquares = 0.;
+
+		private TotalEstimator() {
+		}
+
+		void add(Id<Vehicle> vehicleId, double value) {
+			Id<Carrier> carrierId = unit == Unit.carrier ? vehicle2Carrier.get(vehicleId) : null;
+			if (carrierId != null) {
+				valuePerCarrier.merge(carrierId, value, Double::sum);
+			} else {
+				sum += value;
+				sumOfSquares += value * value;
+			}
+		}
+
+		Estimate estimate() {
+			double sum = this.sum;
+			double sumOfSquares = this.sumOfSquares;
+			for (double value : valuePerCarrier.values()) {
+				sum += value;
+				sumOfSquares += value * value;
+			}
+			final double variance = (1. - fraction) / (fraction * fraction) * sumOfSquares;
+			return new Estimate(sum / fraction, 1.96 * Math.sqrt(variance));
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.matsim.core.config.groups.ControllerConfigGroup;
+import org.matsim.core.events.MatsimEventsReader;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Path;
+
+/**
+ * Where the events for the analysis come from: a finished events file, or a stream that a running simulation writes
+ * to (a named pipe or a TCP socket), e.g. with an {@link org.matsim.core.events.algorithms.EventWriterXML} on the
+ * output stream of the socket. See {@link EventsReplayProducer} for a stand-in of such a simulation.
+ */
+public interface EventSource {
+
+	/**
+	 * Reads all events of the source with the reader; returns when the source is exhausted (or closed).
+	 */
+	void readEvents(MatsimEventsReader reader) throws IOException;
+
+	/**
+	 * @return true if this is a finished file, which may be analysed incrementally (see {@link AnalysisManifest}).
+	 */
+	default boolean isFile() {
+		return getFileName() != null;
+	}
+
+	/**
+	 * @return the name of the file, if this is a finished file; otherwise null
+	 */
+	default String getFileName() {
+		return null;
+	}
+
+	/**
+	 * An events file in any format of the {@link MatsimEventsReader}. A block gzip file (see
+	 * {@link org.matsim.freight.carriers.BlockGzipOutputStream}) is inflated in parallel.
+	 */
+	static EventSource file(String eventsFile) {
+		return new EventSource() {
+			@Override
+			public void readEvents(MatsimEventsReader reader) throws IOException {
+				if (!ParallelGzipInputStream.isBlockGzip(eventsFile)) {
+					reader.readFile(eventsFile);
+					return;
+				}
+				// the members of a block gzip file are inflated in parallel
+				try (InputStream in = new ParallelGzipInputStream(Path.of(eventsFile), Runtime.getRuntime().availableProcessors())) {
+					reader.readStream(in, ControllerConfigGroup.EventsFileFormat.xml);
+				}
+			}
+
+			@Override
+			public String getFileName() {
+				return eventsFile;
+			}
+
+			@Override
+			public String toString() {
+				return "file " + eventsFile;
+			}
+		};
+	}
+
+	/**
+	 * Events in the (uncompressed) xml format from a named pipe.
+	 */
+	static EventSource pipe(String pipe) {
+		return new EventSource() {
+			@Override
+			public void readEvents(MatsimEventsReader reader) throws IOException {
+				try (InputStream in = new FileInputStream(pipe)) {
+					reader.readStream(in, ControllerConfigGroup.EventsFileFormat.xml);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return "pipe " + pipe;
+			}
+		};
+	}
+
+	/**
+	 * Events in the (uncompressed) xml format from a TCP socket.
+	 */
+	static EventSource socket(String host, int port) {
+		return new EventSource() {
+			@Override
+			public void readEvents(MatsimEventsReader reader) throws IOException {
+				try (Socket socket = new Socket(host, port); InputStream in = socket.getInputStream()) {
+					reader.readStream(in, ControllerConfigGroup.EventsFileFormat.xml);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return "socket " + host + ":" + port;
+			}
+		};
+	}
+}
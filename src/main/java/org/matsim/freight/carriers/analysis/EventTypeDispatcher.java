@@ -0,0 +1,103 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.core.events.handler.BasicEventHandler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Dispatches the events by their type to the registered handlers.
+ * <p>
+ * Handlers are registered per event class (including super classes/interfaces). The handlers for a concrete event
+ * class are looked up once and then cached, so the dispatch of an event is one map lookup instead of a chain of
+ * <code>instanceof</code> checks, no matter how many analyses listen to the events.
+ */
+public final class EventTypeDispatcher implements BasicEventHandler {
+
+	private record Registration(Class<? extends Event> eventClass, Consumer<Event> handler) {
+	}
+
+	@SuppressWarnings("unchecked")
+	private static final Consumer<Event>[] NO_HANDLERS = new Consumer[0];
+
+	private final List<Registration> registrations = new ArrayList<>();
+	private final Map<Class<?>, Consumer<Event>[]> eventClass2Handlers = new HashMap<>();
+
+	// set if the handlers are not thread safe; the first thread which handles an event
+	private boolean singleThread = false;
+	private final AtomicReference<Thread> eventThread = new AtomicReference<>();
+
+	/**
+	 * @param eventClass the handler gets all events of this class and its subclasses
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Event> void addHandler(Class<T> eventClass, Consumer<? super T> handler) {
+		// only events of eventClass are passed to the handler, see findHandlers
+		registrations.add(new Registration(eventClass, (Consumer<Event>) (Consumer<?>) handler));
+		eventClass2Handlers.clear();
+	}
+
+	/**
+	 * Lets the dispatcher fail, if the events are handled on more than one thread; for handlers which are not thread
+	 * safe. Call before the events are handled.
+	 */
+	public void requireSingleThread() {
+		this.singleThread = true;
+	}
+
+	@Override
+	public void handleEvent(Event event) {
+		if (singleThread) {
+			final Thread thread = Thread.currentThread();
+			if (!eventThread.compareAndSet(null, thread) && eventThread.get() != thread) {
+				throw new IllegalStateException("The events are handled on several threads (" + eventThread.get().getName() + ", "
+						+ thread.getName() + "), but not all handlers support this.");
+			}
+		}
+		Consumer<Event>[] handlers = eventClass2Handlers.get(event.getClass());
+		if (handlers == null) {
+			handlers = findHandlers(event.getClass());
+			eventClass2Handlers.put(event.getClass(), handlers);
+		}
+		for (Consumer<Event> handler : handlers) {
+			handler.accept(event);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Consumer<Event>[] findHandlers(Class<?> eventClass) {
+		List<Consumer<Event>> handlers = new ArrayList<>();
+		for (Registration registration : registrations) {
+			if (registration.eventClass().isAssignableFrom(eventClass)) {
+				handlers.add(registration.handler());
+			}
+		}
+		return handlers.isEmpty() ? NO_HANDLERS : handlers.toArray(new Consumer[0]);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.freight.carriers.events.CarrierEventsReaders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Stand-in for a running simulation, which writes its events to a socket: replays an events file to the first client
+ * that connects. Used for testing the streaming analysis (see {@link EventSource#socket(String, int)}).
+ * <p>
+ * A simulation does the same by adding an {@link EventWriterXML} on the output stream of the socket as events handler.
+ */
+public final class EventsReplayProducer implements Runnable {
+
+	private static final Logger log = LogManager.getLogger(EventsReplayProducer.class);
+
+	private final String eventsFile;
+	private final ServerSocket serverSocket;
+
+	/**
+	 * @param serverSocket e.g. <code>new ServerSocket(0)</code> for any free port; it is closed after the replay.
+	 */
+	public EventsReplayProducer(String eventsFile, ServerSocket serverSocket) {
+		this.eventsFile = eventsFile;
+		this.serverSocket = serverSocket;
+	}
+
+	/**
+	 * Starts the replay in a (daemon) thread.
+	 */
+	public Thread start() {
+		Thread thread = new Thread(this, "EventsReplayProducer");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	@Override
+	public void run() {
+		try (serverSocket; Socket socket = serverSocket.accept(); OutputStream out = socket.getOutputStream()) {
+			log.info("Replaying {} to {}", eventsFile, socket.getRemoteSocketAddress());
+			EventWriterXML writer = new EventWriterXML(out);
+			EventsManager eventsManager = EventsUtils.createEventsManager();
+			eventsManager.addHandler(writer);
+			eventsManager.initProcessing();
+			CarrierEventsReaders.createEventsReader(eventsManager).readFile(eventsFile);
+			eventsManager.finishProcessing();
+			writer.closeFile();
+		} catch (IOException e) {
+			log.error("Replay of " + eventsFile + " failed.", e);
+		}
+	}
+}
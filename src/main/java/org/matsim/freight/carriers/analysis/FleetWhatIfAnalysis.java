@@ -0,0 +1,384 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Evaluates what-if variants of the vehicle types, e.g. "vehicle type X costs 20% more per km" or "the capacity of
+ * vehicle type Y is 30 instead of 20", without running the analysis again.
+ * <p>
+ * The costs of a vehicle are linear in its tour duration and distance, so the number of vehicles and the sums of tour
+ * duration and distance per vehicle type are all that is needed for the costs; for the utilisation, the maximum
+ * loads of the vehicles per type are kept (sorted). These aggregates are read once from the tables per vehicle of an
+ * analysis run (<code>TimeDistance_perVehicle</code> and, if there, <code>Load_perVehicle</code>).
+ * <p>
+ * If the analysis run was restricted to a sample of the vehicles or carriers (see
+ * {@link RunFreightAnalysisEventBased#setSample}), the tables only contain the sampled vehicles. The sampling fraction
+ * is then read from <code>General_summary</code>, and the numbers of vehicles and the costs are estimated for the
+ * whole fleet by dividing the sums over the sample by the fraction (Horvitz-Thompson), as in the general summary.
+ * The utilisation is an average over the vehicles and thus taken from the sample as it is.
+ * <p>
+ * The parameters of all variants are stored in one array per parameter, with the variants of one vehicle type side
+ * by side, so that all variants are evaluated in one tight loop per vehicle type. Thousands of variants take a few
+ * milliseconds.
+ * <p>
+ * The variants are read from a csv file with the columns
+ * <code>variant;vehicleTypeId;fixedCostsFactor;costsPerSecondFactor;costsPerMeterFactor;capacity</code>. Several
+ * lines with the same variant name are combined; the vehicle type <code>*</code> stands for all types; empty cells
+ * leave the parameter unchanged. The unchanged fleet is always evaluated as variant <code>base</code>.
+ */
+public final class FleetWhatIfAnalysis {
+
+	private static final Logger log = LogManager.getLogger(FleetWhatIfAnalysis.class);
+
+	static final String BASE_VARIANT = "base";
+	private static final String ALL_VEHICLE_TYPES = "*";
+
+	/**
+	 * Change of the parameters of one or all vehicle types.
+	 *
+	 * @param vehicleTypeId <code>*</code> for all vehicle types
+	 * @param capacity      NaN if unchanged
+	 */
+	public record Change(String vehicleTypeId, double fixedCostsFactor, double costsPerSecondFactor, double costsPerMeterFactor, double capacity) {
+		boolean appliesTo(String typeId) {
+			return vehicleTypeId.equals(ALL_VEHICLE_TYPES) || vehicleTypeId.equals(typeId);
+		}
+	}
+
+	public record Variant(String name, List<Change> changes) {
+	}
+
+	/**
+	 * Compact aggregates of the vehicles of one type.
+	 */
+	private static final class VehicleTypeAggregate {
+		private long nuOfVehicles = 0;
+		private double sumOfTourDurations = 0.;
+		private double sumOfDistances = 0.;
+		private double fixedCosts = 0.;
+		private double costsPerSecond = 0.;
+		private double costsPerMeter = 0.;
+
+		private double capacity = Double.NaN;
+		private int[] maxLoads = new int[0];
+		private int nuOfLoadedVehicles = 0;
+		private double sumOfMaxLoads = 0.;
+
+		private void addMaxLoad(int maxLoad) {
+			if (nuOfLoadedVehicles == maxLoads.length) {
+				maxLoads = Arrays.copyOf(maxLoads, Math.max(8, 2 * nuOfLoadedVehicles));
+			}
+			maxLoads[nuOfLoadedVehicles++] = maxLoad;
+			sumOfMaxLoads += maxLoad;
+		}
+
+		/**
+		 * Number of vehicles whose maximum load exceeds the capacity; the max loads have to be sorted.
+		 */
+		private int countAbove(double capacity) {
+			int low = 0;
+			int high = nuOfLoadedVehicles;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (maxLoads[middle] <= capacity) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return nuOfLoadedVehicles - low;
+		}
+	}
+
+	private final String[] vehicleTypeIds;
+	private final VehicleTypeAggregate[] aggregates;
+	// share of the vehicles or carriers in the analysed sample; 1 if all were analysed
+	private final double samplingFraction;
+
+	private FleetWhatIfAnalysis(Map<String, VehicleTypeAggregate> vehicleTypeId2Aggregate, double samplingFraction) {
+		this.samplingFraction = samplingFraction;
+		this.vehicleTypeIds = vehicleTypeId2Aggregate.keySet().toArray(new String[0]);
+		this.aggregates = vehicleTypeId2Aggregate.values().toArray(new VehicleTypeAggregate[0]);
+		for (VehicleTypeAggregate aggregate : aggregates) {
+			aggregate.maxLoads = Arrays.copyOf(aggregate.maxLoads, aggregate.nuOfLoadedVehicles);
+			Arrays.sort(aggregate.maxLoads);
+		}
+	}
+
+	/**
+	 * Reads the aggregates per vehicle type from the tables of an analysis run, and the sampling fraction if the run
+	 * analysed a sample.
+	 */
+	public static FleetWhatIfAnalysis readAnalysisOutput(String analysisOutputDirectory) throws IOException {
+		final String directory = analysisOutputDirectory.endsWith("/") ? analysisOutputDirectory : analysisOutputDirectory + "/";
+		final Map<String, VehicleTypeAggregate> vehicleTypeId2Aggregate = new TreeMap<>();
+
+		readTable(directory + "TimeDistance_perVehicle" + RunFreightAnalysisEventBased.fileExtension, (columns, fields) -> {
+			final VehicleTypeAggregate aggregate = vehicleTypeId2Aggregate.computeIfAbsent(fields[columns.get("vehicleTypeId")], k -> new VehicleTypeAggregate());
+			aggregate.nuOfVehicles++;
+			aggregate.sumOfTourDurations += Double.parseDouble(fields[columns.get("tourDuration[s]")]);
+			aggregate.sumOfDistances += Double.parseDouble(fields[columns.get("travelDistance[m]")]);
+			aggregate.fixedCosts = Double.parseDouble(fields[columns.get("fixedCosts[EUR]")]);
+			aggregate.costsPerSecond = Double.parseDouble(fields[columns.get("costPerSecond[EUR/s]")]);
+			aggregate.costsPerMeter = Double.parseDouble(fields[columns.get("costPerMeter[EUR/m]")]);
+		});
+
+		final String loadFileName = directory + "Load_perVehicle" + RunFreightAnalysisEventBased.fileExtension;
+		if (new File(loadFileName).exists()) {
+			readTable(loadFileName, (columns, fields) -> {
+				final VehicleTypeAggregate aggregate = vehicleTypeId2Aggregate.computeIfAbsent(fields[columns.get("vehicleTypeId")], k -> new VehicleTypeAggregate());
+				aggregate.capacity = Double.parseDouble(fields[columns.get("capacity")]);
+				aggregate.addMaxLoad(Integer.parseInt(fields[columns.get("maxLoad")]));
+			});
+		} else {
+			log.warn("{} not found. The utilisation is not evaluated.", loadFileName);
+		}
+		log.info("Read the aggregates of {} vehicle types.", vehicleTypeId2Aggregate.size());
+
+		final double samplingFraction = readSamplingFraction(directory + "General_summary" + RunFreightAnalysisEventBased.fileExtension);
+		if (samplingFraction < 1.) {
+			log.info("The analysis output is a sample of {} %. The vehicles and costs are estimated for the whole fleet.", 100 * samplingFraction);
+		}
+		return new FleetWhatIfAnalysis(vehicleTypeId2Aggregate, samplingFraction);
+	}
+
+	/**
+	 * The sampling fraction from the first line of the general summary, e.g. <code>Estimated from a sample of;10.0 %
+	 * of the vehicles;</code>. 1 if there is no such line.
+	 */
+	private static double readSamplingFraction(String generalSummaryFileName) throws IOException {
+		if (!new File(generalSummaryFileName).exists()) {
+			log.warn("{} not found. The analysis output is assumed to contain all vehicles.", generalSummaryFileName);
+			return 1.;
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(generalSummaryFileName))) {
+			final String line = reader.readLine();
+			if (line == null || !line.startsWith(FreightTimeAndDistanceAnalysisEventsHandler.SAMPLE_SUMMARY_LINE)) {
+				return 1.;
+			}
+			final String percentage = line.split(RunFreightAnalysisEventBased.delimiter, -1)[1];
+			return Double.parseDouble(percentage.substring(0, percentage.indexOf('%')).trim()) / 100.;
+		}
+	}
+
+	/**
+	 * Reads the variants from a csv file; see the class comment for the format.
+	 */
+	public static List<Variant> readVariants(String fileName) throws IOException {
+		final Map<String, List<Change>> variant2Changes = new LinkedHashMap<>();
+		readTable(fileName, (columns, fields) -> variant2Changes.computeIfAbsent(fields[columns.get("variant")], k -> new ArrayList<>()).add(new Change(
+				getOrDefault(fields, columns, "vehicleTypeId", ALL_VEHICLE_TYPES),
+				Double.parseDouble(getOrDefault(fields, columns, "fixedCostsFactor", "1")),
+				Double.parseDouble(getOrDefault(fields, columns, "costsPerSecondFactor", "1")),
+				Double.parseDouble(getOrDefault(fields, columns, "costsPerMeterFactor", "1")),
+				Double.parseDouble(getOrDefault(fields, columns, "capacity", "NaN")))));
+		List<Variant> variants = new ArrayList<>();
+		variant2Changes.forEach((name, changes) -> variants.add(new Variant(name, changes)));
+		log.info("Read {} variants from {}", variants.size(), fileName);
+		return variants;
+	}
+
+	/**
+	 * Evaluates the variants and writes <code>WhatIf_perVehicleType</code> and <code>WhatIf_summary</code>.
+	 */
+	public void writeWhatIfAnalysis(String analysisOutputDirectory, List<Variant> variants) throws IOException {
+		final String directory = analysisOutputDirectory.endsWith("/") ? analysisOutputDirectory : analysisOutputDirectory + "/";
+		final List<Variant> allVariants = new ArrayList<>();
+		allVariants.add(new Variant(BASE_VARIANT, List.of()));
+		allVariants.addAll(variants);
+
+		final long start = System.nanoTime();
+		final Result result = evaluate(allVariants);
+		log.info("Evaluated {} variants of {} vehicle types in {} ms.", allVariants.size(), vehicleTypeIds.length,
+				Math.round((System.nanoTime() - start) / 1e6));
+
+		final int nuOfVariants = allVariants.size();
+		String fileName = directory + "WhatIf_perVehicleType" + RunFreightAnalysisEventBased.fileExtension;
+		try (BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName))) {
+			bw1.write("variant" + RunFreightAnalysisEventBased.delimiter
+					+ "vehicleTypeId" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfVehicles" + RunFreightAnalysisEventBased.delimiter
+					+ "fixedCosts[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "varCostsTime[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "varCostsDist[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "totalCosts[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "capacity" + RunFreightAnalysisEventBased.delimiter
+					+ "usedCapacity[%]" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfVehiclesOverCapacity");
+			bw1.newLine();
+			for (int v = 0; v < nuOfVariants; v++) {
+				for (int t = 0; t < vehicleTypeIds.length; t++) {
+					final int i = t * nuOfVariants + v;
+					bw1.write(allVariants.get(v).name());
+					bw1.write(RunFreightAnalysisEventBased.delimiter + vehicleTypeIds[t]);
+					bw1.write(RunFreightAnalysisEventBased.delimiter + Math.round(aggregates[t].nuOfVehicles / samplingFraction));
+					bw1.write(RunFreightAnalysisEventBased.delimiter + result.fixedCosts[i]);
+					bw1.write(RunFreightAnalysisEventBased.delimiter + result.timeCosts[i]);
+					bw1.write(RunFreightAnalysisEventBased.delimiter + result.distanceCosts[i]);
+					bw1.write(RunFreightAnalysisEventBased.delimiter + (result.fixedCosts[i] + result.timeCosts[i] + result.distanceCosts[i]));
+					bw1.write(RunFreightAnalysisEventBased.delimiter + result.capacities[i]);
+					bw1.write(RunFreightAnalysisEventBased.delimiter + result.usedCapacities[i]);
+					bw1.write(RunFreightAnalysisEventBased.delimiter + result.nuOfVehiclesOverCapacity[i]);
+					bw1.newLine();
+				}
+			}
+		}
+		log.info("Output written to " + fileName);
+
+		fileName = directory + "WhatIf_summary" + RunFreightAnalysisEventBased.fileExtension;
+		try (BufferedWriter bw2 = new BufferedWriter(new FileWriter(fileName))) {
+			bw2.write("variant" + RunFreightAnalysisEventBased.delimiter
+					+ "totalCosts[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "deltaToBase[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "deltaToBase[%]" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfVehiclesOverCapacity");
+			bw2.newLine();
+			final double baseCosts = result.totalCosts[0];
+			for (int v = 0; v < nuOfVariants; v++) {
+				bw2.write(allVariants.get(v).name());
+				bw2.write(RunFreightAnalysisEventBased.delimiter + result.totalCosts[v]);
+				bw2.write(RunFreightAnalysisEventBased.delimiter + (result.totalCosts[v] - baseCosts));
+				bw2.write(RunFreightAnalysisEventBased.delimiter + (baseCosts == 0. ? 0. : Math.round(10000. * (result.totalCosts[v] - baseCosts) / baseCosts) / 100.));
+				bw2.write(RunFreightAnalysisEventBased.delimiter + result.totalNuOfVehiclesOverCapacity[v]);
+				bw2.newLine();
+			}
+		}
+		log.info("Output written to " + fileName);
+	}
+
+	/**
+	 * The results per vehicle type and variant, at index <code>vehicleType * nuOfVariants + variant</code>, and the
+	 * totals per variant.
+	 */
+	private record Result(double[] fixedCosts, double[] timeCosts, double[] distanceCosts, double[] capacities,
+						  double[] usedCapacities, int[] nuOfVehiclesOverCapacity, double[] totalCosts, int[] totalNuOfVehiclesOverCapacity) {
+	}
+
+	private Result evaluate(List<Variant> variants) {
+		final int nuOfVariants = variants.size();
+		final int size = vehicleTypeIds.length * nuOfVariants;
+
+		//The parameters of all variants, the variants of one vehicle type side by side
+		final double[] fixedCosts = new double[size];
+		final double[] costsPerSecond = new double[size];
+		final double[] costsPerMeter = new double[size];
+		final double[] capacities = new double[size];
+		for (int t = 0; t < vehicleTypeIds.length; t++) {
+			final VehicleTypeAggregate aggregate = aggregates[t];
+			for (int v = 0; v < nuOfVariants; v++) {
+				final int i = t * nuOfVariants + v;
+				fixedCosts[i] = aggregate.fixedCosts;
+				costsPerSecond[i] = aggregate.costsPerSecond;
+				costsPerMeter[i] = aggregate.costsPerMeter;
+				capacities[i] = aggregate.capacity;
+				for (Change change : variants.get(v).changes()) {
+					if (change.appliesTo(vehicleTypeIds[t])) {
+						fixedCosts[i] *= change.fixedCostsFactor();
+						costsPerSecond[i] *= change.costsPerSecondFactor();
+						costsPerMeter[i] *= change.costsPerMeterFactor();
+						if (!Double.isNaN(change.capacity())) {
+							capacities[i] = change.capacity();
+						}
+					}
+				}
+			}
+		}
+
+		final double[] fixedCostsResult = new double[size];
+		final double[] timeCosts = new double[size];
+		final double[] distanceCosts = new double[size];
+		final double[] usedCapacities = new double[size];
+		final int[] nuOfVehiclesOverCapacity = new int[size];
+		final double[] totalCosts = new double[nuOfVariants];
+		final int[] totalNuOfVehiclesOverCapacity = new int[nuOfVariants];
+		for (int t = 0; t < vehicleTypeIds.length; t++) {
+			final VehicleTypeAggregate aggregate = aggregates[t];
+			//Estimates for the whole fleet
+			final double nuOfVehicles = aggregate.nuOfVehicles / samplingFraction;
+			final double sumOfTourDurations = aggregate.sumOfTourDurations / samplingFraction;
+			final double sumOfDistances = aggregate.sumOfDistances / samplingFraction;
+			final double averageMaxLoad = aggregate.nuOfLoadedVehicles == 0 ? 0. : aggregate.sumOfMaxLoads / aggregate.nuOfLoadedVehicles;
+			final int offset = t * nuOfVariants;
+			//The same arithmetic for all variants, on consecutive array elements
+			for (int v = 0; v < nuOfVariants; v++) {
+				final int i = offset + v;
+				fixedCostsResult[i] = nuOfVehicles * fixedCosts[i];
+				timeCosts[i] = sumOfTourDurations * costsPerSecond[i];
+				distanceCosts[i] = sumOfDistances * costsPerMeter[i];
+				usedCapacities[i] = Math.round(100. * 100. * averageMaxLoad / capacities[i]) / 100.;
+				totalCosts[v] += fixedCostsResult[i] + timeCosts[i] + distanceCosts[i];
+			}
+			if (aggregate.nuOfLoadedVehicles > 0) {
+				for (int v = 0; v < nuOfVariants; v++) {
+					final int i = offset + v;
+					nuOfVehiclesOverCapacity[i] = (int) Math.round(aggregate.countAbove(capacities[i]) / samplingFraction);
+					totalNuOfVehiclesOverCapacity[v] += nuOfVehiclesOverCapacity[i];
+				}
+			}
+		}
+		return new Result(fixedCostsResult, timeCosts, distanceCosts, capacities, usedCapacities, nuOfVehiclesOverCapacity, totalCosts, totalNuOfVehiclesOverCapacity);
+	}
+
+	private interface RowConsumer {
+		void accept(Map<String, Integer> columns, String[] fields);
+	}
+
+	private static void readTable(String fileName, RowConsumer consumer) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+			String line = reader.readLine();
+			if (line == null) {
+				return;
+			}
+			final Map<String, Integer> columns = new LinkedHashMap<>();
+			final String[] names = line.split(RunFreightAnalysisEventBased.delimiter, -1);
+			for (int i = 0; i < names.length; i++) {
+				columns.put(names[i].trim(), i);
+			}
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					consumer.accept(columns, line.split(RunFreightAnalysisEventBased.delimiter, -1));
+				}
+			}
+		}
+	}
+
+	private static String getOrDefault(String[] fields, Map<String, Integer> columns, String column, String defaultValue) {
+		final Integer i = columns.get(column);
+		return i == null || i >= fields.length || fields[i].isBlank() ? defaultValue : fields[i].trim();
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.freight.carriers.Carriers;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An event based analysis, which is run by {@link RunFreightAnalysisEventBased}.
+ * <p>
+ * All modules share one pass over the events: each module registers handlers for the event types it is interested
+ * in at the {@link EventTypeDispatcher}; after the events are read, it writes its tables.
+ * <p>
+ * Modules are found with the {@link java.util.ServiceLoader}: add the class name to
+ * <code>META-INF/services/org.matsim.freight.carriers.analysis.FreightAnalysisModule</code>. A new KPI thus does not
+ * need any change in {@link RunFreightAnalysisEventBased}. Settings which only concern one module are passed to it as
+ * options, see {@link #configure(Map)}.
+ * <p>
+ * The handlers are called from one thread, in the order of the events; the dispatcher fails when the events are
+ * handled on more than one thread (see {@link EventTypeDispatcher#requireSingleThread()}).
+ */
+public interface FreightAnalysisModule {
+
+	/**
+	 * Settings and data of one analysis run, which are the same for all modules.
+	 *
+	 * @param sample null, if all events are analysed; otherwise only the events of the sampled vehicles are
+	 *               dispatched, and the module should estimate its totals with the sample.
+	 */
+	record Context(Scenario scenario, Carriers carriers, String analysisOutputDirectory, EventSample sample) {
+	}
+
+	/**
+	 * Short, unique name, e.g. used for logging and for the analysis manifest.
+	 */
+	String getName();
+
+	/**
+	 * Called once after the module is loaded and before any other method except {@link #getName()}, with the options
+	 * which were set for this module (see {@link FreightAnalysisModules#load(Map)}). By default, a module has no
+	 * options.
+	 *
+	 * @throws IllegalArgumentException if an option is unknown or its value is invalid
+	 */
+	default void configure(Map<String, String> options) {
+		if (!options.isEmpty()) {
+			throw new IllegalArgumentException("The analysis module " + getName() + " has no options, but got " + options.keySet());
+		}
+	}
+
+	/**
+	 * Names of the files this module writes into the analysis output directory. This is called before the scenario is
+	 * loaded, i.e. only the settings of the context are set; scenario and carriers are null.
+	 */
+	List<String> getOutputFiles(Context context);
+
+	/**
+	 * The output files which are tables with a header line, i.e. which can be exported into a columnar format (see
+	 * {@link ColumnarTableExport}). By default, all output files.
+	 */
+	default List<String> getTables(Context context) {
+		return getOutputFiles(context);
+	}
+
+	/**
+	 * Called before the events are read.
+	 */
+	void registerEventHandlers(Context context, EventTypeDispatcher dispatcher);
+
+	/**
+	 * Called after all events are read. The modules write their output concurrently, so this must not change data
+	 * which is shared with other modules.
+	 */
+	void writeOutput(Context context) throws IOException;
+
+	/**
+	 * Called at the end of the analysis, also if it failed, to release files and other resources of the module.
+	 */
+	default void close() throws IOException {
+	}
+
+}
@@ -0,0 +1,291 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * Registry of the {@link FreightAnalysisModule}s and the built-in modules.
+ */
+public final class FreightAnalysisModules {
+
+	private static final Logger log = LogManager.getLogger(FreightAnalysisModules.class);
+
+	private FreightAnalysisModules() {
+	}
+
+	/**
+	 * Option of {@link TimeAndDistance}: if true, the traffic volumes per link, vehicle type and hour are written
+	 * additionally. Default is false.
+	 */
+	public static final String LINK_VOLUMES = "linkVolumes";
+	/**
+	 * Option of {@link TimeAndDistance} and {@link Load}: the per-vehicle data is spilled to disk, if more vehicles are
+	 * held in memory (see {@link SpillingVehicleMap}). Default is unbounded.
+	 */
+	public static final String MAX_VEHICLES_IN_MEMORY = "maxVehiclesInMemory";
+
+	/**
+	 * @return new instances of all registered modules, in the order of the service files.
+	 */
+	public static List<FreightAnalysisModule> load() {
+		return load(Map.of());
+	}
+
+	/**
+	 * @param optionsPerModule the options per module name, which are passed to {@link FreightAnalysisModule#configure(Map)}
+	 * @return new, configured instances of all registered modules, in the order of the service files.
+	 * @throws IllegalArgumentException if there are options for a module which is not registered
+	 */
+	public static List<FreightAnalysisModule> load(Map<String, Map<String, String>> optionsPerModule) {
+		List<FreightAnalysisModule> modules = new ArrayList<>();
+		Set<String> unusedOptions = new HashSet<>(optionsPerModule.keySet());
+		for (FreightAnalysisModule module : ServiceLoader.load(FreightAnalysisModule.class)) {
+			module.configure(optionsPerModule.getOrDefault(module.getName(), Map.of()));
+			unusedOptions.remove(module.getName());
+			modules.add(module);
+		}
+		if (!unusedOptions.isEmpty()) {
+			throw new IllegalArgumentException("There are options for analysis modules which are not registered: " + unusedOptions);
+		}
+		log.info("Registered analysis modules: {}", modules.stream().map(FreightAnalysisModule::getName).toList());
+		return modules;
+	}
+
+	/**
+	 * Time, distance and costs per vehicle, vehicle type and carrier, general summary and (optional) link volumes.
+	 */
+	public static final class TimeAndDistance implements FreightAnalysisModule {
+		private boolean writeLinkVolumes = false;
+		private int maxVehiclesInMemory = Integer.MAX_VALUE;
+		private FreightTimeAndDistanceAnalysisEventsHandler handler;
+
+		@Override
+		public String getName() {
+			return "timeAndDistance";
+		}
+
+		@Override
+		public void configure(Map<String, String> options) {
+			checkOptions(this, options, Set.of(LINK_VOLUMES, MAX_VEHICLES_IN_MEMORY));
+			writeLinkVolumes = Boolean.parseBoolean(options.getOrDefault(LINK_VOLUMES, "false"));
+			maxVehiclesInMemory = getMaxVehiclesInMemory(options);
+		}
+
+		@Override
+		public List<String> getOutputFiles(Context context) {
+			List<String> outputFiles = new ArrayList<>(List.of(
+					"TimeDistance_perVehicle" + RunFreightAnalysisEventBased.fileExtension,
+					"TimeDistance_perVehicleType" + RunFreightAnalysisEventBased.fileExtension,
+					"General_summary" + RunFreightAnalysisEventBased.fileExtension,
+					"Carrier_summary" + RunFreightAnalysisEventBased.fileExtension));
+			if (writeLinkVolumes) {
+				outputFiles.add("Traffic_perLinkVehicleTypeAndHour" + RunFreightAnalysisEventBased.fileExtension);
+				outputFiles.add("Traffic_perLink" + RunFreightAnalysisEventBased.fileExtension);
+			}
+			return outputFiles;
+		}
+
+		@Override
+		public List<String> getTables(Context context) {
+			// the general summary consists of key-value pairs
+			return getOutputFiles(context).stream().filter(fileName -> !fileName.startsWith("General_summary")).toList();
+		}
+
+		@Override
+		public void registerEventHandlers(Context context, EventTypeDispatcher dispatcher) {
+			handler = new FreightTimeAndDistanceAnalysisEventsHandler(context.scenario(), context.carriers());
+			if (writeLinkVolumes) {
+				handler.enableLinkVolumeAnalysis();
+			}
+			if (context.sample() != null) {
+				handler.setSample(context.sample());
+			}
+			if (maxVehiclesInMemory < Integer.MAX_VALUE) {
+				handler.setMaxVehiclesInMemory(maxVehiclesInMemory, getSpillDirectory(context));
+			}
+			handler.registerEventHandlers(dispatcher);
+		}
+
+		@Override
+		public void writeOutput(Context context) throws IOException {
+			handler.writeOutput(context.analysisOutputDirectory());
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (handler != null) {
+				handler.deleteSpillFiles();
+			}
+		}
+	}
+
+	/**
+	 * Load per vehicle and capacity summaries.
+	 */
+	public static final class Load implements FreightAnalysisModule {
+		private int maxVehiclesInMemory = Integer.MAX_VALUE;
+		private CarrierLoadAnalysis handler;
+
+		@Override
+		public String getName() {
+			return "load";
+		}
+
+		@Override
+		public void configure(Map<String, String> options) {
+			checkOptions(this, options, Set.of(MAX_VEHICLES_IN_MEMORY));
+			maxVehiclesInMemory = getMaxVehiclesInMemory(options);
+		}
+
+		@Override
+		public List<String> getOutputFiles(Context context) {
+			return List.of("Load_perVehicle" + RunFreightAnalysisEventBased.fileExtension, "Load_summary.csv", "Capacity_summary.csv");
+		}
+
+		@Override
+		public List<String> getTables(Context context) {
+			// the load summary consists of key-value pairs
+			return List.of("Load_perVehicle" + RunFreightAnalysisEventBased.fileExtension, "Capacity_summary.csv");
+		}
+
+		@Override
+		public void registerEventHandlers(Context context, EventTypeDispatcher dispatcher) {
+			handler = new CarrierLoadAnalysis(context.carriers());
+			if (maxVehiclesInMemory < Integer.MAX_VALUE) {
+				handler.setMaxVehiclesInMemory(maxVehiclesInMemory, getSpillDirectory(context));
+			}
+			handler.registerEventHandlers(dispatcher);
+		}
+
+		@Override
+		public void writeOutput(Context context) throws IOException {
+			handler.writeLoadAnalysis(context.analysisOutputDirectory(), context.scenario());
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (handler != null) {
+				handler.deleteSpillFiles();
+			}
+		}
+	}
+
+	/**
+	 * Service quality of the shipments.
+	 */
+	public static final class Shipments implements FreightAnalysisModule {
+		private CarrierShipmentAnalysis handler;
+
+		@Override
+		public String getName() {
+			return "shipments";
+		}
+
+		@Override
+		public List<String> getOutputFiles(Context context) {
+			return List.of("Shipment_perShipment" + RunFreightAnalysisEventBased.fileExtension,
+					"Shipment_perCarrier" + RunFreightAnalysisEventBased.fileExtension);
+		}
+
+		@Override
+		public void registerEventHandlers(Context context, EventTypeDispatcher dispatcher) {
+			handler = new CarrierShipmentAnalysis(context.carriers(), context.analysisOutputDirectory());
+			handler.registerEventHandlers(dispatcher);
+		}
+
+		@Override
+		public void writeOutput(Context context) throws IOException {
+			handler.writeShipmentAnalysis(context.analysisOutputDirectory());
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (handler != null) {
+				handler.closePerShipmentWriter();
+			}
+		}
+	}
+
+	/**
+	 * Timeline of every tour: legs, stops, waits and activities.
+	 */
+	public static final class Tours implements FreightAnalysisModule {
+		private TourTimeline timeline;
+
+		@Override
+		public String getName() {
+			return "tours";
+		}
+
+		@Override
+		public List<String> getOutputFiles(Context context) {
+			return List.of("Tour_perTour" + RunFreightAnalysisEventBased.fileExtension,
+					"Tour_perStop" + RunFreightAnalysisEventBased.fileExtension);
+		}
+
+		@Override
+		public void registerEventHandlers(Context context, EventTypeDispatcher dispatcher) {
+			timeline = new TourTimeline(context.scenario().getNetwork(), context.carriers());
+			timeline.registerEventHandlers(dispatcher);
+		}
+
+		@Override
+		public void writeOutput(Context context) throws IOException {
+			timeline.writeTourAnalysis(context.analysisOutputDirectory());
+		}
+	}
+
+	private static void checkOptions(FreightAnalysisModule module, Map<String, String> options, Set<String> knownOptions) {
+		for (String option : options.keySet()) {
+			if (!knownOptions.contains(option)) {
+				throw new IllegalArgumentException("Unknown option " + option + " of the analysis module " + module.getName() + "; known options are " + knownOptions);
+			}
+		}
+	}
+
+	private static int getMaxVehiclesInMemory(Map<String, String> options) {
+		final String value = options.get(MAX_VEHICLES_IN_MEMORY);
+		if (value == null) {
+			return Integer.MAX_VALUE;
+		}
+		final int maxVehiclesInMemory = Integer.parseInt(value);
+		if (maxVehiclesInMemory <= 0) {
+			throw new IllegalArgumentException(MAX_VEHICLES_IN_MEMORY + " must be positive, but is " + value);
+		}
+		return maxVehiclesInMemory;
+	}
+
+	private static Path getSpillDirectory(Context context) {
+		return Path.of(context.analysisOutputDirectory(), "spill");
+	}
+}
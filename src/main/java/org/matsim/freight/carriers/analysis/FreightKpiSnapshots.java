@@ -0,0 +1,144 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.freight.carriers.events.CarrierShipmentDeliveryStartEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentPickupStartEvent;
+import org.matsim.freight.carriers.events.CarrierTourEndEvent;
+import org.matsim.freight.carriers.events.CarrierTourStartEvent;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Rolling KPI snapshots of the freight traffic while the events come in: travelled distance of the freight vehicles,
+ * active tours and the load on the vehicles.
+ * <p>
+ * Every <code>snapshotInterval</code> simulated seconds, a {@link Snapshot} is passed to the {@link SnapshotSink}.
+ * The distance of the snapshot is summed over a rolling window of the last <code>intervalsPerWindow</code> intervals
+ * (1: tumbling windows). Only vehicles on a carrier tour are counted. Since the events come in in time order, a
+ * snapshot is emitted as soon as the first event after the end of its interval arrives.
+ */
+public final class FreightKpiSnapshots {
+
+	private static final Logger log = LogManager.getLogger(FreightKpiSnapshots.class);
+
+	/**
+	 * @param time            end of the interval
+	 * @param windowVehicleKm travelled distance in the rolling window ending at time
+	 */
+	public record Snapshot(double time, double windowVehicleKm, double totalVehicleKm, int activeTours,
+						   long startedTours, long endedTours, long load) {
+	}
+
+	private final Network network;
+	private final SnapshotSink sink;
+	private final double snapshotInterval;
+
+	// ring buffer with the distances of the last intervals
+	private final double[] intervalVehicleKm;
+	private int currentInterval = 0;
+	private double nextSnapshotTime;
+
+	private final Set<Id<Vehicle>> vehiclesOnTour = new HashSet<>();
+	private double totalVehicleKm = 0.;
+	private long startedTours = 0;
+	private long endedTours = 0;
+	private long load = 0;
+
+	public FreightKpiSnapshots(Network network, SnapshotSink sink, double snapshotInterval, int intervalsPerWindow) {
+		if (snapshotInterval <= 0 || intervalsPerWindow < 1) {
+			throw new IllegalArgumentException("snapshotInterval must be > 0 and intervalsPerWindow >= 1");
+		}
+		this.network = network;
+		this.sink = sink;
+		this.snapshotInterval = snapshotInterval;
+		this.intervalVehicleKm = new double[intervalsPerWindow];
+		this.nextSnapshotTime = snapshotInterval;
+	}
+
+	void registerEventHandlers(EventTypeDispatcher dispatcher) {
+		// must come first, so that the snapshots are emitted before the event is counted
+		dispatcher.addHandler(Event.class, this::advanceTime);
+		dispatcher.addHandler(CarrierTourStartEvent.class, event -> {
+			vehiclesOnTour.add(event.getVehicleId());
+			startedTours++;
+		});
+		dispatcher.addHandler(CarrierTourEndEvent.class, event -> {
+			vehiclesOnTour.remove(event.getVehicleId());
+			endedTours++;
+		});
+		dispatcher.addHandler(LinkEnterEvent.class, this::handleEvent);
+		dispatcher.addHandler(CarrierShipmentPickupStartEvent.class, event -> load += event.getCapacityDemand());
+		dispatcher.addHandler(CarrierShipmentDeliveryStartEvent.class, event -> load -= event.getCapacityDemand());
+	}
+
+	private void handleEvent(LinkEnterEvent event) {
+		if (!vehiclesOnTour.contains(event.getVehicleId())) {
+			return;
+		}
+		Link link = network.getLinks().get(event.getLinkId());
+		if (link != null) {
+			final double km = link.getLength() / 1000.;
+			intervalVehicleKm[currentInterval] += km;
+			totalVehicleKm += km;
+		}
+	}
+
+	private void advanceTime(Event event) {
+		while (event.getTime() >= nextSnapshotTime) {
+			emitSnapshot();
+		}
+	}
+
+	/**
+	 * Emits the snapshot of the last (incomplete) interval. Call after the last event.
+	 */
+	void finish() {
+		emitSnapshot();
+		log.info("Last snapshot at {}: {} km travelled in total.", nextSnapshotTime - snapshotInterval, totalVehicleKm);
+	}
+
+	private void emitSnapshot() {
+		double windowVehicleKm = 0.;
+		for (double km : intervalVehicleKm) {
+			windowVehicleKm += km;
+		}
+		try {
+			sink.write(new Snapshot(nextSnapshotTime, windowVehicleKm, totalVehicleKm, vehiclesOnTour.size(), startedTours, endedTours, load));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		currentInterval = (currentInterval + 1) % intervalVehicleKm.length;
+		intervalVehicleKm[currentInterval] = 0.;
+		nextSnapshotTime += snapshotInterval;
+	}
+}
@@ -38,103 +38,144 @@ import org.matsim.vehicles.VehicleType;
 import org.matsim.vehicles.VehicleUtils;
 
 import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.LinkedHashMap;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 /**
+ * The handlers keep their state in plain collections, so the events must be handled on one thread. All totals are
+ * summed up per vehicle in the order of the vehicle ids when the output is written, so the results do not depend on
+ * the order in which the events of different vehicles are interleaved.
+ *
  * @author Kai Martins-Turner (kturner)
  */
 public class FreightTimeAndDistanceAnalysisEventsHandler implements BasicEventHandler {
 
 	private final static Logger log = LogManager.getLogger(FreightTimeAndDistanceAnalysisEventsHandler.class);
 
+	//First line of the general summary of a sampled analysis, followed by the sampling fraction in %; see FleetWhatIfAnalysis.
+	static final String SAMPLE_SUMMARY_LINE = "Estimated from a sample of";
+
 	private final Scenario scenario;
 	private final Carriers carriers;
-	private final Map<Id<Vehicle>, Double> vehicleId2TourDuration = new LinkedHashMap<>();
-	private final Map<Id<Vehicle>, Double> vehicleId2TourLength = new LinkedHashMap<>();
-
-	private final Map<Id<Vehicle>, Double> vehicleId2TravelTime = new LinkedHashMap<>();
 
-	private final Map<Id<Vehicle>, Id<Carrier>> vehicleId2CarrierId = new LinkedHashMap<>();
-	private final Map<Id<Vehicle>, Id<Tour>> vehicleId2TourId = new LinkedHashMap<>();
+	//Tour duration, distance, travel time, carrier, tour and vehicle type per vehicle. Can be spilled to disk, see setMaxVehiclesInMemory.
+	private SpillingVehicleMap<VehicleRecord> vehicleRecords = new SpillingVehicleMap<>(VehicleRecord::new, VehicleRecord.CODEC, Integer.MAX_VALUE, null);
 
-	private final Map<Id<VehicleType>, Double> vehicleTypeId2SumOfTourDuration = new LinkedHashMap<>();
-	private final Map<Id<VehicleType>, Double> vehicleTypeId2Mileage = new LinkedHashMap<>();
-	private final Map<Id<VehicleType>, Double> vehicleTypeId2TravelTime = new LinkedHashMap<>();
-	private final Map<Id<Carrier>, Double> carrierId2SumOfTourDuration = new LinkedHashMap<>();
-	private final Map<Id<Carrier>, Double> carrierId2Mileage = new LinkedHashMap<>();
-	private final Map<Id<Carrier>, Double> carrierId2TravelTime = new LinkedHashMap<>();
+	//A vehicle drives one tour at a time.
+	private final Map<Id<Vehicle>, Double> vehicleId2TourStartTime = new HashMap<>();
 
-	private final Map<Id<Vehicle>, VehicleType> vehicleId2VehicleType = new TreeMap<>();
+	private final Map<Id<Vehicle>, Double> vehicleEnteredLinkTime = new HashMap<>();
 
-	private final Map<String, Double> tourStartTime = new LinkedHashMap<>();
+	//Optional: link x vehicleType x hour volumes; null if not enabled.
+	private LinkVolumeMatrix linkVolumeMatrix = null;
 
-	private final Map<Id<Vehicle>, Double> vehicleEnteredLinkTime = new LinkedHashMap<>();
+	//Used if this is added as a handler by itself; see registerEventHandlers
+	private final EventTypeDispatcher dispatcher = new EventTypeDispatcher();
 
+	//Optional: the events are only a sample of the vehicles; null if all events are analysed.
+	private EventSample sample = null;
 
 	public FreightTimeAndDistanceAnalysisEventsHandler(Scenario scenario, Carriers carriers) {
 		this.scenario = scenario;
 		this.carriers = carriers;
+		registerEventHandlers(dispatcher);
+	}
+
+	/**
+	 * Additionally collects the freight traffic volumes per link, vehicle type and hour. These are written with
+	 * {@link #writeOutput(String)}.
+	 */
+	void enableLinkVolumeAnalysis() {
+		if (linkVolumeMatrix == null) {
+			linkVolumeMatrix = new LinkVolumeMatrix();
+		}
+	}
+
+	/**
+	 * The events are only a sample, see {@link EventSample}. The totals per vehicle type and in the general summary
+	 * are then estimated for all vehicles and written with their 95% confidence intervals. The tables per vehicle
+	 * and per carrier only contain the sampled vehicles.
+	 */
+	void setSample(EventSample sample) {
+		this.sample = sample;
+	}
+
+	/**
+	 * Bounds the memory for the analysis of very large fleets: if more than <code>maxVehiclesInMemory</code> vehicles
+	 * are held in memory, their values are written to disk and merged at the end, see {@link SpillingVehicleMap}.
+	 * Must be called before the events are handled.
+	 */
+	void setMaxVehiclesInMemory(int maxVehiclesInMemory, Path spillDirectory) {
+		vehicleRecords = new SpillingVehicleMap<>(VehicleRecord::new, VehicleRecord.CODEC, maxVehiclesInMemory, spillDirectory);
+	}
+
+	/**
+	 * Deletes the files which were spilled to disk. Call after all output is written.
+	 */
+	void deleteSpillFiles() throws IOException {
+		vehicleRecords.close();
+	}
+
+	private VehicleRecord getVehicleRecord(Id<Vehicle> vehicleId) {
+		final VehicleRecord vehicleRecord = vehicleRecords.get(vehicleId);
+		if (vehicleRecord.vehicleTypeId == null) {
+			vehicleRecord.vehicleTypeId = VehicleUtils.findVehicle(vehicleId, scenario).getType().getId();
+		}
+		return vehicleRecord;
 	}
 
 	private void handleEvent(CarrierTourStartEvent event) {
 		// Save time of freight tour start
-		final String key = event.getCarrierId().toString() + "_" + event.getTourId().toString();
-		tourStartTime.put(key, event.getTime());
+		vehicleId2TourStartTime.put(event.getVehicleId(), event.getTime());
 	}
 
 	//Fix costs for vehicle usage
 	private void handleEvent(CarrierTourEndEvent event) {
-		final String key = event.getCarrierId().toString() + "_" + event.getTourId().toString();
-		double tourDuration = event.getTime() - tourStartTime.get(key);
-		vehicleId2TourDuration.put(event.getVehicleId(), tourDuration);
-		VehicleType vehType = VehicleUtils.findVehicle(event.getVehicleId(), scenario).getType();
-		vehicleTypeId2SumOfTourDuration.merge(vehType.getId(), tourDuration, Double::sum);
+		double tourDuration = event.getTime() - vehicleId2TourStartTime.remove(event.getVehicleId());
+		final VehicleRecord vehicleRecord = getVehicleRecord(event.getVehicleId());
+		//If a vehicle drives several tours, the durations are summed up (as for the distances); see Tour_perTour for the single tours.
+		vehicleRecord.tourDuration += tourDuration;
 
 		//Some general information for this vehicle
-		vehicleId2CarrierId.putIfAbsent(event.getVehicleId(), event.getCarrierId());
-		vehicleId2TourId.putIfAbsent(event.getVehicleId(), event.getTourId());
-
-		vehicleId2VehicleType.putIfAbsent(event.getVehicleId(), vehType);
+		if (vehicleRecord.carrierId == null) {
+			vehicleRecord.carrierId = event.getCarrierId();
+			vehicleRecord.tourId = event.getTourId();
+		}
+		vehicleRecord.tourFinished = true;
 	}
 
 	private void handleEvent(LinkEnterEvent event) {
-		final double distance = scenario.getNetwork().getLinks().get(event.getLinkId()).getLength();
-		vehicleId2TourLength.merge(event.getVehicleId(), distance, Double::sum);
+		final VehicleRecord vehicleRecord = getVehicleRecord(event.getVehicleId());
+		vehicleRecord.tourLength += scenario.getNetwork().getLinks().get(event.getLinkId()).getLength();
 		vehicleEnteredLinkTime.put(event.getVehicleId(), event.getTime()); //Safe time when entering the link.
 
-		final Id<VehicleType> vehTypeId = VehicleUtils.findVehicle(event.getVehicleId(), scenario).getType().getId();
-		vehicleTypeId2Mileage.merge(vehTypeId, distance, Double::sum);
+		if (linkVolumeMatrix != null) {
+			linkVolumeMatrix.addVehicle(event.getLinkId(), vehicleRecord.vehicleTypeId, event.getTime());
+		}
 	}
 
 	//If the vehicle leaves a link at the end, the travelTime is calculated and stored.
 	private void handleEvent(LinkLeaveEvent event){
-		final Id<Vehicle> vehicleId = event.getVehicleId();
-		if (vehicleEnteredLinkTime.containsKey(vehicleId)){
-			double tt = event.getTime() - vehicleEnteredLinkTime.get(vehicleId);
-			vehicleId2TravelTime.merge(vehicleId, tt, Double::sum); //per vehicle
-
-			final Id<VehicleType> vehTypeId = VehicleUtils.findVehicle(event.getVehicleId(), scenario).getType().getId();
-			vehicleTypeId2TravelTime.merge(vehTypeId, tt, Double::sum); // per VehType
-
-			vehicleEnteredLinkTime.remove(vehicleId); //remove from that list.
-		}
+		addTravelTime(event.getVehicleId(), event.getTime());
 	}
 
 	//If the vehicle leaves a link because it reached its destination, the travelTime is calculated and stored.
 	private void handleEvent(VehicleLeavesTrafficEvent event){
-		final Id<Vehicle> vehicleId = event.getVehicleId();
-		if (vehicleEnteredLinkTime.containsKey(vehicleId)){
-			double tt = event.getTime() - vehicleEnteredLinkTime.get(vehicleId);
-			vehicleId2TravelTime.merge(vehicleId, tt, Double::sum);//per vehicle
-
-			final Id<VehicleType> vehTypeId = VehicleUtils.findVehicle(event.getVehicleId(), scenario).getType().getId();
-			vehicleTypeId2TravelTime.merge(vehTypeId, tt, Double::sum); // per VehType
+		addTravelTime(event.getVehicleId(), event.getTime());
+	}
 
-			vehicleEnteredLinkTime.remove(vehicleId); //remove from that list.
+	private void addTravelTime(Id<Vehicle> vehicleId, double time) {
+		final Double enteredLinkTime = vehicleEnteredLinkTime.remove(vehicleId);
+		if (enteredLinkTime != null) {
+			getVehicleRecord(vehicleId).travelTime += time - enteredLinkTime;
 		}
 	}
 
@@ -142,232 +183,268 @@ public class FreightTimeAndDistanceAnalysisEventsHandler implements BasicEventHa
 		vehicleEnteredLinkTime.put(event.getVehicleId(), event.getTime());
 	}
 
+	/**
+	 * Registers the handlers of this analysis, so that the events are dispatched by type directly to them.
+	 */
+	void registerEventHandlers(EventTypeDispatcher dispatcher) {
+		dispatcher.addHandler(CarrierTourStartEvent.class, this::handleEvent);
+		dispatcher.addHandler(CarrierTourEndEvent.class, this::handleEvent);
+		dispatcher.addHandler(LinkEnterEvent.class, this::handleEvent);
+		dispatcher.addHandler(LinkLeaveEvent.class, this::handleEvent);
+		dispatcher.addHandler(VehicleLeavesTrafficEvent.class, this::handleEvent);
+		dispatcher.addHandler(VehicleEntersTrafficEvent.class, this::handleEvent);
+	}
+
 	@Override public void handleEvent(Event event) {
-		if (event instanceof CarrierTourStartEvent carrierTourStartEvent) {
-			handleEvent(carrierTourStartEvent);
-		} else if (event instanceof CarrierTourEndEvent carrierTourEndEvent) {
-			handleEvent(carrierTourEndEvent);
-		} else if (event instanceof LinkEnterEvent linkEnterEvent) {
-			handleEvent(linkEnterEvent);
-		} else if (event instanceof LinkLeaveEvent linkLeaveEvent) {
-			handleEvent(linkLeaveEvent);
-		} else if (event instanceof VehicleLeavesTrafficEvent vehicleLeavesTrafficEvent) {
-			handleEvent(vehicleLeavesTrafficEvent);
-		} else if (event instanceof VehicleEntersTrafficEvent vehicleEntersTrafficEvent) {
-			handleEvent(vehicleEntersTrafficEvent);
+		dispatcher.handleEvent(event);
+	}
+
+	/**
+	 * Writes all tables of this analysis. The values per vehicle type, per carrier and in total are rolled up in the
+	 * same pass over the vehicles which writes the table per vehicle; the other tables are then written concurrently.
+	 */
+	void writeOutput(String analysisOutputDirectory) throws IOException {
+		final Rollups rollups = writeTravelTimeAndDistancePerVehicle(analysisOutputDirectory, scenario);
+		List<ConcurrentOutput.Task> tasks = new ArrayList<>();
+		tasks.add(() -> writeTravelTimeAndDistancePerVehicleType(analysisOutputDirectory, scenario, rollups));
+		tasks.add(() -> writeGeneralStats(analysisOutputDirectory, rollups));
+		tasks.add(() -> runCarrierAnalysisAndWriteStats(analysisOutputDirectory, rollups));
+		if (linkVolumeMatrix != null) {
+			tasks.add(() -> linkVolumeMatrix.writeLinkVolumes(analysisOutputDirectory, scenario.getNetwork()));
 		}
+		ConcurrentOutput.run(tasks);
 	}
 
-	void writeTravelTimeAndDistancePerVehicle(String analysisOutputDirectory, Scenario scenario) throws IOException {
+	/**
+	 * @return the values per vehicle type, per carrier and in total, rolled up while writing
+	 */
+	private Rollups writeTravelTimeAndDistancePerVehicle(String analysisOutputDirectory, Scenario scenario) throws IOException {
 		log.info("Writing out Time & Distance & Costs ... perVehicle");
 		//Travel time and distance per vehicle
 		String fileName = analysisOutputDirectory + "TimeDistance_perVehicle"+RunFreightAnalysisEventBased.fileExtension;
 
-		BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName));
-
-		//Write headline:
-		bw1.write("vehicleId" + RunFreightAnalysisEventBased.delimiter
-				+ "carrierId" + RunFreightAnalysisEventBased.delimiter
-				+ "vehicleTypeId" + RunFreightAnalysisEventBased.delimiter
-				+ "tourId" + RunFreightAnalysisEventBased.delimiter
-				+ "tourDuration[s]" + RunFreightAnalysisEventBased.delimiter
-				+ "tourDuration[h]" + RunFreightAnalysisEventBased.delimiter
-				+ "travelDistance[m]" + RunFreightAnalysisEventBased.delimiter
-				+ "travelDistance[km]" + RunFreightAnalysisEventBased.delimiter
-				+"travelTime[s]" + RunFreightAnalysisEventBased.delimiter
-				+ "travelTime[h]" +RunFreightAnalysisEventBased.delimiter
-				+"costPerSecond[EUR/s]" + RunFreightAnalysisEventBased.delimiter
-				+ "costPerMeter[EUR/m]" + RunFreightAnalysisEventBased.delimiter
-				+ "fixedCosts[EUR]" + RunFreightAnalysisEventBased.delimiter
-				+ "varCostsTime[EUR]" + RunFreightAnalysisEventBased.delimiter
-				+ "varCostsDist[EUR]" + RunFreightAnalysisEventBased.delimiter
-				+ "totalCosts[EUR]");
-		bw1.newLine();
-
-		for (Id<Vehicle> vehicleId : vehicleId2VehicleType.keySet()) {
-
-			final Double durationInSeconds = vehicleId2TourDuration.get(vehicleId);
-			final Double distanceInMeters = vehicleId2TourLength.get(vehicleId);
-			final Double travelTimeInSeconds = vehicleId2TravelTime.get(vehicleId);
-
-
-			final VehicleType vehicleType = VehicleUtils.findVehicle(vehicleId, scenario).getType();
-			final Double costsPerSecond = vehicleType.getCostInformation().getCostsPerSecond();
-			final Double costsPerMeter = vehicleType.getCostInformation().getCostsPerMeter();
-			final Double fixedCost = vehicleType.getCostInformation().getFixedCosts();
-
-			final double varCostsTime = durationInSeconds * costsPerSecond;
-			final double varCostsDist = distanceInMeters * costsPerMeter;
-			final double totalVehCosts = fixedCost + varCostsTime + varCostsDist;
-
-			bw1.write(vehicleId.toString());
-			bw1.write(RunFreightAnalysisEventBased.delimiter + vehicleId2CarrierId.get(vehicleId));
-			bw1.write(RunFreightAnalysisEventBased.delimiter + vehicleType.getId().toString());
-			bw1.write(RunFreightAnalysisEventBased.delimiter + vehicleId2TourId.get(vehicleId));
-
-			bw1.write(RunFreightAnalysisEventBased.delimiter + durationInSeconds);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + durationInSeconds /3600);
-
-			bw1.write(RunFreightAnalysisEventBased.delimiter + distanceInMeters);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + distanceInMeters/1000);
-
-			bw1.write(RunFreightAnalysisEventBased.delimiter + travelTimeInSeconds);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + travelTimeInSeconds /3600);
-
-			bw1.write(RunFreightAnalysisEventBased.delimiter + costsPerSecond);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + costsPerMeter);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + fixedCost);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + varCostsTime);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + varCostsDist);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + totalVehCosts);
-
+		final Rollups rollups = new Rollups(sample);
+		try (BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName))) {
+
+			//Write headline:
+			bw1.write("vehicleId" + RunFreightAnalysisEventBased.delimiter
+					+ "carrierId" + RunFreightAnalysisEventBased.delimiter
+					+ "vehicleTypeId" + RunFreightAnalysisEventBased.delimiter
+					+ "tourId" + RunFreightAnalysisEventBased.delimiter
+					+ "tourDuration[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "tourDuration[h]" + RunFreightAnalysisEventBased.delimiter
+					+ "travelDistance[m]" + RunFreightAnalysisEventBased.delimiter
+					+ "travelDistance[km]" + RunFreightAnalysisEventBased.delimiter
+					+"travelTime[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "travelTime[h]" +RunFreightAnalysisEventBased.delimiter
+					+"costPerSecond[EUR/s]" + RunFreightAnalysisEventBased.delimiter
+					+ "costPerMeter[EUR/m]" + RunFreightAnalysisEventBased.delimiter
+					+ "fixedCosts[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "varCostsTime[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "varCostsDist[EUR]" + RunFreightAnalysisEventBased.delimiter
+					+ "totalCosts[EUR]");
 			bw1.newLine();
-		}
 
-		bw1.close();
+			vehicleRecords.forEach((vehicleId, vehicleRecord) -> {
+				rollups.add(vehicleId, vehicleRecord, scenario);
+				//Only the vehicles with a finished tour
+				if (!vehicleRecord.tourFinished) {
+					return;
+				}
+
+				final double durationInSeconds = vehicleRecord.tourDuration;
+				final double distanceInMeters = vehicleRecord.tourLength;
+				final double travelTimeInSeconds = vehicleRecord.travelTime;
+
+
+				final VehicleType vehicleType = VehicleUtils.findVehicle(vehicleId, scenario).getType();
+				final Double costsPerSecond = vehicleType.getCostInformation().getCostsPerSecond();
+				final Double costsPerMeter = vehicleType.getCostInformation().getCostsPerMeter();
+				final Double fixedCost = vehicleType.getCostInformation().getFixedCosts();
+
+				final double varCostsTime = durationInSeconds * costsPerSecond;
+				final double varCostsDist = distanceInMeters * costsPerMeter;
+				final double totalVehCosts = fixedCost + varCostsTime + varCostsDist;
+
+				bw1.write(vehicleId.toString());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + vehicleRecord.carrierId);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + vehicleType.getId().toString());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + vehicleRecord.tourId);
+
+				bw1.write(RunFreightAnalysisEventBased.delimiter + durationInSeconds);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + durationInSeconds /3600);
+
+				bw1.write(RunFreightAnalysisEventBased.delimiter + distanceInMeters);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + distanceInMeters/1000);
+
+				bw1.write(RunFreightAnalysisEventBased.delimiter + travelTimeInSeconds);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + travelTimeInSeconds /3600);
+
+				bw1.write(RunFreightAnalysisEventBased.delimiter + costsPerSecond);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + costsPerMeter);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + fixedCost);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + varCostsTime);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + varCostsDist);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + totalVehCosts);
+
+				bw1.newLine();
+			});
+		}
 		log.info("Output written to " + fileName);
+		return rollups;
 	}
 
 
-	void writeTravelTimeAndDistancePerVehicleType(String analysisOutputDirectory, Scenario scenario) throws IOException {
+	private void writeTravelTimeAndDistancePerVehicleType(String analysisOutputDirectory, Scenario scenario, Rollups rollups) throws IOException {
 		log.info("Writing out Time & Distance & Costs ... perVehicleType");
 
 		//----- All VehicleTypes in CarriervehicleTypes container. Used so that even unused vehTypes appear in the output
 		TreeMap<Id<VehicleType>, VehicleType> vehicleTypesMap = new TreeMap<>(CarriersUtils.getCarrierVehicleTypes(scenario).getVehicleTypes());
 		//For the case that there are additional vehicle types found in the events.
-		for (VehicleType vehicleType : vehicleId2VehicleType.values()) {
+		for (VehicleType vehicleType : rollups.vehicleTypesInEvents.values()) {
 			vehicleTypesMap.putIfAbsent(vehicleType.getId(), vehicleType);
 		}
 
 		String fileName = analysisOutputDirectory + "TimeDistance_perVehicleType"+RunFreightAnalysisEventBased.fileExtension;
 
-		BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName));
-		//Write headline:
-		bw1.write("vehicleTypeId" + RunFreightAnalysisEventBased.delimiter +
-				"nuOfVehicles" + RunFreightAnalysisEventBased.delimiter + "" +
-				"SumOfTourDuration[s]" + RunFreightAnalysisEventBased.delimiter +
-				"SumOfTourDuration[h]" + RunFreightAnalysisEventBased.delimiter +
-				"SumOfTravelDistances[m]" + RunFreightAnalysisEventBased.delimiter +
-				"SumOfTravelDistances[km]" + RunFreightAnalysisEventBased.delimiter +
-				"SumOfTravelTime[s]" + RunFreightAnalysisEventBased.delimiter +
-				"SumOfTravelTime[h] " + RunFreightAnalysisEventBased.delimiter +
-				"costPerSecond[EUR/s]" + RunFreightAnalysisEventBased.delimiter +
-				"costPerMeter[EUR/m]" + RunFreightAnalysisEventBased.delimiter +
-				"fixedCosts[EUR/veh]" + RunFreightAnalysisEventBased.delimiter +
-				"varCostsTime[EUR]" + RunFreightAnalysisEventBased.delimiter +
-				"varCostsDist[EUR]" + RunFreightAnalysisEventBased.delimiter +
-				"fixedCosts[EUR]" + RunFreightAnalysisEventBased.delimiter +
-				"totalCosts[EUR]");
-		bw1.newLine();
-
-		for (VehicleType vehicleType : vehicleTypesMap.values()) {
-			long nuOfVehicles = vehicleId2VehicleType.values().stream().filter(vehType -> vehType.getId() == vehicleType.getId()).count();
-
-			final Double costRatePerSecond = vehicleType.getCostInformation().getCostsPerSecond();
-			final Double costRatePerMeter = vehicleType.getCostInformation().getCostsPerMeter();
-			final Double fixedCostPerVeh = vehicleType.getCostInformation().getFixedCosts();
-
-			final Double sumOfTourDurationInSeconds = vehicleTypeId2SumOfTourDuration.getOrDefault(vehicleType.getId(), 0.);
-			final Double sumOfDistanceInMeters = vehicleTypeId2Mileage.getOrDefault(vehicleType.getId(), 0.);
-			final Double sumOfTravelTimeInSeconds = vehicleTypeId2TravelTime.getOrDefault(vehicleType.getId(), 0.);
-
-			final double sumOfVarCostsTime = sumOfTourDurationInSeconds * costRatePerSecond;
-			final double sumOfVarCostsDistance = sumOfDistanceInMeters * costRatePerMeter;
-			final double sumOfFixCosts = nuOfVehicles * fixedCostPerVeh;
-
-			bw1.write(vehicleType.getId().toString());
-
-			bw1.write(RunFreightAnalysisEventBased.delimiter + nuOfVehicles);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTourDurationInSeconds);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTourDurationInSeconds / 3600);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfDistanceInMeters);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfDistanceInMeters / 1000);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTravelTimeInSeconds);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTravelTimeInSeconds / 3600);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + costRatePerSecond);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + costRatePerMeter);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + fixedCostPerVeh);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfVarCostsTime);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfVarCostsDistance);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfFixCosts);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + (sumOfFixCosts + sumOfVarCostsTime + sumOfVarCostsDistance));
-
+		try (BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName))) {
+			//Write headline:
+			bw1.write("vehicleTypeId" + RunFreightAnalysisEventBased.delimiter +
+					"nuOfVehicles" + RunFreightAnalysisEventBased.delimiter + "" +
+					"SumOfTourDuration[s]" + RunFreightAnalysisEventBased.delimiter +
+					"SumOfTourDuration[h]" + RunFreightAnalysisEventBased.delimiter +
+					"SumOfTravelDistances[m]" + RunFreightAnalysisEventBased.delimiter +
+					"SumOfTravelDistances[km]" + RunFreightAnalysisEventBased.delimiter +
+					"SumOfTravelTime[s]" + RunFreightAnalysisEventBased.delimiter +
+					"SumOfTravelTime[h] " + RunFreightAnalysisEventBased.delimiter +
+					"costPerSecond[EUR/s]" + RunFreightAnalysisEventBased.delimiter +
+					"costPerMeter[EUR/m]" + RunFreightAnalysisEventBased.delimiter +
+					"fixedCosts[EUR/veh]" + RunFreightAnalysisEventBased.delimiter +
+					"varCostsTime[EUR]" + RunFreightAnalysisEventBased.delimiter +
+					"varCostsDist[EUR]" + RunFreightAnalysisEventBased.delimiter +
+					"fixedCosts[EUR]" + RunFreightAnalysisEventBased.delimiter +
+					"totalCosts[EUR]");
+			if (sample != null) {
+				bw1.write(RunFreightAnalysisEventBased.delimiter + "nuOfVehicles_ci95" + RunFreightAnalysisEventBased.delimiter +
+						"SumOfTourDuration[h]_ci95" + RunFreightAnalysisEventBased.delimiter +
+						"SumOfTravelDistances[km]_ci95" + RunFreightAnalysisEventBased.delimiter +
+						"SumOfTravelTime[h]_ci95");
+			}
 			bw1.newLine();
-		}
 
-		bw1.close();
+			for (VehicleType vehicleType : vehicleTypesMap.values()) {
+				long nuOfVehicles = rollups.vehicleTypeId2NuOfVehicles.getOrDefault(vehicleType.getId(), 0L);
+
+				final Double costRatePerSecond = vehicleType.getCostInformation().getCostsPerSecond();
+				final Double costRatePerMeter = vehicleType.getCostInformation().getCostsPerMeter();
+				final Double fixedCostPerVeh = vehicleType.getCostInformation().getFixedCosts();
+
+				final double[] sums = rollups.vehicleTypeId2Sums.getOrDefault(vehicleType.getId(), new double[3]);
+				Double sumOfTourDurationInSeconds = sums[0];
+				Double sumOfDistanceInMeters = sums[1];
+				Double sumOfTravelTimeInSeconds = sums[2];
+
+				String confidenceIntervals = "";
+				if (sample != null) {
+					//Estimated from the vehicles with a finished tour, since only these are counted per vehicle type.
+					final EventSample.TotalEstimator[] estimators = rollups.vehicleTypeId2Estimators.get(vehicleType.getId());
+					final EventSample.Estimate none = new EventSample.Estimate(0., 0.);
+					final EventSample.Estimate vehicles = estimators == null ? none : estimators[0].estimate();
+					final EventSample.Estimate tourDuration = estimators == null ? none : estimators[1].estimate();
+					final EventSample.Estimate distance = estimators == null ? none : estimators[2].estimate();
+					final EventSample.Estimate travelTime = estimators == null ? none : estimators[3].estimate();
+					nuOfVehicles = Math.round(vehicles.total());
+					sumOfTourDurationInSeconds = tourDuration.total();
+					sumOfDistanceInMeters = distance.total();
+					sumOfTravelTimeInSeconds = travelTime.total();
+					confidenceIntervals = RunFreightAnalysisEventBased.delimiter + vehicles.halfWidth95()
+							+ RunFreightAnalysisEventBased.delimiter + tourDuration.halfWidth95() / 3600
+							+ RunFreightAnalysisEventBased.delimiter + distance.halfWidth95() / 1000
+							+ RunFreightAnalysisEventBased.delimiter + travelTime.halfWidth95() / 3600;
+				}
+
+				final double sumOfVarCostsTime = sumOfTourDurationInSeconds * costRatePerSecond;
+				final double sumOfVarCostsDistance = sumOfDistanceInMeters * costRatePerMeter;
+				final double sumOfFixCosts = nuOfVehicles * fixedCostPerVeh;
+
+				bw1.write(vehicleType.getId().toString());
+
+				bw1.write(RunFreightAnalysisEventBased.delimiter + nuOfVehicles);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTourDurationInSeconds);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTourDurationInSeconds / 3600);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfDistanceInMeters);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfDistanceInMeters / 1000);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTravelTimeInSeconds);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTravelTimeInSeconds / 3600);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + costRatePerSecond);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + costRatePerMeter);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + fixedCostPerVeh);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfVarCostsTime);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfVarCostsDistance);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfFixCosts);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + (sumOfFixCosts + sumOfVarCostsTime + sumOfVarCostsDistance));
+				bw1.write(confidenceIntervals);
+
+				bw1.newLine();
+			}
+		}
 		log.info("Output written to " + fileName);
 	}
 
-	void runCarrierAnalysisAndWriteStats(String analysisOutputDirectory) throws IOException {
+	private void runCarrierAnalysisAndWriteStats(String analysisOutputDirectory, Rollups rollups) throws IOException {
 		log.info("Writing out carrier analysis ...");
 		//Load per vehicle
 		String fileName = analysisOutputDirectory + "Carrier_summary"+RunFreightAnalysisEventBased.fileExtension;
 
-		BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName));
-
-		//Write headline:
-		bw1.write("carrierId" + RunFreightAnalysisEventBased.delimiter
-				+ "MATSimScoreSelectedPlan" + RunFreightAnalysisEventBased.delimiter
-				+ "jSpritScoreSelectedPlan" + RunFreightAnalysisEventBased.delimiter
-				+ "nuOfTours" + RunFreightAnalysisEventBased.delimiter
-				+ "nuOfShipments(input)" + RunFreightAnalysisEventBased.delimiter
-				+ "nuOfServices(input) "+ RunFreightAnalysisEventBased.delimiter
-				+ "tourDuration[h]" + RunFreightAnalysisEventBased.delimiter
-				+ "travelDuration[h]" + RunFreightAnalysisEventBased.delimiter
-				+ "travelDistance[km]"+ RunFreightAnalysisEventBased.delimiter
-
-		);
-		bw1.newLine();
-
-		final TreeMap<Id<Carrier>, Carrier> sortedCarrierMap = new TreeMap<>(carriers.getCarriers());
-
-		for (Id<Vehicle> vehicleId : vehicleId2TravelTime.keySet()) {
-			Id<Carrier> carrier = vehicleId2CarrierId.get(vehicleId);
-			carrierId2TravelTime.merge(carrier,vehicleId2TravelTime.get(vehicleId),Double::sum); // per carrierID
-		}
-
-		for (Id<Vehicle> vehicleId : vehicleId2TourLength.keySet()) {
-			Id<Carrier> carrier = vehicleId2CarrierId.get(vehicleId);
-			carrierId2SumOfTourDuration.merge(carrier,vehicleId2TourLength.get(vehicleId),Double::sum); // per carrierID
-		}
-
-		for (Id<Vehicle> vehicleId : vehicleId2TourLength.keySet()) {
-			Id<Carrier> carrier = vehicleId2CarrierId.get(vehicleId);
-			carrierId2Mileage.merge(carrier,vehicleId2TourLength.get(vehicleId),Double::sum); // per carrierID
-		}
+		try (BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName))) {
 
+			//Write headline:
+			bw1.write("carrierId" + RunFreightAnalysisEventBased.delimiter
+					+ "MATSimScoreSelectedPlan" + RunFreightAnalysisEventBased.delimiter
+					+ "jSpritScoreSelectedPlan" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfTours" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfShipments(input)" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfServices(input) "+ RunFreightAnalysisEventBased.delimiter
+					+ "tourDuration[h]" + RunFreightAnalysisEventBased.delimiter
+					+ "travelDuration[h]" + RunFreightAnalysisEventBased.delimiter
+					+ "travelDistance[km]"+ RunFreightAnalysisEventBased.delimiter
 
-		for (Carrier carrier : sortedCarrierMap.values()) {
-			log.info(carrierId2SumOfTourDuration.get(carrier.getId()));
-
-			final Double sumOfTourDurationInSeconds = carrierId2SumOfTourDuration.getOrDefault(carrier.getId(), 0.);
-			final Double sumOfDistanceInMeters = carrierId2Mileage.getOrDefault(carrier.getId(), 0.);
-			final Double sumOfTravelTimeInSeconds = carrierId2TravelTime.getOrDefault(carrier.getId(), 0.);
-
-			bw1.write(carrier.getId().toString());
-			bw1.write(RunFreightAnalysisEventBased.delimiter + carrier.getSelectedPlan().getScore());
-			bw1.write(RunFreightAnalysisEventBased.delimiter + carrier.getSelectedPlan().getJspritScore());
-			bw1.write(RunFreightAnalysisEventBased.delimiter + carrier.getSelectedPlan().getScheduledTours().size());
-			bw1.write(RunFreightAnalysisEventBased.delimiter + carrier.getShipments().size());
-			bw1.write(RunFreightAnalysisEventBased.delimiter + carrier.getServices().size());
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTourDurationInSeconds/60/60);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTravelTimeInSeconds/60/60);
-			bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfDistanceInMeters/1000);
+			);
 			bw1.newLine();
-		}
 
-		bw1.close();
+			final TreeMap<Id<Carrier>, Carrier> sortedCarrierMap = new TreeMap<>(carriers.getCarriers());
+
+			for (Carrier carrier : sortedCarrierMap.values()) {
+				final double[] sums = rollups.carrierId2Sums.getOrDefault(carrier.getId(), new double[3]);
+				final Double sumOfTourDurationInSeconds = sums[0];
+				final Double sumOfDistanceInMeters = sums[1];
+				final Double sumOfTravelTimeInSeconds = sums[2];
+
+				bw1.write(carrier.getId().toString());
+				if (carrier.getSelectedPlan() != null) {
+					bw1.write(RunFreightAnalysisEventBased.delimiter + carrier.getSelectedPlan().getScore());
+					bw1.write(RunFreightAnalysisEventBased.delimiter + carrier.getSelectedPlan().getJspritScore());
+					bw1.write(RunFreightAnalysisEventBased.delimiter + carrier.getSelectedPlan().getScheduledTours().size());
+				} else {
+					// not planned yet, e.g. the input carriers of a running simulation
+					bw1.write(RunFreightAnalysisEventBased.delimiter + RunFreightAnalysisEventBased.delimiter + RunFreightAnalysisEventBased.delimiter);
+				}
+				bw1.write(RunFreightAnalysisEventBased.delimiter + carrier.getShipments().size());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + carrier.getServices().size());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTourDurationInSeconds/60/60);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfTravelTimeInSeconds/60/60);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + sumOfDistanceInMeters/1000);
+				bw1.newLine();
+			}
+		}
 		log.info("Output written to " + fileName);
 	}
 
-	void writeGeneralStats(String analysisOutputDirectory) throws IOException {
+	private void writeGeneralStats(String analysisOutputDirectory, Rollups rollups) throws IOException {
 		log.info("Writing out general analysis ...");
 		//Load per vehicle
 		String fileName = analysisOutputDirectory + "General_summary"+RunFreightAnalysisEventBased.fileExtension;
 
-		BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName));
-
 		//Define parameters
 		double matsimscore = 0.0;
 		double jspritscore = 0.0;
@@ -375,18 +452,25 @@ public class FreightTimeAndDistanceAnalysisEventsHandler implements BasicEventHa
 		int tours = 0;
 		int shipments = 0;
 		int services = 0;
-		double durationInH = 0;
-		double distanceInKm = 0;
-		double travelInH = 0;
-		double units = 0;
-
 		//total distance and duration
-		for (Id<Vehicle> vehicleId : vehicleId2VehicleType.keySet()) {
-
-			durationInH += vehicleId2TourDuration.get(vehicleId);
-			distanceInKm += vehicleId2TourLength.get(vehicleId);
-			travelInH += vehicleId2TravelTime.get(vehicleId);
-
+		double durationInH = rollups.totals[0];
+		double distanceInKm = rollups.totals[1];
+		double travelInH = rollups.totals[2];
+
+		//if only a sample was analysed: estimated totals and their 95% confidence intervals
+		String durationCi = "";
+		String distanceCi = "";
+		String travelCi = "";
+		if (rollups.estimators != null) {
+			final EventSample.Estimate duration = rollups.estimators[0].estimate();
+			final EventSample.Estimate distance = rollups.estimators[1].estimate();
+			final EventSample.Estimate travel = rollups.estimators[2].estimate();
+			durationInH = duration.total();
+			distanceInKm = distance.total();
+			travelInH = travel.total();
+			durationCi = "+/- " + Math.round(100 * duration.halfWidth95() / 60 / 60) / 100. + " h (95%)" + RunFreightAnalysisEventBased.delimiter;
+			distanceCi = "+/- " + Math.round(100 * distance.halfWidth95() / 1000) / 100. + " km (95%)" + RunFreightAnalysisEventBased.delimiter;
+			travelCi = "+/- " + Math.round(100 * travel.halfWidth95() / 60 / 60) / 100. + " h (95%)" + RunFreightAnalysisEventBased.delimiter;
 		}
 
 		//other stats
@@ -394,44 +478,170 @@ public class FreightTimeAndDistanceAnalysisEventsHandler implements BasicEventHa
 
 		for (Carrier carrier : sortedCarrierMap.values()) {
 			carrierNr += 1;
+			shipments += carrier.getShipments().size();
+			services += carrier.getServices().size();
+			if (carrier.getSelectedPlan() == null) {
+				continue;
+			}
 			matsimscore +=  carrier.getSelectedPlan().getScore();
 			jspritscore +=  carrier.getSelectedPlan().getJspritScore();
 			tours += carrier.getSelectedPlan().getScheduledTours().size();
-			shipments += carrier.getShipments().size();
-			services += carrier.getServices().size();
 		}
 
-		bw1.write("Number of carriers"+ RunFreightAnalysisEventBased.delimiter
-				+carrierNr+ RunFreightAnalysisEventBased.delimiter );
-		bw1.newLine();
-		bw1.write("Total travel duration"+ RunFreightAnalysisEventBased.delimiter
-				+Math.round(100*travelInH/60/60)/100+" h"+ RunFreightAnalysisEventBased.delimiter);
-		bw1.newLine();
-		bw1.write("Total tour duration"+ RunFreightAnalysisEventBased.delimiter
-				+Math.round(100*durationInH/60/60)/100+" h"+ RunFreightAnalysisEventBased.delimiter);
-		bw1.newLine();
-		bw1.write("Total travel distance"+ RunFreightAnalysisEventBased.delimiter
-				+Math.round(100*distanceInKm/1000)/100+" km"+ RunFreightAnalysisEventBased.delimiter);
-		bw1.newLine();
-		bw1.write("Number of tours"+ RunFreightAnalysisEventBased.delimiter
-				+tours+ RunFreightAnalysisEventBased.delimiter);
-		bw1.newLine();
-		bw1.write("Number of shipments"+ RunFreightAnalysisEventBased.delimiter
-				+shipments+RunFreightAnalysisEventBased.delimiter);
-		bw1.newLine();
-		bw1.write("Number of services"+ RunFreightAnalysisEventBased.delimiter
-				+services+ RunFreightAnalysisEventBased.delimiter);
-		bw1.newLine();
-		bw1.write("Total MATSim Score"+ RunFreightAnalysisEventBased.delimiter
-				+matsimscore+ RunFreightAnalysisEventBased.delimiter);
-		bw1.newLine();
-		bw1.write("Total jsprit Score"+ RunFreightAnalysisEventBased.delimiter+
-				Math.round(100*jspritscore)/100+ RunFreightAnalysisEventBased.delimiter);
-		bw1.newLine();
-
-
-		bw1.close();
+		try (BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName))) {
+			if (sample != null) {
+				bw1.write(SAMPLE_SUMMARY_LINE + RunFreightAnalysisEventBased.delimiter
+						+100 * sample.getFraction()+" % of the "+sample.getUnit()+"s"+ RunFreightAnalysisEventBased.delimiter);
+				bw1.newLine();
+			}
+			bw1.write("Number of carriers"+ RunFreightAnalysisEventBased.delimiter
+					+carrierNr+ RunFreightAnalysisEventBased.delimiter );
+			bw1.newLine();
+			bw1.write("Total travel duration"+ RunFreightAnalysisEventBased.delimiter
+					+Math.round(100*travelInH/60/60)/100+" h"+ RunFreightAnalysisEventBased.delimiter + travelCi);
+			bw1.newLine();
+			bw1.write("Total tour duration"+ RunFreightAnalysisEventBased.delimiter
+					+Math.round(100*durationInH/60/60)/100+" h"+ RunFreightAnalysisEventBased.delimiter + durationCi);
+			bw1.newLine();
+			bw1.write("Total travel distance"+ RunFreightAnalysisEventBased.delimiter
+					+Math.round(100*distanceInKm/1000)/100+" km"+ RunFreightAnalysisEventBased.delimiter + distanceCi);
+			bw1.newLine();
+			bw1.write("Number of tours"+ RunFreightAnalysisEventBased.delimiter
+					+tours+ RunFreightAnalysisEventBased.delimiter);
+			bw1.newLine();
+			bw1.write("Number of shipments"+ RunFreightAnalysisEventBased.delimiter
+					+shipments+RunFreightAnalysisEventBased.delimiter);
+			bw1.newLine();
+			bw1.write("Number of services"+ RunFreightAnalysisEventBased.delimiter
+					+services+ RunFreightAnalysisEventBased.delimiter);
+			bw1.newLine();
+			bw1.write("Total MATSim Score"+ RunFreightAnalysisEventBased.delimiter
+					+matsimscore+ RunFreightAnalysisEventBased.delimiter);
+			bw1.newLine();
+			bw1.write("Total jsprit Score"+ RunFreightAnalysisEventBased.delimiter+
+					Math.round(100*jspritscore)/100+ RunFreightAnalysisEventBased.delimiter);
+			bw1.newLine();
+		}
 		log.info("Output written to " + fileName);
 	}
 
+	/**
+	 * The values per vehicle type, per carrier and in total, summed up per vehicle in the order of the vehicle ids, so
+	 * that the result does not depend on the order in which the events were handled.
+	 */
+	private static final class Rollups {
+		//Tour duration, distance and travel time of all vehicles of a type
+		private final Map<Id<VehicleType>, double[]> vehicleTypeId2Sums = new HashMap<>();
+		//Number of vehicles with a finished tour per type, and if only a sample was analysed, the estimators of the number of vehicles, tour duration, distance and travel time.
+		private final Map<Id<VehicleType>, Long> vehicleTypeId2NuOfVehicles = new HashMap<>();
+		private final Map<Id<VehicleType>, EventSample.TotalEstimator[]> vehicleTypeId2Estimators = new HashMap<>();
+		//The vehicle types of the vehicles with a finished tour
+		private final Map<Id<VehicleType>, VehicleType> vehicleTypesInEvents = new HashMap<>();
+		//Tour duration, distance and travel time per carrier; only the vehicles with a finished tour are assigned to a carrier
+		private final Map<Id<Carrier>, double[]> carrierId2Sums = new HashMap<>();
+		//Tour duration, distance and travel time of all vehicles with a finished tour, and their estimators
+		private final double[] totals = new double[3];
+		private final EventSample.TotalEstimator[] estimators;
+		private final EventSample sample;
+
+		private Rollups(EventSample sample) {
+			this.sample = sample;
+			this.estimators = sample == null ? null
+					: new EventSample.TotalEstimator[]{sample.createTotalEstimator(), sample.createTotalEstimator(), sample.createTotalEstimator()};
+		}
+
+		private void add(Id<Vehicle> vehicleId, VehicleRecord vehicleRecord, Scenario scenario) {
+			final double[] sums = vehicleTypeId2Sums.computeIfAbsent(vehicleRecord.vehicleTypeId, k -> new double[3]);
+			sums[0] += vehicleRecord.tourDuration;
+			sums[1] += vehicleRecord.tourLength;
+			sums[2] += vehicleRecord.travelTime;
+			if (!vehicleRecord.tourFinished) {
+				return;
+			}
+			vehicleTypesInEvents.computeIfAbsent(vehicleRecord.vehicleTypeId, k -> VehicleUtils.findVehicle(vehicleId, scenario).getType());
+			vehicleTypeId2NuOfVehicles.merge(vehicleRecord.vehicleTypeId, 1L, Long::sum);
+
+			final double[] carrierSums = carrierId2Sums.computeIfAbsent(vehicleRecord.carrierId, k -> new double[3]);
+			carrierSums[0] += vehicleRecord.tourDuration;
+			carrierSums[1] += vehicleRecord.tourLength;
+			carrierSums[2] += vehicleRecord.travelTime;
+
+			totals[0] += vehicleRecord.tourDuration;
+			totals[1] += vehicleRecord.tourLength;
+			totals[2] += vehicleRecord.travelTime;
+
+			if (sample != null) {
+				final EventSample.TotalEstimator[] typeEstimators = vehicleTypeId2Estimators.computeIfAbsent(vehicleRecord.vehicleTypeId,
+						k -> new EventSample.TotalEstimator[]{sample.createTotalEstimator(), sample.createTotalEstimator(),
+								sample.createTotalEstimator(), sample.createTotalEstimator()});
+				typeEstimators[0].add(vehicleId, 1.);
+				typeEstimators[1].add(vehicleId, vehicleRecord.tourDuration);
+				typeEstimators[2].add(vehicleId, vehicleRecord.tourLength);
+				typeEstimators[3].add(vehicleId, vehicleRecord.travelTime);
+				estimators[0].add(vehicleId, vehicleRecord.tourDuration);
+				estimators[1].add(vehicleId, vehicleRecord.tourLength);
+				estimators[2].add(vehicleId, vehicleRecord.travelTime);
+			}
+		}
+	}
+
+	private static final class VehicleRecord {
+		private double tourDuration = 0.;
+		private double tourLength = 0.;
+		private double travelTime = 0.;
+		private Id<Carrier> carrierId = null;
+		private Id<Tour> tourId = null;
+		private Id<VehicleType> vehicleTypeId = null;
+		private boolean tourFinished = false;
+
+		private static final SpillingVehicleMap.Codec<VehicleRecord> CODEC = new SpillingVehicleMap.Codec<>() {
+			@Override
+			public void write(DataOutput out, VehicleRecord value) throws IOException {
+				out.writeDouble(value.tourDuration);
+				out.writeDouble(value.tourLength);
+				out.writeDouble(value.travelTime);
+				writeId(out, value.carrierId);
+				writeId(out, value.tourId);
+				writeId(out, value.vehicleTypeId);
+				out.writeBoolean(value.tourFinished);
+			}
+
+			@Override
+			public VehicleRecord read(DataInput in) throws IOException {
+				VehicleRecord value = new VehicleRecord();
+				value.tourDuration = in.readDouble();
+				value.tourLength = in.readDouble();
+				value.travelTime = in.readDouble();
+				value.carrierId = readId(in, Carrier.class);
+				value.tourId = readId(in, Tour.class);
+				value.vehicleTypeId = readId(in, VehicleType.class);
+				value.tourFinished = in.readBoolean();
+				return value;
+			}
+
+			@Override
+			public VehicleRecord merge(VehicleRecord earlier, VehicleRecord later) {
+				earlier.tourDuration += later.tourDuration;
+				earlier.tourLength += later.tourLength;
+				earlier.travelTime += later.travelTime;
+				if (earlier.carrierId == null) {
+					earlier.carrierId = later.carrierId;
+					earlier.tourId = later.tourId;
+				}
+				earlier.tourFinished |= later.tourFinished;
+				return earlier;
+			}
+		};
+
+		private static void writeId(DataOutput out, Id<?> id) throws IOException {
+			out.writeBoolean(id != null);
+			if (id != null) {
+				out.writeUTF(id.toString());
+			}
+		}
+
+		private static <T> Id<T> readId(DataInput in, Class<T> idClass) throws IOException {
+			return in.readBoolean() ? Id.create(in.readUTF(), idClass) : null;
+		}
+	}
 }
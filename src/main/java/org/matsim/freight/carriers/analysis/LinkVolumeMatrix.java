@@ -0,0 +1,192 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.vehicles.VehicleType;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sparse link &times; vehicle type &times; hour matrix of the freight traffic volumes.
+ * <p>
+ * Most of the links see no freight traffic at all, so only the used cells are stored. The cells are kept in an
+ * open addressing hash table with primitive <code>long</code> keys (link index, vehicle type slot, hour) and
+ * <code>int</code> counts, i.e. there are no boxed objects per entry.
+ * <p>
+ * The output is a long format table (one row per link, vehicle type and hour) with volume and vehicle kilometers,
+ * which can be joined with the (hbefa) emission factors per vehicle type as used in the emissions contrib,
+ * and a per link table that can be shown with the link volume map of simwrapper.
+ */
+final class LinkVolumeMatrix {
+
+	private static final Logger log = LogManager.getLogger(LinkVolumeMatrix.class);
+
+	private static final long EMPTY = -1L;
+	private static final int MAX_HOUR = 255;
+
+	private final List<Id<VehicleType>> vehicleTypeSlots = new ArrayList<>();
+	private final Map<Id<VehicleType>, Integer> vehicleTypeId2Slot = new TreeMap<>();
+
+	private long[] keys = new long[1024];
+	private int[] counts = new int[1024];
+	private int size = 0;
+
+	LinkVolumeMatrix() {
+		Arrays.fill(keys, EMPTY);
+	}
+
+	void addVehicle(Id<Link> linkId, Id<VehicleType> vehicleTypeId, double time) {
+		final int vehicleTypeSlot = vehicleTypeId2Slot.computeIfAbsent(vehicleTypeId, id -> {
+			vehicleTypeSlots.add(id);
+			return vehicleTypeSlots.size() - 1;
+		});
+		final int hour = Math.min(MAX_HOUR, Math.max(0, (int) (time / 3600.)));
+		final long key = ((long) linkId.index() << 24) | ((long) vehicleTypeSlot << 8) | hour;
+		increment(key);
+	}
+
+	private void increment(long key) {
+		int slot = findSlot(keys, key);
+		if (keys[slot] == key) {
+			counts[slot]++;
+			return;
+		}
+		keys[slot] = key;
+		counts[slot] = 1;
+		size++;
+		if (size * 2 > keys.length) {
+			grow();
+		}
+	}
+
+	private static int findSlot(long[] keys, long key) {
+		final int mask = keys.length - 1;
+		int slot = Long.hashCode(key * 0x9E3779B97F4A7C15L) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		long[] newKeys = new long[keys.length * 2];
+		int[] newCounts = new int[counts.length * 2];
+		Arrays.fill(newKeys, EMPTY);
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY) {
+				int slot = findSlot(newKeys, keys[i]);
+				newKeys[slot] = keys[i];
+				newCounts[slot] = counts[i];
+			}
+		}
+		keys = newKeys;
+		counts = newCounts;
+	}
+
+	/**
+	 * Writes <code>Traffic_perLinkVehicleTypeAndHour</code> and <code>Traffic_perLink</code>.
+	 */
+	void writeLinkVolumes(String analysisOutputDirectory, Network network) throws IOException {
+		log.info("Writing out link volumes ... ({} used cells)", size);
+
+		// sort by key, i.e. by link index, vehicle type and hour
+		long[] sortedKeys = new long[size];
+		int n = 0;
+		for (long key : keys) {
+			if (key != EMPTY) {
+				sortedKeys[n++] = key;
+			}
+		}
+		Arrays.sort(sortedKeys);
+
+		String fileName = analysisOutputDirectory + "Traffic_perLinkVehicleTypeAndHour" + RunFreightAnalysisEventBased.fileExtension;
+		String fileNamePerLink = analysisOutputDirectory + "Traffic_perLink" + RunFreightAnalysisEventBased.fileExtension;
+		try (BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName));
+			 BufferedWriter bw2 = new BufferedWriter(new FileWriter(fileNamePerLink))) {
+			bw1.write("linkId" + RunFreightAnalysisEventBased.delimiter
+					+ "vehicleTypeId" + RunFreightAnalysisEventBased.delimiter
+					+ "hour" + RunFreightAnalysisEventBased.delimiter
+					+ "volume" + RunFreightAnalysisEventBased.delimiter
+					+ "linkLength[m]" + RunFreightAnalysisEventBased.delimiter
+					+ "vehicleKm[km]");
+			bw1.newLine();
+			bw2.write("linkId" + RunFreightAnalysisEventBased.delimiter
+					+ "volume" + RunFreightAnalysisEventBased.delimiter
+					+ "vehicleKm[km]");
+			bw2.newLine();
+
+			int currentLinkIndex = -1;
+			long linkVolume = 0;
+			double linkLength = 0.;
+			for (int i = 0; i < sortedKeys.length; i++) {
+				final int linkIndex = (int) (sortedKeys[i] >>> 24);
+				final int vehicleTypeSlot = (int) ((sortedKeys[i] >>> 8) & 0xFFFF);
+				final int hour = (int) (sortedKeys[i] & 0xFF);
+				final Id<Link> linkId = Id.get(linkIndex, Link.class);
+
+				if (linkIndex != currentLinkIndex) {
+					if (currentLinkIndex >= 0) {
+						writeLinkTotal(bw2, Id.get(currentLinkIndex, Link.class), linkVolume, linkLength);
+					}
+					currentLinkIndex = linkIndex;
+					linkVolume = 0;
+					Link link = network.getLinks().get(linkId);
+					linkLength = link == null ? 0. : link.getLength();
+				}
+				final int count = counts[findSlot(keys, sortedKeys[i])];
+				linkVolume += count;
+
+				bw1.write(linkId.toString());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + vehicleTypeSlots.get(vehicleTypeSlot).toString());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + hour);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + count);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + linkLength);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + count * linkLength / 1000);
+				bw1.newLine();
+			}
+			if (currentLinkIndex >= 0) {
+				writeLinkTotal(bw2, Id.get(currentLinkIndex, Link.class), linkVolume, linkLength);
+			}
+		}
+		log.info("Output written to " + fileName);
+		log.info("Output written to " + fileNamePerLink);
+	}
+
+	private static void writeLinkTotal(BufferedWriter bw, Id<Link> linkId, long volume, double linkLength) throws IOException {
+		bw.write(linkId.toString());
+		bw.write(RunFreightAnalysisEventBased.delimiter + volume);
+		bw.write(RunFreightAnalysisEventBased.delimiter + volume * linkLength / 1000);
+		bw.newLine();
+	}
+}
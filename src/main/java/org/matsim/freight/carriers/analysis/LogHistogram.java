@@ -0,0 +1,110 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantile sketch for non-negative values (HDR-histogram like).
+ * <p>
+ * Values are counted in logarithmic buckets with a relative width of {@link #RELATIVE_ERROR}, so the memory only
+ * depends on the value range (about 1700 buckets for values up to 10^7, e.g. seconds), but not on the number of
+ * recorded values. Quantiles are exact up to the relative bucket width. Two histograms can be merged.
+ */
+final class LogHistogram {
+
+	static final double RELATIVE_ERROR = 0.01;
+	private static final double LOG_BASE = Math.log1p(RELATIVE_ERROR);
+
+	private long[] counts = new long[64];
+	private long totalCount = 0;
+	private double sum = 0.;
+	private double max = 0.;
+
+	void record(double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		final double v = Math.max(0., value);
+		final int index = bucketIndex(v);
+		if (index >= counts.length) {
+			counts = Arrays.copyOf(counts, Math.max(index + 1, 2 * counts.length));
+		}
+		counts[index]++;
+		totalCount++;
+		sum += v;
+		max = Math.max(max, v);
+	}
+
+	void merge(LogHistogram other) {
+		if (other.counts.length > counts.length) {
+			counts = Arrays.copyOf(counts, other.counts.length);
+		}
+		for (int i = 0; i < other.counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		totalCount += other.totalCount;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	long getCount() {
+		return totalCount;
+	}
+
+	double getMean() {
+		return totalCount == 0 ? 0. : sum / totalCount;
+	}
+
+	double getMax() {
+		return max;
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return the (approximated) value at the quantile; 0 if nothing was recorded.
+	 */
+	double getQuantile(double quantile) {
+		if (totalCount == 0) {
+			return 0.;
+		}
+		final long rank = (long) Math.ceil(quantile * totalCount);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(1, rank)) {
+				return Math.min(max, bucketValue(i));
+			}
+		}
+		return max;
+	}
+
+	private static int bucketIndex(double value) {
+		// +1 so that values between 0 and 1 get their own buckets
+		return (int) (Math.log1p(value) / LOG_BASE);
+	}
+
+	private static double bucketValue(int index) {
+		// middle of the bucket
+		return Math.expm1((index + 0.5) * LOG_BASE);
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates a block gzip file in parallel: a gzip file of independent members of at most 64 KiB, whose headers contain
+ * the compressed size of the member (the extra field <code>BC</code> of the BGZF format, as written by
+ * {@link org.matsim.freight.carriers.BlockGzipOutputStream} or by <code>bgzip</code>).
+ * <p>
+ * One thread reads the members one after the other (only their headers have to be looked at to find the next one)
+ * directly into pooled direct buffers; the members are inflated by a pool of threads into pooled direct buffers as
+ * well, and handed out in file order. The number of members in flight is bounded, so the memory does not depend on the
+ * size of the file. The only copy is the one into the buffer of the reader.
+ * <p>
+ * A plain gzip file has no member sizes, so its members can only be found by inflating them one after the other; use
+ * {@link #isBlockGzip(String)} to decide whether this stream is of any use.
+ */
+final class ParallelGzipInputStream extends InputStream {
+
+	private static final Logger log = LogManager.getLogger(ParallelGzipInputStream.class);
+
+	private static final int MAX_BLOCK_SIZE = 1 << 16;
+	private static final int FIXED_HEADER_SIZE = 12;
+	private static final int TRAILER_SIZE = 8;
+	private static final int FEXTRA = 4;
+	private static final Future<ByteBuffer> END = CompletableFuture.completedFuture(null);
+
+	private final FileChannel channel;
+	private final ExecutorService executor;
+	private final Thread blockReader;
+	private final BlockingQueue<Future<ByteBuffer>> blocks;
+
+	private final Queue<ByteBuffer> compressedBuffers = new ConcurrentLinkedQueue<>();
+	private final Queue<ByteBuffer> inflatedBuffers = new ConcurrentLinkedQueue<>();
+	private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+	private ByteBuffer current = null;
+	private boolean finished = false;
+	private volatile boolean closed = false;
+
+	ParallelGzipInputStream(Path file, int numberOfThreads) throws IOException {
+		this.channel = FileChannel.open(file);
+		this.blocks = new ArrayBlockingQueue<>(4 * numberOfThreads);
+		this.executor = Executors.newFixedThreadPool(numberOfThreads, runnable -> {
+			Thread thread = new Thread(runnable, "gzip inflater");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.blockReader = new Thread(this::readBlocks, "gzip block reader");
+		this.blockReader.setDaemon(true);
+		this.blockReader.start();
+	}
+
+	/**
+	 * @return true, if the file starts with a gzip member with its compressed size in the header.
+	 */
+	static boolean isBlockGzip(String fileName) {
+		if (!fileName.endsWith(".gz")) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(Path.of(fileName))) {
+			return channel.size() > 0 && readBlockSize(channel, 0) > 0;
+		} catch (IOException e) {
+			log.warn("Could not read {}: {}", fileName, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @return the size of the gzip member at the offset, or -1 if its header does not contain it.
+	 */
+	private static int readBlockSize(FileChannel channel, long offset) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header, offset);
+		if ((header.get(0) & 0xff) != 31 || (header.get(1) & 0xff) != 139 || header.get(2) != 8) {
+			throw new IOException("Not a gzip member at offset " + offset);
+		}
+		if ((header.get(3) & FEXTRA) == 0) {
+			return -1;
+		}
+		final int extraLength = header.getShort(10) & 0xffff;
+		final ByteBuffer extra = ByteBuffer.allocate(extraLength).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, extra, offset + FIXED_HEADER_SIZE);
+		int i = 0;
+		while (i + 4 <= extraLength) {
+			final int subfieldLength = extra.getShort(i + 2) & 0xffff;
+			if (extra.get(i) == 'B' && extra.get(i + 1) == 'C' && subfieldLength == 2 && i + 6 <= extraLength) {
+				return (extra.getShort(i + 4) & 0xffff) + 1;
+			}
+			i += 4 + subfieldLength;
+		}
+		return -1;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of the gzip file at offset " + offset);
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Reads the members one after the other and hands them to the inflater threads.
+	 */
+	private void readBlocks() {
+		try {
+			final long size = channel.size();
+			long offset = 0;
+			while (offset < size && !closed) {
+				final int blockSize = readBlockSize(channel, offset);
+				if (blockSize < 0) {
+					throw new IOException("The gzip member at offset " + offset + " does not contain its size; not a block gzip file.");
+				}
+				ByteBuffer compressed = acquire(compressedBuffers);
+				compressed.limit(blockSize);
+				readFully(channel, compressed, offset);
+				final ByteBuffer block = compressed;
+				final long blockOffset = offset;
+				blocks.put(executor.submit(() -> inflate(block, blockOffset)));
+				offset += blockSize;
+			}
+			blocks.put(END);
+		} catch (InterruptedException e) {
+			// closed
+		} catch (Exception e) {
+			blocks.clear();
+			blocks.offer(CompletableFuture.failedFuture(e));
+		}
+	}
+
+	private ByteBuffer inflate(ByteBuffer compressed, long offset) throws IOException {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		final ByteBuffer inflated = acquire(inflatedBuffers);
+		try {
+			compressed.order(ByteOrder.LITTLE_ENDIAN);
+			final int trailer = compressed.limit() - TRAILER_SIZE;
+			final int expectedCrc = compressed.getInt(trailer);
+			final int expectedSize = compressed.getInt(trailer + 4);
+			compressed.position(FIXED_HEADER_SIZE + (compressed.getShort(10) & 0xffff)).limit(trailer);
+
+			inflater.reset();
+			inflater.setInput(compressed);
+			while (!inflater.finished()) {
+				if (inflater.inflate(inflated) == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary() || !inflated.hasRemaining())) {
+					throw new IOException("Corrupt gzip member at offset " + offset);
+				}
+			}
+			inflated.flip();
+			final CRC32 crc = new CRC32();
+			crc.update(inflated.duplicate());
+			if (inflated.remaining() != expectedSize || (int) crc.getValue() != expectedCrc) {
+				throw new IOException("Checksum error in the gzip member at offset " + offset);
+			}
+			return inflated;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt gzip member at offset " + offset, e);
+		} finally {
+			release(compressedBuffers, compressed);
+			if (closed) {
+				inflater.end();
+			} else {
+				inflaters.offer(inflater);
+			}
+		}
+	}
+
+	private static ByteBuffer acquire(Queue<ByteBuffer> pool) {
+		final ByteBuffer buffer = pool.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(MAX_BLOCK_SIZE);
+	}
+
+	private static void release(Queue<ByteBuffer> pool, ByteBuffer buffer) {
+		buffer.clear();
+		pool.offer(buffer);
+	}
+
+	/**
+	 * @return false at the end of the file
+	 */
+	private boolean nextBlock() throws IOException {
+		while (current == null || !current.hasRemaining()) {
+			if (current != null) {
+				release(inflatedBuffers, current);
+				current = null;
+			}
+			if (finished) {
+				return false;
+			}
+			try {
+				final Future<ByteBuffer> block = blocks.take();
+				if (block == END) {
+					finished = true;
+					return false;
+				}
+				current = block.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while inflating.");
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException ioException ? ioException : new IOException(e.getCause());
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return nextBlock() ? current.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextBlock()) {
+			return -1;
+		}
+		final int n = Math.min(len, current.remaining());
+		current.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current == null ? 0 : current.remaining();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		blockReader.interrupt();
+		executor.shutdownNow();
+		Inflater inflater;
+		while ((inflater = inflaters.poll()) != null) {
+			inflater.end();
+		}
+		channel.close();
+	}
+}
@@ -26,15 +26,25 @@ import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigGroup;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.events.EventsUtils;
 import org.matsim.core.events.MatsimEventsReader;
-import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.freight.carriers.Carrier;
+import org.matsim.freight.carriers.CarrierVehicle;
 import org.matsim.freight.carriers.CarriersUtils;
 import org.matsim.freight.carriers.FreightCarriersConfigGroup;
+import org.matsim.freight.carriers.ParallelFreightScenarioLoader;
 import org.matsim.freight.carriers.events.CarrierEventsReaders;
+import org.matsim.vehicles.VehicleUtils;
+import org.matsim.vehicles.Vehicles;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 
 /**
@@ -52,6 +62,10 @@ public class RunFreightAnalysisEventBased {
 	//What are the settings?
 	protected static final String fileExtension = ".csv";
 	protected static final String delimiter = ";";
+	//Increase this whenever the content of the output tables changes, so that existing outputs get recomputed.
+	// 2: durations per vehicle and carrier summed over the tours, waits for the time windows inside the activities
+	// 3: pickup lateness and earliness per carrier
+	static final String ANALYSIS_VERSION = "3";
 	private static final Logger log = LogManager.getLogger(RunFreightAnalysisEventBased.class);
 
 	//Where is your simulation output, that should be analysed?
@@ -59,6 +73,19 @@ public class RunFreightAnalysisEventBased {
 	private final String ANALYSIS_OUTPUT_PATH;
 	private final String GLOBAL_CRS;
 
+	private final Map<String, Map<String, String>> moduleOptions = new TreeMap<>();
+	private boolean incremental = true;
+	private boolean writeColumnarTables = false;
+	private boolean compressColumnarTables = false;
+
+	private EventSample sample = null;
+	private EventSource eventSource = null;
+	private String runConfigFile = null;
+	private SnapshotSink snapshotSink = null;
+	private double snapshotInterval;
+	private int snapshotIntervalsPerWindow;
+	private AnalysisProgressListener progressListener = null;
+
 	/**
 	 * @param simOutputPath      The output directory of the simulation run
 	 * @param analysisOutputPath The directory where the result of the analysis should go to
@@ -70,11 +97,110 @@ public class RunFreightAnalysisEventBased {
 		this.GLOBAL_CRS = globalCrs;
 	}
 
+	/**
+	 * If set, the freight traffic volumes per link, vehicle type and hour are written additionally
+	 * (<code>Traffic_perLinkVehicleTypeAndHour</code>, <code>Traffic_perLink</code>). Default is false.
+	 */
+	public void setWriteLinkVolumes(boolean writeLinkVolumes) {
+		setModuleOption("timeAndDistance", FreightAnalysisModules.LINK_VOLUMES, String.valueOf(writeLinkVolumes));
+	}
+
+	/**
+	 * Sets an option of one analysis module, see {@link FreightAnalysisModule#configure(Map)}. The options of the
+	 * built-in modules are listed in {@link FreightAnalysisModules}.
+	 *
+	 * @param module the name of the module, see {@link FreightAnalysisModule#getName()}
+	 */
+	public void setModuleOption(String module, String option, String value) {
+		moduleOptions.computeIfAbsent(module, k -> new TreeMap<>()).put(option, value);
+	}
+
+	/**
+	 * If set, all tables are additionally written in a typed, columnar format (numpy <code>.npz</code>), which loads
+	 * much faster into Python or R than the csv files. See {@link ColumnarTableExport}. Default is false.
+	 *
+	 * @param compress if set, the columns are deflated. Smaller, but the columns have to be inflated when loading.
+	 */
+	public void setWriteColumnarTables(boolean write, boolean compress) {
+		this.writeColumnarTables = write;
+		this.compressColumnarTables = compress;
+	}
+
+	/**
+	 * If set, the analysis steps whose inputs (and the analysis version) did not change since the last run into the
+	 * same analysis output directory are skipped. See {@link AnalysisManifest}. Default is true.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * If set, only the events of a deterministic sample of the vehicles or carriers are analysed. The events file is
+	 * still read completely; the sample saves the time and memory of the analysis handlers, not the reading time.
+	 * The totals of the general summary and of the table per vehicle type are then estimates, with 95% confidence
+	 * intervals; the other tables only contain the sampled vehicles. See {@link EventSample}. Default is null, i.e.
+	 * all events are analysed exactly.
+	 */
+	public void setSample(EventSample sample) {
+		this.sample = sample;
+	}
+
+	/**
+	 * Bounds the memory of the analysis for very large fleets: the per-vehicle data of the time and distance and of
+	 * the load analysis are written to disk, if more than <code>maxVehiclesInMemory</code> vehicles are held in memory,
+	 * and merged when the tables are written. The results are the same. See {@link SpillingVehicleMap}. Default is
+	 * unbounded.
+	 */
+	public void setMaxVehiclesInMemory(int maxVehiclesInMemory) {
+		setModuleOption("timeAndDistance", FreightAnalysisModules.MAX_VEHICLES_IN_MEMORY, String.valueOf(maxVehiclesInMemory));
+		setModuleOption("load", FreightAnalysisModules.MAX_VEHICLES_IN_MEMORY, String.valueOf(maxVehiclesInMemory));
+	}
+
+	/**
+	 * Where the events come from. Default is the <code>output_events.xml.gz</code> of the simulation output; a live
+	 * simulation can be analysed with {@link EventSource#pipe(String)} or {@link EventSource#socket(String, int)}.
+	 * A running simulation has not written its output network, vehicles and carriers yet, so these are then read from
+	 * the input files of the run, see {@link #setRunConfig(String)}.
+	 */
+	public void setEventSource(EventSource eventSource) {
+		this.eventSource = eventSource;
+	}
+
+	/**
+	 * The config the simulation was started with. Required if the events come from a stream: the network, vehicles
+	 * and carriers are then read from the input files of this config, and the carrier vehicles are added to the
+	 * vehicles, as in the QSim. Carriers which are only planned during the run have no tours in the input, so the
+	 * plan based columns of the carrier summary stay empty. Not used for events files.
+	 */
+	public void setRunConfig(String runConfigFile) {
+		this.runConfigFile = runConfigFile;
+	}
+
+	/**
+	 * Additionally emits rolling KPI snapshots while the events are read, see {@link FreightKpiSnapshots}.
+	 *
+	 * @param snapshotInterval   simulated seconds between two snapshots
+	 * @param intervalsPerWindow length of the rolling window in intervals
+	 * @param sink               receives the snapshots; closed at the end of the analysis
+	 */
+	public void setSnapshots(double snapshotInterval, int intervalsPerWindow, SnapshotSink sink) {
+		this.snapshotInterval = snapshotInterval;
+		this.snapshotIntervalsPerWindow = intervalsPerWindow;
+		this.snapshotSink = sink;
+	}
+
+	/**
+	 * Reports the steps of the analysis and the number and rate of the events read, see {@link AnalysisProgressListener}.
+	 */
+	public void setProgressListener(AnalysisProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
 	public void runAnalysis() throws Exception {
 
+		final EventSource source = eventSource != null ? eventSource : EventSource.file(SIM_OUTPUT_PATH + "output_events.xml.gz");
+
 		Config config = ConfigUtils.createConfig();
-		config.vehicles().setVehiclesFile(SIM_OUTPUT_PATH + "output_allVehicles.xml.gz");
-		config.network().setInputFile(SIM_OUTPUT_PATH + "output_network.xml.gz");
 		config.global().setCoordinateSystem(GLOBAL_CRS);
 		config.plans().setInputFile(null);
 		config.eventsManager().setNumberOfThreads(null);
@@ -82,8 +208,15 @@ public class RunFreightAnalysisEventBased {
 		config.global().setNumberOfThreads(1);
 		//freight settings
 		FreightCarriersConfigGroup freightCarriersConfigGroup = ConfigUtils.addOrGetModule( config, FreightCarriersConfigGroup.class ) ;
-		freightCarriersConfigGroup.setCarriersFile( SIM_OUTPUT_PATH + "output_carriers.xml.gz");
-		freightCarriersConfigGroup.setCarriersVehicleTypesFile(SIM_OUTPUT_PATH + "output_carriersVehicleTypes.xml.gz");
+		if (source.isFile()) {
+			config.vehicles().setVehiclesFile(SIM_OUTPUT_PATH + "output_allVehicles.xml.gz");
+			config.network().setInputFile(SIM_OUTPUT_PATH + "output_network.xml.gz");
+			freightCarriersConfigGroup.setCarriersFile( SIM_OUTPUT_PATH + "output_carriers.xml.gz");
+			freightCarriersConfigGroup.setCarriersVehicleTypesFile(SIM_OUTPUT_PATH + "output_carriersVehicleTypes.xml.gz");
+		} else {
+			// the output files are only written when the simulation shuts down
+			setInputFilesOfRun(config, freightCarriersConfigGroup);
+		}
 
 		//Were to store the analysis output?
 		String analysisOutputDirectory = ANALYSIS_OUTPUT_PATH;
@@ -93,47 +226,204 @@ public class RunFreightAnalysisEventBased {
 		File folder = new File(analysisOutputDirectory);
 		folder.mkdirs();
 
-		final String eventsFile = SIM_OUTPUT_PATH + "output_events.xml.gz";
-
-		Scenario scenario = ScenarioUtils.loadScenario(config);
-
-		//load carriers according to freight config
-		CarriersUtils.loadCarriersAccordingToFreightConfig( scenario );
+		//Which steps have to be (re-)computed?
+		AnalysisManifest manifest = new AnalysisManifest(analysisOutputDirectory);
 
 		//Log analysis
 		//added bei AUE
 		//ToDo: add log analysis for jsprit
 		String jSpritLog = SIM_OUTPUT_PATH+"current_log_snapshot.log";
-		LogFileAnalysis logFileAnalysis = new LogFileAnalysis(log,SIM_OUTPUT_PATH,analysisOutputDirectory);
-		logFileAnalysis.runLogFileAnalysis();
+		final String logFingerprint = manifest.fingerprint(ANALYSIS_VERSION, List.of(SIM_OUTPUT_PATH + "logfile.log"));
+		if (incremental && manifest.isUpToDate("logFile", logFingerprint, List.of("run_info" + fileExtension))) {
+			log.info("Log analysis is up to date. Skipping.");
+		} else {
+			reportStep("Analysing the log file");
+			LogFileAnalysis logFileAnalysis = new LogFileAnalysis(log, SIM_OUTPUT_PATH, analysisOutputDirectory);
+			logFileAnalysis.runLogFileAnalysis();
+			manifest.markDone("logFile", logFingerprint);
+		}
+
+		//All event based tables come from one pass over the events, so they are (re-)computed together.
+		List<FreightAnalysisModule> modules = FreightAnalysisModules.load(moduleOptions);
+		// a stream can not be hashed in advance
+		String eventsFingerprint = null;
+		if (source.isFile()) {
+			// the events file which is actually read, also if it is not the one of the simulation output
+			List<String> inputFiles = List.of(source.getFileName(), config.network().getInputFile(), config.vehicles().getVehiclesFile(),
+					freightCarriersConfigGroup.getCarriersFile(), freightCarriersConfigGroup.getCarriersVehicleTypesFile());
+			eventsFingerprint = manifest.fingerprint(ANALYSIS_VERSION + "_options=" + moduleOptions + "_sample=" + sample
+							+ "_columnar=" + writeColumnarTables + "_" + compressColumnarTables
+							+ "_modules=" + modules.stream().map(FreightAnalysisModule::getName).toList(),
+					inputFiles);
+		}
+		// (the output files only depend on the settings, not on the scenario)
+		final FreightAnalysisModule.Context outputContext = new FreightAnalysisModule.Context(null, null, analysisOutputDirectory, sample);
+		List<String> outputFiles = new ArrayList<>();
+		for (FreightAnalysisModule module : modules) {
+			outputFiles.addAll(module.getOutputFiles(outputContext));
+			if (writeColumnarTables) {
+				module.getTables(outputContext).forEach(table -> outputFiles.add(ColumnarTableExport.getColumnarFileName(table)));
+			}
+		}
+		// snapshots are only produced while reading
+		if (incremental && source.isFile() && snapshotSink == null && manifest.isUpToDate("events", eventsFingerprint, outputFiles)) {
+			log.info("Event based analysis is up to date. Skipping.");
+			reportStep("Up to date");
+			return;
+		}
+
+		//load scenario and carriers according to freight config; the input files are parsed concurrently
+		reportStep("Loading the scenario");
+		Scenario scenario = ParallelFreightScenarioLoader.loadScenario(config);
+		if (!source.isFile()) {
+			addCarrierVehicles(scenario);
+		}
 
 		// CarrierPlanAnalysis
 		//CarrierPlanAnalysis carrierPlanAnalysis = new CarrierPlanAnalysis(CarriersUtils.getCarriers(scenario));
 		//carrierPlanAnalysis.runAnalysisAndWriteStats(analysisOutputDirectory);
 
 		// Prepare eventsManager - start of event based Analysis;
-		EventsManager eventsManager = EventsUtils.createEventsManager();
+		// All modules are multiplexed onto one handler, which dispatches the events by type.
+		final FreightAnalysisModule.Context context = new FreightAnalysisModule.Context(scenario, CarriersUtils.getCarriers(scenario), analysisOutputDirectory, sample);
+		try {
+			EventTypeDispatcher dispatcher = new EventTypeDispatcher();
+			for (FreightAnalysisModule module : modules) {
+				module.registerEventHandlers(context, dispatcher);
+			}
+
+			FreightKpiSnapshots snapshots = null;
+			if (snapshotSink != null) {
+				snapshots = new FreightKpiSnapshots(scenario.getNetwork(), snapshotSink, snapshotInterval, snapshotIntervalsPerWindow);
+				snapshots.registerEventHandlers(dispatcher);
+			}
+			// the handlers keep their state in plain collections and rely on the order of the events
+			dispatcher.requireSingleThread();
+
+			EventsManager eventsManager = EventsUtils.createEventsManager();
+			if (sample != null) {
+				log.info("Only analysing a sample of the events: {}", sample);
+				eventsManager.addHandler(sample.createFilter(dispatcher));
+			} else {
+				eventsManager.addHandler(dispatcher);
+			}
+
+			EventRateMeter rateMeter = null;
+			if (progressListener != null) {
+				// (counts all events, also those which are not sampled)
+				rateMeter = new EventRateMeter(progressListener);
+				eventsManager.addHandler(rateMeter);
+			}
+
+			eventsManager.initProcessing();
+			MatsimEventsReader matsimEventsReader = CarrierEventsReaders.createEventsReader(eventsManager);
+
+			log.info("Reading events from {}", source);
+			reportStep("Reading the events");
+			try {
+				source.readEvents(matsimEventsReader);
+				eventsManager.finishProcessing();
+				if (rateMeter != null) {
+					rateMeter.finish();
+				}
+				if (snapshots != null) {
+					snapshots.finish();
+				}
+			} finally {
+				if (snapshotSink != null) {
+					snapshotSink.close();
+				}
+			}
 
-		FreightTimeAndDistanceAnalysisEventsHandler freightTimeAndDistanceAnalysisEventsHandler =
-				new FreightTimeAndDistanceAnalysisEventsHandler(scenario,CarriersUtils.getCarriers(scenario));
-		eventsManager.addHandler(freightTimeAndDistanceAnalysisEventsHandler);
+			log.info("Analysis completed.");
+			log.info("Writing output...");
+			reportStep("Writing the output");
+			//The modules only read the scenario and their own data, so they write their output concurrently.
+			List<ConcurrentOutput.Task> outputTasks = new ArrayList<>();
+			for (FreightAnalysisModule module : modules) {
+				outputTasks.add(() -> {
+					module.writeOutput(context);
+					if (writeColumnarTables) {
+						for (String table : module.getTables(context)) {
+							ColumnarTableExport.export(analysisOutputDirectory + table, compressColumnarTables);
+						}
+					}
+				});
+			}
+			ConcurrentOutput.run(outputTasks);
+		} finally {
+			closeModules(modules);
+		}
+		if (source.isFile()) {
+			manifest.markDone("events", eventsFingerprint);
+		}
+		reportStep("Done");
+	}
 
-		CarrierLoadAnalysis carrierLoadAnalysis = new CarrierLoadAnalysis(CarriersUtils.getCarriers(scenario));
-		eventsManager.addHandler(carrierLoadAnalysis);
+	/**
+	 * Reads the network, vehicles and carriers from the input files of the run config.
+	 */
+	private void setInputFilesOfRun(Config config, FreightCarriersConfigGroup freightCarriersConfigGroup) {
+		if (runConfigFile == null) {
+			throw new IllegalStateException("The events come from a running simulation, which writes its output network, vehicles and carriers only "
+					+ "when it shuts down. Set the config of the run, see setRunConfig.");
+		}
+		Config runConfig = ConfigUtils.loadConfig(runConfigFile, new FreightCarriersConfigGroup());
+		FreightCarriersConfigGroup runFreightCarriersConfigGroup = ConfigUtils.addOrGetModule(runConfig, FreightCarriersConfigGroup.class);
+		config.network().setInputFile(getInputFileOfRun(runConfig, runConfig.network().getInputFile()));
+		config.network().setInputCRS(runConfig.network().getInputCRS());
+		config.vehicles().setVehiclesFile(getInputFileOfRun(runConfig, runConfig.vehicles().getVehiclesFile()));
+		freightCarriersConfigGroup.setCarriersFile(getInputFileOfRun(runConfig, runFreightCarriersConfigGroup.getCarriersFile()));
+		freightCarriersConfigGroup.setCarriersVehicleTypesFile(getInputFileOfRun(runConfig, runFreightCarriersConfigGroup.getCarriersVehicleTypesFile()));
+	}
 
-		eventsManager.initProcessing();
-		MatsimEventsReader matsimEventsReader = CarrierEventsReaders.createEventsReader(eventsManager);
+	// the file names in the run config are relative to its location
+	private static String getInputFileOfRun(Config runConfig, String fileName) {
+		return fileName == null ? null : ConfigGroup.getInputFileURL(runConfig.getContext(), fileName).toString();
+	}
 
-		matsimEventsReader.readFile(eventsFile);
-		eventsManager.finishProcessing();
+	/**
+	 * The QSim adds the carrier vehicles to the vehicles; the input vehicles of a run do not contain them.
+	 */
+	private static void addCarrierVehicles(Scenario scenario) {
+		final Vehicles vehicles = scenario.getVehicles();
+		for (Carrier carrier : CarriersUtils.getCarriers(scenario).getCarriers().values()) {
+			for (CarrierVehicle carrierVehicle : carrier.getCarrierCapabilities().getCarrierVehicles().values()) {
+				if (!vehicles.getVehicleTypes().containsKey(carrierVehicle.getType().getId())) {
+					vehicles.addVehicleType(carrierVehicle.getType());
+				}
+				if (!vehicles.getVehicles().containsKey(carrierVehicle.getId())) {
+					vehicles.addVehicle(VehicleUtils.createVehicle(carrierVehicle.getId(), carrierVehicle.getType()));
+				}
+			}
+		}
+	}
+
+	private void reportStep(String step) {
+		if (progressListener != null) {
+			progressListener.step(step);
+		}
+	}
 
-		log.info("Analysis completed.");
-		log.info("Writing output...");
-		freightTimeAndDistanceAnalysisEventsHandler.writeTravelTimeAndDistancePerVehicle(analysisOutputDirectory, scenario);
-		freightTimeAndDistanceAnalysisEventsHandler.writeTravelTimeAndDistancePerVehicleType(analysisOutputDirectory, scenario);
-		freightTimeAndDistanceAnalysisEventsHandler.writeGeneralStats(analysisOutputDirectory);
-		freightTimeAndDistanceAnalysisEventsHandler.runCarrierAnalysisAndWriteStats(analysisOutputDirectory);
-		carrierLoadAnalysis.writeLoadAnalysis(analysisOutputDirectory, scenario);
+	/**
+	 * Closes all modules; the first failure is rethrown after all modules are closed.
+	 */
+	private static void closeModules(List<FreightAnalysisModule> modules) throws IOException {
+		IOException failure = null;
+		for (FreightAnalysisModule module : modules) {
+			try {
+				module.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
 	}
 
 }
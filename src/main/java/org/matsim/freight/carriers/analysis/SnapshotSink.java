@@ -0,0 +1,72 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Receives the KPI snapshots of the {@link FreightKpiSnapshots}.
+ */
+public interface SnapshotSink extends AutoCloseable {
+
+	void write(FreightKpiSnapshots.Snapshot snapshot) throws IOException;
+
+	@Override
+	void close() throws IOException;
+
+	/**
+	 * Writes the snapshots to a csv file. Every line is flushed directly, so that the file can be followed while the
+	 * simulation is running.
+	 */
+	static SnapshotSink csv(String fileName) throws IOException {
+		final BufferedWriter bw = new BufferedWriter(new FileWriter(fileName));
+		bw.write("time[s]" + RunFreightAnalysisEventBased.delimiter
+				+ "windowTravelDistance[km]" + RunFreightAnalysisEventBased.delimiter
+				+ "totalTravelDistance[km]" + RunFreightAnalysisEventBased.delimiter
+				+ "activeTours" + RunFreightAnalysisEventBased.delimiter
+				+ "startedTours" + RunFreightAnalysisEventBased.delimiter
+				+ "endedTours" + RunFreightAnalysisEventBased.delimiter
+				+ "load");
+		bw.newLine();
+		bw.flush();
+		return new SnapshotSink() {
+			@Override
+			public void write(FreightKpiSnapshots.Snapshot snapshot) throws IOException {
+				bw.write(String.valueOf(snapshot.time()));
+				bw.write(RunFreightAnalysisEventBased.delimiter + snapshot.windowVehicleKm());
+				bw.write(RunFreightAnalysisEventBased.delimiter + snapshot.totalVehicleKm());
+				bw.write(RunFreightAnalysisEventBased.delimiter + snapshot.activeTours());
+				bw.write(RunFreightAnalysisEventBased.delimiter + snapshot.startedTours());
+				bw.write(RunFreightAnalysisEventBased.delimiter + snapshot.endedTours());
+				bw.write(RunFreightAnalysisEventBased.delimiter + snapshot.load());
+				bw.newLine();
+				bw.flush();
+			}
+
+			@Override
+			public void close() throws IOException {
+				bw.close();
+			}
+		};
+	}
+}
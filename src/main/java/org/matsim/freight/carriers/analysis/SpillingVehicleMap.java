@@ -0,0 +1,220 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Supplier;
+
+/**
+ * Map from vehicles to mergeable accumulators, with a bounded number of entries in memory.
+ * <p>
+ * If the number of vehicles in memory reaches the budget, all accumulators are written to a run file on disk, sorted
+ * by vehicle id, and the memory is cleared. The events go on into fresh accumulators, so a vehicle may have partial
+ * accumulators in several runs. At the end, {@link #forEach(Consumer)} merges the runs (external k-way merge) and
+ * hands out one merged accumulator per vehicle, sorted by vehicle id. The partial accumulators of a vehicle are
+ * merged in the order in which they were written, i.e. in time order.
+ * <p>
+ * With an unlimited budget, nothing is written to disk.
+ *
+ * @param <V> the accumulator, which is changed in place by the event handlers
+ */
+final class SpillingVehicleMap<V> implements Closeable {
+
+	private static final Logger log = LogManager.getLogger(SpillingVehicleMap.class);
+
+	/**
+	 * Writes, reads and merges the accumulators.
+	 */
+	interface Codec<V> {
+		void write(DataOutput out, V value) throws IOException;
+
+		V read(DataInput in) throws IOException;
+
+		/**
+		 * @return the merge of both; may change and return <code>earlier</code>
+		 */
+		V merge(V earlier, V later);
+	}
+
+	interface Consumer<V> {
+		void accept(Id<Vehicle> vehicleId, V value) throws IOException;
+	}
+
+	private final Supplier<V> factory;
+	private final Codec<V> codec;
+	private final int maxVehiclesInMemory;
+	private final Path spillDirectory;
+
+	private final Map<Id<Vehicle>, V> inMemory = new HashMap<>();
+	private final List<Path> runs = new ArrayList<>();
+
+	/**
+	 * @param maxVehiclesInMemory the budget; {@link Integer#MAX_VALUE} for no spilling
+	 * @param spillDirectory      where the runs are written; they are deleted on {@link #close()}
+	 */
+	SpillingVehicleMap(Supplier<V> factory, Codec<V> codec, int maxVehiclesInMemory, Path spillDirectory) {
+		if (maxVehiclesInMemory < 1) {
+			throw new IllegalArgumentException("maxVehiclesInMemory must be >= 1");
+		}
+		this.factory = factory;
+		this.codec = codec;
+		this.maxVehiclesInMemory = maxVehiclesInMemory;
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * @return the accumulator of the vehicle, which may be changed until the next call of this method
+	 */
+	V get(Id<Vehicle> vehicleId) {
+		V value = inMemory.get(vehicleId);
+		if (value == null) {
+			if (inMemory.size() >= maxVehiclesInMemory) {
+				spill();
+			}
+			value = factory.get();
+			inMemory.put(vehicleId, value);
+		}
+		return value;
+	}
+
+	private void spill() {
+		try {
+			Files.createDirectories(spillDirectory);
+			Path run = Files.createTempFile(spillDirectory, "vehicles", ".run");
+			List<Map.Entry<Id<Vehicle>, V>> entries = new ArrayList<>(inMemory.entrySet());
+			entries.sort(Comparator.comparing(entry -> entry.getKey().toString()));
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+				for (Map.Entry<Id<Vehicle>, V> entry : entries) {
+					out.writeUTF(entry.getKey().toString());
+					codec.write(out, entry.getValue());
+				}
+			}
+			runs.add(run);
+			log.info("Spilled {} vehicles to {} (run {}).", entries.size(), run, runs.size());
+			inMemory.clear();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Calls the consumer with the merged accumulator of every vehicle, sorted by vehicle id. Can be called several
+	 * times.
+	 */
+	void forEach(Consumer<V> consumer) throws IOException {
+		if (runs.isEmpty()) {
+			List<Id<Vehicle>> vehicleIds = new ArrayList<>(inMemory.keySet());
+			vehicleIds.sort(Comparator.comparing(Id::toString));
+			for (Id<Vehicle> vehicleId : vehicleIds) {
+				consumer.accept(vehicleId, inMemory.get(vehicleId));
+			}
+			return;
+		}
+		if (!inMemory.isEmpty()) {
+			// the last partial accumulators become the last run, so that all runs can be merged the same way
+			spill();
+		}
+
+		List<RunCursor> cursors = new ArrayList<>();
+		PriorityQueue<RunCursor> queue = new PriorityQueue<>(Comparator.comparing((RunCursor cursor) -> cursor.key).thenComparingInt(cursor -> cursor.runIndex));
+		try {
+			for (int runIndex = 0; runIndex < runs.size(); runIndex++) {
+				RunCursor cursor = new RunCursor(runIndex, new DataInputStream(new BufferedInputStream(Files.newInputStream(runs.get(runIndex)), 1 << 16)));
+				cursors.add(cursor);
+				if (cursor.advance()) {
+					queue.add(cursor);
+				}
+			}
+			while (!queue.isEmpty()) {
+				RunCursor first = queue.poll();
+				final String key = first.key;
+				V merged = first.value;
+				if (first.advance()) {
+					queue.add(first);
+				}
+				while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+					RunCursor next = queue.poll();
+					merged = codec.merge(merged, next.value);
+					if (next.advance()) {
+						queue.add(next);
+					}
+				}
+				consumer.accept(Id.createVehicleId(key), merged);
+			}
+		} finally {
+			for (RunCursor cursor : cursors) {
+				cursor.in.close();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Path run : runs) {
+			Files.deleteIfExists(run);
+		}
+		runs.clear();
+	}
+
+	private final class RunCursor {
+		private final int runIndex;
+		private final DataInputStream in;
+		private String key;
+		private V value;
+
+		private RunCursor(int runIndex, DataInputStream in) {
+			this.runIndex = runIndex;
+			this.in = in;
+		}
+
+		private boolean advance() throws IOException {
+			try {
+				key = in.readUTF();
+			} catch (EOFException e) {
+				return false;
+			}
+			value = codec.read(in);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,400 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.freight.carriers.Carrier;
+import org.matsim.freight.carriers.CarrierService;
+import org.matsim.freight.carriers.CarrierShipment;
+import org.matsim.freight.carriers.Carriers;
+import org.matsim.freight.carriers.TimeWindow;
+import org.matsim.freight.carriers.Tour;
+import org.matsim.freight.carriers.events.AbstractCarrierEvent;
+import org.matsim.freight.carriers.events.CarrierServiceEndEvent;
+import org.matsim.freight.carriers.events.CarrierServiceStartEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentDeliveryEndEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentDeliveryStartEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentPickupEndEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentPickupStartEvent;
+import org.matsim.freight.carriers.events.CarrierTourEndEvent;
+import org.matsim.freight.carriers.events.CarrierTourStartEvent;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reconstructs the timeline of every tour from the events: the legs between the stops, and per stop (service, pickup
+ * or delivery) the arrival, the wait until the activity starts and the activity itself.
+ * <p>
+ * The start events of the stops are thrown at the arrival; the vehicle waits for the time window inside the activity.
+ * So the actual start of a stop is its end minus the service time of the service or shipment (see
+ * {@link CarrierShipmentAnalysis#getServiceStart}); as long as the stop has not ended, the opening of the time window.
+ * <p>
+ * A vehicle may drive several tours one after the other; every {@link CarrierTourStartEvent} opens a new tour. The
+ * tours and the stops are stored column-wise in primitive arrays (struct of arrays), the ids as their
+ * {@link Id#index()}. The state of the vehicles is kept in arrays indexed by the vehicle id index. So no objects are
+ * created per event, and the memory per stop is a few dozen bytes.
+ * <p>
+ * Output: <code>Tour_perTour</code> and <code>Tour_perStop</code>.
+ */
+final class TourTimeline {
+
+	private static final Logger log = LogManager.getLogger(TourTimeline.class);
+
+	private static final int NONE = -1;
+	private static final byte SERVICE = 0;
+	private static final byte PICKUP = 1;
+	private static final byte DELIVERY = 2;
+	private static final String[] STOP_TYPES = {"service", "pickup", "delivery"};
+
+	private final Network network;
+	private final Carriers carriers;
+
+	//Tours
+	private int nuOfTours = 0;
+	private int[] tourCarrier = new int[64];
+	private int[] tourId = new int[64];
+	private int[] tourVehicle = new int[64];
+	private double[] tourStart = new double[64];
+	private double[] tourEnd = new double[64];
+	private double[] tourDistance = new double[64];
+	private double[] tourDrivingTime = new double[64];
+	private double[] tourWaitTime = new double[64];
+	private double[] tourActivityTime = new double[64];
+	private int[] tourNuOfLegs = new int[64];
+	private int[] tourNuOfStops = new int[64];
+
+	//Stops
+	private int nuOfStops = 0;
+	private int[] stopTour = new int[256];
+	private int[] stopNumber = new int[256];
+	private byte[] stopType = new byte[256];
+	private int[] stopActivity = new int[256];
+	private int[] stopLink = new int[256];
+	private double[] stopLegDistance = new double[256];
+	private double[] stopArrival = new double[256];
+	private double[] stopStart = new double[256];
+	private double[] stopEnd = new double[256];
+
+	//State per vehicle (by vehicle id index)
+	private int[] vehicleTour = new int[0];
+	private int[] vehicleStop = new int[0];
+	private double[] vehicleDeparture = new double[0];
+	private double[] vehicleArrival = new double[0];
+	private double[] vehicleLegDistance = new double[0];
+
+	TourTimeline(Network network, Carriers carriers) {
+		this.network = network;
+		this.carriers = carriers;
+	}
+
+	void registerEventHandlers(EventTypeDispatcher dispatcher) {
+		dispatcher.addHandler(CarrierTourStartEvent.class, this::handleEvent);
+		dispatcher.addHandler(CarrierTourEndEvent.class, this::handleEvent);
+		dispatcher.addHandler(VehicleEntersTrafficEvent.class, this::handleEvent);
+		dispatcher.addHandler(LinkEnterEvent.class, this::handleEvent);
+		dispatcher.addHandler(VehicleLeavesTrafficEvent.class, this::handleEvent);
+		dispatcher.addHandler(CarrierServiceStartEvent.class, event -> startStop(event, SERVICE, event.getServiceId().index()));
+		dispatcher.addHandler(CarrierShipmentPickupStartEvent.class, event -> startStop(event, PICKUP, event.getShipmentId().index()));
+		dispatcher.addHandler(CarrierShipmentDeliveryStartEvent.class, event -> startStop(event, DELIVERY, event.getShipmentId().index()));
+		dispatcher.addHandler(CarrierServiceEndEvent.class, this::endStop);
+		dispatcher.addHandler(CarrierShipmentPickupEndEvent.class, this::endStop);
+		dispatcher.addHandler(CarrierShipmentDeliveryEndEvent.class, this::endStop);
+	}
+
+	private void handleEvent(CarrierTourStartEvent event) {
+		final int vehicle = event.getVehicleId().index();
+		ensureVehicleCapacity(vehicle);
+		if (nuOfTours == tourId.length) {
+			growTours();
+		}
+		final int tour = nuOfTours++;
+		tourCarrier[tour] = event.getCarrierId().index();
+		tourId[tour] = event.getTourId().index();
+		tourVehicle[tour] = vehicle;
+		tourStart[tour] = event.getTime();
+		tourEnd[tour] = Double.NaN;
+		vehicleTour[vehicle] = tour;
+		vehicleStop[vehicle] = NONE;
+		vehicleArrival[vehicle] = Double.NaN;
+		vehicleLegDistance[vehicle] = 0.;
+	}
+
+	private void handleEvent(CarrierTourEndEvent event) {
+		final int tour = getTour(event.getVehicleId());
+		if (tour != NONE) {
+			tourEnd[tour] = event.getTime();
+			vehicleTour[event.getVehicleId().index()] = NONE;
+		}
+	}
+
+	private void handleEvent(VehicleEntersTrafficEvent event) {
+		final int tour = getTour(event.getVehicleId());
+		if (tour != NONE) {
+			final int vehicle = event.getVehicleId().index();
+			vehicleDeparture[vehicle] = event.getTime();
+			tourNuOfLegs[tour]++;
+		}
+	}
+
+	private void handleEvent(LinkEnterEvent event) {
+		final int tour = getTour(event.getVehicleId());
+		if (tour != NONE) {
+			final double length = network.getLinks().get(event.getLinkId()).getLength();
+			vehicleLegDistance[event.getVehicleId().index()] += length;
+			tourDistance[tour] += length;
+		}
+	}
+
+	private void handleEvent(VehicleLeavesTrafficEvent event) {
+		final int tour = getTour(event.getVehicleId());
+		if (tour != NONE) {
+			final int vehicle = event.getVehicleId().index();
+			vehicleArrival[vehicle] = event.getTime();
+			tourDrivingTime[tour] += event.getTime() - vehicleDeparture[vehicle];
+		}
+	}
+
+	private void startStop(AbstractCarrierEvent event, byte type, int activity) {
+		final int tour = getTour(event.getVehicleId());
+		if (tour == NONE) {
+			return;
+		}
+		final int vehicle = event.getVehicleId().index();
+		if (nuOfStops == stopTour.length) {
+			growStops();
+		}
+		final int stop = nuOfStops++;
+		stopTour[stop] = tour;
+		stopNumber[stop] = tourNuOfStops[tour]++;
+		stopType[stop] = type;
+		stopActivity[stop] = activity;
+		stopLink[stop] = event.getLinkId().index();
+		stopLegDistance[stop] = vehicleLegDistance[vehicle];
+		// if the vehicle did not drive (e.g. two stops at the same link), it arrived when the last stop ended
+		stopArrival[stop] = Double.isNaN(vehicleArrival[vehicle]) ? event.getTime() : vehicleArrival[vehicle];
+		stopStart[stop] = CarrierShipmentAnalysis.getServiceStart(stopArrival[stop], Double.NaN, Double.NaN, getTimeWindow(stop));
+		stopEnd[stop] = Double.NaN;
+		tourWaitTime[tour] += stopStart[stop] - stopArrival[stop];
+		vehicleStop[vehicle] = stop;
+		vehicleLegDistance[vehicle] = 0.;
+	}
+
+	private void endStop(AbstractCarrierEvent event) {
+		final int tour = getTour(event.getVehicleId());
+		if (tour == NONE) {
+			return;
+		}
+		final int vehicle = event.getVehicleId().index();
+		final int stop = vehicleStop[vehicle];
+		if (stop != NONE) {
+			stopEnd[stop] = event.getTime();
+			// the provisional start (opening of the time window) is replaced by the actual one
+			tourWaitTime[tour] -= stopStart[stop] - stopArrival[stop];
+			stopStart[stop] = CarrierShipmentAnalysis.getServiceStart(stopArrival[stop], stopEnd[stop], getServiceTime(stop), getTimeWindow(stop));
+			tourWaitTime[tour] += stopStart[stop] - stopArrival[stop];
+			tourActivityTime[tour] += stopEnd[stop] - stopStart[stop];
+			vehicleStop[vehicle] = NONE;
+			vehicleArrival[vehicle] = event.getTime();
+		}
+	}
+
+	/**
+	 * @return null if the service or shipment is not known
+	 */
+	private TimeWindow getTimeWindow(int stop) {
+		final Carrier carrier = carriers.getCarriers().get(Id.get(tourCarrier[stopTour[stop]], Carrier.class));
+		if (carrier == null) {
+			return null;
+		}
+		if (stopType[stop] == SERVICE) {
+			final CarrierService service = carrier.getServices().get(Id.get(stopActivity[stop], CarrierService.class));
+			return service == null ? null : service.getServiceStartTimeWindow();
+		}
+		final CarrierShipment shipment = carrier.getShipments().get(Id.get(stopActivity[stop], CarrierShipment.class));
+		if (shipment == null) {
+			return null;
+		}
+		return stopType[stop] == PICKUP ? shipment.getPickupTimeWindow() : shipment.getDeliveryTimeWindow();
+	}
+
+	/**
+	 * @return NaN if the service or shipment is not known
+	 */
+	private double getServiceTime(int stop) {
+		final Carrier carrier = carriers.getCarriers().get(Id.get(tourCarrier[stopTour[stop]], Carrier.class));
+		if (carrier == null) {
+			return Double.NaN;
+		}
+		if (stopType[stop] == SERVICE) {
+			final CarrierService service = carrier.getServices().get(Id.get(stopActivity[stop], CarrierService.class));
+			return service == null ? Double.NaN : service.getServiceDuration();
+		}
+		final CarrierShipment shipment = carrier.getShipments().get(Id.get(stopActivity[stop], CarrierShipment.class));
+		if (shipment == null) {
+			return Double.NaN;
+		}
+		return stopType[stop] == PICKUP ? shipment.getPickupServiceTime() : shipment.getDeliveryServiceTime();
+	}
+
+	private int getTour(Id<Vehicle> vehicleId) {
+		final int vehicle = vehicleId.index();
+		return vehicle < vehicleTour.length ? vehicleTour[vehicle] : NONE;
+	}
+
+	private void ensureVehicleCapacity(int vehicle) {
+		if (vehicle < vehicleTour.length) {
+			return;
+		}
+		final int oldLength = vehicleTour.length;
+		final int length = Math.max(vehicle + 1, 2 * oldLength);
+		vehicleTour = Arrays.copyOf(vehicleTour, length);
+		vehicleStop = Arrays.copyOf(vehicleStop, length);
+		vehicleDeparture = Arrays.copyOf(vehicleDeparture, length);
+		vehicleArrival = Arrays.copyOf(vehicleArrival, length);
+		vehicleLegDistance = Arrays.copyOf(vehicleLegDistance, length);
+		Arrays.fill(vehicleTour, oldLength, length, NONE);
+		Arrays.fill(vehicleStop, oldLength, length, NONE);
+		Arrays.fill(vehicleArrival, oldLength, length, Double.NaN);
+	}
+
+	private void growTours() {
+		final int length = 2 * tourId.length;
+		tourCarrier = Arrays.copyOf(tourCarrier, length);
+		tourId = Arrays.copyOf(tourId, length);
+		tourVehicle = Arrays.copyOf(tourVehicle, length);
+		tourStart = Arrays.copyOf(tourStart, length);
+		tourEnd = Arrays.copyOf(tourEnd, length);
+		tourDistance = Arrays.copyOf(tourDistance, length);
+		tourDrivingTime = Arrays.copyOf(tourDrivingTime, length);
+		tourWaitTime = Arrays.copyOf(tourWaitTime, length);
+		tourActivityTime = Arrays.copyOf(tourActivityTime, length);
+		tourNuOfLegs = Arrays.copyOf(tourNuOfLegs, length);
+		tourNuOfStops = Arrays.copyOf(tourNuOfStops, length);
+	}
+
+	private void growStops() {
+		final int length = 2 * stopTour.length;
+		stopTour = Arrays.copyOf(stopTour, length);
+		stopNumber = Arrays.copyOf(stopNumber, length);
+		stopType = Arrays.copyOf(stopType, length);
+		stopActivity = Arrays.copyOf(stopActivity, length);
+		stopLink = Arrays.copyOf(stopLink, length);
+		stopLegDistance = Arrays.copyOf(stopLegDistance, length);
+		stopArrival = Arrays.copyOf(stopArrival, length);
+		stopStart = Arrays.copyOf(stopStart, length);
+		stopEnd = Arrays.copyOf(stopEnd, length);
+	}
+
+	void writeTourAnalysis(String analysisOutputDirectory) throws IOException {
+		log.info("Writing out tour timelines ...");
+		int nuOfUnfinishedTours = 0;
+
+		String fileName = analysisOutputDirectory + "Tour_perTour" + RunFreightAnalysisEventBased.fileExtension;
+		try (BufferedWriter bw1 = new BufferedWriter(new FileWriter(fileName))) {
+			bw1.write("carrierId" + RunFreightAnalysisEventBased.delimiter
+					+ "tourId" + RunFreightAnalysisEventBased.delimiter
+					+ "vehicleId" + RunFreightAnalysisEventBased.delimiter
+					+ "tourStart[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "tourEnd[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "tourDuration[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfLegs" + RunFreightAnalysisEventBased.delimiter
+					+ "nuOfStops" + RunFreightAnalysisEventBased.delimiter
+					+ "travelDistance[m]" + RunFreightAnalysisEventBased.delimiter
+					+ "drivingTime[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "waitTime[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "activityTime[s]");
+			bw1.newLine();
+
+			for (int tour = 0; tour < nuOfTours; tour++) {
+				if (Double.isNaN(tourEnd[tour])) {
+					nuOfUnfinishedTours++;
+				}
+				bw1.write(Id.get(tourCarrier[tour], Carrier.class).toString());
+				bw1.write(RunFreightAnalysisEventBased.delimiter + Id.get(tourId[tour], Tour.class));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + Id.get(tourVehicle[tour], Vehicle.class));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + tourStart[tour]);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + tourEnd[tour]);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + (tourEnd[tour] - tourStart[tour]));
+				bw1.write(RunFreightAnalysisEventBased.delimiter + tourNuOfLegs[tour]);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + tourNuOfStops[tour]);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + tourDistance[tour]);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + tourDrivingTime[tour]);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + tourWaitTime[tour]);
+				bw1.write(RunFreightAnalysisEventBased.delimiter + tourActivityTime[tour]);
+				bw1.newLine();
+			}
+		}
+		log.info("Output written to " + fileName);
+		if (nuOfUnfinishedTours > 0) {
+			log.warn("{} tours did not end until the end of the simulation.", nuOfUnfinishedTours);
+		}
+
+		fileName = analysisOutputDirectory + "Tour_perStop" + RunFreightAnalysisEventBased.fileExtension;
+		try (BufferedWriter bw2 = new BufferedWriter(new FileWriter(fileName))) {
+			bw2.write("carrierId" + RunFreightAnalysisEventBased.delimiter
+					+ "tourId" + RunFreightAnalysisEventBased.delimiter
+					+ "vehicleId" + RunFreightAnalysisEventBased.delimiter
+					+ "stopNumber" + RunFreightAnalysisEventBased.delimiter
+					+ "type" + RunFreightAnalysisEventBased.delimiter
+					+ "serviceOrShipmentId" + RunFreightAnalysisEventBased.delimiter
+					+ "linkId" + RunFreightAnalysisEventBased.delimiter
+					+ "legDistance[m]" + RunFreightAnalysisEventBased.delimiter
+					+ "arrival[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "start[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "end[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "wait[s]" + RunFreightAnalysisEventBased.delimiter
+					+ "activityDuration[s]");
+			bw2.newLine();
+
+			for (int stop = 0; stop < nuOfStops; stop++) {
+				final int tour = stopTour[stop];
+				final Id<?> activityId = stopType[stop] == SERVICE
+						? Id.get(stopActivity[stop], CarrierService.class) : Id.get(stopActivity[stop], CarrierShipment.class);
+				bw2.write(Id.get(tourCarrier[tour], Carrier.class).toString());
+				bw2.write(RunFreightAnalysisEventBased.delimiter + Id.get(tourId[tour], Tour.class));
+				bw2.write(RunFreightAnalysisEventBased.delimiter + Id.get(tourVehicle[tour], Vehicle.class));
+				bw2.write(RunFreightAnalysisEventBased.delimiter + stopNumber[stop]);
+				bw2.write(RunFreightAnalysisEventBased.delimiter + STOP_TYPES[stopType[stop]]);
+				bw2.write(RunFreightAnalysisEventBased.delimiter + activityId);
+				bw2.write(RunFreightAnalysisEventBased.delimiter + Id.get(stopLink[stop], Link.class));
+				bw2.write(RunFreightAnalysisEventBased.delimiter + stopLegDistance[stop]);
+				bw2.write(RunFreightAnalysisEventBased.delimiter + stopArrival[stop]);
+				bw2.write(RunFreightAnalysisEventBased.delimiter + stopStart[stop]);
+				bw2.write(RunFreightAnalysisEventBased.delimiter + stopEnd[stop]);
+				bw2.write(RunFreightAnalysisEventBased.delimiter + (stopStart[stop] - stopArrival[stop]));
+				bw2.write(RunFreightAnalysisEventBased.delimiter + (stopEnd[stop] - stopStart[stop]));
+				bw2.newLine();
+			}
+		}
+		log.info("Output written to " + fileName);
+	}
+}
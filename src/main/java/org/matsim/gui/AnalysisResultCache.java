@@ -0,0 +1,132 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.gui;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the results of the last analysed runs in memory, so that switching between them does not read the tables
+ * again. The results are keyed by the run directory and a hash of the input files of the analysis (name, size and
+ * last modification); a run which was changed on disk (e.g. run again) therefore gets a new entry. The least
+ * recently used entry is dropped, if there are more than <code>maxEntries</code>.
+ */
+final class AnalysisResultCache {
+
+	/**
+	 * The files of a run which go into the analysis.
+	 */
+	private static final List<String> INPUT_FILES = List.of("output_events.xml.gz", "output_network.xml.gz",
+			"output_allVehicles.xml.gz", "output_carriers.xml.gz", "output_carriersVehicleTypes.xml.gz", "logfile.log");
+
+	/**
+	 * The tables which are shown; the tables per vehicle, shipment, stop or link are too large.
+	 */
+	private static final List<String> TABLES = List.of("General_summary", "Carrier_summary", "TimeDistance_perVehicleType",
+			"Load_summary", "Capacity_summary", "Shipment_perCarrier", "Tour_perTour");
+
+	record Key(String runDirectory, String inputHash) {
+		@Override
+		public String toString() {
+			return runDirectory;
+		}
+	}
+
+	record Table(String name, String[] header, List<String[]> rows) {
+	}
+
+	record Result(List<Table> tables) {
+	}
+
+	private final Map<Key, Result> results;
+
+	AnalysisResultCache(int maxEntries) {
+		this.results = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Only reads the file attributes, so it is cheap even for large events files.
+	 */
+	static Key getKey(String runDirectory, String crs) {
+		CRC32 crc = new CRC32();
+		crc.update(crs.getBytes());
+		for (String inputFile : INPUT_FILES) {
+			File file = new File(runDirectory, inputFile);
+			crc.update((inputFile + "_" + file.length() + "_" + file.lastModified()).getBytes());
+		}
+		return new Key(new File(runDirectory).getAbsolutePath(), Long.toHexString(crc.getValue()));
+	}
+
+	synchronized Result get(Key key) {
+		return results.get(key);
+	}
+
+	synchronized void put(Key key, Result result) {
+		results.put(key, result);
+	}
+
+	/**
+	 * @return the keys, the most recently used first
+	 */
+	synchronized List<Key> getKeys() {
+		List<Key> keys = new ArrayList<>(results.keySet());
+		Collections.reverse(keys);
+		return keys;
+	}
+
+	/**
+	 * Reads the tables of the analysis output directory which are shown; missing tables are left out.
+	 */
+	static Result readResult(String analysisOutputDirectory) throws IOException {
+		List<Table> tables = new ArrayList<>();
+		for (String name : TABLES) {
+			File file = new File(analysisOutputDirectory, name + ".csv");
+			if (!file.exists()) {
+				continue;
+			}
+			try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+				String line = reader.readLine();
+				if (line == null) {
+					continue;
+				}
+				String[] header = line.split(";", -1);
+				List<String[]> rows = new ArrayList<>();
+				while ((line = reader.readLine()) != null) {
+					rows.add(line.split(";", -1));
+				}
+				tables.add(new Table(name, header, rows));
+			}
+		}
+		return new Result(tables);
+	}
+}
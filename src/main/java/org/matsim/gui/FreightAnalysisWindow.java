@@ -0,0 +1,199 @@
+/* *********************************************************************** *
+ * project: org.matsim.*
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+
+package org.matsim.gui;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.freight.carriers.analysis.AnalysisProgressListener;
+import org.matsim.freight.carriers.analysis.RunFreightAnalysisEventBased;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs the {@link RunFreightAnalysisEventBased} on the output directory of a run and shows the summary tables. The
+ * results of the last runs are kept in memory (see {@link AnalysisResultCache}), so switching between them is
+ * instant; a run is only analysed again, if its input files changed. While the events are read, the number of
+ * events, the events per second and the simulation time are shown.
+ */
+public final class FreightAnalysisWindow extends JFrame {
+
+	private static final Logger log = LogManager.getLogger(FreightAnalysisWindow.class);
+
+	private static final int CACHED_RUNS = 8;
+
+	private final AnalysisResultCache cache = new AnalysisResultCache(CACHED_RUNS);
+	private final JTextField runDirectoryField = new JTextField(40);
+	private final JTextField crsField = new JTextField("EPSG:25832", 12);
+	private final JButton analyseButton = new JButton("Analyse");
+	private final JProgressBar progressBar = new JProgressBar();
+	private final DefaultListModel<AnalysisResultCache.Key> recentRuns = new DefaultListModel<>();
+	private final JList<AnalysisResultCache.Key> recentRunsList = new JList<>(recentRuns);
+	private final JTabbedPane tablesPane = new JTabbedPane();
+
+	public FreightAnalysisWindow() {
+		super("Freight analysis");
+		setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+		JButton browseButton = new JButton("Browse...");
+		browseButton.addActionListener(e -> {
+			JFileChooser chooser = new JFileChooser(runDirectoryField.getText());
+			chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+			if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+				runDirectoryField.setText(chooser.getSelectedFile().getAbsolutePath());
+			}
+		});
+		analyseButton.addActionListener(e -> analyse());
+
+		JPanel inputPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+		inputPanel.add(new JLabel("Run output directory:"));
+		inputPanel.add(runDirectoryField);
+		inputPanel.add(browseButton);
+		inputPanel.add(new JLabel("CRS:"));
+		inputPanel.add(crsField);
+		inputPanel.add(analyseButton);
+
+		progressBar.setStringPainted(true);
+		progressBar.setString("");
+
+		recentRunsList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		recentRunsList.addListSelectionListener(e -> {
+			AnalysisResultCache.Key key = recentRunsList.getSelectedValue();
+			if (!e.getValueIsAdjusting() && key != null) {
+				AnalysisResultCache.Result result = cache.get(key);
+				if (result != null) {
+					showResult(result);
+					progressBar.setString(key.runDirectory() + " (cached)");
+				}
+			}
+		});
+		JScrollPane recentRunsPane = new JScrollPane(recentRunsList);
+		recentRunsPane.setBorder(BorderFactory.createTitledBorder("Recent runs"));
+
+		JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, recentRunsPane, tablesPane);
+		splitPane.setDividerLocation(250);
+
+		getContentPane().add(inputPanel, BorderLayout.NORTH);
+		getContentPane().add(splitPane, BorderLayout.CENTER);
+		getContentPane().add(progressBar, BorderLayout.SOUTH);
+		setSize(1100, 700);
+	}
+
+	/**
+	 * Opens a new window on the event dispatch thread.
+	 */
+	public static void open() {
+		SwingUtilities.invokeLater(() -> new FreightAnalysisWindow().setVisible(true));
+	}
+
+	private void analyse() {
+		final String runDirectory = runDirectoryField.getText().trim();
+		final String crs = crsField.getText().trim();
+		if (!new File(runDirectory).isDirectory()) {
+			JOptionPane.showMessageDialog(this, "Not a directory: " + runDirectory, "Freight analysis", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		analyseButton.setEnabled(false);
+		progressBar.setIndeterminate(true);
+		progressBar.setString("Checking " + runDirectory);
+
+		new SwingWorker<AnalysisResultCache.Key, String>() {
+			@Override
+			protected AnalysisResultCache.Key doInBackground() throws Exception {
+				AnalysisResultCache.Key key = AnalysisResultCache.getKey(runDirectory, crs);
+				if (cache.get(key) != null) {
+					return key;
+				}
+				final String analysisOutputDirectory = runDirectory + "/analysis/";
+				RunFreightAnalysisEventBased analysis = new RunFreightAnalysisEventBased(runDirectory + "/", analysisOutputDirectory, crs);
+				analysis.setProgressListener(new AnalysisProgressListener() {
+					@Override
+					public void step(String step) {
+						publish(step);
+					}
+
+					@Override
+					public void events(long nuOfEvents, double eventsPerSecond, double time) {
+						publish(String.format(Locale.US, "Reading the events: %,d events, %,.0f events/s, simulation time %s",
+								nuOfEvents, eventsPerSecond, Time.writeTime(time)));
+					}
+				});
+				analysis.runAnalysis();
+				cache.put(key, AnalysisResultCache.readResult(analysisOutputDirectory));
+				return key;
+			}
+
+			@Override
+			protected void process(List<String> messages) {
+				progressBar.setString(messages.get(messages.size() - 1));
+			}
+
+			@Override
+			protected void done() {
+				analyseButton.setEnabled(true);
+				progressBar.setIndeterminate(false);
+				try {
+					AnalysisResultCache.Key key = get();
+					updateRecentRuns();
+					// shows the result
+					recentRunsList.clearSelection();
+					recentRunsList.setSelectedValue(key, true);
+				} catch (ExecutionException e) {
+					log.error("Analysis of {} failed.", runDirectory, e.getCause());
+					progressBar.setString("Failed: " + e.getCause().getMessage());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}.execute();
+	}
+
+	private void updateRecentRuns() {
+		recentRuns.clear();
+		for (AnalysisResultCache.Key key : cache.getKeys()) {
+			recentRuns.addElement(key);
+		}
+	}
+
+	private void showResult(AnalysisResultCache.Result result) {
+		tablesPane.removeAll();
+		for (AnalysisResultCache.Table table : result.tables()) {
+			DefaultTableModel model = new DefaultTableModel(table.header(), 0) {
+				@Override
+				public boolean isCellEditable(int row, int column) {
+					return false;
+				}
+			};
+			for (String[] row : table.rows()) {
+				model.addRow(row);
+			}
+			JTable jTable = new JTable(model);
+			jTable.setAutoCreateRowSorter(true);
+			tablesPane.addTab(table.name(), new JScrollPane(jTable));
+		}
+	}
+}
@@ -26,6 +26,8 @@ public class MATSimGUI {
 
 	public static void main(String[] args) {
 		Gui.show("MATSim GUI from example project", RunMatsim.class );
+		// analysis of the freight output of a run, see RunFreightExample
+		FreightAnalysisWindow.open();
 	}
 
 	//	The jar file is generated by "mvn package".  Note that the pom.xml refers at some point to this class here. 
@@ -0,0 +1,257 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.project;
+
+import com.google.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.Config;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
+import org.matsim.core.controler.events.BeforeMobsimEvent;
+import org.matsim.core.controler.listener.BeforeMobsimListener;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.freight.carriers.CarrierPlanWriter;
+import org.matsim.freight.carriers.Carriers;
+import org.matsim.freight.carriers.FreightCarriersConfigGroup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Writes a checkpoint every N iterations, from which a run can be resumed with
+ * {@link #resumeFromLatestCheckpoint(Config, String)}.
+ * <p>
+ * The checkpoint is taken before the mobsim of an iteration, i.e. after the replanning. It contains all plans of all
+ * persons (with scores and the selected plan), the carrier plans (if there are carriers) and a small binary file
+ * with the iteration, the random seed and the original iteration settings.
+ * <p>
+ * The resumed run starts with this iteration as its first iteration. The controler does not replan in its first
+ * iteration, so the mobsim runs on exactly the selected plans of the checkpoint. The random numbers are reset from the
+ * seed and the iteration number at the beginning of every iteration, so no generator state needs to be stored. The
+ * travel times are not stored either: they are the result of the mobsim of the resumed iteration, which is the same
+ * as in the original run. So the continuation is deterministic (for the same number of threads).
+ */
+final class CheckpointModule extends AbstractModule {
+
+	private static final Logger log = LogManager.getLogger(CheckpointModule.class);
+
+	private static final int MAGIC = 0x4D43504B; // "MCPK"
+	private static final int VERSION = 1;
+	private static final String INFO_FILE = "checkpoint.bin";
+	private static final String PLANS_FILE = "plans.xml.gz";
+	private static final String CARRIERS_FILE = "carriers.xml.gz";
+	private static final String ITERATION_PREFIX = "it.";
+	private static final String TMP_PREFIX = "checkpoint.tmp";
+	// the checkpoint directory may be shared with other files; only these entries are ever deleted
+	private static final Pattern ITERATION_PATTERN = Pattern.compile(Pattern.quote(ITERATION_PREFIX) + "\\d+");
+	private static final Pattern TMP_PATTERN = Pattern.compile(Pattern.quote(TMP_PREFIX) + "\\d+");
+
+	private final String checkpointDirectory;
+	private final int interval;
+	private final OriginalSettings originalSettings;
+
+	/**
+	 * Iteration settings of the original run, which are changed when resuming.
+	 */
+	record OriginalSettings(int firstIteration, double fractionOfIterationsToDisableInnovation) {
+		static OriginalSettings of(Config config) {
+			return new OriginalSettings(config.controller().getFirstIteration(), config.replanning().getFractionOfIterationsToDisableInnovation());
+		}
+	}
+
+	/**
+	 * @param checkpointDirectory should not be inside the output directory, since that might be deleted on startup
+	 * @param interval            write a checkpoint every <code>interval</code> iterations
+	 * @param originalSettings    as returned by {@link #resumeFromLatestCheckpoint(Config, String)}
+	 */
+	CheckpointModule(String checkpointDirectory, int interval, OriginalSettings originalSettings) {
+		this.checkpointDirectory = checkpointDirectory;
+		this.interval = interval;
+		this.originalSettings = originalSettings;
+	}
+
+	@Override
+	public void install() {
+		addControlerListenerBinding().toInstance(new CheckpointWriter(Path.of(checkpointDirectory), interval, originalSettings));
+	}
+
+	private static final class CheckpointWriter implements BeforeMobsimListener {
+		private final Path checkpointDirectory;
+		private final int interval;
+		private final OriginalSettings originalSettings;
+		@Inject private Scenario scenario;
+
+		private CheckpointWriter(Path checkpointDirectory, int interval, OriginalSettings originalSettings) {
+			this.checkpointDirectory = checkpointDirectory;
+			this.interval = interval;
+			this.originalSettings = originalSettings;
+		}
+
+		@Override
+		public void notifyBeforeMobsim(BeforeMobsimEvent event) {
+			final Config config = scenario.getConfig();
+			final int iteration = event.getIteration();
+			// the first iteration can always be reproduced from the input
+			if (iteration == config.controller().getFirstIteration() || (iteration - config.controller().getFirstIteration()) % interval != 0) {
+				return;
+			}
+			try {
+				writeCheckpoint(iteration);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void writeCheckpoint(int iteration) throws IOException {
+			log.info("Writing checkpoint for iteration {} ...", iteration);
+			final Config config = scenario.getConfig();
+			Files.createDirectories(checkpointDirectory);
+			Path tmpDirectory = Files.createTempDirectory(checkpointDirectory, TMP_PREFIX);
+
+			PopulationUtils.writePopulation(scenario.getPopulation(), tmpDirectory.resolve(PLANS_FILE).toString());
+			Carriers carriers = (Carriers) scenario.getScenarioElement(Carriers.ELEMENT_NAME);
+			if (carriers != null) {
+				new CarrierPlanWriter(carriers).write(tmpDirectory.resolve(CARRIERS_FILE).toString());
+			}
+			// written last: a checkpoint without info file is incomplete and is ignored
+			try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmpDirectory.resolve(INFO_FILE)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(iteration);
+				out.writeLong(config.global().getRandomSeed());
+				out.writeInt(config.global().getNumberOfThreads());
+				out.writeInt(originalSettings.firstIteration());
+				out.writeDouble(originalSettings.fractionOfIterationsToDisableInnovation());
+				out.writeBoolean(carriers != null);
+			}
+
+			Path target = checkpointDirectory.resolve(ITERATION_PREFIX + iteration);
+			deleteRecursively(target);
+			Files.move(tmpDirectory, target, StandardCopyOption.ATOMIC_MOVE);
+
+			// only the latest checkpoint is kept; left-over tmp directories of aborted writes are removed as well
+			try (Stream<Path> checkpoints = Files.list(checkpointDirectory)) {
+				for (Path path : checkpoints.filter(p -> !p.equals(target)).filter(CheckpointModule::isCreatedByCheckpointModule).toList()) {
+					deleteRecursively(path);
+				}
+			}
+			log.info("Checkpoint written to {}", target);
+		}
+	}
+
+	/**
+	 * Changes the config such that the run continues at the latest checkpoint in the directory. If there is no
+	 * (complete) checkpoint, the config is not changed.
+	 *
+	 * @return the iteration settings of the original run, to be passed to the {@link CheckpointModule}.
+	 */
+	static OriginalSettings resumeFromLatestCheckpoint(Config config, String checkpointDirectory) throws IOException {
+		Optional<Path> latest = findLatestCheckpoint(Path.of(checkpointDirectory));
+		if (latest.isEmpty()) {
+			log.warn("No checkpoint found in {}. Starting from the beginning.", checkpointDirectory);
+			return OriginalSettings.of(config);
+		}
+		final Path checkpoint = latest.get();
+
+		final int iteration;
+		final long randomSeed;
+		final int numberOfThreads;
+		final int originalFirstIteration;
+		final double originalFraction;
+		final boolean hasCarriers;
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(checkpoint.resolve(INFO_FILE)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a checkpoint of this version: " + checkpoint);
+			}
+			iteration = in.readInt();
+			randomSeed = in.readLong();
+			numberOfThreads = in.readInt();
+			originalFirstIteration = in.readInt();
+			originalFraction = in.readDouble();
+			hasCarriers = in.readBoolean();
+		}
+
+		if (randomSeed != config.global().getRandomSeed() || numberOfThreads != config.global().getNumberOfThreads()) {
+			log.warn("Random seed or number of threads differ from the checkpoint (seed {}, {} threads). The continuation will not be "
+					+ "the same as in the original run.", randomSeed, numberOfThreads);
+		}
+
+		log.info("Resuming from checkpoint of iteration {}: {}", iteration, checkpoint);
+		config.controller().setFirstIteration(iteration);
+		// keep the output of the iterations before the checkpoint
+		config.controller().setOverwriteFileSetting(OverwriteFileSetting.overwriteExistingFiles);
+		config.plans().setInputFile(checkpoint.resolve(PLANS_FILE).toAbsolutePath().toString());
+		// the checkpoint is written in the global coordinate system
+		config.plans().setInputCRS(null);
+		if (hasCarriers && config.getModules().containsKey(FreightCarriersConfigGroup.GROUPNAME)) {
+			FreightCarriersConfigGroup freightConfigGroup = (FreightCarriersConfigGroup) config.getModules().get(FreightCarriersConfigGroup.GROUPNAME);
+			freightConfigGroup.setCarriersFile(checkpoint.resolve(CARRIERS_FILE).toAbsolutePath().toString());
+		}
+
+		// The iteration in which innovation is switched off is relative to the first iteration; keep it where it was.
+		final int lastIteration = config.controller().getLastIteration();
+		if (Double.isFinite(originalFraction) && lastIteration > iteration) {
+			double disableInnovationIteration = originalFirstIteration + originalFraction * (lastIteration - originalFirstIteration);
+			config.replanning().setFractionOfIterationsToDisableInnovation(
+					Math.max(0., (disableInnovationIteration - iteration) / (lastIteration - iteration)));
+		}
+		return new OriginalSettings(originalFirstIteration, originalFraction);
+	}
+
+	private static Optional<Path> findLatestCheckpoint(Path checkpointDirectory) throws IOException {
+		if (!Files.isDirectory(checkpointDirectory)) {
+			return Optional.empty();
+		}
+		try (Stream<Path> paths = Files.list(checkpointDirectory)) {
+			return paths.filter(p -> ITERATION_PATTERN.matcher(p.getFileName().toString()).matches())
+					.filter(p -> Files.exists(p.resolve(INFO_FILE)))
+					.max(Comparator.comparingInt(p -> Integer.parseInt(p.getFileName().toString().substring(ITERATION_PREFIX.length()))));
+		}
+	}
+
+	/**
+	 * @return true for the checkpoints and the tmp directories written by this module
+	 */
+	static boolean isCreatedByCheckpointModule(Path path) {
+		final String fileName = path.getFileName().toString();
+		return Files.isDirectory(path) && (ITERATION_PATTERN.matcher(fileName).matches() || TMP_PATTERN.matcher(fileName).matches());
+	}
+
+	private static void deleteRecursively(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(path)) {
+			for (Path p : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(p);
+			}
+		}
+	}
+}
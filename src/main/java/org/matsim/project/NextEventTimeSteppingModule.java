@@ -0,0 +1,124 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.project;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.mobsim.framework.MobsimAgent;
+import org.matsim.core.mobsim.framework.events.MobsimAfterSimStepEvent;
+import org.matsim.core.mobsim.framework.events.MobsimBeforeCleanupEvent;
+import org.matsim.core.mobsim.framework.listeners.MobsimAfterSimStepListener;
+import org.matsim.core.mobsim.framework.listeners.MobsimBeforeCleanupListener;
+import org.matsim.core.mobsim.qsim.QSim;
+
+/**
+ * Lets the QSim jump over the time steps in which nothing can happen.
+ * <p>
+ * The QSim advances one time step after the other, even if all agents are performing activities, as e.g. in freight
+ * runs, where the few delivery vans spend most of the day at their services. After each time step, this checks
+ * whether an agent is on a leg (i.e. driving, waiting to enter the network or teleporting). If none is, nothing moves
+ * until the next activity ends, so the time is set forward to the time step in which the activity engine would end
+ * the next activity. In the skipped steps, the engines would neither have changed any state nor thrown any event, so
+ * the events are the same as with stepping through every time step.
+ * <p>
+ * This only holds if all time dependent behaviour comes from agents' activity ends. It does not hold for engines
+ * which act on their own schedule (e.g. transit vehicles are agents on legs and thus fine, but DRT fleets, within-day
+ * replanning or snapshot writers are not), so the module is opt-in.
+ * <p>
+ * Finding out whether an agent is on a leg needs a scan over all agents. To keep this from costing O(agents) in every
+ * time step of a full population, the agent found on a leg is remembered and checked first in the next time step; the
+ * full scan is only repeated when that agent has arrived. So it is cheap in busy periods, where some agent is on a leg
+ * most of the time, and in quiet periods, where the steps are skipped. Still, with a full population there are few
+ * steps to skip, so the module pays off mainly in sparse scenarios, like freight runs.
+ */
+public final class NextEventTimeSteppingModule extends AbstractModule {
+
+	private static final Logger log = LogManager.getLogger(NextEventTimeSteppingModule.class);
+
+	private NextEventTimeStepper stepper;
+
+	@Override
+	public void install() {
+		stepper = new NextEventTimeStepper(getConfig().qsim().getTimeStepSize(), getConfig().qsim().getEndTime().orElse(Double.POSITIVE_INFINITY));
+		addMobsimListenerBinding().toInstance(stepper);
+	}
+
+	/**
+	 * The number of time steps skipped in the last mobsim run.
+	 */
+	public long getSkippedSteps() {
+		return stepper == null ? 0 : stepper.lastSkippedSteps;
+	}
+
+	private static final class NextEventTimeStepper implements MobsimAfterSimStepListener, MobsimBeforeCleanupListener {
+		private final double timeStepSize;
+		private final double endTime;
+		private long skippedSteps = 0;
+		private long lastSkippedSteps = 0;
+		// the agent which was on a leg in the last time step
+		private MobsimAgent agentOnLeg = null;
+
+		private NextEventTimeStepper(double timeStepSize, double endTime) {
+			this.timeStepSize = timeStepSize;
+			this.endTime = endTime;
+		}
+
+		@Override
+		public void notifyMobsimAfterSimStep(MobsimAfterSimStepEvent event) {
+			final QSim qsim = (QSim) event.getQueueSimulation();
+			final double now = event.getSimulationTime();
+
+			if (agentOnLeg != null && agentOnLeg.getState() == MobsimAgent.State.LEG) {
+				return;
+			}
+			agentOnLeg = null;
+			double nextActivityEndTime = Double.POSITIVE_INFINITY;
+			for (MobsimAgent agent : qsim.getAgents().values()) {
+				if (agent.getState() == MobsimAgent.State.LEG) {
+					agentOnLeg = agent;
+					return;
+				}
+				if (agent.getState() == MobsimAgent.State.ACTIVITY) {
+					nextActivityEndTime = Math.min(nextActivityEndTime, agent.getActivityEndTime());
+				}
+			}
+			if (Double.isInfinite(nextActivityEndTime)) {
+				// all agents are at their last activity; the QSim stops by itself
+				return;
+			}
+
+			// the activity engine ends an activity in the first time step at or after its end time
+			final double nextTimeStep = Math.min(Math.ceil(nextActivityEndTime / timeStepSize) * timeStepSize, endTime);
+			if (nextTimeStep > now + timeStepSize) {
+				skippedSteps += Math.round((nextTimeStep - now) / timeStepSize) - 1;
+				// the QSim increments the time after this listener
+				qsim.getSimTimer().setTime(nextTimeStep - timeStepSize);
+			}
+		}
+
+		@Override
+		public void notifyMobsimBeforeCleanup(MobsimBeforeCleanupEvent event) {
+			log.info("Skipped {} time steps in which nothing moved.", skippedSteps);
+			lastSkippedSteps = skippedSteps;
+			skippedSteps = 0;
+			agentOnLeg = null;
+		}
+	}
+}
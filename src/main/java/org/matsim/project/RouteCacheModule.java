@@ -0,0 +1,344 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.project;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.api.core.v01.population.Route;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.groups.RoutingConfigGroup;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.events.IterationEndsEvent;
+import org.matsim.core.controler.listener.IterationEndsListener;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.NetworkRoutingProvider;
+import org.matsim.core.router.RoutingModule;
+import org.matsim.core.router.RoutingRequest;
+import org.matsim.core.router.util.TravelTime;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the results of the network routing modules across iterations.
+ * <p>
+ * With ReRoute, the same origin/destination pairs are routed again and again, often on nearly unchanged travel
+ * times. The routes are cached per person and keyed by (from link, to link, mode, departure time bin). A cached route
+ * is only used if its travel time, re-evaluated with the current travel times, has not changed by more than the given
+ * relative threshold since it was routed; otherwise the route is computed again. This check only touches the links
+ * of the cached route and is much cheaper than a new least cost path search. Note that it does not tell whether the
+ * cached route is still the best one: another path that became faster in the meantime is only found once the cached
+ * route itself gets slower than the threshold, or is evicted.
+ * <p>
+ * The cache of a person is bounded and evicts the least recently used entries, so the memory is bounded by the number
+ * of persons times the number of entries per person. Hits, misses and invalidations are logged at the end of each
+ * iteration.
+ * <p>
+ * With access/egress routing (<code>routing.accessEgressType</code> other than <code>none</code>), the access and egress
+ * legs depend on the coordinates of the facilities, so their coordinates are part of the key as well.
+ * <p>
+ * Routes are not shared between persons: the network routes name the vehicle of the person and the travel times
+ * depend on its vehicle type. Keeping the routes per person also keeps runs with the same seed reproducible with
+ * several replanning threads, since the entries of a person are only read and written by the thread that replans this
+ * person; a cache shared by all threads would hit or miss depending on the thread scheduling. Requests without a person
+ * are not cached.
+ */
+final class RouteCacheModule extends AbstractModule {
+
+	private static final Logger log = LogManager.getLogger(RouteCacheModule.class);
+
+	private final double timeBinSize;
+	private final double relativeTravelTimeThreshold;
+
+	private final Stats stats = new Stats();
+	private final RouteCache cache;
+
+	/**
+	 * @param maxEntriesPerPerson         maximum number of cached routes per person (over all modes)
+	 * @param timeBinSize                 width of the departure time bins in seconds
+	 * @param relativeTravelTimeThreshold a cached route is recomputed if its travel time changed by more than this
+	 *                                    share (e.g. 0.05)
+	 */
+	RouteCacheModule(int maxEntriesPerPerson, double timeBinSize, double relativeTravelTimeThreshold) {
+		this.timeBinSize = timeBinSize;
+		this.relativeTravelTimeThreshold = relativeTravelTimeThreshold;
+		this.cache = new RouteCache(maxEntriesPerPerson);
+	}
+
+	@Override
+	public void install() {
+		for (String mode : getConfig().routing().getNetworkModes()) {
+			addRoutingModuleBinding(mode).toProvider(createRoutingModuleProvider(mode));
+		}
+		addControlerListenerBinding().toInstance(new CacheStatsReporter(stats, cache));
+	}
+
+	/**
+	 * Provider of the caching network routing module for the mode. Can be used to wrap the cache into other routing
+	 * module decorators (see {@link RoutingThroughputModule}); the provider needs member injection.
+	 */
+	Provider<RoutingModule> createRoutingModuleProvider(String mode) {
+		return new CachingRoutingModuleProvider(mode, cache, this);
+	}
+
+	/**
+	 * Number of cache hits since the end of the last iteration.
+	 */
+	long getHits() {
+		return stats.hits.sum();
+	}
+
+	/**
+	 * Number of cache misses (including invalidated entries) since the end of the last iteration.
+	 */
+	long getMisses() {
+		return stats.misses.sum();
+	}
+
+	private static final class Stats {
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
+		private final LongAdder invalidations = new LongAdder();
+	}
+
+	/**
+	 * The coordinates are null without access/egress routing.
+	 */
+	private record Key(Id<Link> fromLinkId, Id<Link> toLinkId, Coord fromCoord, Coord toCoord, String mode, int timeBin) {
+	}
+
+	private record Entry(List<? extends PlanElement> route, double departureTime, double travelTime) {
+	}
+
+	/**
+	 * One LRU cache per person. The persons are spread over several replanning threads, hence the concurrent map; the
+	 * cache of a single person is only used by one thread at a time, but synchronized all the same since the threads
+	 * change between iterations.
+	 */
+	private static final class RouteCache {
+		private final int maxEntriesPerPerson;
+		private final Map<Id<Person>, PersonRoutes> routesPerPerson = new ConcurrentHashMap<>();
+
+		private RouteCache(int maxEntriesPerPerson) {
+			this.maxEntriesPerPerson = maxEntriesPerPerson;
+		}
+
+		private PersonRoutes get(Id<Person> personId) {
+			return routesPerPerson.computeIfAbsent(personId, id -> new PersonRoutes(maxEntriesPerPerson));
+		}
+
+		private int size() {
+			int size = 0;
+			for (PersonRoutes routes : routesPerPerson.values()) {
+				size += routes.size();
+			}
+			return size;
+		}
+	}
+
+	private static final class PersonRoutes {
+		private final Map<Key, Entry> map;
+
+		private PersonRoutes(int maxEntries) {
+			this.map = new LinkedHashMap<>(4, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+					return size() > maxEntries;
+				}
+			};
+		}
+
+		private synchronized Entry get(Key key) {
+			return map.get(key);
+		}
+
+		private synchronized void put(Key key, Entry entry) {
+			map.put(key, entry);
+		}
+
+		private synchronized void remove(Key key) {
+			map.remove(key);
+		}
+
+		private synchronized int size() {
+			return map.size();
+		}
+	}
+
+	private static final class CachingRoutingModuleProvider implements Provider<RoutingModule> {
+		private final String mode;
+		private final RouteCache cache;
+		private final RouteCacheModule module;
+		@Inject private Injector injector;
+		@Inject private Network network;
+		@Inject private Map<String, TravelTime> travelTimes;
+		@Inject private Config config;
+
+		private CachingRoutingModuleProvider(String mode, RouteCache cache, RouteCacheModule module) {
+			this.mode = mode;
+			this.cache = cache;
+			this.module = module;
+		}
+
+		@Override
+		public RoutingModule get() {
+			NetworkRoutingProvider networkRoutingProvider = new NetworkRoutingProvider(mode);
+			injector.injectMembers(networkRoutingProvider);
+			final boolean accessEgress = config.routing().getAccessEgressType() != RoutingConfigGroup.AccessEgressType.none;
+			return new CachingRoutingModule(networkRoutingProvider.get(), mode, cache, network, travelTimes.get(mode), accessEgress, module);
+		}
+	}
+
+	private static final class CachingRoutingModule implements RoutingModule {
+		private final RoutingModule delegate;
+		private final String mode;
+		private final RouteCache cache;
+		private final Network network;
+		private final TravelTime travelTime;
+		private final boolean accessEgress;
+		private final RouteCacheModule module;
+
+		private CachingRoutingModule(RoutingModule delegate, String mode, RouteCache cache, Network network, TravelTime travelTime,
+									 boolean accessEgress, RouteCacheModule module) {
+			this.delegate = delegate;
+			this.mode = mode;
+			this.cache = cache;
+			this.network = network;
+			this.travelTime = travelTime;
+			this.accessEgress = accessEgress;
+			this.module = module;
+		}
+
+		@Override
+		public List<? extends PlanElement> calcRoute(RoutingRequest request) {
+			if (request.getPerson() == null) {
+				return delegate.calcRoute(request);
+			}
+			final double departureTime = request.getDepartureTime();
+			final Key key = new Key(request.getFromFacility().getLinkId(), request.getToFacility().getLinkId(),
+					accessEgress ? request.getFromFacility().getCoord() : null, accessEgress ? request.getToFacility().getCoord() : null, mode,
+					(int) (departureTime / module.timeBinSize));
+			final PersonRoutes personRoutes = cache.get(request.getPerson().getId());
+
+			Entry entry = personRoutes.get(key);
+			if (entry != null) {
+				double currentTravelTime = calcTravelTime(entry.route(), entry.departureTime());
+				if (Math.abs(currentTravelTime - entry.travelTime()) <= module.relativeTravelTimeThreshold * Math.max(entry.travelTime(), 1.)) {
+					module.stats.hits.increment();
+					return copy(entry.route(), departureTime - entry.departureTime());
+				}
+				module.stats.invalidations.increment();
+				personRoutes.remove(key);
+			}
+
+			module.stats.misses.increment();
+			List<? extends PlanElement> route = delegate.calcRoute(request);
+			if (route != null) {
+				personRoutes.put(key, new Entry(copy(route, 0.), departureTime, calcTravelTime(route, departureTime)));
+			}
+			return route;
+		}
+
+		/**
+		 * Travel time over the network routes of the trip, evaluated with the current travel times.
+		 */
+		private double calcTravelTime(List<? extends PlanElement> trip, double departureTime) {
+			double time = departureTime;
+			for (PlanElement planElement : trip) {
+				if (!(planElement instanceof Leg leg)) {
+					continue;
+				}
+				if (leg.getRoute() instanceof NetworkRoute networkRoute) {
+					for (Id<Link> linkId : networkRoute.getLinkIds()) {
+						time += travelTime.getLinkTravelTime(network.getLinks().get(linkId), time, null, null);
+					}
+					time += travelTime.getLinkTravelTime(network.getLinks().get(networkRoute.getEndLinkId()), time, null, null);
+				} else if (leg.getTravelTime().isDefined()) {
+					time += leg.getTravelTime().seconds();
+				}
+			}
+			return time - departureTime;
+		}
+
+		/**
+		 * Plan elements are modified by the replanning later on, so the cache only hands out copies.
+		 */
+		private static List<PlanElement> copy(List<? extends PlanElement> trip, double timeShift) {
+			List<PlanElement> copy = new ArrayList<>(trip.size());
+			for (PlanElement planElement : trip) {
+				if (planElement instanceof Leg leg) {
+					Leg legCopy = PopulationUtils.createLeg(leg.getMode());
+					PopulationUtils.copyFromTo(leg, legCopy);
+					if (leg.getDepartureTime().isDefined()) {
+						legCopy.setDepartureTime(leg.getDepartureTime().seconds() + timeShift);
+					}
+					Route route = legCopy.getRoute();
+					if (route != null) {
+						legCopy.setRoute(route.clone());
+					}
+					copy.add(legCopy);
+				} else if (planElement instanceof Activity activity) {
+					Activity activityCopy = PopulationUtils.createActivity(activity);
+					if (activity.getEndTime().isDefined()) {
+						activityCopy.setEndTime(activity.getEndTime().seconds() + timeShift);
+					}
+					copy.add(activityCopy);
+				}
+			}
+			return copy;
+		}
+	}
+
+	private static final class CacheStatsReporter implements IterationEndsListener {
+		private final Stats stats;
+		private final RouteCache cache;
+
+		private CacheStatsReporter(Stats stats, RouteCache cache) {
+			this.stats = stats;
+			this.cache = cache;
+		}
+
+		@Override
+		public void notifyIterationEnds(IterationEndsEvent event) {
+			final long hits = stats.hits.sumThenReset();
+			final long misses = stats.misses.sumThenReset();
+			final long invalidations = stats.invalidations.sumThenReset();
+			final long queries = hits + misses;
+			log.info("Iteration {}: route cache hits: {}, misses: {} (of which invalidated: {}), hit rate: {}%, entries: {}",
+					event.getIteration(), hits, misses, invalidations,
+					queries == 0 ? 0 : Math.round(1000. * hits / queries) / 10., cache.size());
+		}
+	}
+}
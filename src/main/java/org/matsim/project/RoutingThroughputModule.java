@@ -0,0 +1,154 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.project;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.events.BeforeMobsimEvent;
+import org.matsim.core.controler.events.ReplanningEvent;
+import org.matsim.core.controler.listener.BeforeMobsimListener;
+import org.matsim.core.controler.listener.ReplanningListener;
+import org.matsim.core.router.NetworkRoutingProvider;
+import org.matsim.core.router.RoutingModule;
+import org.matsim.core.router.RoutingRequest;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the routing queries of the network modes and reports the routing throughput per iteration.
+ * <p>
+ * The network routing modules are wrapped, so that every call is counted and timed. Since the routing runs on the
+ * replanning threads, the counters are {@link LongAdder}s. After the replanning (i.e. before the mobsim) the number
+ * of queries, the queries per second of replanning wall time and the queries per second per thread are logged.
+ */
+final class RoutingThroughputModule extends AbstractModule {
+
+	private static final Logger log = LogManager.getLogger(RoutingThroughputModule.class);
+
+	private final RoutingStats stats = new RoutingStats();
+	private final RouteCacheModule routeCacheModule;
+
+	RoutingThroughputModule() {
+		this(null);
+	}
+
+	/**
+	 * @param routeCacheModule if not null, the counted routing modules are the caching ones of this module, i.e. the
+	 *                         cache hits are counted as queries as well. Needs to be installed after the route cache module.
+	 */
+	RoutingThroughputModule(RouteCacheModule routeCacheModule) {
+		this.routeCacheModule = routeCacheModule;
+	}
+
+	@Override
+	public void install() {
+		for (String mode : getConfig().routing().getNetworkModes()) {
+			Provider<RoutingModule> delegate = routeCacheModule != null ? routeCacheModule.createRoutingModuleProvider(mode) : new NetworkRoutingProvider(mode);
+			addRoutingModuleBinding(mode).toProvider(new CountingRoutingModuleProvider(delegate, stats));
+		}
+		addControlerListenerBinding().toInstance(new ThroughputReporter(stats, getConfig().global().getNumberOfThreads()));
+	}
+
+	private static final class RoutingStats {
+		private final LongAdder queries = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+	}
+
+	private static final class CountingRoutingModuleProvider implements Provider<RoutingModule> {
+		private final Provider<RoutingModule> delegate;
+		private final RoutingStats stats;
+
+		private CountingRoutingModuleProvider(Provider<RoutingModule> delegate, RoutingStats stats) {
+			this.delegate = delegate;
+			this.stats = stats;
+		}
+
+		/**
+		 * Injects the delegate once, when the injector is created; get() is called concurrently by the replanning
+		 * threads.
+		 */
+		@Inject
+		void injectDelegate(Injector injector) {
+			injector.injectMembers(delegate);
+		}
+
+		@Override
+		public RoutingModule get() {
+			return new CountingRoutingModule(delegate.get(), stats);
+		}
+	}
+
+	private static final class CountingRoutingModule implements RoutingModule {
+		private final RoutingModule delegate;
+		private final RoutingStats stats;
+
+		private CountingRoutingModule(RoutingModule delegate, RoutingStats stats) {
+			this.delegate = delegate;
+			this.stats = stats;
+		}
+
+		@Override
+		public List<? extends PlanElement> calcRoute(RoutingRequest request) {
+			final long start = System.nanoTime();
+			try {
+				return delegate.calcRoute(request);
+			} finally {
+				stats.nanos.add(System.nanoTime() - start);
+				stats.queries.increment();
+			}
+		}
+	}
+
+	private static final class ThroughputReporter implements ReplanningListener, BeforeMobsimListener {
+		private final RoutingStats stats;
+		private final int numberOfThreads;
+		private long replanningStart = System.nanoTime();
+
+		private ThroughputReporter(RoutingStats stats, int numberOfThreads) {
+			this.stats = stats;
+			this.numberOfThreads = numberOfThreads;
+		}
+
+		@Override
+		public void notifyReplanning(ReplanningEvent event) {
+			replanningStart = System.nanoTime();
+		}
+
+		@Override
+		public void notifyBeforeMobsim(BeforeMobsimEvent event) {
+			// in the first iteration there is no replanning; the time is then measured from the controler start on
+			final double wallSeconds = (System.nanoTime() - replanningStart) / 1e9;
+			final long queries = stats.queries.sumThenReset();
+			final double routingSeconds = stats.nanos.sumThenReset() / 1e9;
+			if (queries == 0) {
+				log.info("Iteration {}: no routing queries.", event.getIteration());
+				return;
+			}
+			log.info("Iteration {}: {} routing queries on {} threads; {} queries/s (wall time), {} queries/s per thread.",
+					event.getIteration(), queries, numberOfThreads,
+					Math.round(queries / Math.max(wallSeconds, 1e-9)), Math.round(queries / Math.max(routingSeconds, 1e-9)));
+		}
+	}
+}
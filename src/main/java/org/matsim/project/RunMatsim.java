@@ -58,6 +58,9 @@ public class RunMatsim{
 
 //		controler.addOverridingModule( new OTFVisLiveModule() ) ;
 
+//		controler.addOverridingModule( new CheckpointModule( "output_checkpoints", 50, CheckpointModule.OriginalSettings.of( config ) ) );
+		// (for resuming, see RunMatsimApplication --resume)
+
 //		controler.addOverridingModule( new SimWrapperModule() );
 		
 		// ---
@@ -18,12 +18,17 @@
  * *********************************************************************** */
 package org.matsim.project;
 
-import org.apache.logging.log4j.core.tools.picocli.CommandLine;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.matsim.api.core.v01.Scenario;
 import org.matsim.application.MATSimApplication;
 import org.matsim.core.config.Config;
 import org.matsim.core.controler.Controler;
 import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 /**
  * @author nagel
@@ -32,6 +37,37 @@ import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
 @CommandLine.Command( header = ":: MyScenario ::", version = "1.0")
 public class RunMatsimApplication extends MATSimApplication {
 
+	private static final Logger log = LogManager.getLogger(RunMatsimApplication.class);
+
+	@CommandLine.Option(names = "--throughput", description = "Size the replanning and routing thread pools to the available cores and report the routing throughput.")
+	private boolean throughput;
+
+	@CommandLine.Option(names = "--throughput-threads", description = "Number of threads for the throughput mode (default: number of available cores). Results are only reproducible for the same number of threads.")
+	private Integer throughputThreads;
+
+	@CommandLine.Option(names = "--route-cache", description = "Cache the network routes across iterations (see RouteCacheModule).")
+	private boolean routeCache;
+
+	@CommandLine.Option(names = "--route-cache-size", description = "Maximum number of cached routes per person.", defaultValue = "20")
+	private int routeCacheSize;
+
+	@CommandLine.Option(names = "--route-cache-threshold", description = "Relative travel time change above which a cached route is recomputed.", defaultValue = "0.05")
+	private double routeCacheThreshold;
+
+	@CommandLine.Option(names = "--checkpoint-interval", description = "Write a checkpoint every N iterations (0: no checkpoints).", defaultValue = "0")
+	private int checkpointInterval;
+
+	@CommandLine.Option(names = "--checkpoint-directory", description = "Directory for the checkpoints (default: <outputDirectory>_checkpoints).")
+	private String checkpointDirectory;
+
+	@CommandLine.Option(names = "--resume", description = "Resume from the latest checkpoint in the checkpoint directory.")
+	private boolean resume;
+
+	@CommandLine.Option(names = "--next-event-stepping", description = "Let the mobsim skip the time steps in which nothing moves (see NextEventTimeSteppingModule). Pays off in sparse scenarios, e.g. freight runs; a full population has few steps to skip.")
+	private boolean nextEventStepping;
+
+	private CheckpointModule.OriginalSettings originalSettings;
+
 	public RunMatsimApplication() {
 		super("scenarios/equil/config.xml");
 	}
@@ -45,6 +81,30 @@ public class RunMatsimApplication extends MATSimApplication {
 
 		config.controller().setOverwriteFileSetting( OverwriteFileSetting.deleteDirectoryIfExists );
 
+		if ( throughput ) {
+			// The replanning (and thus the routing of ReRoute) runs on global.numberOfThreads threads. Each thread gets its
+			// own random number stream (MatsimRandom.getLocalInstance()), which is created in a fixed order from the global
+			// seed, and the persons are distributed over the threads in a fixed order as well. So the results are
+			// reproducible as long as seed and number of threads stay the same -- which is why the number of threads is pinned
+			// here and written to the log instead of being left to the defaults.
+			int numberOfThreads = throughputThreads != null ? throughputThreads : Runtime.getRuntime().availableProcessors();
+			config.global().setNumberOfThreads( numberOfThreads );
+			log.info( "Throughput mode: using {} threads for replanning and routing (random seed {}).", numberOfThreads, config.global().getRandomSeed() );
+		}
+
+		if ( checkpointDirectory == null ) {
+			checkpointDirectory = config.controller().getOutputDirectory() + "_checkpoints";
+		}
+		if ( resume ) {
+			try {
+				originalSettings = CheckpointModule.resumeFromLatestCheckpoint( config, checkpointDirectory );
+			} catch ( IOException e ) {
+				throw new UncheckedIOException( e );
+			}
+		} else {
+			originalSettings = CheckpointModule.OriginalSettings.of( config );
+		}
+
 		// possibly modify config here
 
 		// ---
@@ -64,6 +124,24 @@ public class RunMatsimApplication extends MATSimApplication {
 	@Override
 	protected void prepareControler(Controler controler) {
 
+		RouteCacheModule routeCacheModule = null;
+		if ( routeCache ) {
+			routeCacheModule = new RouteCacheModule( routeCacheSize, controler.getConfig().travelTimeCalculator().getTraveltimeBinSize(), routeCacheThreshold );
+			controler.addOverridingModule( routeCacheModule );
+		}
+		if ( throughput ) {
+			// (needs to come after the route cache, since both bind the network routing modules)
+			controler.addOverridingModule( new RoutingThroughputModule( routeCacheModule ) );
+		}
+
+		if ( checkpointInterval > 0 ) {
+			controler.addOverridingModule( new CheckpointModule( checkpointDirectory, checkpointInterval, originalSettings ) );
+		}
+
+		if ( nextEventStepping ) {
+			controler.addOverridingModule( new NextEventTimeSteppingModule() );
+		}
+
 		// possibly modify controler here
 
 //		controler.addOverridingModule( new OTFVisLiveModule() ) ;
@@ -0,0 +1,17 @@
+"""Reads the columnar tables (.npz) of the freight analysis, see ColumnarTableExport.java."""
+
+import numpy as np
+import pandas as pd
+
+
+def read_analysis_table(path):
+    """Returns the table as a pandas DataFrame, with the columns in the order of the csv file."""
+    with np.load(path) as npz:
+        return pd.DataFrame({name: npz[name] for name in npz.files})
+
+
+if __name__ == "__main__":
+    import sys
+
+    for file in sys.argv[1:]:
+        print(read_analysis_table(file))
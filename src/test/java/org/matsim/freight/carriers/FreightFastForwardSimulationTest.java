@@ -0,0 +1,153 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs the {@link FreightFastForwardSimulation} on a line network, where every link takes 100 s in both directions.
+ */
+public class FreightFastForwardSimulationTest {
+
+	@Test
+	void testEventsOfATour() {
+		final List<Event> events = run(0.);
+
+		final List<String> expected = List.of(
+				"0.0 CarrierTourStartEvent",
+				"0.0 VehicleEntersTrafficEvent",
+				"0.0 LinkLeaveEvent 1",
+				"0.0 LinkEnterEvent 2",
+				"100.0 LinkLeaveEvent 2",
+				"100.0 LinkEnterEvent 3",
+				"200.0 VehicleLeavesTrafficEvent",
+				"200.0 CarrierServiceStartEvent",
+				"210.0 CarrierServiceEndEvent",
+				"210.0 VehicleEntersTrafficEvent",
+				"210.0 LinkLeaveEvent 3",
+				"210.0 LinkEnterEvent -3",
+				"310.0 LinkLeaveEvent -3",
+				"310.0 LinkEnterEvent -2",
+				"410.0 LinkLeaveEvent -2",
+				"410.0 LinkEnterEvent -1",
+				"510.0 VehicleLeavesTrafficEvent",
+				"510.0 CarrierTourEndEvent");
+		final List<String> actual = new ArrayList<>();
+		for (Event event : events) {
+			final String link = event.getAttributes().get("link");
+			final String type = event.getClass().getSimpleName();
+			actual.add(event.getTime() + " " + (type.startsWith("Link") ? type + " " + link : type));
+		}
+		assertEquals(expected, actual);
+	}
+
+	/**
+	 * The tours are simulated together, but their events must be the same as if every tour was simulated on its own
+	 * and all events were sorted by time afterwards, with the first tour first on equal times.
+	 */
+	@Test
+	void testToursAreMergedInTimeOrder() {
+		final List<Event> expected = new ArrayList<>();
+		expected.addAll(run(0.));
+		expected.addAll(run(100.));
+		expected.sort(Comparator.comparingDouble(Event::getTime));
+
+		final List<Event> actual = run(0., 100.);
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getAttributes(), actual.get(i).getAttributes());
+		}
+	}
+
+	/**
+	 * One vehicle for every departure time, which serves link 3 from the depot on link 1 and returns to link -1.
+	 */
+	private static List<Event> run(double... departureTimes) {
+		final Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		createNetwork(scenario.getNetwork());
+		final Carrier carrier = CarriersUtils.createCarrier(Id.create("carrier", Carrier.class));
+		final VehicleType vehicleType = VehicleUtils.createVehicleType(Id.create("van", VehicleType.class));
+		vehicleType.setMaximumVelocity(30.);
+		final CarrierService service = CarrierService.Builder.newInstance(Id.create("service", CarrierService.class), Id.createLinkId("3"))
+				.setServiceDuration(10.)
+				.build();
+		CarriersUtils.addService(carrier, service);
+
+		final List<ScheduledTour> scheduledTours = new ArrayList<>();
+		for (double departureTime : departureTimes) {
+			final CarrierVehicle vehicle = CarrierVehicle.Builder.newInstance(Id.create("vehicle" + departureTime, Vehicle.class), Id.createLinkId("1"), vehicleType).build();
+			CarriersUtils.addCarrierVehicle(carrier, vehicle);
+			final Tour.Builder builder = Tour.Builder.newInstance(Id.create("tour" + departureTime, Tour.class));
+			builder.scheduleStart(Id.createLinkId("1"));
+			builder.addLeg(builder.createLeg(RouteUtils.createLinkNetworkRouteImpl(Id.createLinkId("1"), List.of(Id.createLinkId("2")), Id.createLinkId("3")), departureTime, 200.));
+			builder.scheduleService(service);
+			builder.addLeg(builder.createLeg(RouteUtils.createLinkNetworkRouteImpl(Id.createLinkId("3"),
+					List.of(Id.createLinkId("-3"), Id.createLinkId("-2")), Id.createLinkId("-1")), departureTime + 210., 300.));
+			builder.scheduleEnd(Id.createLinkId("-1"));
+			scheduledTours.add(ScheduledTour.newInstance(builder.build(), vehicle, departureTime));
+		}
+		carrier.setSelectedPlan(new CarrierPlan(carrier, scheduledTours));
+		CarriersUtils.addOrGetCarriers(scenario).addCarrier(carrier);
+
+		final List<Event> events = new ArrayList<>();
+		final EventsManager eventsManager = EventsUtils.createEventsManager();
+		eventsManager.addHandler((BasicEventHandler) events::add);
+		eventsManager.initProcessing();
+		new FreightFastForwardSimulation(scenario).run(eventsManager);
+		eventsManager.finishProcessing();
+		return events;
+	}
+
+	/**
+	 * Nodes 0 to 4 on a line; the links 1 to 4 lead away from node 0, the links -1 to -4 back.
+	 */
+	private static void createNetwork(Network network) {
+		Node previous = NetworkUtils.createAndAddNode(network, Id.createNodeId("0"), new Coord(0., 0.));
+		for (int i = 1; i <= 4; i++) {
+			final Node node = NetworkUtils.createAndAddNode(network, Id.createNodeId(Integer.toString(i)), new Coord(i * 1000., 0.));
+			NetworkUtils.createAndAddLink(network, Id.createLinkId(Integer.toString(i)), previous, node, 1000., 10., 1000., 1.);
+			NetworkUtils.createAndAddLink(network, Id.createLinkId(Integer.toString(-i)), node, previous, 1000., 10., 1000., 1.);
+			previous = node;
+		}
+	}
+}
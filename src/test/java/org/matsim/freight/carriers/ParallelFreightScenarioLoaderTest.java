@@ -0,0 +1,123 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The {@link ParallelFreightScenarioLoader} must load the same scenario as the sequential loading.
+ */
+public class ParallelFreightScenarioLoaderTest {
+
+	@RegisterExtension
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	void testSameScenarioAsSequentialLoading() throws Exception {
+		final Config config = createConfig();
+		final Scenario parallel = ParallelFreightScenarioLoader.loadScenario(config);
+
+		final Scenario sequential = ScenarioUtils.loadScenario(createConfig());
+		CarriersUtils.loadCarriersAccordingToFreightConfig(sequential);
+
+		assertEquals(sequential.getNetwork().getNodes().keySet(), parallel.getNetwork().getNodes().keySet());
+		assertEquals(sequential.getNetwork().getLinks().keySet(), parallel.getNetwork().getLinks().keySet());
+		assertEquals(sequential.getPopulation().getPersons().keySet(), parallel.getPopulation().getPersons().keySet());
+		for (Person person : sequential.getPopulation().getPersons().values()) {
+			assertEquals(person.getSelectedPlan().getPlanElements().size(),
+					parallel.getPopulation().getPersons().get(person.getId()).getSelectedPlan().getPlanElements().size());
+		}
+
+		assertEquals(CarriersUtils.getCarrierVehicleTypes(sequential).getVehicleTypes().keySet(),
+				CarriersUtils.getCarrierVehicleTypes(parallel).getVehicleTypes().keySet());
+		final Carriers sequentialCarriers = CarriersUtils.getCarriers(sequential);
+		final Carriers parallelCarriers = CarriersUtils.getCarriers(parallel);
+		assertEquals(2, parallelCarriers.getCarriers().size());
+		assertEquals(sequentialCarriers.getCarriers().keySet(), parallelCarriers.getCarriers().keySet());
+		for (Carrier carrier : sequentialCarriers.getCarriers().values()) {
+			final Carrier parallelCarrier = parallelCarriers.getCarriers().get(carrier.getId());
+			assertEquals(carrier.getServices().keySet(), parallelCarrier.getServices().keySet());
+			assertEquals(carrier.getShipments().keySet(), parallelCarrier.getShipments().keySet());
+			assertEquals(carrier.getCarrierCapabilities().getCarrierVehicles().keySet(),
+					parallelCarrier.getCarrierCapabilities().getCarrierVehicles().keySet());
+			for (CarrierVehicle vehicle : carrier.getCarrierCapabilities().getCarrierVehicles().values()) {
+				final CarrierVehicle parallelVehicle = parallelCarrier.getCarrierCapabilities().getCarrierVehicles().get(vehicle.getId());
+				// the types are resolved from the carrier vehicle types, not read twice
+				assertEquals(vehicle.getType().getId(), parallelVehicle.getType().getId());
+				assertEquals(vehicle.getLinkId(), parallelVehicle.getLinkId());
+			}
+		}
+	}
+
+	/**
+	 * The equil scenario with two carriers, whose files are written into the output directory.
+	 */
+	private Config createConfig() {
+		final String vehicleTypesFile = utils.getOutputDirectory() + "vehicleTypes.xml";
+		final String carriersFile = utils.getOutputDirectory() + "carriers.xml";
+		if (!new File(carriersFile).exists()) {
+			final CarrierVehicleTypes vehicleTypes = new CarrierVehicleTypes();
+			final VehicleType vehicleType = VehicleUtils.createVehicleType(Id.create("van", VehicleType.class));
+			vehicleType.getCapacity().setOther(10.);
+			vehicleTypes.getVehicleTypes().put(vehicleType.getId(), vehicleType);
+			new CarrierVehicleTypeWriter(vehicleTypes).write(vehicleTypesFile);
+
+			final Carriers carriers = new Carriers();
+			for (int c = 0; c < 2; c++) {
+				final Carrier carrier = CarriersUtils.createCarrier(Id.create("carrier" + c, Carrier.class));
+				CarriersUtils.addCarrierVehicle(carrier, CarrierVehicle.Builder.newInstance(Id.create("vehicle" + c, Vehicle.class),
+						Id.createLinkId("1"), vehicleType).setEarliestStart(0.).setLatestEnd(24 * 3600.).build());
+				for (int s = 0; s < 5; s++) {
+					CarriersUtils.addService(carrier, CarrierService.Builder.newInstance(Id.create("service" + s, CarrierService.class),
+							Id.createLinkId(Integer.toString(2 + s))).setServiceDuration(300.).build());
+				}
+				CarriersUtils.addShipment(carrier, CarrierShipment.Builder.newInstance(Id.create("shipment", CarrierShipment.class),
+						Id.createLinkId("12"), Id.createLinkId("20"), 2).build());
+				carriers.addCarrier(carrier);
+			}
+			new CarrierPlanWriter(carriers).write(carriersFile);
+		}
+
+		final Config config = ConfigUtils.loadConfig(IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml"));
+		final FreightCarriersConfigGroup freightCarriersConfigGroup = ConfigUtils.addOrGetModule(config, FreightCarriersConfigGroup.class);
+		// as urls, since the files are resolved against the context of the config
+		freightCarriersConfigGroup.setCarriersVehicleTypesFile(new File(vehicleTypesFile).toURI().toString());
+		freightCarriersConfigGroup.setCarriersFile(new File(carriersFile).toURI().toString());
+		return config;
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the {@link TimeWindowPrecheck} on a line network, where every link takes 100 s in both directions.
+ */
+public class TimeWindowPrecheckTest {
+
+	@Test
+	void testInfeasibleJobs() throws Exception {
+		final Network network = createNetwork();
+		final Carriers carriers = new Carriers();
+		final Carrier carrier = createCarrier();
+		carriers.addCarrier(carrier);
+
+		// the depot is on link 1, the vehicle operates from 0 to 1000 s
+		addService(carrier, "feasible", "3", 1, 0., 1000., 10.);
+		addService(carrier, "tooEarly", "3", 1, 0., 150., 10.);
+		addService(carrier, "noReturn", "3", 1, 0., 1000., 500.);
+		addService(carrier, "tooLarge", "3", 20, 0., 1000., 10.);
+		addShipment(carrier, "feasible", 5, 0., 1000.);
+		addShipment(carrier, "lateDelivery", 5, 0., 250.);
+
+		final List<TimeWindowPrecheck.InfeasibleJob> infeasibleJobs = new TimeWindowPrecheck(network, 2).run(carriers);
+
+		final Map<String, String> expected = new TreeMap<>();
+		expected.put("service tooEarly", "time window can not be reached from the depots");
+		expected.put("service noReturn", "no return to the depots within their operating time");
+		expected.put("service tooLarge", "demand exceeds the capacity of all vehicles");
+		expected.put("shipment lateDelivery", "delivery time window can not be reached from the pickup");
+		final Map<String, String> actual = new TreeMap<>();
+		for (TimeWindowPrecheck.InfeasibleJob infeasibleJob : infeasibleJobs) {
+			assertEquals(carrier.getId(), infeasibleJob.carrierId());
+			actual.put(infeasibleJob.jobType() + " " + infeasibleJob.jobId(), infeasibleJob.reason());
+		}
+		assertEquals(expected, actual);
+
+		TimeWindowPrecheck.removeJobs(carriers, infeasibleJobs);
+		assertEquals(Set.of("feasible"), carrier.getServices().keySet().stream().map(Id::toString).collect(Collectors.toSet()));
+		assertEquals(Set.of("feasible"), carrier.getShipments().keySet().stream().map(Id::toString).collect(Collectors.toSet()));
+	}
+
+	@Test
+	void testLaterOperatingTime() throws Exception {
+		final Network network = createNetwork();
+		final Carriers carriers = new Carriers();
+		final Carrier carrier = createCarrier();
+		carriers.addCarrier(carrier);
+		// reachable from 0 s, but not if the vehicles only start at 100 s
+		addService(carrier, "service", "3", 1, 0., 250., 10.);
+		assertEquals(0, new TimeWindowPrecheck(network, 1).run(carriers).size());
+
+		final Carrier lateCarrier = CarriersUtils.createCarrier(Id.create("late", Carrier.class));
+		CarriersUtils.addCarrierVehicle(lateCarrier, CarrierVehicle.Builder.newInstance(Id.create("vehicle", Vehicle.class), Id.createLinkId("1"),
+				createVehicleType()).setEarliestStart(100.).setLatestEnd(1000.).build());
+		addService(lateCarrier, "service", "3", 1, 0., 250., 10.);
+		carriers.addCarrier(lateCarrier);
+		final List<TimeWindowPrecheck.InfeasibleJob> infeasibleJobs = new TimeWindowPrecheck(network, 1).run(carriers);
+		assertEquals(1, infeasibleJobs.size());
+		assertEquals(lateCarrier.getId(), infeasibleJobs.get(0).carrierId());
+	}
+
+	/**
+	 * Nodes 0 to 4 on a line; the links 1 to 4 lead away from node 0, the links -1 to -4 back.
+	 */
+	private static Network createNetwork() {
+		final Network network = NetworkUtils.createNetwork();
+		Node previous = NetworkUtils.createAndAddNode(network, Id.createNodeId("0"), new Coord(0., 0.));
+		for (int i = 1; i <= 4; i++) {
+			final Node node = NetworkUtils.createAndAddNode(network, Id.createNodeId(Integer.toString(i)), new Coord(i * 1000., 0.));
+			NetworkUtils.createAndAddLink(network, Id.createLinkId(Integer.toString(i)), previous, node, 1000., 10., 1000., 1.);
+			NetworkUtils.createAndAddLink(network, Id.createLinkId(Integer.toString(-i)), node, previous, 1000., 10., 1000., 1.);
+			previous = node;
+		}
+		return network;
+	}
+
+	private static VehicleType createVehicleType() {
+		final VehicleType vehicleType = VehicleUtils.createVehicleType(Id.create("van", VehicleType.class));
+		vehicleType.getCapacity().setOther(10.);
+		return vehicleType;
+	}
+
+	private static Carrier createCarrier() {
+		final Carrier carrier = CarriersUtils.createCarrier(Id.create("carrier", Carrier.class));
+		CarriersUtils.addCarrierVehicle(carrier, CarrierVehicle.Builder.newInstance(Id.create("vehicle", Vehicle.class), Id.createLinkId("1"),
+				createVehicleType()).setEarliestStart(0.).setLatestEnd(1000.).build());
+		return carrier;
+	}
+
+	private static void addService(Carrier carrier, String id, String linkId, int demand, double start, double end, double duration) {
+		CarriersUtils.addService(carrier, CarrierService.Builder.newInstance(Id.create(id, CarrierService.class), Id.createLinkId(linkId))
+				.setCapacityDemand(demand)
+				.setServiceStartTimeWindow(TimeWindow.newInstance(start, end))
+				.setServiceDuration(duration)
+				.build());
+	}
+
+	/**
+	 * A shipment from link 2 to link 4.
+	 */
+	private static void addShipment(Carrier carrier, String id, int size, double deliveryStart, double deliveryEnd) {
+		CarriersUtils.addShipment(carrier, CarrierShipment.Builder.newInstance(Id.create(id, CarrierShipment.class), Id.createLinkId("2"), Id.createLinkId("4"), size)
+				.setPickupTimeWindow(TimeWindow.newInstance(0., 1000.))
+				.setDeliveryTimeWindow(TimeWindow.newInstance(deliveryStart, deliveryEnd))
+				.build());
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.freight.carriers.Carrier;
+import org.matsim.freight.carriers.CarrierPlan;
+import org.matsim.freight.carriers.CarrierService;
+import org.matsim.freight.carriers.CarrierVehicle;
+import org.matsim.freight.carriers.Carriers;
+import org.matsim.freight.carriers.CarriersUtils;
+import org.matsim.freight.carriers.ScheduledTour;
+import org.matsim.freight.carriers.Tour;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares two plans of a carrier with the {@link CarrierPlanDiff}, with one tour of every status.
+ */
+public class CarrierPlanDiffTest {
+
+	private static final Id<Link> DEPOT = Id.createLinkId("depot");
+
+	@RegisterExtension
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	void testTourMatching() throws IOException {
+		final VehicleType vehicleType = VehicleUtils.createVehicleType(Id.create("van", VehicleType.class));
+		vehicleType.getCapacity().setOther(10.);
+		vehicleType.getCostInformation().setFixedCost(100.).setCostsPerMeter(0.).setCostsPerSecond(0.);
+		final CarrierVehicle vehicle = CarrierVehicle.Builder.newInstance(Id.create("vehicle", Vehicle.class), DEPOT, vehicleType).build();
+		final Map<String, CarrierService> services = new HashMap<>();
+		for (int i = 1; i <= 8; i++) {
+			final CarrierService service = CarrierService.Builder.newInstance(Id.create("s" + i, CarrierService.class), Id.createLinkId("link" + i))
+					.setCapacityDemand(1).build();
+			services.put("s" + i, service);
+		}
+
+		final Carriers base = new Carriers();
+		base.addCarrier(createCarrier(vehicle, services,
+				List.of("s1", "s2"),
+				List.of("s3", "s4"),
+				List.of("s5", "s6", "s7"),
+				List.of("s8")));
+		final Carriers variant = new Carriers();
+		variant.addCarrier(createCarrier(vehicle, services,
+				List.of("s1", "s2"), // unchanged
+				List.of("s4", "s3"), // reordered
+				List.of("s5", "s6", "s8"), // changed; the tour with s8 is removed
+				List.of("s7"))); // added
+
+		new CarrierPlanDiff(null).writeDiff(base, variant, utils.getOutputDirectory());
+
+		final List<String[]> perCarrier = read("PlanDiff_perCarrier");
+		assertEquals(1, perCarrier.size());
+		final Map<String, String> values = new HashMap<>();
+		final String[] header = read("PlanDiff_perCarrier", true).get(0);
+		for (int i = 0; i < header.length; i++) {
+			values.put(header[i], perCarrier.get(0)[i]);
+		}
+		assertEquals("carrier", values.get("carrierId"));
+		assertEquals("4", values.get("nuOfTours(base)"));
+		assertEquals("4", values.get("nuOfTours(variant)"));
+		assertEquals("1", values.get("unchangedTours"));
+		assertEquals("1", values.get("reorderedTours"));
+		assertEquals("1", values.get("changedTours"));
+		assertEquals("1", values.get("addedTours"));
+		assertEquals("1", values.get("removedTours"));
+		assertEquals("8", values.get("nuOfJobs(base)"));
+		assertEquals("8", values.get("nuOfJobs(variant)"));
+		// s8 and s7 are served by other tours
+		assertEquals("2", values.get("movedJobs"));
+		assertEquals(400., Double.parseDouble(values.get("costs(base)[EUR]")), MatsimTestUtils.EPSILON);
+		assertEquals(0., Double.parseDouble(values.get("deltaCosts[EUR]")), MatsimTestUtils.EPSILON);
+
+		final List<String> statuses = new ArrayList<>();
+		for (String[] line : read("PlanDiff_perTour")) {
+			statuses.add(line[1]);
+		}
+		assertEquals(List.of("unchanged", "reordered", "changed", "added", "removed"), statuses);
+	}
+
+	@SafeVarargs
+	private static Carrier createCarrier(CarrierVehicle vehicle, Map<String, CarrierService> services, List<String>... tours) {
+		final Carrier carrier = CarriersUtils.createCarrier(Id.create("carrier", Carrier.class));
+		final List<ScheduledTour> scheduledTours = new ArrayList<>();
+		for (int t = 0; t < tours.length; t++) {
+			final Tour.Builder builder = Tour.Builder.newInstance(Id.create("tour" + t, Tour.class));
+			builder.scheduleStart(DEPOT);
+			double time = 0.;
+			for (String service : tours[t]) {
+				builder.addLeg(builder.createLeg(null, time, 100.));
+				builder.scheduleService(services.get(service));
+				time += 200.;
+			}
+			builder.addLeg(builder.createLeg(null, time, 100.));
+			builder.scheduleEnd(DEPOT);
+			scheduledTours.add(ScheduledTour.newInstance(builder.build(), vehicle, 0.));
+		}
+		carrier.setSelectedPlan(new CarrierPlan(carrier, scheduledTours));
+		return carrier;
+	}
+
+	private List<String[]> read(String table) throws IOException {
+		return read(table, false);
+	}
+
+	/**
+	 * @return the lines of the table, without the header (or only the header)
+	 */
+	private List<String[]> read(String table, boolean header) throws IOException {
+		final List<String> lines = Files.readAllLines(Path.of(utils.getOutputDirectory(), table + RunFreightAnalysisEventBased.fileExtension));
+		final List<String[]> result = new ArrayList<>();
+		for (String line : header ? lines.subList(0, 1) : lines.subList(1, lines.size())) {
+			result.add(line.split(RunFreightAnalysisEventBased.delimiter, -1));
+		}
+		return result;
+	}
+}
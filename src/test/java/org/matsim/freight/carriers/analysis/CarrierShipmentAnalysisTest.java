@@ -0,0 +1,165 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.freight.carriers.Carrier;
+import org.matsim.freight.carriers.CarrierShipment;
+import org.matsim.freight.carriers.Carriers;
+import org.matsim.freight.carriers.CarriersUtils;
+import org.matsim.freight.carriers.TimeWindow;
+import org.matsim.freight.carriers.events.CarrierShipmentDeliveryEndEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentDeliveryStartEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentPickupEndEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentPickupStartEvent;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the per shipment values and the per carrier distributions of the {@link CarrierShipmentAnalysis}.
+ */
+public class CarrierShipmentAnalysisTest {
+
+	private static final Id<Link> LINK_ID = Id.createLinkId("link");
+	private static final double PICKUP_SERVICE_TIME = 60.;
+	private static final double DELIVERY_SERVICE_TIME = 120.;
+
+	@RegisterExtension
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	void testServiceQuality() throws IOException {
+		final Carrier carrier = CarriersUtils.createCarrier(Id.create("carrier", Carrier.class));
+		final Carriers carriers = new Carriers();
+		carriers.addCarrier(carrier);
+		final CarrierShipment onTime = addShipment(carrier, "onTime", TimeWindow.newInstance(0., 1000.), TimeWindow.newInstance(500., 1000.));
+		final CarrierShipment latePickup = addShipment(carrier, "latePickup", TimeWindow.newInstance(0., 50.), TimeWindow.newInstance(0., 2000.));
+		final CarrierShipment lateDelivery = addShipment(carrier, "lateDelivery", TimeWindow.newInstance(0., 1000.), TimeWindow.newInstance(0., 300.));
+
+		final CarrierShipmentAnalysis analysis = new CarrierShipmentAnalysis(carriers, utils.getOutputDirectory());
+		// arrives at the delivery at 300, waits for the time window until 500
+		serve(analysis, carrier, onTime, 100., 300., 500.);
+		// starts the pickup 50 s after the time window closed
+		serve(analysis, carrier, latePickup, 100., 400., 400.);
+		// starts the delivery 400 s after the time window closed
+		serve(analysis, carrier, lateDelivery, 200., 700., 700.);
+		analysis.writeShipmentAnalysis(utils.getOutputDirectory());
+
+		final List<Map<String, String>> perShipment = read("Shipment_perShipment");
+		assertEquals(3, perShipment.size());
+		final Map<String, Map<String, String>> shipmentId2Values = new HashMap<>();
+		for (Map<String, String> values : perShipment) {
+			shipmentId2Values.put(values.get("shipmentId"), values);
+		}
+		assertValue(500., shipmentId2Values.get("onTime"), "deliveryStart[s]", 0.);
+		assertValue(200., shipmentId2Values.get("onTime"), "deliveryWait[s]", 0.);
+		assertValue(200., shipmentId2Values.get("onTime"), "deliveryEarliness[s]", 0.);
+		assertValue(340., shipmentId2Values.get("onTime"), "inVehicleTime[s]", 0.);
+		assertEquals("true", shipmentId2Values.get("onTime").get("onTime"));
+		assertValue(50., shipmentId2Values.get("latePickup"), "pickupLateness[s]", 0.);
+		assertEquals("false", shipmentId2Values.get("latePickup").get("onTime"));
+		assertValue(400., shipmentId2Values.get("lateDelivery"), "deliveryLateness[s]", 0.);
+
+		final List<Map<String, String>> perCarrier = read("Shipment_perCarrier");
+		assertEquals(1, perCarrier.size());
+		final Map<String, String> values = perCarrier.get(0);
+		assertEquals("3", values.get("nuOfShipments(delivered)"));
+		assertEquals("1", values.get("nuOfShipments(onTime)"));
+		assertValue(33.33, values, "onTime[%]", 0.);
+		// the quantiles are exact up to the relative width of the histogram buckets
+		assertQuantiles(values, "waitTime", 200. / 3, 0., 200., 200., 200.);
+		assertQuantiles(values, "pickupLateness", 50. / 3, 0., 50., 50., 50.);
+		assertQuantiles(values, "pickupEarliness", 0., 0., 0., 0., 0.);
+		assertQuantiles(values, "deliveryLateness", 400. / 3, 0., 400., 400., 400.);
+		assertQuantiles(values, "deliveryEarliness", 200. / 3, 0., 200., 200., 200.);
+		assertQuantiles(values, "inVehicleTime", 340., 340., 440., 440., 440.);
+	}
+
+	private static CarrierShipment addShipment(Carrier carrier, String id, TimeWindow pickupTimeWindow, TimeWindow deliveryTimeWindow) {
+		final CarrierShipment shipment = CarrierShipment.Builder.newInstance(Id.create(id, CarrierShipment.class), LINK_ID, LINK_ID, 1)
+				.setPickupTimeWindow(pickupTimeWindow)
+				.setDeliveryTimeWindow(deliveryTimeWindow)
+				.setPickupServiceTime(PICKUP_SERVICE_TIME)
+				.setDeliveryServiceTime(DELIVERY_SERVICE_TIME)
+				.build();
+		CarriersUtils.addShipment(carrier, shipment);
+		return shipment;
+	}
+
+	/**
+	 * The shipment has a vehicle of its own, which arrives at the pickup and at the delivery and starts the service
+	 * as soon as the time window allows.
+	 */
+	private static void serve(CarrierShipmentAnalysis analysis, Carrier carrier, CarrierShipment shipment, double pickupArrival,
+							  double deliveryArrival, double deliveryStart) {
+		final Id<Vehicle> vehicleId = Id.createVehicleId(shipment.getId().toString());
+		final Id<Person> driverId = Id.createPersonId(shipment.getId().toString());
+		analysis.handleEvent(new VehicleLeavesTrafficEvent(pickupArrival, driverId, LINK_ID, vehicleId, "car", 1.));
+		analysis.handleEvent(new CarrierShipmentPickupStartEvent(pickupArrival, carrier.getId(), shipment, vehicleId));
+		analysis.handleEvent(new CarrierShipmentPickupEndEvent(pickupArrival + PICKUP_SERVICE_TIME, carrier.getId(), shipment, vehicleId));
+		analysis.handleEvent(new VehicleLeavesTrafficEvent(deliveryArrival, driverId, LINK_ID, vehicleId, "car", 1.));
+		analysis.handleEvent(new CarrierShipmentDeliveryStartEvent(deliveryArrival, carrier.getId(), shipment, vehicleId));
+		analysis.handleEvent(new CarrierShipmentDeliveryEndEvent(deliveryStart + DELIVERY_SERVICE_TIME, carrier.getId(), shipment, vehicleId));
+	}
+
+	private static void assertQuantiles(Map<String, String> values, String name, double mean, double p50, double p90, double p95, double max) {
+		final double error = LogHistogram.RELATIVE_ERROR;
+		assertValue(mean, values, name + "_mean[s]", MatsimTestUtils.EPSILON);
+		assertValue(p50, values, name + "_p50[s]", error * Math.max(1., p50));
+		assertValue(p90, values, name + "_p90[s]", error * Math.max(1., p90));
+		assertValue(p95, values, name + "_p95[s]", error * Math.max(1., p95));
+		assertValue(max, values, name + "_max[s]", MatsimTestUtils.EPSILON);
+	}
+
+	private static void assertValue(double expected, Map<String, String> values, String column, double delta) {
+		assertEquals(expected, Double.parseDouble(values.get(column)), delta, column);
+	}
+
+	private List<Map<String, String>> read(String table) throws IOException {
+		final List<String> lines = Files.readAllLines(Path.of(utils.getOutputDirectory(), table + RunFreightAnalysisEventBased.fileExtension));
+		final String[] header = lines.get(0).split(RunFreightAnalysisEventBased.delimiter, -1);
+		final List<Map<String, String>> result = new ArrayList<>();
+		for (String line : lines.subList(1, lines.size())) {
+			final String[] fields = line.split(RunFreightAnalysisEventBased.delimiter, -1);
+			final Map<String, String> values = new HashMap<>();
+			for (int i = 0; i < header.length; i++) {
+				values.put(header[i], fields[i]);
+			}
+			result.add(values);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.GenericEvent;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.core.events.handler.BasicEventHandler;
+import org.matsim.freight.carriers.Carrier;
+import org.matsim.freight.carriers.Tour;
+import org.matsim.freight.carriers.events.CarrierTourStartEvent;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the sample of the {@link EventSample} and its Horvitz-Thompson estimate.
+ */
+public class EventSampleTest {
+
+	private static final int NU_OF_VEHICLES = 10_000;
+	private static final Id<Link> LINK_ID = Id.createLinkId("link");
+
+	@Test
+	void testSampleIsDeterministic() {
+		final Set<Id<Vehicle>> sample = drawVehicleSample(new EventSample(EventSample.Unit.vehicle, 0.3, 1234));
+		assertEquals(sample, drawVehicleSample(new EventSample(EventSample.Unit.vehicle, 0.3, 1234)));
+		assertNotEquals(sample, drawVehicleSample(new EventSample(EventSample.Unit.vehicle, 0.3, 4321)), "Another seed should draw another sample.");
+		assertEquals(0.3, sample.size() / (double) NU_OF_VEHICLES, 0.02);
+
+		assertEquals(NU_OF_VEHICLES, drawVehicleSample(new EventSample(EventSample.Unit.vehicle, 1., 1234)).size());
+	}
+
+	@Test
+	void testEventsWithoutVehicleArePassed() {
+		final EventSample sample = new EventSample(EventSample.Unit.vehicle, 0.01, 1234);
+		final int[] counter = {0};
+		final BasicEventHandler filter = sample.createFilter(event -> counter[0]++);
+		for (int i = 0; i < 100; i++) {
+			filter.handleEvent(new GenericEvent("generic", i));
+		}
+		assertEquals(100, counter[0]);
+	}
+
+	@Test
+	void testCarriersAreSampledWithAllTheirVehicles() {
+		final EventSample sample = new EventSample(EventSample.Unit.carrier, 0.5, 1234);
+		final Set<Id<Vehicle>> sampledVehicles = new HashSet<>();
+		final BasicEventHandler filter = sample.createFilter(event -> {
+			if (event instanceof LinkEnterEvent linkEnterEvent) {
+				sampledVehicles.add(linkEnterEvent.getVehicleId());
+			}
+		});
+		final int nuOfCarriers = 100;
+		final int vehiclesPerCarrier = 5;
+		for (int c = 0; c < nuOfCarriers; c++) {
+			for (int v = 0; v < vehiclesPerCarrier; v++) {
+				final Id<Vehicle> vehicleId = Id.createVehicleId("carrier" + c + "_vehicle" + v);
+				filter.handleEvent(new CarrierTourStartEvent(0., Id.create("carrier" + c, Carrier.class), LINK_ID, vehicleId, Id.create("tour", Tour.class)));
+				filter.handleEvent(new LinkEnterEvent(1., vehicleId, LINK_ID));
+			}
+		}
+		int nuOfSampledCarriers = 0;
+		for (int c = 0; c < nuOfCarriers; c++) {
+			int nuOfSampledVehicles = 0;
+			for (int v = 0; v < vehiclesPerCarrier; v++) {
+				if (sampledVehicles.contains(Id.createVehicleId("carrier" + c + "_vehicle" + v))) {
+					nuOfSampledVehicles++;
+				}
+			}
+			assertTrue(nuOfSampledVehicles == 0 || nuOfSampledVehicles == vehiclesPerCarrier, "Carrier " + c + " is only partly in the sample.");
+			nuOfSampledCarriers += nuOfSampledVehicles == 0 ? 0 : 1;
+		}
+		assertTrue(nuOfSampledCarriers > 0 && nuOfSampledCarriers < nuOfCarriers);
+	}
+
+	@Test
+	void testHorvitzThompsonEstimate() {
+		final double fraction = 0.3;
+		final EventSample sample = new EventSample(EventSample.Unit.vehicle, fraction, 1234);
+		final Set<Id<Vehicle>> sampledVehicles = drawVehicleSample(sample);
+
+		// every vehicle drove 2 km
+		final EventSample.TotalEstimator estimator = sample.createTotalEstimator();
+		for (Id<Vehicle> vehicleId : sampledVehicles) {
+			estimator.add(vehicleId, 2.);
+		}
+		final EventSample.Estimate estimate = estimator.estimate();
+		assertEquals(2. * sampledVehicles.size() / fraction, estimate.total(), MatsimTestUtils.EPSILON);
+		assertEquals(1.96 * Math.sqrt((1. - fraction) / (fraction * fraction) * 4. * sampledVehicles.size()), estimate.halfWidth95(), MatsimTestUtils.EPSILON);
+		// the true total of 20000 km; the half width is about 300 km
+		assertEquals(2. * NU_OF_VEHICLES, estimate.total(), 2 * estimate.halfWidth95());
+
+		// without sampling, there is no uncertainty
+		final EventSample fullSample = new EventSample(EventSample.Unit.vehicle, 1., 1234);
+		final EventSample.TotalEstimator fullEstimator = fullSample.createTotalEstimator();
+		for (Id<Vehicle> vehicleId : drawVehicleSample(fullSample)) {
+			fullEstimator.add(vehicleId, 2.);
+		}
+		assertEquals(2. * NU_OF_VEHICLES, fullEstimator.estimate().total(), MatsimTestUtils.EPSILON);
+		assertEquals(0., fullEstimator.estimate().halfWidth95(), MatsimTestUtils.EPSILON);
+	}
+
+	private static Set<Id<Vehicle>> drawVehicleSample(EventSample sample) {
+		final Set<Id<Vehicle>> sampledVehicles = new HashSet<>();
+		final BasicEventHandler filter = sample.createFilter(event -> sampledVehicles.add(((LinkEnterEvent) event).getVehicleId()));
+		for (int v = 0; v < NU_OF_VEHICLES; v++) {
+			filter.handleEvent(new LinkEnterEvent(0., Id.createVehicleId("vehicle" + v), LINK_ID));
+		}
+		return sampledVehicles;
+	}
+}
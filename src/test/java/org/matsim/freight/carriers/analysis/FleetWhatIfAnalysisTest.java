@@ -0,0 +1,88 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Evaluates the {@link FleetWhatIfAnalysis} on the tables of two vans, each with fixed costs of 100 EUR, and
+ * together with 30 EUR time costs and 30 EUR distance costs.
+ */
+public class FleetWhatIfAnalysisTest {
+
+	private static final String DELIMITER = RunFreightAnalysisEventBased.delimiter;
+
+	@RegisterExtension
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	void testAllVehicles() throws IOException {
+		writeTimeDistancePerVehicle();
+
+		evaluate();
+
+		assertEquals(List.of("base", "van", "2", "200.0"), readFirstLine("WhatIf_perVehicleType").subList(0, 4));
+		assertEquals(260., Double.parseDouble(readFirstLine("WhatIf_summary").get(1)), MatsimTestUtils.EPSILON);
+	}
+
+	/**
+	 * The two vans are a sample of 25 % of the vehicles, so the fleet is estimated to have eight vans.
+	 */
+	@Test
+	void testSampledVehicles() throws IOException {
+		writeTimeDistancePerVehicle();
+		Files.write(Path.of(utils.getOutputDirectory(), "General_summary" + RunFreightAnalysisEventBased.fileExtension), List.of(
+				FreightTimeAndDistanceAnalysisEventsHandler.SAMPLE_SUMMARY_LINE + DELIMITER + 25. + " % of the vehicles" + DELIMITER,
+				"Number of carriers" + DELIMITER + 1 + DELIMITER));
+
+		evaluate();
+
+		assertEquals(List.of("base", "van", "8", "800.0"), readFirstLine("WhatIf_perVehicleType").subList(0, 4));
+		assertEquals(1040., Double.parseDouble(readFirstLine("WhatIf_summary").get(1)), MatsimTestUtils.EPSILON);
+	}
+
+	private void writeTimeDistancePerVehicle() throws IOException {
+		Files.write(Path.of(utils.getOutputDirectory(), "TimeDistance_perVehicle" + RunFreightAnalysisEventBased.fileExtension), List.of(
+				String.join(DELIMITER, "vehicleId", "vehicleTypeId", "tourDuration[s]", "travelDistance[m]", "fixedCosts[EUR]", "costPerSecond[EUR/s]", "costPerMeter[EUR/m]"),
+				String.join(DELIMITER, "van1", "van", "1000", "10000", "100", "0.01", "0.001"),
+				String.join(DELIMITER, "van2", "van", "2000", "20000", "100", "0.01", "0.001")));
+	}
+
+	private void evaluate() throws IOException {
+		FleetWhatIfAnalysis.readAnalysisOutput(utils.getOutputDirectory()).writeWhatIfAnalysis(utils.getOutputDirectory(), List.of());
+	}
+
+	/**
+	 * @return the first line after the header, i.e. of the base variant
+	 */
+	private List<String> readFirstLine(String table) throws IOException {
+		return List.of(Files.readAllLines(Path.of(utils.getOutputDirectory(), table + RunFreightAnalysisEventBased.fileExtension)).get(1).split(DELIMITER, -1));
+	}
+}
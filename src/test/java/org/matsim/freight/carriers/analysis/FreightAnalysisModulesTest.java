@@ -0,0 +1,60 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FreightAnalysisModulesTest {
+
+	@Test
+	void testOptionsArePassedToTheirModule() {
+		final FreightAnalysisModule.Context context = new FreightAnalysisModule.Context(null, null, "output/", null);
+		final List<FreightAnalysisModule> defaultModules = FreightAnalysisModules.load();
+		final List<FreightAnalysisModule> modules = FreightAnalysisModules.load(Map.of("timeAndDistance",
+				Map.of(FreightAnalysisModules.LINK_VOLUMES, "true", FreightAnalysisModules.MAX_VEHICLES_IN_MEMORY, "100")));
+		assertEquals(defaultModules.stream().map(FreightAnalysisModule::getName).toList(), modules.stream().map(FreightAnalysisModule::getName).toList());
+
+		for (int i = 0; i < modules.size(); i++) {
+			final List<String> outputFiles = modules.get(i).getOutputFiles(context);
+			if (modules.get(i).getName().equals("timeAndDistance")) {
+				assertTrue(outputFiles.contains("Traffic_perLink.csv"));
+				assertEquals(defaultModules.get(i).getOutputFiles(context).size() + 2, outputFiles.size());
+			} else {
+				assertEquals(defaultModules.get(i).getOutputFiles(context), outputFiles);
+			}
+		}
+	}
+
+	@Test
+	void testUnknownOptionsAreRejected() {
+		assertThrows(IllegalArgumentException.class, () -> FreightAnalysisModules.load(Map.of("shipments", Map.of(FreightAnalysisModules.LINK_VOLUMES, "true"))));
+		assertThrows(IllegalArgumentException.class, () -> FreightAnalysisModules.load(Map.of("load", Map.of(FreightAnalysisModules.LINK_VOLUMES, "true"))));
+		assertThrows(IllegalArgumentException.class, () -> FreightAnalysisModules.load(Map.of("noSuchModule", Map.of())));
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.api.experimental.events.EventsManager;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.events.algorithms.EventWriterXML;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.freight.carriers.Carrier;
+import org.matsim.freight.carriers.CarrierShipment;
+import org.matsim.freight.carriers.Tour;
+import org.matsim.freight.carriers.events.CarrierEventsReaders;
+import org.matsim.freight.carriers.events.CarrierShipmentDeliveryStartEvent;
+import org.matsim.freight.carriers.events.CarrierShipmentPickupStartEvent;
+import org.matsim.freight.carriers.events.CarrierTourEndEvent;
+import org.matsim.freight.carriers.events.CarrierTourStartEvent;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Replays a small events file through the {@link EventsReplayProducer} and checks the {@link FreightKpiSnapshots}
+ * computed from the socket stream.
+ */
+public class FreightKpiSnapshotsTest {
+
+	@RegisterExtension
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	void testSnapshotsOfReplayedEvents() throws Exception {
+		Network network = NetworkUtils.createNetwork();
+		Node node1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(0., 0.));
+		Node node2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(1000., 0.));
+		Node node3 = NetworkUtils.createAndAddNode(network, Id.createNodeId("3"), new Coord(3000., 0.));
+		Link link1 = NetworkUtils.createAndAddLink(network, Id.createLinkId("1"), node1, node2, 1000., 10., 1000., 1.);
+		Link link2 = NetworkUtils.createAndAddLink(network, Id.createLinkId("2"), node2, node3, 2000., 10., 1000., 1.);
+		Link link3 = NetworkUtils.createAndAddLink(network, Id.createLinkId("3"), node3, node1, 3000., 10., 1000., 1.);
+
+		final Id<Carrier> carrierId = Id.create("carrier", Carrier.class);
+		final Id<Vehicle> vehicleOnTour = Id.createVehicleId("freight");
+		final Id<Vehicle> otherVehicle = Id.createVehicleId("car");
+		final Id<Tour> tourId = Id.create("tour", Tour.class);
+		final CarrierShipment shipment = CarrierShipment.Builder.newInstance(Id.create("shipment", CarrierShipment.class),
+				link3.getId(), link2.getId(), 3).build();
+
+		final String eventsFile = utils.getOutputDirectory() + "events.xml";
+		EventWriterXML writer = new EventWriterXML(eventsFile);
+		writer.handleEvent(new CarrierTourStartEvent(10., carrierId, link3.getId(), vehicleOnTour, tourId));
+		writer.handleEvent(new CarrierShipmentPickupStartEvent(20., carrierId, shipment, vehicleOnTour));
+		writer.handleEvent(new LinkEnterEvent(50., vehicleOnTour, link1.getId()));
+		writer.handleEvent(new LinkEnterEvent(150., vehicleOnTour, link2.getId()));
+		writer.handleEvent(new CarrierShipmentDeliveryStartEvent(160., carrierId, shipment, vehicleOnTour));
+		// not on a tour, so not counted
+		writer.handleEvent(new LinkEnterEvent(170., otherVehicle, link3.getId()));
+		writer.handleEvent(new CarrierTourEndEvent(250., carrierId, link2.getId(), vehicleOnTour, tourId));
+		writer.closeFile();
+
+		ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Thread producer = new EventsReplayProducer(eventsFile, serverSocket).start();
+
+		final List<FreightKpiSnapshots.Snapshot> snapshots = new ArrayList<>();
+		FreightKpiSnapshots kpiSnapshots = new FreightKpiSnapshots(network, new SnapshotSink() {
+			@Override
+			public void write(FreightKpiSnapshots.Snapshot snapshot) {
+				snapshots.add(snapshot);
+			}
+
+			@Override
+			public void close() {
+			}
+		}, 100., 2);
+		EventTypeDispatcher dispatcher = new EventTypeDispatcher();
+		kpiSnapshots.registerEventHandlers(dispatcher);
+		EventsManager eventsManager = EventsUtils.createEventsManager();
+		eventsManager.addHandler(dispatcher);
+		eventsManager.initProcessing();
+		EventSource.socket(serverSocket.getInetAddress().getHostAddress(), serverSocket.getLocalPort())
+				.readEvents(CarrierEventsReaders.createEventsReader(eventsManager));
+		eventsManager.finishProcessing();
+		kpiSnapshots.finish();
+		producer.join(10_000);
+
+		assertEquals(3, snapshots.size());
+		assertSnapshot(snapshots.get(0), 100., 1., 1., 1, 1, 0, 3);
+		// rolling window of two intervals
+		assertSnapshot(snapshots.get(1), 200., 3., 3., 1, 1, 0, 0);
+		assertSnapshot(snapshots.get(2), 300., 2., 3., 0, 1, 1, 0);
+	}
+
+	private static void assertSnapshot(FreightKpiSnapshots.Snapshot snapshot, double time, double windowVehicleKm, double totalVehicleKm,
+									   int activeTours, long startedTours, long endedTours, long load) {
+		assertEquals(time, snapshot.time(), MatsimTestUtils.EPSILON);
+		assertEquals(windowVehicleKm, snapshot.windowVehicleKm(), MatsimTestUtils.EPSILON);
+		assertEquals(totalVehicleKm, snapshot.totalVehicleKm(), MatsimTestUtils.EPSILON);
+		assertEquals(activeTours, snapshot.activeTours());
+		assertEquals(startedTours, snapshot.startedTours());
+		assertEquals(endedTours, snapshot.endedTours());
+		assertEquals(load, snapshot.load());
+	}
+}
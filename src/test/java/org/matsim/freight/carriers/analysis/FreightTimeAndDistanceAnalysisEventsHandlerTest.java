@@ -0,0 +1,185 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+
+package org.matsim.freight.carriers.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.events.Event;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.LinkLeaveEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.freight.carriers.Carrier;
+import org.matsim.freight.carriers.CarrierPlan;
+import org.matsim.freight.carriers.Carriers;
+import org.matsim.freight.carriers.CarriersUtils;
+import org.matsim.freight.carriers.Tour;
+import org.matsim.freight.carriers.events.CarrierTourEndEvent;
+import org.matsim.freight.carriers.events.CarrierTourStartEvent;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The output of the {@link FreightTimeAndDistanceAnalysisEventsHandler} must not depend on the order in which the
+ * events of different vehicles are interleaved; the {@link EventTypeDispatcher} enforces a single event thread.
+ */
+public class FreightTimeAndDistanceAnalysisEventsHandlerTest {
+
+	private static final int NU_OF_VEHICLES = 200;
+
+	@RegisterExtension
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	void testOutputIndependentOfOrderOfVehicles() throws Exception {
+		final Scenario scenario = ScenarioUtils.createScenario(ConfigUtils.createConfig());
+		final Network network = scenario.getNetwork();
+		final List<Link> links = new ArrayList<>();
+		Node previous = NetworkUtils.createAndAddNode(network, Id.createNodeId("0"), new Coord(0., 0.));
+		final Node first = previous;
+		for (int i = 1; i <= 10; i++) {
+			Node node = i == 10 ? first : NetworkUtils.createAndAddNode(network, Id.createNodeId(i), new Coord(i * 1000., 0.));
+			links.add(NetworkUtils.createAndAddLink(network, Id.createLinkId(i), previous, node, 100. * i + 0.1, 10., 1000., 1.));
+			previous = node;
+		}
+
+		final List<VehicleType> vehicleTypes = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			VehicleType vehicleType = VehicleUtils.createVehicleType(Id.create("type" + i, VehicleType.class));
+			vehicleType.getCostInformation().setFixedCost(100. + i).setCostsPerMeter(0.001 * (i + 1)).setCostsPerSecond(0.0033 * (i + 1));
+			scenario.getVehicles().addVehicleType(vehicleType);
+			vehicleTypes.add(vehicleType);
+		}
+
+		final Carriers carriers = new Carriers();
+		for (int i = 0; i < 4; i++) {
+			Carrier carrier = CarriersUtils.createCarrier(Id.create("carrier" + i, Carrier.class));
+			carrier.setSelectedPlan(new CarrierPlan(carrier, new ArrayList<>()));
+			carriers.addCarrier(carrier);
+		}
+
+		//The events of every vehicle: one or two tours over random links
+		final Random random = new Random(4711);
+		final List<List<Event>> eventsPerVehicle = new ArrayList<>();
+		for (int v = 0; v < NU_OF_VEHICLES; v++) {
+			final Id<Vehicle> vehicleId = Id.createVehicleId("vehicle" + v);
+			scenario.getVehicles().addVehicle(VehicleUtils.createVehicle(vehicleId, vehicleTypes.get(v % vehicleTypes.size())));
+			final Id<Carrier> carrierId = Id.create("carrier" + (v % 4), Carrier.class);
+			final List<Event> events = new ArrayList<>();
+			double time = random.nextInt(3600);
+			for (int tour = 0; tour < 1 + v % 2; tour++) {
+				final Id<Tour> tourId = Id.create("tour" + tour, Tour.class);
+				int link = random.nextInt(links.size());
+				events.add(new CarrierTourStartEvent(time, carrierId, links.get(link).getId(), vehicleId, tourId));
+				events.add(new VehicleEntersTrafficEvent(time += 1., Id.create(vehicleId, Person.class), links.get(link).getId(), vehicleId, "car", 1.));
+				for (int i = 0; i < 1 + random.nextInt(20); i++) {
+					events.add(new LinkLeaveEvent(time += 1 + random.nextInt(100), vehicleId, links.get(link).getId()));
+					link = (link + 1) % links.size();
+					events.add(new LinkEnterEvent(time, vehicleId, links.get(link).getId()));
+				}
+				events.add(new VehicleLeavesTrafficEvent(time += 1 + random.nextInt(100), Id.create(vehicleId, Person.class), links.get(link).getId(), vehicleId, "car", 1.));
+				events.add(new CarrierTourEndEvent(time += 1 + random.nextInt(600), carrierId, links.get(link).getId(), vehicleId, tourId));
+				time += random.nextInt(1800);
+			}
+			eventsPerVehicle.add(events);
+		}
+
+		//Single thread, all events in time order
+		final List<Event> allEvents = new ArrayList<>();
+		eventsPerVehicle.forEach(allEvents::addAll);
+		allEvents.sort((a, b) -> Double.compare(a.getTime(), b.getTime()));
+		FreightTimeAndDistanceAnalysisEventsHandler sequential = new FreightTimeAndDistanceAnalysisEventsHandler(scenario, carriers);
+		sequential.enableLinkVolumeAnalysis();
+		allEvents.forEach(sequential::handleEvent);
+		final String sequentialDirectory = utils.getOutputDirectory() + "sequential/";
+		new File(sequentialDirectory).mkdirs();
+		sequential.writeOutput(sequentialDirectory);
+
+		//The vehicles one after the other, in reverse order
+		FreightTimeAndDistanceAnalysisEventsHandler perVehicle = new FreightTimeAndDistanceAnalysisEventsHandler(scenario, carriers);
+		perVehicle.enableLinkVolumeAnalysis();
+		for (int v = NU_OF_VEHICLES - 1; v >= 0; v--) {
+			eventsPerVehicle.get(v).forEach(perVehicle::handleEvent);
+		}
+		final String perVehicleDirectory = utils.getOutputDirectory() + "perVehicle/";
+		new File(perVehicleDirectory).mkdirs();
+		perVehicle.writeOutput(perVehicleDirectory);
+
+		final String[] fileNames = new File(sequentialDirectory).list();
+		assertEquals(6, fileNames.length, "Tables per vehicle, per vehicle type, per carrier, general summary and the two link volume tables expected.");
+		for (String fileName : fileNames) {
+			final List<String> expected = Files.readAllLines(new File(sequentialDirectory, fileName).toPath());
+			final List<String> actual = Files.readAllLines(new File(perVehicleDirectory, fileName).toPath());
+			if (fileName.startsWith("Traffic_perLinkVehicleTypeAndHour")) {
+				// the vehicle types of a link and hour are in the order of their first appearance
+				Collections.sort(expected);
+				Collections.sort(actual);
+			}
+			assertEquals(expected, actual, fileName + " differs");
+		}
+	}
+
+	@Test
+	void testSingleThreadIsEnforced() throws Exception {
+		EventTypeDispatcher dispatcher = new EventTypeDispatcher();
+		dispatcher.addHandler(Event.class, event -> {
+		});
+		dispatcher.requireSingleThread();
+		final Event event = new LinkEnterEvent(0., Id.createVehicleId("vehicle"), Id.createLinkId("link"));
+		dispatcher.handleEvent(event);
+		dispatcher.handleEvent(event);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> future = executor.submit(() -> dispatcher.handleEvent(event));
+			Exception exception = assertThrows(Exception.class, future::get);
+			assertEquals(IllegalStateException.class, exception.getCause().getClass());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
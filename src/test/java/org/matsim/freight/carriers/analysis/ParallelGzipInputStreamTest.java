@@ -0,0 +1,110 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.freight.carriers.BlockGzipOutputStream;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trip of the {@link BlockGzipOutputStream} and the {@link ParallelGzipInputStream}.
+ */
+public class ParallelGzipInputStreamTest {
+
+	@RegisterExtension
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	void testRoundTrip() throws IOException {
+		final byte[] data = createData();
+		final Path file = Path.of(utils.getOutputDirectory(), "events.xml.gz");
+		try (OutputStream out = new BlockGzipOutputStream(Files.newOutputStream(file))) {
+			// in pieces of different sizes, so that the members are filled in several writes
+			final Random random = new Random(4711);
+			int position = 0;
+			while (position < data.length) {
+				final int length = Math.min(data.length - position, random.nextInt(100_000));
+				out.write(data, position, length);
+				position += length;
+			}
+		}
+
+		assertTrue(ParallelGzipInputStream.isBlockGzip(file.toString()));
+		for (int numberOfThreads : new int[]{1, 4}) {
+			try (InputStream in = new ParallelGzipInputStream(file, numberOfThreads)) {
+				assertArrayEquals(data, readAll(in), "Different data with " + numberOfThreads + " threads.");
+			}
+		}
+		// a valid multi-member gzip file for every reader
+		try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+			assertArrayEquals(data, readAll(in));
+		}
+	}
+
+	@Test
+	void testPlainGzipIsNotBlockGzip() throws IOException {
+		final Path file = Path.of(utils.getOutputDirectory(), "events.xml.gz");
+		try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+			out.write(createData());
+		}
+		assertFalse(ParallelGzipInputStream.isBlockGzip(file.toString()));
+	}
+
+	/**
+	 * About 2 MB of events like text with some randomness, i.e. many members of different compressed sizes.
+	 */
+	private static byte[] createData() {
+		final Random random = new Random(42);
+		final StringBuilder data = new StringBuilder();
+		for (int i = 0; i < 20_000; i++) {
+			data.append("\t<event time=\"").append(i).append(".0\" type=\"entered link\" link=\"").append(random.nextInt(10_000))
+					.append("\" vehicle=\"freight_").append(random.nextInt(500)).append("\"  />\n");
+		}
+		return data.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		// read in small pieces as well, across the member boundaries
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[1000];
+		int read;
+		while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Id;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the spilled runs of the {@link SpillingVehicleMap} are merged to the same accumulators as without
+ * spilling.
+ */
+public class SpillingVehicleMapTest {
+
+	/**
+	 * Appends the events of a vehicle; so the merge is only right if the partial accumulators are merged in time order.
+	 */
+	private static final SpillingVehicleMap.Codec<StringBuilder> CODEC = new SpillingVehicleMap.Codec<>() {
+		@Override
+		public void write(DataOutput out, StringBuilder value) throws IOException {
+			out.writeUTF(value.toString());
+		}
+
+		@Override
+		public StringBuilder read(DataInput in) throws IOException {
+			return new StringBuilder(in.readUTF());
+		}
+
+		@Override
+		public StringBuilder merge(StringBuilder earlier, StringBuilder later) {
+			return earlier.append(later);
+		}
+	};
+
+	@RegisterExtension
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	void testMergeOfSpilledRuns() throws IOException {
+		final Path spillDirectory = Path.of(utils.getOutputDirectory(), "spill");
+		final Map<Id<Vehicle>, String> expected = new TreeMap<>((a, b) -> a.toString().compareTo(b.toString()));
+		try (SpillingVehicleMap<StringBuilder> spilling = new SpillingVehicleMap<>(StringBuilder::new, CODEC, 3, spillDirectory);
+			 SpillingVehicleMap<StringBuilder> inMemory = new SpillingVehicleMap<>(StringBuilder::new, CODEC, Integer.MAX_VALUE, spillDirectory)) {
+			final Random random = new Random(4711);
+			final StringBuilder expectedBuilder = new StringBuilder();
+			for (int i = 0; i < 1000; i++) {
+				final Id<Vehicle> vehicleId = Id.createVehicleId("vehicle" + random.nextInt(20));
+				final char event = (char) ('a' + i % 26);
+				spilling.get(vehicleId).append(event);
+				inMemory.get(vehicleId).append(event);
+				expected.merge(vehicleId, String.valueOf(event), String::concat);
+			}
+			assertTrue(spillDirectory.toFile().list().length > 1, "Runs should have been spilled.");
+
+			assertEquals(expected, collect(spilling));
+			assertEquals(expected, collect(inMemory));
+			// can be called several times
+			assertEquals(expected, collect(spilling));
+		}
+		assertEquals(0, spillDirectory.toFile().list().length, "The runs should have been deleted.");
+	}
+
+	private static Map<Id<Vehicle>, String> collect(SpillingVehicleMap<StringBuilder> map) throws IOException {
+		final Map<Id<Vehicle>, String> result = new TreeMap<>((a, b) -> a.toString().compareTo(b.toString()));
+		final List<String> order = new ArrayList<>();
+		map.forEach((vehicleId, value) -> {
+			result.put(vehicleId, value.toString());
+			order.add(vehicleId.toString());
+		});
+		final List<String> sorted = new ArrayList<>(order);
+		sorted.sort(null);
+		assertEquals(sorted, order, "The vehicles should be handed out sorted by id.");
+		return result;
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ *   *********************************************************************** *
+ *   project: org.matsim.*
+ *   *********************************************************************** *
+ *                                                                           *
+ *   copyright       : (C)  by the members listed in the COPYING,        *
+ *                     LICENSE and WARRANTY file.                            *
+ *   email           : info at matsim dot org                                *
+ *                                                                           *
+ *   *********************************************************************** *
+ *                                                                           *
+ *     This program is free software; you can redistribute it and/or modify  *
+ *     it under the terms of the GNU General Public License as published by  *
+ *     the Free Software Foundation; either version 2 of the License, or     *
+ *     (at your option) any later version.                                   *
+ *     See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                           *
+ *   ***********************************************************************
+ *
+ */
+package org.matsim.freight.carriers.analysis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.events.LinkEnterEvent;
+import org.matsim.api.core.v01.events.VehicleEntersTrafficEvent;
+import org.matsim.api.core.v01.events.VehicleLeavesTrafficEvent;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.freight.carriers.Carrier;
+import org.matsim.freight.carriers.CarrierService;
+import org.matsim.freight.carriers.Carriers;
+import org.matsim.freight.carriers.CarriersUtils;
+import org.matsim.freight.carriers.TimeWindow;
+import org.matsim.freight.carriers.Tour;
+import org.matsim.freight.carriers.events.CarrierServiceEndEvent;
+import org.matsim.freight.carriers.events.CarrierServiceStartEvent;
+import org.matsim.freight.carriers.events.CarrierTourEndEvent;
+import org.matsim.freight.carriers.events.CarrierTourStartEvent;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.vehicles.Vehicle;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * One vehicle drives two tours; the first one has a wait for a time window and a second stop at the same link.
+ */
+public class TourTimelineTest {
+
+	private static final Id<Vehicle> VEHICLE_ID = Id.createVehicleId("truck");
+	private static final Id<Person> DRIVER_ID = Id.createPersonId("driver");
+
+	@RegisterExtension
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	void testTwoToursOfOneVehicle() throws IOException {
+		final Network network = NetworkUtils.createNetwork();
+		final Node node1 = NetworkUtils.createAndAddNode(network, Id.createNodeId("1"), new Coord(0., 0.));
+		final Node node2 = NetworkUtils.createAndAddNode(network, Id.createNodeId("2"), new Coord(100., 0.));
+		final Node node3 = NetworkUtils.createAndAddNode(network, Id.createNodeId("3"), new Coord(1100., 0.));
+		final Link depot = NetworkUtils.createAndAddLink(network, Id.createLinkId("depot"), node1, node2, 100., 10., 1000., 1.);
+		final Link linkA = NetworkUtils.createAndAddLink(network, Id.createLinkId("a"), node2, node3, 1000., 10., 1000., 1.);
+		final Link linkB = NetworkUtils.createAndAddLink(network, Id.createLinkId("b"), node3, node1, 2000., 10., 1000., 1.);
+
+		final Carrier carrier = CarriersUtils.createCarrier(Id.create("carrier", Carrier.class));
+		final Carriers carriers = new Carriers();
+		carriers.addCarrier(carrier);
+		final CarrierService withTimeWindow = addService(carrier, "withTimeWindow", linkA, TimeWindow.newInstance(300., 1000.), 60.);
+		final CarrierService sameLink = addService(carrier, "sameLink", linkA, TimeWindow.newInstance(0., 1000.), 40.);
+		final CarrierService secondTour = addService(carrier, "secondTour", linkB, TimeWindow.newInstance(0., 2000.), 100.);
+
+		final EventTypeDispatcher dispatcher = new EventTypeDispatcher();
+		final TourTimeline timeline = new TourTimeline(network, carriers);
+		timeline.registerEventHandlers(dispatcher);
+
+		final Id<Tour> tour1 = Id.create("tour1", Tour.class);
+		dispatcher.handleEvent(new CarrierTourStartEvent(0., carrier.getId(), depot.getId(), VEHICLE_ID, tour1));
+		drive(dispatcher, 10., 120., depot, linkA);
+		// arrives at 120, waits for the time window until 300
+		dispatcher.handleEvent(new CarrierServiceStartEvent(120., carrier.getId(), withTimeWindow, VEHICLE_ID));
+		dispatcher.handleEvent(new CarrierServiceEndEvent(360., carrier.getId(), withTimeWindow, VEHICLE_ID));
+		// no leg to the next stop
+		dispatcher.handleEvent(new CarrierServiceStartEvent(360., carrier.getId(), sameLink, VEHICLE_ID));
+		dispatcher.handleEvent(new CarrierServiceEndEvent(400., carrier.getId(), sameLink, VEHICLE_ID));
+		drive(dispatcher, 400., 450., linkA, depot);
+		dispatcher.handleEvent(new CarrierTourEndEvent(450., carrier.getId(), depot.getId(), VEHICLE_ID, tour1));
+
+		final Id<Tour> tour2 = Id.create("tour2", Tour.class);
+		dispatcher.handleEvent(new CarrierTourStartEvent(500., carrier.getId(), depot.getId(), VEHICLE_ID, tour2));
+		drive(dispatcher, 500., 700., depot, linkB);
+		dispatcher.handleEvent(new CarrierServiceStartEvent(700., carrier.getId(), secondTour, VEHICLE_ID));
+		dispatcher.handleEvent(new CarrierServiceEndEvent(800., carrier.getId(), secondTour, VEHICLE_ID));
+		drive(dispatcher, 800., 850., linkB, depot);
+		dispatcher.handleEvent(new CarrierTourEndEvent(850., carrier.getId(), depot.getId(), VEHICLE_ID, tour2));
+
+		timeline.writeTourAnalysis(utils.getOutputDirectory());
+
+		final List<Map<String, String>> perTour = read("Tour_perTour");
+		assertEquals(2, perTour.size());
+		assertTour(perTour.get(0), "tour1", 0., 450., 2, 2, 1100., 160., 180., 100.);
+		assertTour(perTour.get(1), "tour2", 500., 850., 2, 1, 2100., 250., 0., 100.);
+
+		final List<Map<String, String>> perStop = read("Tour_perStop");
+		assertEquals(3, perStop.size());
+		assertStop(perStop.get(0), "tour1", "0", "withTimeWindow", "a", 1000., 120., 300., 360.);
+		assertStop(perStop.get(1), "tour1", "1", "sameLink", "a", 0., 360., 360., 400.);
+		assertStop(perStop.get(2), "tour2", "0", "secondTour", "b", 2000., 700., 700., 800.);
+	}
+
+	private static CarrierService addService(Carrier carrier, String id, Link link, TimeWindow timeWindow, double duration) {
+		final CarrierService service = CarrierService.Builder.newInstance(Id.create(id, CarrierService.class), link.getId())
+				.setServiceStartTimeWindow(timeWindow)
+				.setServiceDuration(duration)
+				.build();
+		CarriersUtils.addService(carrier, service);
+		return service;
+	}
+
+	/**
+	 * A leg from the link of departure to the next link, which is entered 10 s after the departure.
+	 */
+	private static void drive(EventTypeDispatcher dispatcher, double departure, double arrival, Link from, Link to) {
+		dispatcher.handleEvent(new VehicleEntersTrafficEvent(departure, DRIVER_ID, from.getId(), VEHICLE_ID, "car", 1.));
+		dispatcher.handleEvent(new LinkEnterEvent(departure + 10., VEHICLE_ID, to.getId()));
+		dispatcher.handleEvent(new VehicleLeavesTrafficEvent(arrival, DRIVER_ID, to.getId(), VEHICLE_ID, "car", 1.));
+	}
+
+	private static void assertTour(Map<String, String> values, String tourId, double start, double end, int nuOfLegs, int nuOfStops,
+								   double distance, double drivingTime, double waitTime, double activityTime) {
+		assertEquals(tourId, values.get("tourId"));
+		assertEquals(VEHICLE_ID.toString(), values.get("vehicleId"));
+		assertValue(start, values, "tourStart[s]");
+		assertValue(end, values, "tourEnd[s]");
+		assertEquals(String.valueOf(nuOfLegs), values.get("nuOfLegs"));
+		assertEquals(String.valueOf(nuOfStops), values.get("nuOfStops"));
+		assertValue(distance, values, "travelDistance[m]");
+		assertValue(drivingTime, values, "drivingTime[s]");
+		assertValue(waitTime, values, "waitTime[s]");
+		assertValue(activityTime, values, "activityTime[s]");
+	}
+
+	private static void assertStop(Map<String, String> values, String tourId, String stopNumber, String serviceId, String linkId,
+								   double legDistance, double arrival, double start, double end) {
+		assertEquals(tourId, values.get("tourId"));
+		assertEquals(stopNumber, values.get("stopNumber"));
+		assertEquals("service", values.get("type"));
+		assertEquals(serviceId, values.get("serviceOrShipmentId"));
+		assertEquals(linkId, values.get("linkId"));
+		assertValue(legDistance, values, "legDistance[m]");
+		assertValue(arrival, values, "arrival[s]");
+		assertValue(start, values, "start[s]");
+		assertValue(end, values, "end[s]");
+		assertValue(start - arrival, values, "wait[s]");
+		assertValue(end - start, values, "activityDuration[s]");
+	}
+
+	private static void assertValue(double expected, Map<String, String> values, String column) {
+		assertEquals(expected, Double.parseDouble(values.get(column)), MatsimTestUtils.EPSILON, column);
+	}
+
+	private List<Map<String, String>> read(String table) throws IOException {
+		final List<String> lines = Files.readAllLines(Path.of(utils.getOutputDirectory(), table + RunFreightAnalysisEventBased.fileExtension));
+		final String[] header = lines.get(0).split(RunFreightAnalysisEventBased.delimiter, -1);
+		final List<Map<String, String>> result = new ArrayList<>();
+		for (String line : lines.subList(1, lines.size())) {
+			final String[] fields = line.split(RunFreightAnalysisEventBased.delimiter, -1);
+			final Map<String, String> values = new HashMap<>();
+			for (int i = 0; i < header.length; i++) {
+				values.put(header[i], fields[i]);
+			}
+			result.add(values);
+		}
+		return result;
+	}
+}
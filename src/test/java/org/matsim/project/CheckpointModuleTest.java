@@ -0,0 +1,97 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.project;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.utils.eventsfilecomparison.ComparisonResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Writes checkpoints in a run of the equil scenario and resumes from the latest one.
+ */
+public class CheckpointModuleTest {
+
+	@RegisterExtension
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	void testCheckpointAndResume() throws IOException {
+		final Path checkpointDirectory = Path.of(utils.getOutputDirectory(), "checkpoints");
+		// other entries in the checkpoint directory must survive the pruning of old checkpoints
+		Files.createDirectories(checkpointDirectory.resolve("it.notes"));
+		Files.writeString(checkpointDirectory.resolve("notes.txt"), "not a checkpoint");
+
+		final String originalOutputDirectory = utils.getOutputDirectory() + "original/";
+		final Config config = createConfig(originalOutputDirectory);
+		final Controler controler = new Controler(ScenarioUtils.loadScenario(config));
+		controler.addOverridingModule(new CheckpointModule(checkpointDirectory.toString(), 1, CheckpointModule.OriginalSettings.of(config)));
+		controler.run();
+
+		// only the latest checkpoint is kept
+		try (Stream<Path> paths = Files.list(checkpointDirectory)) {
+			assertEquals(Set.of("it.3", "it.notes", "notes.txt"), paths.map(path -> path.getFileName().toString()).collect(Collectors.toSet()));
+		}
+
+		final String resumedOutputDirectory = utils.getOutputDirectory() + "resumed/";
+		final Config resumedConfig = createConfig(resumedOutputDirectory);
+		final CheckpointModule.OriginalSettings originalSettings = CheckpointModule.resumeFromLatestCheckpoint(resumedConfig, checkpointDirectory.toString());
+		assertEquals(0, originalSettings.firstIteration());
+		assertEquals(3, resumedConfig.controller().getFirstIteration());
+		new Controler(ScenarioUtils.loadScenario(resumedConfig)).run();
+
+		// the mobsim of the resumed iteration runs on the same plans as in the original run
+		assertEquals(ComparisonResult.FILES_ARE_EQUAL, EventsUtils.compareEventsFiles(
+				originalOutputDirectory + "ITERS/it.3/3.events.xml.gz", resumedOutputDirectory + "ITERS/it.3/3.events.xml.gz"));
+	}
+
+	@Test
+	void testNoCheckpoint() throws IOException {
+		final Config config = createConfig(utils.getOutputDirectory());
+		CheckpointModule.resumeFromLatestCheckpoint(config, utils.getOutputDirectory() + "checkpoints");
+		assertEquals(0, config.controller().getFirstIteration());
+	}
+
+	private static Config createConfig(String outputDirectory) {
+		final Config config = ConfigUtils.loadConfig(IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml"));
+		config.controller().setOutputDirectory(outputDirectory);
+		config.controller().setFirstIteration(0);
+		config.controller().setLastIteration(3);
+		config.controller().setWriteEventsInterval(1);
+		config.controller().setOverwriteFileSetting(OverwriteFileSetting.deleteDirectoryIfExists);
+		return config;
+	}
+}
@@ -0,0 +1,69 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.project;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.Controler;
+import org.matsim.core.controler.OutputDirectoryHierarchy.OverwriteFileSetting;
+import org.matsim.core.events.EventsUtils;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.testcases.MatsimTestUtils;
+import org.matsim.utils.eventsfilecomparison.ComparisonResult;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The {@link NextEventTimeSteppingModule} must skip time steps, but not change the events of the mobsim.
+ */
+public class NextEventTimeSteppingModuleTest {
+
+	@RegisterExtension
+	public MatsimTestUtils utils = new MatsimTestUtils();
+
+	@Test
+	void testSameEventsAsWithEveryTimeStep() {
+		final String everyStepOutputDirectory = utils.getOutputDirectory() + "everyStep/";
+		new Controler(ScenarioUtils.loadScenario(createConfig(everyStepOutputDirectory))).run();
+
+		final String nextEventOutputDirectory = utils.getOutputDirectory() + "nextEvent/";
+		final Controler controler = new Controler(ScenarioUtils.loadScenario(createConfig(nextEventOutputDirectory)));
+		final NextEventTimeSteppingModule nextEventTimeSteppingModule = new NextEventTimeSteppingModule();
+		controler.addOverridingModule(nextEventTimeSteppingModule);
+		controler.run();
+
+		// the agents stay at home until the morning
+		assertTrue(nextEventTimeSteppingModule.getSkippedSteps() > 0);
+		assertEquals(ComparisonResult.FILES_ARE_EQUAL, EventsUtils.compareEventsFiles(
+				everyStepOutputDirectory + "output_events.xml.gz", nextEventOutputDirectory + "output_events.xml.gz"));
+	}
+
+	private static Config createConfig(String outputDirectory) {
+		final Config config = ConfigUtils.loadConfig(IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml"));
+		config.controller().setOutputDirectory(outputDirectory);
+		config.controller().setLastIteration(0);
+		config.controller().setOverwriteFileSetting(OverwriteFileSetting.deleteDirectoryIfExists);
+		return config;
+	}
+}
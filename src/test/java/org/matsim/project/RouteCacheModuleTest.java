@@ -0,0 +1,125 @@
+/* *********************************************************************** *
+ * project: org.matsim.*												   *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ * copyright       : (C) 2008 by the members listed in the COPYING,        *
+ *                   LICENSE and WARRANTY file.                            *
+ * email           : info at matsim dot org                                *
+ *                                                                         *
+ * *********************************************************************** *
+ *                                                                         *
+ *   This program is free software; you can redistribute it and/or modify  *
+ *   it under the terms of the GNU General Public License as published by  *
+ *   the Free Software Foundation; either version 2 of the License, or     *
+ *   (at your option) any later version.                                   *
+ *   See also COPYING, LICENSE and WARRANTY file                           *
+ *                                                                         *
+ * *********************************************************************** */
+package org.matsim.project;
+
+import org.junit.jupiter.api.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.AbstractModule;
+import org.matsim.core.controler.Injector;
+import org.matsim.core.events.EventsManagerModule;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.TripRouter;
+import org.matsim.core.router.TripRouterModule;
+import org.matsim.core.router.costcalculators.TravelDisutilityModule;
+import org.matsim.core.scenario.ScenarioByInstanceModule;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.trafficmonitoring.TravelTimeCalculatorModule;
+import org.matsim.core.utils.io.IOUtils;
+import org.matsim.core.utils.timing.TimeInterpretationModule;
+import org.matsim.examples.ExamplesUtils;
+import org.matsim.facilities.FacilitiesUtils;
+import org.matsim.utils.objectattributes.attributable.AttributesImpl;
+import org.matsim.vehicles.Vehicle;
+import org.matsim.vehicles.VehicleType;
+import org.matsim.vehicles.VehicleUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The {@link RouteCacheModule} must not hand out the route of one person to another one.
+ */
+public class RouteCacheModuleTest {
+
+	@Test
+	void testRoutesAreNotSharedBetweenPersons() {
+		final Config config = ConfigUtils.loadConfig(IOUtils.extendUrl(ExamplesUtils.getTestScenarioURL("equil"), "config.xml"));
+		final Scenario scenario = ScenarioUtils.loadScenario(config);
+
+		final VehicleType car = VehicleUtils.createVehicleType(Id.create("car", VehicleType.class));
+		final VehicleType slowCar = VehicleUtils.createVehicleType(Id.create("slowCar", VehicleType.class));
+		slowCar.setMaximumVelocity(5.);
+		scenario.getVehicles().addVehicleType(car);
+		scenario.getVehicles().addVehicleType(slowCar);
+		final Person personA = createPerson(scenario, "a", car);
+		final Person personB = createPerson(scenario, "b", slowCar);
+
+		final RouteCacheModule routeCacheModule = new RouteCacheModule(20, config.travelTimeCalculator().getTraveltimeBinSize(), 0.05);
+		final com.google.inject.Injector injector = Injector.createInjector(config, new AbstractModule() {
+			@Override
+			public void install() {
+				install(new ScenarioByInstanceModule(scenario));
+				install(new TimeInterpretationModule());
+				install(new EventsManagerModule());
+				install(new TravelTimeCalculatorModule());
+				install(new TravelDisutilityModule());
+				install(AbstractModule.override(List.of(new TripRouterModule()), routeCacheModule));
+			}
+		});
+		final TripRouter tripRouter = injector.getInstance(TripRouter.class);
+
+		final NetworkRoute routeA = route(tripRouter, scenario, personA, 6 * 3600.);
+		final NetworkRoute routeB = route(tripRouter, scenario, personB, 6 * 3600.);
+		assertEquals(0, routeCacheModule.getHits());
+		assertEquals(2, routeCacheModule.getMisses());
+		assertEquals(Id.createVehicleId("a"), routeA.getVehicleId());
+		assertEquals(Id.createVehicleId("b"), routeB.getVehicleId());
+
+		// same time bin as before
+		final NetworkRoute routeA2 = route(tripRouter, scenario, personA, 6 * 3600. + 60.);
+		final NetworkRoute routeB2 = route(tripRouter, scenario, personB, 6 * 3600. + 60.);
+		assertEquals(2, routeCacheModule.getHits());
+		assertEquals(2, routeCacheModule.getMisses());
+		assertEquals(Id.createVehicleId("a"), routeA2.getVehicleId());
+		assertEquals(Id.createVehicleId("b"), routeB2.getVehicleId());
+		assertEquals(routeA.getLinkIds(), routeA2.getLinkIds());
+		assertEquals(routeB.getLinkIds(), routeB2.getLinkIds());
+	}
+
+	private static Person createPerson(Scenario scenario, String id, VehicleType vehicleType) {
+		final Person person = scenario.getPopulation().getFactory().createPerson(Id.createPersonId(id));
+		final Vehicle vehicle = VehicleUtils.createVehicle(Id.createVehicleId(id), vehicleType);
+		scenario.getVehicles().addVehicle(vehicle);
+		VehicleUtils.insertVehicleIdsIntoPersonAttributes(person, Map.of(TransportMode.car, vehicle.getId()));
+		return person;
+	}
+
+	private static NetworkRoute route(TripRouter tripRouter, Scenario scenario, Person person, double departureTime) {
+		final Link from = scenario.getNetwork().getLinks().get(Id.createLinkId("1"));
+		final Link to = scenario.getNetwork().getLinks().get(Id.createLinkId("20"));
+		final List<? extends PlanElement> trip = tripRouter.calcRoute(TransportMode.car, FacilitiesUtils.wrapLink(from),
+				FacilitiesUtils.wrapLink(to), departureTime, person, new AttributesImpl());
+		for (PlanElement planElement : trip) {
+			if (planElement instanceof Leg leg && leg.getRoute() instanceof NetworkRoute networkRoute) {
+				return networkRoute;
+			}
+		}
+		throw new AssertionError("no network route in " + trip);
+	}
+}